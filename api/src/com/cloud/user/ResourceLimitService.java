@@ -21,6 +21,7 @@ import java.util.List;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.configuration.ResourceCount;
 import com.cloud.configuration.ResourceLimit;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.domain.Domain;
 import com.cloud.exception.ResourceAllocationException;
 
@@ -139,4 +140,34 @@ public interface ResourceLimitService {
      */
     public long getResourceCount(Account account, ResourceType type);
 
+    /**
+     * Sets resources aside against the limits of an account and all its parent domains, so that concurrent
+     * allocations cannot exceed the limits between the check and the allocation
+     *
+     * @param account
+     * @param type
+     * @param amount
+     * @return the reservation, to be committed in the transaction allocating the resources and released in any case
+     *         once the allocation is over
+     * @throws ResourceAllocationException
+     *             if the reservation would exceed a limit
+     */
+    public ResourceReservation reserveResource(Account account, ResourceType type, long amount) throws ResourceAllocationException;
+
+    /**
+     * Adds the reserved resources to the resource counts of the account and its parent domains once the current
+     * transaction commits
+     *
+     * @param reservation
+     */
+    public void commitReservation(ResourceReservation reservation);
+
+    /**
+     * Gives reserved resources that were not committed back once the current transaction is over, does nothing
+     * for committed ones
+     *
+     * @param reservation
+     */
+    public void releaseReservation(ResourceReservation reservation);
+
 }
@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.admin.config;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.SqlStatementStatsResponse;
+import org.apache.log4j.Logger;
+
+@APICommand(name = "listSqlStatementStats", description="Lists the statistics of the SQL statements run by this management server, the ones the most time was spent in first. Statistics are collected while db.statement.stats.enabled is set in db.properties or enabled through JMX.", responseObject=SqlStatementStatsResponse.class, since="4.3.0")
+public class ListSqlStatementStatsCmd extends BaseListCmd {
+    public static final Logger s_logger = Logger.getLogger(ListSqlStatementStatsCmd.class.getName());
+
+    private static final String s_name = "listsqlstatementstatsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name=ApiConstants.SORT_BY, type=CommandType.STRING, description="Sort the results. Available values: totaltime, count, maxtime, rows, errors. Defaults to totaltime")
+    private String sortBy;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public String getSortBy() {
+        return sortBy;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public void execute(){
+        ListResponse<SqlStatementStatsResponse> response = _mgr.listSqlStatementStats(this);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
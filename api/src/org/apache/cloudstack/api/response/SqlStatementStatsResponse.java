@@ -0,0 +1,87 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.response;
+
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class SqlStatementStatsResponse extends BaseResponse {
+    @SerializedName("sql") @Param(description="the statement, with literals replaced by ? and parameter lists folded")
+    private String sql;
+
+    @SerializedName("count") @Param(description="the number of times the statement was executed")
+    private Long count;
+
+    @SerializedName("errors") @Param(description="the number of executions that failed")
+    private Long errors;
+
+    @SerializedName("totaltime") @Param(description="the time spent executing the statement in milliseconds")
+    private Long totalTime;
+
+    @SerializedName("averagetime") @Param(description="the average execution time in milliseconds")
+    private Double averageTime;
+
+    @SerializedName("maxtime") @Param(description="the longest execution time in milliseconds")
+    private Long maxTime;
+
+    @SerializedName("rows") @Param(description="the number of rows fetched or changed by the statement")
+    private Long rows;
+
+    @SerializedName("histogram") @Param(description="the number of executions taking up to 1, 5, 10, 50, 100, 500, 1000, 5000 milliseconds and longer")
+    private String histogram;
+
+    @SerializedName("callers") @Param(description="the methods preparing the statement, sampled, with the number of times each was seen")
+    private String callers;
+
+    public void setSql(String sql) {
+        this.sql = sql;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public void setErrors(Long errors) {
+        this.errors = errors;
+    }
+
+    public void setTotalTime(Long totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    public void setAverageTime(Double averageTime) {
+        this.averageTime = averageTime;
+    }
+
+    public void setMaxTime(Long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public void setRows(Long rows) {
+        this.rows = rows;
+    }
+
+    public void setHistogram(String histogram) {
+        this.histogram = histogram;
+    }
+
+    public void setCallers(String callers) {
+        this.callers = callers;
+    }
+}
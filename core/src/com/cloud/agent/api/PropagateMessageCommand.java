@@ -0,0 +1,48 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/*
+ * Carries a message to be published on the message bus of the other management
+ * server nodes, under the given subject. The message is an opaque string owned
+ * by whoever subscribes to the subject.
+ */
+public class PropagateMessageCommand extends Command {
+    String subject;
+    String message;
+
+    protected PropagateMessageCommand() {
+    }
+
+    public PropagateMessageCommand(String subject, String message) {
+        this.subject = subject;
+        this.message = message;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
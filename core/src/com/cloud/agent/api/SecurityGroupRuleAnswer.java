@@ -21,7 +21,8 @@ public class SecurityGroupRuleAnswer extends Answer {
         NONE,
         UNKNOWN,
         PROGRAMMING_FAILED,
-        CANNOT_BRIDGE_FIREWALL
+        CANNOT_BRIDGE_FIREWALL,
+        DELTA_BASE_MISMATCH
     }
     Long logSequenceNumber = null;
     Long vmId = null;
@@ -51,6 +52,19 @@ public class SecurityGroupRuleAnswer extends Answer {
         reason = r;
     }
 
+    public SecurityGroupRuleAnswer(SecurityGroupRulesDeltaCmd cmd) {
+        super(cmd);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+    }
+
+    public SecurityGroupRuleAnswer(SecurityGroupRulesDeltaCmd cmd, boolean result, String detail, FailureReason r) {
+        super(cmd, result, detail);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+        reason = r;
+    }
+
     public Long getLogSequenceNumber() {
         return logSequenceNumber;
     }
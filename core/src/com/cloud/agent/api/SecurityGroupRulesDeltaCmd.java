@@ -0,0 +1,205 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+/**
+ * Delta variant of SecurityGroupRulesCmd. The rule sets list every
+ * proto/port entry of the new ruleset in order, but entries whose cidrs did
+ * not change since the ruleset identified by baseSignature carry no cidrs.
+ * The agent rebuilds the full ruleset from its copy of the base and must
+ * end up with the same signature, otherwise it rejects the delta and the
+ * management server falls back to a full push.
+ */
+public class SecurityGroupRulesDeltaCmd extends Command {
+    String guestIp;
+    String vmName;
+    String guestMac;
+    String baseSignature;
+    String signature;
+    Long seqNum;
+    Long vmId;
+    Long msId;
+    IpPortAndProto[] ingressRuleSet;
+    IpPortAndProto[] egressRuleSet;
+    private List<String> secIps;
+
+    protected SecurityGroupRulesDeltaCmd() {
+        super();
+    }
+
+    public SecurityGroupRulesDeltaCmd(SecurityGroupRulesCmd base, SecurityGroupRulesCmd cmd) {
+        super();
+        guestIp = cmd.getGuestIp();
+        vmName = cmd.getVmName();
+        guestMac = cmd.getGuestMac();
+        baseSignature = base.getSignature();
+        signature = cmd.getSignature();
+        seqNum = cmd.getSeqNum();
+        vmId = cmd.getVmId();
+        msId = cmd.getMsId();
+        secIps = cmd.getSecIps();
+        ingressRuleSet = diff(base.getIngressRuleSet(), cmd.getIngressRuleSet());
+        egressRuleSet = diff(base.getEgressRuleSet(), cmd.getEgressRuleSet());
+    }
+
+    private static String key(IpPortAndProto rule) {
+        return rule.getProto() + ":" + rule.getStartPort() + ":" + rule.getEndPort();
+    }
+
+    private static boolean sameCidrs(String[] cidrs1, String[] cidrs2) {
+        if (cidrs1.length != cidrs2.length) {
+            return false;
+        }
+        for (int i = 0; i < cidrs1.length; i++) {
+            if (!cidrs1[i].equals(cidrs2[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static IpPortAndProto[] diff(IpPortAndProto[] base, IpPortAndProto[] target) {
+        Map<String, IpPortAndProto> baseRules = new HashMap<String, IpPortAndProto>();
+        for (IpPortAndProto rule : base) {
+            baseRules.put(key(rule), rule);
+        }
+        IpPortAndProto[] result = new IpPortAndProto[target.length];
+        for (int i = 0; i < target.length; i++) {
+            IpPortAndProto baseRule = baseRules.get(key(target[i]));
+            if (baseRule != null && sameCidrs(baseRule.getAllowedCidrs(), target[i].getAllowedCidrs())) {
+                result[i] = new IpPortAndProto(target[i].getProto(), target[i].getStartPort(), target[i].getEndPort(), null);
+            } else {
+                result[i] = target[i];
+            }
+        }
+        return result;
+    }
+
+    private static IpPortAndProto[] apply(IpPortAndProto[] base, IpPortAndProto[] delta) {
+        Map<String, IpPortAndProto> baseRules = new HashMap<String, IpPortAndProto>();
+        for (IpPortAndProto rule : base) {
+            baseRules.put(key(rule), rule);
+        }
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>(delta.length);
+        for (IpPortAndProto rule : delta) {
+            if (rule.getAllowedCidrs() != null) {
+                result.add(rule);
+                continue;
+            }
+            IpPortAndProto baseRule = baseRules.get(key(rule));
+            if (baseRule == null) {
+                return null;
+            }
+            result.add(baseRule);
+        }
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    /**
+     * Rebuilds the full ruleset on top of base.
+     * @return the full command, or null if base is not the ruleset this delta was computed against.
+     */
+    public SecurityGroupRulesCmd rebuild(SecurityGroupRulesCmd base) {
+        if (base == null || baseSignature == null || !baseSignature.equals(base.getSignature())) {
+            return null;
+        }
+        IpPortAndProto[] ingress = apply(base.getIngressRuleSet(), ingressRuleSet);
+        IpPortAndProto[] egress = apply(base.getEgressRuleSet(), egressRuleSet);
+        if (ingress == null || egress == null) {
+            return null;
+        }
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, null, seqNum, ingress, egress, secIps);
+        if (!cmd.getSignature().equals(signature)) {
+            return null;
+        }
+        if (msId != null) {
+            cmd.setMsId(msId);
+        }
+        return cmd;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public IpPortAndProto[] getIngressRuleSet() {
+        return ingressRuleSet;
+    }
+
+    public IpPortAndProto[] getEgressRuleSet() {
+        return egressRuleSet;
+    }
+
+    public int getNumChangedRules() {
+        int count = 0;
+        for (IpPortAndProto rule : ingressRuleSet) {
+            if (rule.getAllowedCidrs() != null) {
+                count++;
+            }
+        }
+        for (IpPortAndProto rule : egressRuleSet) {
+            if (rule.getAllowedCidrs() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public String getGuestIp() {
+        return guestIp;
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public String getGuestMac() {
+        return guestMac;
+    }
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public Long getSeqNum() {
+        return seqNum;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public Long getMsId() {
+        return msId;
+    }
+
+    public List<String> getSecIps() {
+        return secIps;
+    }
+}
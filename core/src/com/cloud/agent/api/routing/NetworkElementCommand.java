@@ -50,6 +50,10 @@ public abstract class NetworkElementCommand extends Command {
         return accessDetails.get(name);
     }
 
+    public void copyAccessDetails(NetworkElementCommand cmd) {
+        accessDetails.putAll(cmd.accessDetails);
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
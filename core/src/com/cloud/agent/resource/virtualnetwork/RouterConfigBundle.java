@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RouterConfigBundle collects a batch of script invocations destined for one
+ * virtual router so that they can be shipped and executed through a single
+ * control session instead of one SSH connection per rule.
+ *
+ * The bundle is rendered as a shell script which echoes a result marker after
+ * every entry; the output of the run is parsed back into per-entry results.
+ */
+public class RouterConfigBundle {
+    public static final String RESULT_MARKER = "CS_BUNDLE_RESULT:";
+
+    private final List<String> _commands = new ArrayList<String>();
+
+    /**
+     * @param script absolute path of the script inside the router
+     * @param args   arguments, already formatted the way router_proxy.sh passes them
+     * @return index of the entry in the bundle
+     */
+    public int add(String script, String args) {
+        StringBuilder sb = new StringBuilder(script);
+        if (args != null && !args.isEmpty()) {
+            sb.append(' ').append(args.trim());
+        }
+        _commands.add(sb.toString());
+        return _commands.size() - 1;
+    }
+
+    public int size() {
+        return _commands.size();
+    }
+
+    public boolean isEmpty() {
+        return _commands.isEmpty();
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _commands.size(); i++) {
+            sb.append(_commands.get(i)).append(" < /dev/null\n");
+            sb.append("echo \"").append(RESULT_MARKER).append(i).append(":$?\"\n");
+        }
+        sb.append("exit 0\n");
+        return sb.toString();
+    }
+
+    /**
+     * Maps the output of a bundle run back to per-entry results. An entry is
+     * null when its script succeeded, otherwise "Failed". Entries without a
+     * result marker (e.g. the session died mid-way) are reported as failed.
+     */
+    public String[] parseResults(String output) {
+        String[] results = new String[_commands.size()];
+        boolean[] seen = new boolean[_commands.size()];
+        if (output != null) {
+            for (String line : output.split("\n")) {
+                line = line.trim();
+                if (!line.startsWith(RESULT_MARKER)) {
+                    continue;
+                }
+                String[] tokens = line.substring(RESULT_MARKER.length()).split(":");
+                if (tokens.length != 2) {
+                    continue;
+                }
+                try {
+                    int index = Integer.parseInt(tokens[0]);
+                    int exitCode = Integer.parseInt(tokens[1]);
+                    if (index >= 0 && index < results.length) {
+                        seen[index] = true;
+                        results[index] = exitCode == 0 ? null : "Failed";
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (!seen[i]) {
+                results[i] = "Failed";
+            }
+        }
+        return results;
+    }
+}
@@ -115,6 +115,7 @@ public class VirtualRoutingResource implements Manager {
     private String _createIpAliasPath;
     private String _deleteIpAliasPath;
     private String _callDnsMasqPath;
+    private String _routerBundlePath;
 
     private int _timeout;
     private int _startTimeout;
@@ -123,6 +124,7 @@ public class VirtualRoutingResource implements Manager {
     private int _sleep;
     private int _retry;
     private int _port;
+    private int _bundleThreshold;
 
     public Answer executeRequest(final Command cmd) {
         try {
@@ -278,6 +280,20 @@ public class VirtualRoutingResource implements Manager {
         String[] results = new String[cmd.getRules().length];
         int i = 0;
         boolean endResult = true;
+        if (useBundle(cmd.getRules().length)) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (PortForwardingRuleTO rule : cmd.getRules()) {
+                String args = rule.revoked() ? "-D" : "-A";
+                args += " -P " + rule.getProtocol().toLowerCase();
+                args += " -l " + rule.getSrcIp();
+                args += " -p " + rule.getStringSrcPortRange();
+                args += " -r " + rule.getDstIp();
+                args += " -d " + rule.getStringDstPortRange();
+                bundle.add("/root/firewall.sh", args);
+            }
+            results = applyConfigBundle(routerIp, bundle);
+            return new SetPortForwardingRulesAnswer(cmd, results, allSucceeded(results));
+        }
         for (PortForwardingRuleTO rule : cmd.getRules()) {
             String result = null;
             final Script command = new Script(_firewallPath, _timeout, s_logger);
@@ -307,6 +323,18 @@ public class VirtualRoutingResource implements Manager {
         int i = 0;
         boolean endResult = true;
 
+        if (useBundle(cmd.getRules().length)) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (StaticNatRuleTO rule : cmd.getRules()) {
+                String args = rule.revoked() ? "-D" : "-A";
+                args += " -l " + rule.getSrcIp();
+                args += " -r " + rule.getDstIp();
+                bundle.add(getRouterScriptPath("vpc_staticnat.sh"), args);
+            }
+            results = applyConfigBundle(routerIp, bundle);
+            return new SetStaticNatRulesAnswer(cmd, results, allSucceeded(results));
+        }
+
         for (StaticNatRuleTO rule : cmd.getRules()) {
             String args = rule.revoked() ? " -D" : " -A";
             args += " -l " + rule.getSrcIp();
@@ -686,6 +714,61 @@ public class VirtualRoutingResource implements Manager {
         return command.execute();
     }
 
+    protected String getRouterScriptPath(String script) {
+        return "/opt/cloud/bin/" + script;
+    }
+
+    protected boolean useBundle(int ruleCount) {
+        return _routerBundlePath != null && _bundleThreshold > 0 && ruleCount >= _bundleThreshold;
+    }
+
+    /**
+     * Ships all entries of the bundle to the router in one control session.
+     * Returns one result per entry, null meaning success.
+     */
+    public String[] applyConfigBundle(String routerIP, RouterConfigBundle bundle) {
+        if (bundle.isEmpty()) {
+            return new String[0];
+        }
+
+        File bundleFile = null;
+        try {
+            bundleFile = File.createTempFile("router-bundle", ".sh");
+            BufferedWriter writer = new BufferedWriter(new FileWriter(bundleFile));
+            try {
+                writer.write(bundle.render());
+            } finally {
+                writer.close();
+            }
+
+            final Script command = new Script(_routerBundlePath, _timeout, s_logger);
+            final OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+            command.add(routerIP);
+            command.add(bundleFile.getAbsolutePath());
+            String result = command.execute(parser);
+            if (result != null) {
+                s_logger.warn("Applying config bundle of " + bundle.size() + " entries to router " + routerIP + " failed: " + result);
+            }
+            return bundle.parseResults(parser.getLines());
+        } catch (IOException e) {
+            s_logger.warn("Unable to write config bundle for router " + routerIP, e);
+            return bundle.parseResults(null);
+        } finally {
+            if (bundleFile != null) {
+                bundleFile.delete();
+            }
+        }
+    }
+
+    private static boolean allSucceeded(String[] results) {
+        for (String result : results) {
+            if (result != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     protected Answer execute(CheckRouterCommand cmd) {
         final String routerPrivateIPAddress = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
 
@@ -877,6 +960,21 @@ public class VirtualRoutingResource implements Manager {
         String[] results = new String[cmd.getRules().length];
         int i = 0;
 
+        if (useBundle(cmd.getRules().length)) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (PortForwardingRuleTO rule : cmd.getRules()) {
+                String args = rule.revoked() ? "-D" : "-A";
+                args += " -P " + rule.getProtocol().toLowerCase();
+                args += " -l " + rule.getSrcIp();
+                args += " -p " + rule.getStringSrcPortRange();
+                args += " -r " + rule.getDstIp();
+                args += " -d " + rule.getStringDstPortRange().replace(":", "-");
+                bundle.add(getRouterScriptPath("vpc_portforwarding.sh"), args);
+            }
+            results = applyConfigBundle(routerIp, bundle);
+            return new SetPortForwardingRulesAnswer(cmd, results, allSucceeded(results));
+        }
+
         boolean endResult = true;
         for (PortForwardingRuleTO rule : cmd.getRules()) {
             String args = rule.revoked() ? " -D" : " -A";
@@ -1190,6 +1288,14 @@ public class VirtualRoutingResource implements Manager {
             throw new ConfigurationException("unable to find call_dnsmasq.sh");
         }
 
+        _routerBundlePath = findScript("router_bundle.sh");
+        if (_routerBundlePath == null) {
+            s_logger.info("Unable to find router_bundle.sh, rules will be applied to routers one at a time");
+        }
+
+        value = (String)params.get("router.bundle.threshold");
+        _bundleThreshold = NumbersUtil.parseInt(value, 2);
+
         return true;
     }
 
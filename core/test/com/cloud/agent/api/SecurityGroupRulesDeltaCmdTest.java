@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+public class SecurityGroupRulesDeltaCmdTest {
+
+    private static SecurityGroupRulesCmd ruleset(long seqNum, IpPortAndProto[] ingress, IpPortAndProto[] egress) {
+        return new SecurityGroupRulesCmd("10.1.1.10", "02:00:00:00:00:01", "i-2-10-VM", 10L, null, seqNum, ingress, egress, null);
+    }
+
+    private static IpPortAndProto rule(String proto, int port, String... cidrs) {
+        return new IpPortAndProto(proto, port, port, cidrs);
+    }
+
+    @Test
+    public void testOnlyChangedRulesCarryCidrs() {
+        SecurityGroupRulesCmd base = ruleset(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.11/32"), rule("tcp", 80, "0.0.0.0/0")},
+                new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+        SecurityGroupRulesCmd target = ruleset(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.11/32", "10.1.1.12/32"), rule("tcp", 80, "0.0.0.0/0")},
+                new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(base, target);
+        assertEquals(1, delta.getNumChangedRules());
+        assertNull(delta.getIngressRuleSet()[1].getAllowedCidrs());
+
+        SecurityGroupRulesCmd rebuilt = delta.rebuild(base);
+        assertEquals(target.getSignature(), rebuilt.getSignature());
+        assertEquals(target.stringifyRules(), rebuilt.stringifyRules());
+        assertEquals(Long.valueOf(2), rebuilt.getSeqNum());
+    }
+
+    @Test
+    public void testRemovedRulesAreDropped() {
+        SecurityGroupRulesCmd base = ruleset(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.11/32"), rule("tcp", 80, "0.0.0.0/0")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = ruleset(2, new IpPortAndProto[] {rule("tcp", 80, "0.0.0.0/0")}, new IpPortAndProto[0]);
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(base, target);
+        assertEquals(0, delta.getNumChangedRules());
+        assertEquals(target.getSignature(), delta.rebuild(base).getSignature());
+    }
+
+    @Test
+    public void testWrongBaseIsRejected() {
+        SecurityGroupRulesCmd base = ruleset(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.11/32")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd other = ruleset(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.13/32")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = ruleset(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.11/32")}, new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(base, target);
+        assertNull(delta.rebuild(other));
+        assertNull(delta.rebuild(null));
+    }
+}
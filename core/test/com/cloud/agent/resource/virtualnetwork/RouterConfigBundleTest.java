@@ -0,0 +1,90 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+
+public class RouterConfigBundleTest {
+    private static final Logger s_logger = Logger.getLogger(RouterConfigBundleTest.class);
+
+    @Test
+    public void testParseResults() {
+        RouterConfigBundle bundle = new RouterConfigBundle();
+        bundle.add("/opt/cloud/bin/vpc_staticnat.sh", "-A -l 10.0.0.1 -r 192.168.0.1");
+        bundle.add("/opt/cloud/bin/vpc_staticnat.sh", "-A -l 10.0.0.2 -r 192.168.0.2");
+        bundle.add("/opt/cloud/bin/vpc_staticnat.sh", "-A -l 10.0.0.3 -r 192.168.0.3");
+
+        String output = "some script output\n" + RouterConfigBundle.RESULT_MARKER + "0:0\n" + RouterConfigBundle.RESULT_MARKER + "1:1\n";
+        String[] results = bundle.parseResults(output);
+        assertEquals(3, results.length);
+        assertNull(results[0]);
+        assertEquals("Failed", results[1]);
+        // no marker means the session died before the entry ran
+        assertEquals("Failed", results[2]);
+    }
+
+    /**
+     * Uses a local shell as a stand-in router endpoint, and checks that every
+     * entry of a bundle runs and reports its own result.
+     */
+    @Test
+    public void testBundleAgainstLocalShell() throws Exception {
+        if (!new File("/bin/bash").exists()) {
+            return;
+        }
+        final int rules = 200;
+
+        RouterConfigBundle bundle = new RouterConfigBundle();
+        for (int i = 0; i < rules; i++) {
+            bundle.add(i == 7 ? "/bin/false" : "/bin/true", "-A -l 10.0.0." + (i % 250));
+        }
+
+        File bundleFile = File.createTempFile("router-bundle", ".sh");
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(bundleFile));
+            writer.write(bundle.render());
+            writer.close();
+
+            Script command = new Script("/bin/bash", 60000, s_logger);
+            command.add(bundleFile.getAbsolutePath());
+            OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+            assertNull(command.execute(parser));
+            String[] results = bundle.parseResults(parser.getLines());
+
+            for (int i = 0; i < rules; i++) {
+                if (i == 7) {
+                    assertEquals("Failed", results[i]);
+                } else {
+                    assertNull(results[i]);
+                }
+            }
+        } finally {
+            bundleFile.delete();
+        }
+    }
+}
@@ -104,6 +104,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.HypervisorVersionChangedException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.nio.HandlerFactory;
 import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.NioServer;
@@ -160,6 +161,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     protected ScheduledExecutorService _monitorExecutor;
 
     private int _directAgentThreadCap;
+    protected DirectAgentPingScheduler _directAgentPingScheduler;
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
     private final Map<Long, Long> _pingMap = new ConcurrentHashMap<Long, Long>(10007);
@@ -181,6 +183,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "Default size for DirectAgentPool", false);
     protected final ConfigKey<Float> DirectAgentThreadCap = new ConfigKey<Float>(Float.class, "direct.agent.thread.cap", "Advanced", "0.1",
             "Percentage (as a value between 0 and 1) of direct.agent.pool.size to be used as upper thread cap for a single direct agent to process requests", false);
+    protected final ConfigKey<Integer> DirectAgentPingConcurrency = new ConfigKey<Integer>(Integer.class, "direct.agent.ping.concurrency", "Advanced", "8",
+            "Maximum number of direct agent pings running at the same time for the hosts of a cluster, lowered automatically while the pings of the cluster fail or time out", false);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -210,6 +214,13 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         s_logger.debug("Created DirectAgentAttache pool with size: " + DirectAgentPoolSize.value());
         _directAgentThreadCap = Math.round(DirectAgentPoolSize.value() * DirectAgentThreadCap.value()) + 1; // add 1 to always make the value > 0
 
+        _directAgentPingScheduler = new DirectAgentPingScheduler(DirectAgentPingConcurrency.value());
+        try {
+            JmxUtil.registerMBean("AgentManager", "DirectAgentPings", _directAgentPingScheduler);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the direct agent ping MBean", e);
+        }
+
         _monitorExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("AgentMonitor"));
 
         return true;
@@ -722,6 +733,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         _connectExecutor.shutdownNow();
         _monitorExecutor.shutdownNow();
+        _directAgentPingScheduler.shutdown();
+        try {
+            JmxUtil.unregisterMBean("AgentManager", "DirectAgentPings");
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister the direct agent ping MBean", e);
+        }
         return true;
     }
 
@@ -1430,6 +1447,24 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return _directAgentThreadCap;
     }
 
+    public DirectAgentPingScheduler getDirectAgentPingScheduler() {
+        return _directAgentPingScheduler;
+    }
+
+    /**
+     * @return the ping group of the host: its cluster, or its zone if it is in no cluster
+     */
+    public String getDirectAgentPingGroup(long hostId) {
+        HostVO host = _hostDao.findById(hostId);
+        if (host == null) {
+            return "default";
+        }
+        if (host.getClusterId() != null) {
+            return "cluster-" + host.getClusterId();
+        }
+        return "zone-" + host.getDataCenterId();
+    }
+
     public Long getAgentPingTime(long agentId) {
         return _pingMap.get(agentId);
     }
@@ -1568,7 +1603,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap};
+        return new ConfigKey<?>[] {Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap, DirectAgentPingConcurrency};
     }
 
 }
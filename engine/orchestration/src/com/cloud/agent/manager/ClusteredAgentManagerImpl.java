@@ -46,6 +46,8 @@ import javax.net.ssl.SSLEngine;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
@@ -57,6 +59,7 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateMessageCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -120,6 +123,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     ConfigurationDao _configDao;
     @Inject
     ConfigDepot _configDepot;
+    @Inject
+    MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -1319,6 +1324,17 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 Answer[] answers = new Answer[1];
                 answers[0] = new Answer(cmd, result, null);
                 return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateMessageCommand) {
+                PropagateMessageCommand cmd = (PropagateMessageCommand) cmds[0];
+
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Intercepting message " + cmd.getSubject() + " from management server " + pdu.getSourcePeer());
+                }
+                _messageBus.publish(pdu.getSourcePeer(), cmd.getSubject(), PublishScope.LOCAL, cmd.getMessage());
+
+                Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
             } else if (cmds.length == 1 && cmds[0] instanceof ScheduleHostScanTaskCommand) {
                 ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand) cmds[0];
                 String response = handleScheduleHostScanTaskCommand(cmd);
@@ -90,7 +90,7 @@ public class DirectAgentAttache extends AgentAttache {
             if (answers != null && answers[0] instanceof StartupAnswer) {
                 StartupAnswer startup = (StartupAnswer)answers[0];
                 int interval = startup.getPingInterval();
-                _futures.add(_agentMgr.getDirectAgentPool().scheduleAtFixedRate(new PingTask(), interval, interval, TimeUnit.SECONDS));
+                schedulePing(interval);
             }
         } else {
             Command[] cmds = req.getCommands();
@@ -109,10 +109,15 @@ public class DirectAgentAttache extends AgentAttache {
             StartupAnswer startup = (StartupAnswer)answers[0];
             int interval = startup.getPingInterval();
             s_logger.info("StartupAnswer received " + startup.getHostId() + " Interval = " + interval );
-            _futures.add(_agentMgr.getDirectAgentPool().scheduleAtFixedRate(new PingTask(), interval, interval, TimeUnit.SECONDS));
+            schedulePing(interval);
         }
     }
 
+    private void schedulePing(int interval) {
+        String group = _agentMgr.getDirectAgentPingGroup(_id);
+        _futures.add(_agentMgr.getDirectAgentPingScheduler().schedule(group, _id, new PingTask(), interval));
+    }
+
     @Override
     protected void finalize() throws Throwable {
         try {
@@ -128,9 +133,17 @@ public class DirectAgentAttache extends AgentAttache {
         }
     }
 
-    protected class PingTask extends ManagedContextRunnable {
+    protected class PingTask extends ManagedContextRunnable implements DirectAgentPingScheduler.Ping {
+        private volatile boolean _failed;
+
+        @Override
+        public boolean failed() {
+            return _failed;
+        }
+
         @Override
         protected synchronized void runInContext() {
+            _failed = false;
             try {
                 if (_outstandingTaskCount.incrementAndGet() > _agentMgr.getDirectAgentThreadCap()) {
                     s_logger.warn("Task execution for direct attache(" + _id + ") has reached maximum outstanding limit(" + _agentMgr.getDirectAgentThreadCap() + "), bailing out");
@@ -142,6 +155,7 @@ public class DirectAgentAttache extends AgentAttache {
                 if (resource != null) {
                     PingCommand cmd = resource.getCurrentStatus(_id);
                     if (cmd == null) {
+                        _failed = true;
                         s_logger.warn("Unable to get current status on " + _id + "(" + _name + ")");
                         _mgr.disconnectWithInvestigation(DirectAgentAttache.this, Event.AgentDisconnected);
                         return;
@@ -160,6 +174,7 @@ public class DirectAgentAttache extends AgentAttache {
                     s_logger.debug("Unable to send ping because agent is disconnected " + _id + "(" + _name + ")");
                 }
             } catch (Exception e) {
+                _failed = true;
                 s_logger.warn("Unable to complete the ping task", e);
             } finally {
                 _outstandingTaskCount.decrementAndGet();
@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.Map;
+
+/**
+ * Allows JMX access to the direct agent ping statistics, keyed by ping group
+ * (the cluster of the hosts, or their zone for hosts in no cluster).
+ */
+public interface DirectAgentPingMBean {
+    String[] getPingGroups();
+
+    /**
+     * @return the upper bounds of the buckets of the latency histograms
+     */
+    String getLatencyBuckets();
+
+    /**
+     * @return per group, the number of pings in each latency bucket, the time waiting for a thread included
+     */
+    Map<String, long[]> getPingLatencyHistograms();
+
+    Map<String, Long> getAveragePingLatencies();
+
+    Map<String, Long> getMaxPingLatencies();
+
+    /**
+     * @return per group, the number of pings not over when the next one was due
+     */
+    Map<String, Long> getLatePings();
+
+    /**
+     * @return per group, the number of pings not sent because the previous one was not over yet
+     */
+    Map<String, Long> getSkippedPings();
+
+    /**
+     * @return per group, the number of pings that may run at the same time right now
+     */
+    Map<String, Integer> getConcurrencyLimits();
+
+    Map<String, Integer> getQueuedPings();
+
+    void resetStatistics();
+}
@@ -0,0 +1,437 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs the pings of the direct agents. Hosts are put in ping groups, one per
+ * cluster, and each group gets its own queue and its own limit on the pings
+ * running at once, so that a slow pool master or vCenter only holds up the
+ * pings of its own hosts instead of the threads every direct agent shares.
+ *
+ * The limit of a group adapts: it is halved whenever a ping fails or runs
+ * longer than the ping interval, and grows by one after as many good pings as
+ * the current limit, up to maxConcurrency. It never drops below the number of
+ * pings that have to run at once for every host of the group to be pinged
+ * once per interval at the observed ping time, so that slow but healthy hosts
+ * are not starved. A ping still queued or running when the next one of the
+ * same host is due is not sent again. A group goes away with the last of its
+ * hosts.
+ */
+public class DirectAgentPingScheduler extends StandardMBean implements DirectAgentPingMBean {
+    private static final Logger s_logger = Logger.getLogger(DirectAgentPingScheduler.class);
+
+    static final long[] LATENCY_BUCKETS_MS = {100, 500, 1000, 5000, 30000};
+
+    private final ScheduledExecutorService _timer;
+    private final ExecutorService _executor;
+    private final int _maxConcurrency;
+    private final Map<String, PingGroup> _groups = new ConcurrentHashMap<String, PingGroup>();
+
+    public DirectAgentPingScheduler(int maxConcurrency) {
+        super(DirectAgentPingMBean.class, false);
+        _maxConcurrency = Math.max(1, maxConcurrency);
+        _timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("DirectAgentPingTimer"));
+        // bounded by the sum of the group limits
+        _executor = Executors.newCachedThreadPool(new NamedThreadFactory("DirectAgentPing"));
+    }
+
+    /**
+     * A ping that can tell whether its last run reached the host. Pings that are plain
+     * runnables only count as failed when they throw.
+     */
+    public interface Ping extends Runnable {
+        boolean failed();
+    }
+
+    /**
+     * Runs the ping every interval seconds within the given group, until the returned future is cancelled.
+     */
+    public ScheduledFuture<?> schedule(String group, long hostId, Runnable ping, long interval) {
+        PingGroup pingGroup;
+        synchronized (_groups) {
+            pingGroup = _groups.get(group);
+            if (pingGroup == null) {
+                pingGroup = new PingGroup(group);
+                _groups.put(group, pingGroup);
+            }
+            pingGroup._hosts++;
+        }
+        ScheduledFuture<?> future = _timer.scheduleAtFixedRate(new ScheduledPing(pingGroup, hostId, ping, interval * 1000), interval, interval, TimeUnit.SECONDS);
+        return new PingFuture(pingGroup, future);
+    }
+
+    private void unschedule(PingGroup group) {
+        synchronized (_groups) {
+            if (--group._hosts <= 0 && _groups.get(group._name) == group) {
+                _groups.remove(group._name);
+                s_logger.debug("Last host of ping group " + group._name + " is gone, dropping the group");
+            }
+        }
+    }
+
+    /**
+     * @return the number of pings that have to run at once for every host to be pinged once per interval
+     */
+    static int getLimitFloor(int hosts, long latencyMs, long intervalMs, int maxConcurrency) {
+        if (hosts <= 0 || latencyMs <= 0 || intervalMs <= 0) {
+            return 1;
+        }
+        long floor = (hosts * latencyMs + intervalMs - 1) / intervalMs;
+        return (int)Math.max(1, Math.min(floor, maxConcurrency));
+    }
+
+    public void shutdown() {
+        _timer.shutdownNow();
+        _executor.shutdown();
+    }
+
+    static int getBucket(long latency) {
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            if (latency < LATENCY_BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKETS_MS.length;
+    }
+
+    private class ScheduledPing implements Runnable {
+        private final PingGroup _group;
+        private final long _hostId;
+        private final Runnable _ping;
+        private final long _intervalMs;
+        // set while the ping is queued or running, only cleared once it is over
+        private volatile boolean _pending;
+        private long _dueAt;
+
+        ScheduledPing(PingGroup group, long hostId, Runnable ping, long intervalMs) {
+            _group = group;
+            _hostId = hostId;
+            _ping = ping;
+            _intervalMs = intervalMs;
+        }
+
+        // runs on the timer thread, never blocks
+        @Override
+        public void run() {
+            if (_pending) {
+                _group._skipped.incrementAndGet();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Previous ping of host " + _hostId + " in " + _group._name + " is not over, skipping this one");
+                }
+                return;
+            }
+            _pending = true;
+            _dueAt = System.currentTimeMillis();
+            _group.submit(this);
+        }
+
+        void execute() {
+            long startedAt = System.currentTimeMillis();
+            boolean failed = true;
+            try {
+                _ping.run();
+                failed = _ping instanceof Ping && ((Ping)_ping).failed();
+            } finally {
+                long finishedAt = System.currentTimeMillis();
+                // a ping running longer than the interval has as good as timed out
+                _group.record(finishedAt - _dueAt, finishedAt - startedAt, _intervalMs, failed || finishedAt - startedAt > _intervalMs);
+                _pending = false;
+            }
+        }
+    }
+
+    private class PingFuture implements ScheduledFuture<Object> {
+        private final PingGroup _group;
+        private final ScheduledFuture<?> _future;
+        private boolean _cancelled;
+
+        PingFuture(PingGroup group, ScheduledFuture<?> future) {
+            _group = group;
+            _future = future;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = _future.cancel(mayInterruptIfRunning);
+            synchronized (this) {
+                if (_cancelled) {
+                    return cancelled;
+                }
+                _cancelled = true;
+            }
+            unschedule(_group);
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return _future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return _future.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return _future.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return _future.get(timeout, unit);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return _future.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return _future.compareTo(o);
+        }
+    }
+
+    private class PingGroup {
+        private final String _name;
+        private final LinkedList<ScheduledPing> _queue = new LinkedList<ScheduledPing>();
+        private int _running;
+        private int _limit;
+        private int _goodPings;
+        // guarded by _groups
+        private int _hosts;
+        // moving average of the time a ping runs, waiting for a thread not included
+        private long _runTime;
+
+        private final AtomicLongArray _histogram = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _totalLatency = new AtomicLong();
+        private final AtomicLong _maxLatency = new AtomicLong();
+        private final AtomicLong _late = new AtomicLong();
+        private final AtomicLong _skipped = new AtomicLong();
+
+        PingGroup(String name) {
+            _name = name;
+            _limit = _maxConcurrency;
+        }
+
+        synchronized void submit(ScheduledPing ping) {
+            _queue.add(ping);
+            dispatch();
+        }
+
+        // called with the lock held
+        private void dispatch() {
+            while (_running < _limit && !_queue.isEmpty()) {
+                final ScheduledPing ping = _queue.poll();
+                _running++;
+                try {
+                    _executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                ping.execute();
+                            } finally {
+                                done();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    _running--;
+                    ping._pending = false;
+                    return;
+                }
+            }
+        }
+
+        private synchronized void done() {
+            _running--;
+            dispatch();
+        }
+
+        void record(long latency, long runTime, long intervalMs, boolean failed) {
+            boolean late = latency > intervalMs;
+            _histogram.incrementAndGet(getBucket(latency));
+            _count.incrementAndGet();
+            _totalLatency.addAndGet(latency);
+            long max = _maxLatency.get();
+            while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+                max = _maxLatency.get();
+            }
+            if (late) {
+                _late.incrementAndGet();
+            }
+
+            int hosts;
+            synchronized (_groups) {
+                hosts = _hosts;
+            }
+            synchronized (this) {
+                _runTime = _runTime == 0 ? runTime : (_runTime * 7 + runTime) / 8;
+                int floor = getLimitFloor(hosts, _runTime, intervalMs, _maxConcurrency);
+                if (failed) {
+                    int limit = Math.max(floor, _limit / 2);
+                    if (limit < _limit) {
+                        _limit = limit;
+                        s_logger.info("Pings in " + _name + " fail or time out (" + runTime + "ms), running at most " + _limit + " of them at once");
+                    }
+                    _goodPings = 0;
+                } else if (_limit < _maxConcurrency && ++_goodPings >= _limit) {
+                    _limit++;
+                    _goodPings = 0;
+                }
+                if (_limit < floor) {
+                    _limit = floor;
+                    dispatch();
+                }
+            }
+        }
+
+        synchronized int getLimit() {
+            return _limit;
+        }
+
+        synchronized int getQueued() {
+            return _queue.size();
+        }
+
+        void reset() {
+            for (int i = 0; i < _histogram.length(); i++) {
+                _histogram.set(i, 0);
+            }
+            _count.set(0);
+            _totalLatency.set(0);
+            _maxLatency.set(0);
+            _late.set(0);
+            _skipped.set(0);
+        }
+    }
+
+    @Override
+    public String[] getPingGroups() {
+        return _groups.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String getLatencyBuckets() {
+        StringBuilder buckets = new StringBuilder();
+        for (long bound : LATENCY_BUCKETS_MS) {
+            buckets.append("<").append(bound).append("ms, ");
+        }
+        return buckets.append(">=").append(LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1]).append("ms").toString();
+    }
+
+    @Override
+    public Map<String, long[]> getPingLatencyHistograms() {
+        Map<String, long[]> histograms = new HashMap<String, long[]>();
+        for (PingGroup group : _groups.values()) {
+            long[] histogram = new long[group._histogram.length()];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = group._histogram.get(i);
+            }
+            histograms.put(group._name, histogram);
+        }
+        return histograms;
+    }
+
+    @Override
+    public Map<String, Long> getAveragePingLatencies() {
+        Map<String, Long> latencies = new HashMap<String, Long>();
+        for (PingGroup group : _groups.values()) {
+            long count = group._count.get();
+            latencies.put(group._name, count > 0 ? group._totalLatency.get() / count : 0);
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getMaxPingLatencies() {
+        Map<String, Long> latencies = new HashMap<String, Long>();
+        for (PingGroup group : _groups.values()) {
+            latencies.put(group._name, group._maxLatency.get());
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getLatePings() {
+        Map<String, Long> late = new HashMap<String, Long>();
+        for (PingGroup group : _groups.values()) {
+            late.put(group._name, group._late.get());
+        }
+        return late;
+    }
+
+    @Override
+    public Map<String, Long> getSkippedPings() {
+        Map<String, Long> skipped = new HashMap<String, Long>();
+        for (PingGroup group : _groups.values()) {
+            skipped.put(group._name, group._skipped.get());
+        }
+        return skipped;
+    }
+
+    @Override
+    public Map<String, Integer> getConcurrencyLimits() {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        for (PingGroup group : _groups.values()) {
+            limits.put(group._name, group.getLimit());
+        }
+        return limits;
+    }
+
+    @Override
+    public Map<String, Integer> getQueuedPings() {
+        Map<String, Integer> queued = new HashMap<String, Integer>();
+        for (PingGroup group : _groups.values()) {
+            queued.put(group._name, group.getQueued());
+        }
+        return queued;
+    }
+
+    @Override
+    public void resetStatistics() {
+        for (PingGroup group : _groups.values()) {
+            group.reset();
+        }
+    }
+}
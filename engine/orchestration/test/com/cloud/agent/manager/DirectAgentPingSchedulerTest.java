@@ -0,0 +1,225 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class DirectAgentPingSchedulerTest {
+    private static final Logger s_logger = Logger.getLogger(DirectAgentPingSchedulerTest.class);
+
+    /**
+     * Ping taking a fixed time, remembering the worst delay between two of its runs.
+     */
+    private static class FakePing implements Runnable {
+        final long _durationMs;
+        final AtomicLong _runs = new AtomicLong();
+        volatile long _lastRun;
+        volatile long _maxGap;
+
+        FakePing(long durationMs) {
+            _durationMs = durationMs;
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            if (_lastRun != 0) {
+                _maxGap = Math.max(_maxGap, now - _lastRun);
+            }
+            _lastRun = now;
+            _runs.incrementAndGet();
+            if (_durationMs > 0) {
+                try {
+                    Thread.sleep(_durationMs);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Ping that never reaches its host.
+     */
+    private static class FailingPing extends FakePing implements DirectAgentPingScheduler.Ping {
+        FailingPing(long durationMs) {
+            super(durationMs);
+        }
+
+        @Override
+        public boolean failed() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        assertEquals(0, DirectAgentPingScheduler.getBucket(0));
+        assertEquals(1, DirectAgentPingScheduler.getBucket(100));
+        assertEquals(3, DirectAgentPingScheduler.getBucket(4999));
+        assertEquals(5, DirectAgentPingScheduler.getBucket(60000));
+    }
+
+    @Test
+    public void testLimitFloor() {
+        assertEquals(1, DirectAgentPingScheduler.getLimitFloor(0, 0, 60000, 8));
+        assertEquals(1, DirectAgentPingScheduler.getLimitFloor(10, 100, 60000, 8));
+        assertEquals(5, DirectAgentPingScheduler.getLimitFloor(100, 3000, 60000, 8));
+        assertEquals(6, DirectAgentPingScheduler.getLimitFloor(100, 3001, 60000, 8));
+        assertEquals(8, DirectAgentPingScheduler.getLimitFloor(20, 2500, 1000, 8));
+    }
+
+    @Test
+    public void testSlowClusterDoesNotDelayOthers() throws Exception {
+        DirectAgentPingScheduler scheduler = new DirectAgentPingScheduler(4);
+        List<FakePing> slow = new ArrayList<FakePing>();
+        List<FakePing> healthy = new ArrayList<FakePing>();
+        for (int i = 0; i < 20; i++) {
+            FakePing ping = new FakePing(2500);
+            slow.add(ping);
+            scheduler.schedule("cluster-1", i, ping, 1);
+        }
+        for (int i = 0; i < 20; i++) {
+            FakePing ping = new FakePing(5);
+            healthy.add(ping);
+            scheduler.schedule("cluster-2", 100 + i, ping, 1);
+        }
+
+        Thread.sleep(4500);
+        scheduler.shutdown();
+
+        for (FakePing ping : healthy) {
+            assertTrue(ping._runs.get() >= 3);
+            assertTrue(ping._maxGap < 1500);
+        }
+        Map<String, Integer> limits = scheduler.getConcurrencyLimits();
+        // timing out, but 20 hosts pinged every second at 2.5s need every thread they may get
+        assertEquals(Integer.valueOf(4), limits.get("cluster-1"));
+        assertEquals(Integer.valueOf(4), limits.get("cluster-2"));
+        assertTrue(scheduler.getSkippedPings().get("cluster-1") > 0);
+        assertEquals(Long.valueOf(0), scheduler.getLatePings().get("cluster-2"));
+        assertTrue(scheduler.getMaxPingLatencies().get("cluster-1") >= 2500);
+    }
+
+    @Test
+    public void testBackOffOnlyOnFailure() throws Exception {
+        DirectAgentPingScheduler scheduler = new DirectAgentPingScheduler(4);
+        for (int i = 0; i < 2; i++) {
+            // slower than a quarter of the interval, but answering
+            scheduler.schedule("cluster-1", i, new FakePing(400), 1);
+            scheduler.schedule("cluster-2", 100 + i, new FailingPing(5), 1);
+        }
+
+        Thread.sleep(3500);
+        scheduler.shutdown();
+
+        Map<String, Integer> limits = scheduler.getConcurrencyLimits();
+        assertEquals(Integer.valueOf(4), limits.get("cluster-1"));
+        assertEquals(Integer.valueOf(1), limits.get("cluster-2"));
+    }
+
+    @Test
+    public void testGroupRemovedWithLastHost() throws Exception {
+        DirectAgentPingScheduler scheduler = new DirectAgentPingScheduler(2);
+        try {
+            ScheduledFuture<?> first = scheduler.schedule("cluster-1", 1, new FakePing(0), 1);
+            ScheduledFuture<?> second = scheduler.schedule("cluster-1", 2, new FakePing(0), 1);
+            assertEquals(1, scheduler.getPingGroups().length);
+
+            first.cancel(false);
+            first.cancel(false);
+            assertTrue(first.isCancelled());
+            assertEquals(1, scheduler.getPingGroups().length);
+
+            second.cancel(false);
+            assertEquals(0, scheduler.getPingGroups().length);
+
+            scheduler.schedule("cluster-1", 3, new FakePing(0), 1);
+            assertEquals(1, scheduler.getPingGroups().length);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedPoolComparison() throws Exception {
+        // the same load on a shared pool of 8 threads, as the direct agent pool runs it
+        ScheduledThreadPoolExecutor shared = new ScheduledThreadPoolExecutor(8);
+        List<FakePing> healthy = new ArrayList<FakePing>();
+        for (int i = 0; i < 20; i++) {
+            shared.scheduleAtFixedRate(new FakePing(2500), 1, 1, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 20; i++) {
+            FakePing ping = new FakePing(5);
+            healthy.add(ping);
+            shared.scheduleAtFixedRate(ping, 1, 1, TimeUnit.SECONDS);
+        }
+        Thread.sleep(4500);
+        shared.shutdownNow();
+
+        long maxGap = 0;
+        long runs = 0;
+        for (FakePing ping : healthy) {
+            maxGap = Math.max(maxGap, ping._maxGap);
+            runs += ping._runs.get();
+        }
+        s_logger.info("Shared pool: healthy hosts pinged " + runs + " times in 4.5s, worst gap between pings " + maxGap + "ms");
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        DirectAgentPingScheduler scheduler = new DirectAgentPingScheduler(2);
+        FakePing ping = new FakePing(0);
+        ScheduledFuture<?> future = scheduler.schedule("zone-1", 1, ping, 1);
+        Thread.sleep(1500);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cloud:type=DirectAgentPingSchedulerTest");
+        server.registerMBean(scheduler, name);
+        try {
+            String[] groups = (String[])server.getAttribute(name, "PingGroups");
+            assertEquals(1, groups.length);
+            assertEquals("zone-1", groups[0]);
+            @SuppressWarnings("unchecked")
+            Map<String, long[]> histograms = (Map<String, long[]>)server.getAttribute(name, "PingLatencyHistograms");
+            assertEquals(1, histograms.get("zone-1")[0]);
+            server.invoke(name, "resetStatistics", null, null);
+            assertEquals(0, scheduler.getPingLatencyHistograms().get("zone-1")[0]);
+
+            future.cancel(false);
+            assertEquals(0, ((String[])server.getAttribute(name, "PingGroups")).length);
+        } finally {
+            server.unregisterMBean(name);
+            scheduler.shutdown();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.dc;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.utils.db.GenericDao;
@@ -28,5 +29,10 @@ public interface ClusterDetailsDao extends GenericDao<ClusterDetailsVO, Long> {
     
     ClusterDetailsVO findDetail(long clusterId, String name);
 
+    /**
+     * @return the detail of the given name for every cluster that has it
+     */
+    List<ClusterDetailsVO> listByName(String name);
+
 	void deleteDetails(long clusterId);
 }
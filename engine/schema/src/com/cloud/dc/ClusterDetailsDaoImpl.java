@@ -36,6 +36,7 @@ import com.cloud.utils.db.TransactionLegacy;
 public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long> implements ClusterDetailsDao, ScopedConfigStorage {
     protected final SearchBuilder<ClusterDetailsVO> ClusterSearch;
     protected final SearchBuilder<ClusterDetailsVO> DetailSearch;
+    protected final SearchBuilder<ClusterDetailsVO> NameSearch;
 
     protected ClusterDetailsDaoImpl() {
         ClusterSearch = createSearchBuilder();
@@ -46,6 +47,10 @@ public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long
         DetailSearch.and("clusterId", DetailSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
         DetailSearch.and("name", DetailSearch.entity().getName(), SearchCriteria.Op.EQ);
         DetailSearch.done();
+
+        NameSearch = createSearchBuilder();
+        NameSearch.and("name", NameSearch.entity().getName(), SearchCriteria.Op.EQ);
+        NameSearch.done();
     }
 
     @Override
@@ -69,6 +74,20 @@ public class ClusterDetailsDaoImpl extends GenericDaoBase<ClusterDetailsVO, Long
         return detail;
     }
 
+    @Override
+    public List<ClusterDetailsVO> listByName(String name) {
+        SearchCriteria<ClusterDetailsVO> sc = NameSearch.create();
+        sc.setParameters("name", name);
+
+        List<ClusterDetailsVO> details = listIncludingRemovedBy(sc);
+        if ("password".equals(name)) {
+            for (ClusterDetailsVO detail : details) {
+                detail.setValue(DBEncryptionUtil.decrypt(detail.getValue()));
+            }
+        }
+        return details;
+    }
+
 
     @Override
     public Map<String, String> findDetails(long clusterId) {
@@ -32,4 +32,14 @@ public interface DomainDao extends GenericDao<DomainVO, Long> {
     List<DomainVO> findInactiveDomains();
     Set<Long> getDomainParentIds(long domainId);
     List<Long> getDomainChildrenIds(String path);
+
+    /**
+     * @return the cached snapshot of the domain hierarchy, loaded on first use after an invalidation
+     */
+    DomainTree getDomainTree();
+
+    /**
+     * Drops the cached domain hierarchy, to be called whenever domains are created, removed or renamed.
+     */
+    void invalidateDomainTree();
 }
@@ -49,6 +49,13 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
 	protected SearchBuilder<DomainVO> FindAllChildrenSearch;
 	protected GenericSearchBuilder<DomainVO, Long> FindIdsOfAllChildrenSearch;
 	protected SearchBuilder<DomainVO> AllFieldsSearch;
+
+    // a domain unknown to the tree makes it reload at most once per interval
+    private static final long DOMAIN_TREE_RELOAD_INTERVAL = 1000;
+
+    private final Object _domainTreeLock = new Object();
+    private volatile DomainTree _domainTree;
+    private volatile long _domainTreeLoaded = 0;
 	
 	public DomainDaoImpl () {
 		DomainNameLikeSearch = createSearchBuilder();
@@ -136,6 +143,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
             
     		txn.commit();
+    		invalidateDomainTree();
     		return domain;
     	} catch(Exception e) {
     		s_logger.error("Unable to create domain due to " + e.getMessage(), e);
@@ -192,6 +200,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         	update(parentDomain.getId(), parentDomain);
             success = super.remove(id);
             txn.commit();
+            invalidateDomainTree();
         } catch (SQLException ex) {
             success = false;
             s_logger.error("error removing domain: " + id, ex);
@@ -236,6 +245,58 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         return customSearch(sc, null);
     }
 
+    @Override
+    public boolean update(Long id, DomainVO domain) {
+        boolean result = super.update(id, domain);
+        // the path of a domain changes when it or one of its parents is renamed
+        invalidateDomainTree();
+        return result;
+    }
+
+    @Override
+    public DomainTree getDomainTree() {
+        DomainTree tree = _domainTree;
+        if (tree != null) {
+            return tree;
+        }
+        synchronized (_domainTreeLock) {
+            if (_domainTree == null) {
+                long start = System.currentTimeMillis();
+                _domainTree = new DomainTree(listAll());
+                _domainTreeLoaded = System.currentTimeMillis();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Loaded domain tree of " + _domainTree.size() + " domains in " + (_domainTreeLoaded - start) + "ms");
+                }
+            }
+            return _domainTree;
+        }
+    }
+
+    @Override
+    public void invalidateDomainTree() {
+        synchronized (_domainTreeLock) {
+            _domainTree = null;
+        }
+    }
+
+    /**
+     * Returns a tree that knows the given domains if possible, reloading it if one of them was created after
+     * the tree was loaded, e.g. by another management server.
+     */
+    private DomainTree getDomainTree(long... domainIds) {
+        DomainTree tree = getDomainTree();
+        for (long domainId : domainIds) {
+            if (!tree.contains(domainId)) {
+                if (System.currentTimeMillis() - _domainTreeLoaded > DOMAIN_TREE_RELOAD_INTERVAL) {
+                    invalidateDomainTree();
+                    tree = getDomainTree();
+                }
+                break;
+            }
+        }
+        return tree;
+    }
+
     @Override
     public boolean isChildDomain(Long parentId, Long childId) {
         if ((parentId == null) || (childId == null)) {
@@ -246,6 +307,11 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             return true;
         }
 
+        Boolean isChild = getDomainTree(parentId, childId).isChildDomain(parentId, childId);
+        if (isChild != null) {
+            return isChild;
+        }
+
         boolean result = false;
         SearchCriteria<DomainVO> sc = DomainPairSearch.create();
         sc.setParameters("id", parentId, childId);
@@ -275,6 +341,12 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     @Override
     public Set<Long> getDomainParentIds(long domainId) {
         Set<Long> parentDomains = new HashSet<Long>();
+        List<Long> ancestors = getDomainTree(domainId).getAncestorIds(domainId);
+        if (ancestors != null) {
+            parentDomains.addAll(ancestors);
+            return parentDomains;
+        }
+
         Domain domain = findById(domainId);
 
         if (domain != null) {
@@ -0,0 +1,168 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.domain.DomainVO;
+
+/**
+ * Immutable snapshot of the domain hierarchy.
+ *
+ * Domains are laid out in depth first (Euler tour) order, so the subtree of
+ * a domain is the contiguous range [enter, exit) of that order. Ancestor
+ * checks are two integer comparisons and the ids of a subtree are a slice
+ * of one array, without touching the database.
+ */
+public class DomainTree {
+    private final Map<Long, Integer> _positions;
+    private final long[] _ids;
+    private final int[] _exits;
+    private final Long[] _parents;
+    private final String[] _paths;
+
+    public DomainTree(List<DomainVO> domains) {
+        int size = domains.size();
+        Map<Long, List<DomainVO>> children = new HashMap<Long, List<DomainVO>>();
+        List<DomainVO> roots = new ArrayList<DomainVO>();
+        Map<Long, DomainVO> byId = new HashMap<Long, DomainVO>(size * 2);
+        for (DomainVO domain : domains) {
+            byId.put(domain.getId(), domain);
+        }
+        for (DomainVO domain : domains) {
+            if (domain.getParent() == null || !byId.containsKey(domain.getParent())) {
+                roots.add(domain);
+            } else {
+                List<DomainVO> siblings = children.get(domain.getParent());
+                if (siblings == null) {
+                    siblings = new ArrayList<DomainVO>();
+                    children.put(domain.getParent(), siblings);
+                }
+                siblings.add(domain);
+            }
+        }
+
+        _positions = new HashMap<Long, Integer>(size * 2);
+        _ids = new long[size];
+        _exits = new int[size];
+        _parents = new Long[size];
+        _paths = new String[size];
+
+        // iterative walk, a deep hierarchy must not overflow the stack
+        int next = 0;
+        int[] stack = new int[size];
+        int[] childIndex = new int[size];
+        for (DomainVO root : roots) {
+            int top = 0;
+            next = enter(root, next);
+            stack[top] = next - 1;
+            childIndex[top] = 0;
+            while (top >= 0) {
+                int pos = stack[top];
+                List<DomainVO> siblings = children.get(_ids[pos]);
+                if (siblings != null && childIndex[top] < siblings.size()) {
+                    DomainVO child = siblings.get(childIndex[top]++);
+                    if (_positions.containsKey(child.getId())) {
+                        // a cycle in the parent column, do not loop over it
+                        continue;
+                    }
+                    next = enter(child, next);
+                    top++;
+                    stack[top] = next - 1;
+                    childIndex[top] = 0;
+                } else {
+                    _exits[pos] = next;
+                    top--;
+                }
+            }
+        }
+    }
+
+    private int enter(DomainVO domain, int pos) {
+        _positions.put(domain.getId(), pos);
+        _ids[pos] = domain.getId();
+        _parents[pos] = domain.getParent();
+        _paths[pos] = domain.getPath();
+        return pos + 1;
+    }
+
+    public boolean contains(long domainId) {
+        return _positions.containsKey(domainId);
+    }
+
+    public int size() {
+        return _positions.size();
+    }
+
+    /**
+     * @return true if childId is parentId or one of its descendants, null if either domain is unknown
+     */
+    public Boolean isChildDomain(long parentId, long childId) {
+        Integer parent = _positions.get(parentId);
+        Integer child = _positions.get(childId);
+        if (parent == null || child == null) {
+            return null;
+        }
+        return parent <= child && child < _exits[parent];
+    }
+
+    /**
+     * @return the ids of the domain and all its descendants, null if the domain is unknown
+     */
+    public List<Long> getSubtreeIds(long domainId) {
+        Integer pos = _positions.get(domainId);
+        if (pos == null) {
+            return null;
+        }
+        List<Long> ids = new ArrayList<Long>(_exits[pos] - pos);
+        for (int i = pos; i < _exits[pos]; i++) {
+            ids.add(_ids[i]);
+        }
+        return ids;
+    }
+
+    public int getSubtreeSize(long domainId) {
+        Integer pos = _positions.get(domainId);
+        return pos == null ? 0 : _exits[pos] - pos;
+    }
+
+    /**
+     * @return the domain and all its ancestors up to ROOT, null if the domain is unknown
+     */
+    public List<Long> getAncestorIds(long domainId) {
+        Integer pos = _positions.get(domainId);
+        if (pos == null) {
+            return null;
+        }
+        List<Long> ids = new ArrayList<Long>();
+        while (pos != null) {
+            ids.add(_ids[pos]);
+            Long parent = _parents[pos];
+            pos = parent == null ? null : _positions.get(parent);
+        }
+        return Collections.unmodifiableList(ids);
+    }
+
+    public String getPath(long domainId) {
+        Integer pos = _positions.get(domainId);
+        return pos == null ? null : _paths[pos];
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.host.dao;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.host.DetailVO;
@@ -28,5 +29,10 @@ public interface HostDetailsDao extends GenericDao<DetailVO, Long> {
     
     DetailVO findDetail(long hostId, String name);
 
+    /**
+     * @return the detail of the given name for every host that has it
+     */
+    List<DetailVO> listByName(String name);
+
 	void deleteDetails(long hostId);
 }
@@ -0,0 +1,231 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Calendar;
+import java.util.Date;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+
+/**
+ * Compact serialized form of the fields of an entity read from a row, as
+ * kept by EntityCache: the values one after the other in the order of the
+ * columns, each preceded by whether it is null unless it is a primitive.
+ * Enums are written as their ordinal and dates as milliseconds.
+ */
+public class CachedRow {
+    /**
+     * @return whether fields of the given type can be written to a cached row
+     */
+    public static boolean isSupported(Class<?> type) {
+        return (type.isPrimitive() && type != char.class) || type.isEnum() || type == String.class || type == Long.class || type == Integer.class
+                || type == Short.class || type == Byte.class || type == Boolean.class || type == Float.class || type == Double.class || type == Date.class
+                || type == Calendar.class || type == URI.class || type == URL.class || type == Ip.class || type == byte[].class;
+    }
+
+    public static byte[] serialize(Object entity, FieldMapping[] columns) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (FieldMapping column : columns) {
+                Field field = column.getField();
+                Class<?> type = field.getType();
+                if (type.isPrimitive()) {
+                    writePrimitive(out, field, entity);
+                    continue;
+                }
+                Object value = field.get(entity);
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    writeObject(out, type, value);
+                }
+            }
+            out.flush();
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to serialize " + entity, e);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + entity, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static void deserialize(byte[] row, FieldMapping[] columns, Object entity) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(row));
+        try {
+            for (FieldMapping column : columns) {
+                Field field = column.getField();
+                Class<?> type = field.getType();
+                if (type.isPrimitive()) {
+                    readPrimitive(in, field, entity);
+                } else if (in.readBoolean()) {
+                    field.set(entity, readObject(in, column));
+                } else {
+                    field.set(entity, null);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to deserialize " + entity, e);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to deserialize " + entity, e);
+        }
+    }
+
+    private static void writePrimitive(DataOutputStream out, Field field, Object entity) throws IllegalAccessException, IOException {
+        Class<?> type = field.getType();
+        if (type == long.class) {
+            out.writeLong(field.getLong(entity));
+        } else if (type == int.class) {
+            out.writeInt(field.getInt(entity));
+        } else if (type == boolean.class) {
+            out.writeBoolean(field.getBoolean(entity));
+        } else if (type == short.class) {
+            out.writeShort(field.getShort(entity));
+        } else if (type == byte.class) {
+            out.writeByte(field.getByte(entity));
+        } else if (type == float.class) {
+            out.writeFloat(field.getFloat(entity));
+        } else if (type == double.class) {
+            out.writeDouble(field.getDouble(entity));
+        } else {
+            throw new CloudRuntimeException("Unsupported type " + type + " of " + field);
+        }
+    }
+
+    private static void readPrimitive(DataInputStream in, Field field, Object entity) throws IllegalAccessException, IOException {
+        Class<?> type = field.getType();
+        if (type == long.class) {
+            field.setLong(entity, in.readLong());
+        } else if (type == int.class) {
+            field.setInt(entity, in.readInt());
+        } else if (type == boolean.class) {
+            field.setBoolean(entity, in.readBoolean());
+        } else if (type == short.class) {
+            field.setShort(entity, in.readShort());
+        } else if (type == byte.class) {
+            field.setByte(entity, in.readByte());
+        } else if (type == float.class) {
+            field.setFloat(entity, in.readFloat());
+        } else if (type == double.class) {
+            field.setDouble(entity, in.readDouble());
+        } else {
+            throw new CloudRuntimeException("Unsupported type " + type + " of " + field);
+        }
+    }
+
+    private static void writeObject(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == String.class) {
+            writeBytes(out, ((String)value).getBytes("UTF-8"));
+        } else if (type == Long.class) {
+            out.writeLong((Long)value);
+        } else if (type.isEnum()) {
+            out.writeInt(((Enum<?>)value).ordinal());
+        } else if (type == Integer.class) {
+            out.writeInt((Integer)value);
+        } else if (type == Date.class) {
+            out.writeLong(((Date)value).getTime());
+        } else if (type == Calendar.class) {
+            out.writeLong(((Calendar)value).getTimeInMillis());
+        } else if (type == Boolean.class) {
+            out.writeBoolean((Boolean)value);
+        } else if (type == URI.class || type == URL.class) {
+            writeBytes(out, value.toString().getBytes("UTF-8"));
+        } else if (type == Ip.class) {
+            out.writeLong(((Ip)value).longValue());
+        } else if (type == Short.class) {
+            out.writeShort((Short)value);
+        } else if (type == Float.class) {
+            out.writeFloat((Float)value);
+        } else if (type == Double.class) {
+            out.writeDouble((Double)value);
+        } else if (type == Byte.class) {
+            out.writeByte((Byte)value);
+        } else if (type == byte[].class) {
+            writeBytes(out, (byte[])value);
+        } else {
+            throw new CloudRuntimeException("Unsupported type " + type);
+        }
+    }
+
+    private static Object readObject(DataInputStream in, FieldMapping column) throws IOException {
+        Class<?> type = column.getField().getType();
+        if (type == String.class) {
+            return new String(readBytes(in), "UTF-8");
+        } else if (type == Long.class) {
+            return in.readLong();
+        } else if (type.isEnum()) {
+            return column.getEnum(in.readInt());
+        } else if (type == Integer.class) {
+            return in.readInt();
+        } else if (type == Date.class) {
+            return new Date(in.readLong());
+        } else if (type == Calendar.class) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(in.readLong());
+            return cal;
+        } else if (type == Boolean.class) {
+            return in.readBoolean();
+        } else if (type == URI.class) {
+            try {
+                return new URI(new String(readBytes(in), "UTF-8"));
+            } catch (URISyntaxException e) {
+                throw new CloudRuntimeException("Invalid URI in cached row", e);
+            }
+        } else if (type == URL.class) {
+            try {
+                return new URL(new String(readBytes(in), "UTF-8"));
+            } catch (MalformedURLException e) {
+                throw new CloudRuntimeException("Invalid URL in cached row", e);
+            }
+        } else if (type == Ip.class) {
+            return new Ip(in.readLong());
+        } else if (type == Short.class) {
+            return in.readShort();
+        } else if (type == Float.class) {
+            return in.readFloat();
+        } else if (type == Double.class) {
+            return in.readDouble();
+        } else if (type == Byte.class) {
+            return in.readByte();
+        } else if (type == byte[].class) {
+            return readBytes(in);
+        } else {
+            throw new CloudRuntimeException("Unsupported type " + type);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+}
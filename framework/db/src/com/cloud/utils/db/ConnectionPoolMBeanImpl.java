@@ -0,0 +1,189 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+import javax.sql.DataSource;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+/**
+ * Connection pool metrics of one of the data sources of TransactionLegacy.
+ * The pool sizes come from the commons-pool GenericObjectPool, which does
+ * not keep track of how long borrowing takes, so the data source handed out
+ * by wrap() times every getConnection() and counts the ones that failed, or
+ * timed out after the maxWait of the pool.
+ */
+public class ConnectionPoolMBeanImpl extends StandardMBean implements ConnectionPoolMBean {
+    private final String _name;
+    private final GenericObjectPool _pool;
+    private final boolean _poolPreparedStatements;
+    private final int _maxOpenPreparedStatements;
+
+    private final AtomicLong _borrows = new AtomicLong();
+    private final AtomicLong _borrowWaitNanos = new AtomicLong();
+    private final AtomicLong _maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    public ConnectionPoolMBeanImpl(String name, GenericObjectPool pool, boolean poolPreparedStatements, int maxOpenPreparedStatements) {
+        super(ConnectionPoolMBean.class, false);
+        _name = name;
+        _pool = pool;
+        _poolPreparedStatements = poolPreparedStatements;
+        _maxOpenPreparedStatements = maxOpenPreparedStatements;
+    }
+
+    /**
+     * @return a data source handing out the connections of ds while recording how long it took to get them
+     */
+    public DataSource wrap(final DataSource ds) {
+        return (DataSource)Proxy.newProxyInstance(ConnectionPoolMBeanImpl.class.getClassLoader(), new Class<?>[] {DataSource.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("getConnection")) {
+                    return invokeTarget(ds, method, args);
+                }
+                long start = System.nanoTime();
+                try {
+                    Object conn = invokeTarget(ds, method, args);
+                    recordBorrow(System.nanoTime() - start);
+                    return conn;
+                } catch (Throwable e) {
+                    recordFailure(e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    protected void recordBorrow(long nanos) {
+        _borrows.incrementAndGet();
+        _borrowWaitNanos.addAndGet(nanos);
+        long max = _maxBorrowWaitNanos.get();
+        while (nanos > max && !_maxBorrowWaitNanos.compareAndSet(max, nanos)) {
+            max = _maxBorrowWaitNanos.get();
+        }
+    }
+
+    protected void recordFailure(Throwable e) {
+        // commons-dbcp reports an exhausted pool as an SQLException caused by the NoSuchElementException of the pool
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchElementException) {
+                _timeouts.incrementAndGet();
+                return;
+            }
+        }
+        _failures.incrementAndGet();
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getNumActive() {
+        return _pool.getNumActive();
+    }
+
+    @Override
+    public int getNumIdle() {
+        return _pool.getNumIdle();
+    }
+
+    @Override
+    public int getMaxActive() {
+        return _pool.getMaxActive();
+    }
+
+    @Override
+    public int getMaxIdle() {
+        return _pool.getMaxIdle();
+    }
+
+    @Override
+    public long getMaxWait() {
+        return _pool.getMaxWait();
+    }
+
+    @Override
+    public double getUtilization() {
+        int maxActive = _pool.getMaxActive();
+        return maxActive > 0 ? (double)_pool.getNumActive() / maxActive : 0;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return _borrows.get();
+    }
+
+    @Override
+    public double getAverageBorrowWaitMillis() {
+        long borrows = _borrows.get();
+        return borrows > 0 ? _borrowWaitNanos.get() / 1000000.0 / borrows : 0;
+    }
+
+    @Override
+    public long getMaxBorrowWaitMillis() {
+        return _maxBorrowWaitNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return _failures.get();
+    }
+
+    @Override
+    public boolean isPoolPreparedStatements() {
+        return _poolPreparedStatements;
+    }
+
+    @Override
+    public int getMaxOpenPreparedStatements() {
+        return _maxOpenPreparedStatements;
+    }
+
+    @Override
+    public void reset() {
+        _borrows.set(0);
+        _borrowWaitNanos.set(0);
+        _maxBorrowWaitNanos.set(0);
+        _timeouts.set(0);
+        _failures.set(0);
+    }
+}
@@ -0,0 +1,415 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Second level cache of the rows of a table that is read far more often
+ * than it is written, such as data_center or cluster. GenericDaoBase keeps the
+ * rows serialized, and they are stored one after the other in a direct
+ * buffer outside of the java heap. Once the buffer is full the oldest rows
+ * make room for the new ones, so the cache costs neither heap nor garbage
+ * collection time whatever its size. Rows older than the time to live are
+ * not returned.
+ *
+ * Rows are dropped by table and id, so that a change made through any dao
+ * of a table drops the rows of all the caches reading from it. The other
+ * management servers drop them through the ClusterListener once the
+ * transaction making the change is over.
+ */
+public class EntityCache extends StandardMBean implements EntityCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(EntityCache.class);
+
+    /**
+     * Tells the other management servers about rows to drop, which they pass to invalidate().
+     */
+    public interface ClusterListener {
+        /**
+         * @param table table the row is in
+         * @param id id of the row to drop, null to drop them all
+         */
+        void invalidated(String table, String id);
+    }
+
+    private static final Map<String, List<EntityCache>> s_cachesByTable = new ConcurrentHashMap<String, List<EntityCache>>();
+    private static volatile ClusterListener s_clusterListener;
+
+    private final String _name;
+    private final Collection<String> _tables;
+    private final ByteBuffer _store;
+    private final int _timeToLive;
+
+    // slots in the order they were written to the store, the oldest first, including the ones no longer in use
+    private final ArrayDeque<Slot> _slots = new ArrayDeque<Slot>();
+    private final Map<String, Slot> _index = new HashMap<String, Slot>();
+    private int _position;
+    private long _bytes;
+    // bumped on every invalidation so that a row read from the db before it is not put in the cache
+    private long _generation;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _puts = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+
+    private static class Slot {
+        final String id;
+        final int offset;
+        final int length;
+        final long storedAt;
+        boolean inUse = true;
+
+        Slot(String id, int offset, int length, long storedAt) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * @param name name of the cache, unique among the caches
+     * @param tables tables the rows are read from
+     * @param capacity bytes of memory outside of the heap to keep the rows in
+     * @param timeToLive seconds a row is returned after it was stored, -1 for as long as it is in the cache
+     */
+    protected EntityCache(String name, Collection<String> tables, int capacity, int timeToLive) {
+        super(EntityCacheMBean.class, false);
+        _name = name;
+        _tables = tables;
+        _store = ByteBuffer.allocateDirect(capacity);
+        _timeToLive = timeToLive;
+    }
+
+    /**
+     * Creates a cache, replacing any cache of the same name, and publishes its metrics through JMX.
+     */
+    public static synchronized EntityCache create(String name, Collection<String> tables, int capacity, int timeToLive) {
+        EntityCache cache = new EntityCache(name, tables, capacity, timeToLive);
+        for (String table : tables) {
+            List<EntityCache> caches = s_cachesByTable.get(table);
+            if (caches == null) {
+                caches = new CopyOnWriteArrayList<EntityCache>();
+                s_cachesByTable.put(table, caches);
+            }
+            for (EntityCache old : caches) {
+                if (old.getName().equals(name)) {
+                    caches.remove(old);
+                }
+            }
+            caches.add(cache);
+        }
+        try {
+            try {
+                JmxUtil.unregisterMBean("EntityCache", name);
+            } catch (InstanceNotFoundException e) {
+                // first time the cache is created
+            }
+            JmxUtil.registerMBean("EntityCache", name, cache);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for entity cache " + name, e);
+        }
+        return cache;
+    }
+
+    public static void setClusterListener(ClusterListener listener) {
+        s_clusterListener = listener;
+    }
+
+    /**
+     * @return whether rows of the table are cached on this management server
+     */
+    public static boolean isCached(String table) {
+        return s_cachesByTable.containsKey(table);
+    }
+
+    /**
+     * Drops a row of a table from the caches of this management server only.
+     *
+     * @param id id of the row, null to drop all the rows of the table
+     */
+    public static void invalidate(String table, String id) {
+        List<EntityCache> caches = s_cachesByTable.get(table);
+        if (caches == null) {
+            return;
+        }
+        for (EntityCache cache : caches) {
+            if (id == null) {
+                cache.clear();
+            } else {
+                cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Drops every row of every cache of this management server only.
+     */
+    public static void invalidateAll() {
+        for (String table : s_cachesByTable.keySet()) {
+            invalidate(table, null);
+        }
+    }
+
+    /**
+     * Drops a row of a table from the caches here and on the other management servers.
+     *
+     * @param id id of the row, null to drop all the rows of the table
+     */
+    public static void invalidateInCluster(String table, String id) {
+        invalidate(table, id);
+        ClusterListener listener = s_clusterListener;
+        if (listener != null) {
+            try {
+                listener.invalidated(table, id);
+            } catch (Exception e) {
+                s_logger.warn("Unable to tell the other management servers to drop " + (id == null ? "the rows" : "row " + id) + " of " + table, e);
+            }
+        }
+    }
+
+    /**
+     * Drops a row of a table from the caches here right away, and here and on the other management servers once the
+     * current transaction is over, so that no server caches the row again before the change is visible. Code changing
+     * a cached table with plain SQL calls this too.
+     *
+     * @param id id of the row, null to drop all the rows of the table
+     */
+    public static void invalidateOnCompletion(final String table, final String id) {
+        if (!isCached(table)) {
+            return;
+        }
+        invalidate(table, id);
+        TransactionLegacy.currentTxn().afterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                invalidateInCluster(table, id);
+            }
+        });
+    }
+
+    /**
+     * @return the row of the given id, null if it is not in the cache
+     */
+    public byte[] get(String id) {
+        byte[] row = null;
+        synchronized (this) {
+            Slot slot = _index.get(id);
+            if (slot != null && _timeToLive != -1 && System.currentTimeMillis() - slot.storedAt > _timeToLive * 1000L) {
+                drop(slot);
+                slot = null;
+            }
+            if (slot != null) {
+                row = new byte[slot.length];
+                _store.position(slot.offset);
+                _store.get(row);
+            }
+        }
+        if (row == null) {
+            _misses.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+        return row;
+    }
+
+    /**
+     * @return the generation to pass to put() for a row read from now on
+     */
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * Stores the row of the given id, unless the cache was invalidated since the row was read.
+     *
+     * @param generation what getGeneration() returned before reading the row
+     * @return whether the row was stored
+     */
+    public synchronized boolean put(String id, byte[] row, long generation) {
+        if (generation != _generation || row.length > _store.capacity() / 4) {
+            return false;
+        }
+
+        Slot old = _index.get(id);
+        if (old != null) {
+            drop(old);
+        }
+
+        int offset = allocate(row.length);
+        _store.position(offset);
+        _store.put(row);
+        Slot slot = new Slot(id, offset, row.length, System.currentTimeMillis());
+        _slots.addLast(slot);
+        _index.put(id, slot);
+        _bytes += row.length;
+        _puts.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drops the row of the given id on this management server only.
+     */
+    public synchronized void remove(String id) {
+        _generation++;
+        _invalidations.incrementAndGet();
+        Slot slot = _index.get(id);
+        if (slot != null) {
+            drop(slot);
+        }
+    }
+
+    /**
+     * Drops all rows on this management server only.
+     */
+    @Override
+    public synchronized void clear() {
+        _generation++;
+        _invalidations.incrementAndGet();
+        _slots.clear();
+        _index.clear();
+        _position = 0;
+        _bytes = 0;
+    }
+
+    // finds room for a row right after the last one written, wrapping around to the start of the store and
+    // dropping the oldest rows as needed
+    private int allocate(int length) {
+        while (true) {
+            Slot oldest = _slots.peekFirst();
+            if (oldest == null) {
+                _position = 0;
+                break;
+            }
+            if (_position > oldest.offset) {
+                if (_store.capacity() - _position >= length) {
+                    break;
+                }
+                if (oldest.offset >= length) {
+                    _position = 0;
+                    break;
+                }
+            } else if (oldest.offset - _position >= length) {
+                break;
+            }
+            _slots.removeFirst();
+            if (oldest.inUse) {
+                _index.remove(oldest.id);
+                oldest.inUse = false;
+                _bytes -= oldest.length;
+                _evictions.incrementAndGet();
+            }
+        }
+        int offset = _position;
+        _position += length;
+        return offset;
+    }
+
+    private void drop(Slot slot) {
+        // the space is reused once the slot is the oldest one
+        _index.remove(slot.id);
+        slot.inUse = false;
+        _bytes -= slot.length;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    public Collection<String> getTables() {
+        return _tables;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return _index.size();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    @Override
+    public long getCapacity() {
+        return _store.capacity();
+    }
+
+    @Override
+    public int getTimeToLive() {
+        return _timeToLive;
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = _hits.get();
+        long lookups = hits + _misses.get();
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    @Override
+    public long getPuts() {
+        return _puts.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _hits.set(0);
+        _misses.set(0);
+        _puts.set(0);
+        _evictions.set(0);
+        _invalidations.set(0);
+    }
+}
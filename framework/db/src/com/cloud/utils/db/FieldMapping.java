@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+/**
+ * What GenericDaoBase needs to know to read a column into an entity field,
+ * worked out once per field instead of on every row: whether the field is
+ * encrypted, how an enum or ip is stored and the enum constants by name.
+ */
+public class FieldMapping {
+    private static final Map<Field, FieldMapping> s_mappings = new ConcurrentHashMap<Field, FieldMapping>();
+
+    private final Field _field;
+    private final boolean _encrypted;
+    private final EnumType _enumType;
+    private final Enum<?>[] _enumConstants;
+    private final Map<String, Enum<?>> _enumsByName;
+
+    public static FieldMapping get(Field field) {
+        FieldMapping mapping = s_mappings.get(field);
+        if (mapping == null) {
+            mapping = new FieldMapping(field);
+            s_mappings.put(field, mapping);
+        }
+        return mapping;
+    }
+
+    protected FieldMapping(Field field) {
+        _field = field;
+
+        Encrypt encrypt = field.getAnnotation(Encrypt.class);
+        _encrypted = encrypt != null && encrypt.encrypt();
+
+        Enumerated enumerated = field.getAnnotation(Enumerated.class);
+        _enumType = enumerated == null ? EnumType.STRING : enumerated.value();
+
+        if (field.getType().isEnum()) {
+            _enumConstants = (Enum<?>[])field.getType().getEnumConstants();
+            _enumsByName = new HashMap<String, Enum<?>>(_enumConstants.length * 2);
+            for (Enum<?> e : _enumConstants) {
+                // names are matched ignoring case, the first of the constants differing only in case wins
+                String key = e.name().toUpperCase(Locale.ENGLISH);
+                if (!_enumsByName.containsKey(key)) {
+                    _enumsByName.put(key, e);
+                }
+            }
+        } else {
+            _enumConstants = null;
+            _enumsByName = null;
+        }
+    }
+
+    public Field getField() {
+        return _field;
+    }
+
+    public boolean isEncrypted() {
+        return _encrypted;
+    }
+
+    /**
+     * @return how the enum or ip in the field is stored, EnumType.STRING unless the field says otherwise
+     */
+    public EnumType getEnumType() {
+        return _enumType;
+    }
+
+    /**
+     * @return the constant of the enum field with the given name, ignoring case, null if there is none
+     */
+    public Enum<?> getEnum(String name) {
+        return name == null ? null : _enumsByName.get(name.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return the constant of the enum field with the given ordinal, null if there is none
+     */
+    public Enum<?> getEnum(int ordinal) {
+        return ordinal >= 0 && ordinal < _enumConstants.length ? _enumConstants[ordinal] : null;
+    }
+}
@@ -134,6 +134,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected StringBuilder _discriminatorClause;
     protected Map<String, Object> _discriminatorValues;
     protected String _selectByIdSql;
+    private volatile FieldMapping[] _selectByIdColumns;
+    private volatile SearchBuilder<T> _searchCriteriaBuilder;
     protected String _count;
 
     protected Field _idField;
@@ -359,23 +361,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     @Override
     public List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock,
             final boolean cache, final boolean enable_query_cache) {
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
-        }
-
-        final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
-        if (clause != null) {
-            str.append(clause);
-        }
-
-        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
-            }
-        }
+        final QueryPlan plan = getQueryPlan(sc, enable_query_cache);
+        final StringBuilder str = new StringBuilder(plan.getSql());
+        final Collection<JoinBuilder<SearchCriteria<?>>> joins = sc != null ? sc.getJoins() : null;
 
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
@@ -391,9 +379,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = (lock == null ? txn.prepareAutoCloseReadStatement(sql) : txn.prepareAutoCloseStatement(sql));
             int i = 0;
-            if (clause != null) {
+            if (plan.hasWhereClause()) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
@@ -413,8 +401,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
+            FieldMapping[] columns = plan.getColumns();
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                if (columns == null) {
+                    columns = mapColumns(rs.getMetaData());
+                    plan.setColumns(columns);
+                }
+                result.add(toEntityBean(rs, cache, columns));
             }
             return result;
         } catch (final SQLException e) {
@@ -429,23 +422,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         if (sc.isSelectAll()) {
             return (List<M>)searchIncludingRemoved((SearchCriteria<T>)sc, filter, null, false);
         }
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
-        }
-
-        final StringBuilder str = createPartialSelectSql(sc, clause != null);
-        if (clause != null) {
-            str.append(clause);
-        }
-
-        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
-            }
-        }
+        final QueryPlan plan = getQueryPlan(sc, false);
+        final StringBuilder str = new StringBuilder(plan.getSql());
+        final Collection<JoinBuilder<SearchCriteria<?>>> joins = sc.getJoins();
 
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
@@ -455,9 +434,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
-            if (clause != null) {
+            if (plan.hasWhereClause()) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
@@ -476,14 +455,26 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             ResultSet rs = pstmt.executeQuery();
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
-            List<Field> fields = sc.getSelectFields();
+            FieldMapping[] columns = plan.getColumns();
+            if (columns == null && (st == SelectType.Fields || st == SelectType.Result)) {
+                List<Field> fields = sc.getSelectFields();
+                columns = new FieldMapping[fields.size()];
+                for (int j = 0; j < columns.length; j++) {
+                    columns[j] = FieldMapping.get(fields.get(j));
+                }
+                plan.setColumns(columns);
+            }
             while (rs.next()) {
                 if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
+                    if (columns == null) {
+                        columns = mapColumns(rs.getMetaData());
+                        plan.setColumns(columns);
+                    }
+                    results.add((M)toEntityBean(rs, false, columns));
                 } else if (st == SelectType.Fields || st == SelectType.Result) {
                     M m = sc.getResultType().newInstance();
-                    for (int j = 1; j <= fields.size(); j++) {
-                        setField(m, fields.get(j - 1), rs, j);
+                    for (int j = 1; j <= columns.length; j++) {
+                        setField(m, columns[j - 1], rs, j);
                     }
                     results.add(m);
                 } else if (st == SelectType.Single) {
@@ -510,14 +501,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB()
     protected void setField(Object entity, Field field, ResultSet rs, int index) throws SQLException {
+        setField(entity, FieldMapping.get(field), rs, index);
+    }
+
+    @DB()
+    protected void setField(Object entity, FieldMapping mapping, ResultSet rs, int index) throws SQLException {
+        final Field field = mapping.getField();
         try {
             final Class<?> type = field.getType();
             if (type == String.class) {
                 byte[] bytes = rs.getBytes(index);
                 if(bytes != null) {
                     try {
-                        Encrypt encrypt = field.getAnnotation(Encrypt.class);
-                        if (encrypt != null && encrypt.encrypt()){
+                        if (mapping.isEncrypted()) {
                             field.set(entity, DBEncryptionUtil.decrypt(new String(bytes, "UTF-8")));
                         } else {
                             field.set(entity, new String(bytes, "UTF-8"));
@@ -541,16 +537,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                     field.set(entity, rs.getLong(index));
                 }
             } else if (type.isEnum()) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                final Enum<?>[] enums =  (Enum<?>[])field.getType().getEnumConstants();
-                for (final Enum<?> e : enums) {
-                    if ((enumType == EnumType.STRING && e.name().equalsIgnoreCase(rs.getString(index))) ||
-                            (enumType == EnumType.ORDINAL && e.ordinal() == rs.getInt(index))) {
-                        field.set(entity, e);
-                        return;
-                    }
+                final Enum<?> e = mapping.getEnumType() == EnumType.STRING ? mapping.getEnum(rs.getString(index)) : mapping.getEnum(rs.getInt(index));
+                if (e != null) {
+                    field.set(entity, e);
                 }
             } else if (type == int.class) {
                 field.set(entity, rs.getInt(index));
@@ -599,11 +588,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                     throw new CloudRuntimeException("Invalid URL: " + rs.getString(index), e);
                 }
             } else if (type == Ip.class) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
                 Ip ip = null;
-                if (enumType == EnumType.STRING) {
+                if (mapping.getEnumType() == EnumType.STRING) {
                     String s = rs.getString(index);
                     ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
                 } else {
@@ -807,6 +793,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.start();
+            invalidateEntityCaches(sc);
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
             Collection<Ternary<Attribute, Boolean, Object>> changes = ub.getChanges();
@@ -922,11 +909,36 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         if (_cache != null) {
             final Element element = _cache.get(id);
             return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+        } else if (_entityCache != null) {
+            return findCachedById(id);
         } else {
             return lockRow(id, null);
         }
     }
 
+    @SuppressWarnings("unchecked")
+    protected T findCachedById(final ID id) {
+        final String key = id.toString();
+        FieldMapping[] columns = _selectByIdColumns;
+        if (columns != null) {
+            byte[] row = _entityCache.get(key);
+            if (row != null) {
+                final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+                CachedRow.deserialize(row, columns, entity);
+                return entity;
+            }
+        }
+
+        long generation = _entityCache.getGeneration();
+        T entity = lockRow(id, null);
+        // rows read in a transaction may not be committed yet, and rows read in a read-only context may come
+        // from a lagging read replica
+        if (entity != null && !TransactionLegacy.currentTxn().dbTxnStarted() && !TransactionLegacy.isReadOnly()) {
+            _entityCache.put(key, CachedRow.serialize(entity, _selectByIdColumns), generation);
+        }
+        return entity;
+    }
+
     @Override @DB()
     public T findByUuid(final String uuid) {
         SearchCriteria<T> sc = createSearchCriteria();
@@ -955,6 +967,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         if (_cache != null) {
             _cache.remove(id);
         }
+        if (_entityCache != null) {
+            _entityCache.remove(id.toString());
+        }
         return lockRow(id, null);
     }
 
@@ -974,14 +989,22 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            pstmt = (lock == null ? txn.prepareAutoCloseReadStatement(sql.toString()) : txn.prepareAutoCloseStatement(sql.toString()));
 
             if (_idField.getAnnotation(EmbeddedId.class) == null) {
                 prepareAttribute(1, pstmt, _idAttributes.get(_table)[0], id);
             }
 
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            if (!rs.next()) {
+                return null;
+            }
+            FieldMapping[] columns = _selectByIdColumns;
+            if (columns == null) {
+                columns = mapColumns(rs.getMetaData());
+                _selectByIdColumns = columns;
+            }
+            return toEntityBean(rs, true, columns);
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -1080,15 +1103,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
             for (final Object param : params) {
                 pstmt.setObject(++i, param);
             }
 
             final ResultSet rs = pstmt.executeQuery();
+            FieldMapping[] columns = null;
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                if (columns == null) {
+                    columns = mapColumns(rs.getMetaData());
+                }
+                result.add(toEntityBean(rs, true, columns));
             }
             return result;
         } catch (final SQLException e) {
@@ -1123,6 +1150,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         String sql = null;
         try {
             txn.start();
+            invalidateEntityCaches(id);
             for (final Pair<String, Attribute[]> deletSql : _deleteSqls) {
                 sql = deletSql.first();
                 final Attribute[] attrs = deletSql.second();
@@ -1166,7 +1194,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            invalidateEntityCaches(sc);
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1174,6 +1204,47 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    /**
+     * Builds the select, where clause and joins of a search, or takes them from the builder of the criteria if it
+     * already built them for criteria of the same shape.
+     */
+    protected QueryPlan getQueryPlan(SearchCriteria<?> sc, final boolean enable_query_cache) {
+        String shape = null;
+        if (sc != null) {
+            StringBuilder str = new StringBuilder(enable_query_cache ? "c" : "n");
+            if (sc.getShape(str)) {
+                shape = str.toString();
+                QueryPlan plan = sc.getBuilder().getQueryPlan(shape);
+                if (plan != null && plan.getDao() == this) {
+                    return plan;
+                }
+            }
+        }
+
+        String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+
+        final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
+        if (clause != null) {
+            str.append(clause);
+        }
+
+        if (sc != null) {
+            Collection<JoinBuilder<SearchCriteria<?>>> joins = sc.getJoins();
+            if (joins != null) {
+                addJoins(str, joins);
+            }
+        }
+
+        QueryPlan plan = new QueryPlan(this, str.toString(), clause != null);
+        if (shape != null) {
+            sc.getBuilder().putQueryPlan(shape, plan);
+        }
+        return plan;
+    }
+
     @DB()
     protected StringBuilder createPartialSelectSql(SearchCriteria<?> sc, final boolean whereClause, final boolean enable_query_cache) {
         StringBuilder sql = new StringBuilder(enable_query_cache ? _partialQueryCacheSelectSql.first() : _partialSelectSql.first());
@@ -1536,13 +1607,22 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return j;
     }
 
-    @SuppressWarnings("unchecked") @DB()
+    @DB()
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
+        return toEntityBean(result, cache, null);
+    }
+
+    /**
+     * @param columns fields the columns of the result go to, as given by mapColumns(), null to work them out here
+     */
+    @SuppressWarnings("unchecked") @DB()
+    protected T toEntityBean(final ResultSet result, final boolean cache, final FieldMapping[] columns) throws SQLException {
         final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
-        toEntityBean(result, entity);
+        toEntityBean(result, entity, columns != null ? columns : mapColumns(result.getMetaData()));
 
-        if (cache && _cache != null) {
+        // rows read in a read-only context may come from a lagging read replica, keep them out of the cache
+        if (cache && _cache != null && !TransactionLegacy.isReadOnly()) {
             try {
                 _cache.put(new Element(_idField.get(entity), entity));
             } catch (final Exception e) {
@@ -1564,7 +1644,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !TransactionLegacy.isReadOnly()) {
             try {
                 _cache.put(new Element(_idField.get(entity), entity));
             } catch (final Exception e) {
@@ -1577,9 +1657,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB()
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
+        toEntityBean(result, entity, mapColumns(result.getMetaData()));
+    }
+
+    @DB()
+    protected void toEntityBean(final ResultSet result, final T entity, final FieldMapping[] columns) throws SQLException {
+        for (int index = 1; index <= columns.length; index++) {
+            setField(entity, columns[index - 1], result, index);
         }
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
@@ -1688,6 +1772,29 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    /**
+     * @return the fields of the entity the columns of a result go to, in the order of the columns
+     */
+    protected FieldMapping[] mapColumns(ResultSetMetaData meta) throws SQLException {
+        FieldMapping[] columns = new FieldMapping[meta.getColumnCount()];
+        for (int index = 1; index <= columns.length; index++) {
+            Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
+            if (attr == null) {
+                // work around for mysql bug to return original table name instead of view name in db view case
+                Table tbl = _entityBeanType.getAnnotation(Table.class);
+                if (tbl != null) {
+                    attr = _allColumns.get(new Pair<String, String>(tbl.name(), meta.getColumnLabel(index)));
+                }
+            }
+            assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
+            if (attr == null) {
+                throw new CloudRuntimeException("Unable to find the field of column " + meta.getTableName(index) + "." + meta.getColumnName(index));
+            }
+            columns[index - 1] = FieldMapping.get(attr.field);
+        }
+        return columns;
+    }
+
     @DB()
     protected void setField(final Object entity, final ResultSet rs, ResultSetMetaData meta, final int index) throws SQLException {
         Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
@@ -1713,6 +1820,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         try {
 
             txn.start();
+            invalidateEntityCaches(id);
             pstmt = txn.prepareAutoCloseStatement(_removeSql.first());
             final Attribute[] attrs = _removeSql.second();
             prepareAttribute(1, pstmt, attrs[attrs.length - 1], null);
@@ -1745,6 +1853,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected Cache _cache;
+    protected EntityCache _entityCache;
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1760,6 +1869,69 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         } else {
             _cache = null;
         }
+
+        final String offHeapSize = (String)params.get("cache.offheap.size");
+        if (offHeapSize != null && _cache == null) {
+            createEntityCache(NumbersUtil.parseInt(offHeapSize, 0), NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300));
+        } else {
+            _entityCache = null;
+        }
+    }
+
+    /**
+     * Sets up the off heap cache of the rows findById() reads, see EntityCache.
+     *
+     * @param capacity bytes to keep the rows in
+     * @param timeToLive seconds a row is used, -1 for as long as it is in the cache
+     */
+    protected void createEntityCache(final int capacity, final int timeToLive) {
+        _entityCache = null;
+        if (capacity <= 0) {
+            return;
+        }
+        if (_idField == null || _idField.getAnnotation(EmbeddedId.class) != null || !_ecAttributes.isEmpty()) {
+            s_logger.warn("Not caching " + getName() + ", only entities with a simple id and without element collections can be cached");
+            return;
+        }
+        for (Attribute attr : _allColumns.values()) {
+            if (attr.field != null && !CachedRow.isSupported(attr.field.getType())) {
+                s_logger.warn("Not caching " + getName() + ", " + attr.field + " can not be cached");
+                return;
+            }
+        }
+        _entityCache = EntityCache.create(getName(), _idAttributes.keySet(), capacity, timeToLive);
+        s_logger.info("Entity cache created for " + getName() + ": " + capacity + " bytes, time to live " + timeToLive + "s");
+    }
+
+    /**
+     * Drops the rows of the given id from the entity caches of the tables of this dao, see
+     * EntityCache.invalidateOnCompletion().
+     *
+     * @param id id of the rows, null for all rows
+     */
+    protected void invalidateEntityCaches(Object id) {
+        String key = id != null ? id.toString() : null;
+        for (String table : _idAttributes.keySet()) {
+            EntityCache.invalidateOnCompletion(table, key);
+        }
+    }
+
+    /**
+     * Drops the rows an update or removal by criteria may change from the entity caches, see invalidateEntityCaches().
+     */
+    protected void invalidateEntityCaches(final SearchCriteria<?> sc) {
+        boolean cached = false;
+        for (String table : _idAttributes.keySet()) {
+            cached |= EntityCache.isCached(table);
+        }
+        if (!cached) {
+            return;
+        }
+        Object id = null;
+        if (sc != null && _idField != null && _idField.getAnnotation(EmbeddedId.class) == null) {
+            id = sc.getEqualValue(_idAttributes.get(_table)[0]);
+        }
+        invalidateEntityCaches(id);
     }
 
     @Override @DB()
@@ -1792,7 +1964,13 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @Override @DB()
     public SearchCriteria<T> createSearchCriteria() {
-        SearchBuilder<T> builder = createSearchBuilder();
+        // the criteria made here all start from the same builder so that they share its query plans
+        SearchBuilder<T> builder = _searchCriteriaBuilder;
+        if (builder == null) {
+            builder = createSearchBuilder();
+            builder.done();
+            _searchCriteriaBuilder = builder;
+        }
         return builder.create();
     }
 
@@ -1822,7 +2000,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         PreparedStatement pstmt = null;
         try {
-            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt = txn.prepareAutoCloseReadStatement(sql);
             int i = 0;
             if (clause != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
@@ -0,0 +1,62 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+/**
+ * The SQL GenericDaoBase builds for one shape of the criteria of a search
+ * builder, up to and including the where clause and the joins, and the
+ * mapping of the columns it returns to the fields of the entity, known
+ * once the search ran for the first time.
+ */
+public class QueryPlan {
+    private final GenericDaoBase<?, ?> _dao;
+    private final String _sql;
+    private final boolean _whereClause;
+    private volatile FieldMapping[] _columns;
+
+    public QueryPlan(GenericDaoBase<?, ?> dao, String sql, boolean whereClause) {
+        _dao = dao;
+        _sql = sql;
+        _whereClause = whereClause;
+    }
+
+    public GenericDaoBase<?, ?> getDao() {
+        return _dao;
+    }
+
+    public String getSql() {
+        return _sql;
+    }
+
+    /**
+     * @return whether the sql has a where clause taking the values of the criteria
+     */
+    public boolean hasWhereClause() {
+        return _whereClause;
+    }
+
+    /**
+     * @return the columns of the result, null until the first search stored them
+     */
+    public FieldMapping[] getColumns() {
+        return _columns;
+    }
+
+    public void setColumns(FieldMapping[] columns) {
+        _columns = columns;
+    }
+}
@@ -0,0 +1,189 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Read replica of the cloud database. TransactionLegacy sends the searches
+ * of read-only contexts here as long as the replica is usable, which means
+ * its replication lag, as reported by SHOW SLAVE STATUS, is known and does
+ * not exceed the configured maximum. A replica that is not replicating,
+ * cannot be reached or lags behind is skipped and the searches go to the
+ * primary until the next check finds it caught up again.
+ *
+ * The database user of the replica needs the REPLICATION CLIENT privilege
+ * to run the check.
+ */
+public class ReadReplica {
+    private static final Logger s_logger = Logger.getLogger(ReadReplica.class);
+
+    private final DataSource _ds;
+    private final long _maxLag;
+    private final long _checkInterval;
+    private ScheduledExecutorService _executor;
+
+    private volatile boolean _usable;
+    private volatile long _lag = -1;
+    private final AtomicLong _reads = new AtomicLong();
+    private final AtomicLong _fallbacks = new AtomicLong();
+
+    /**
+     * @param ds data source of the replica
+     * @param maxLag replication lag in seconds beyond which the replica is not used
+     * @param checkInterval seconds between two lag checks
+     */
+    public ReadReplica(DataSource ds, long maxLag, long checkInterval) {
+        _ds = ds;
+        _maxLag = maxLag;
+        _checkInterval = checkInterval;
+    }
+
+    public synchronized void start() {
+        if (_executor != null) {
+            return;
+        }
+        check();
+        _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ReadReplicaMonitor"));
+        _executor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                check();
+            }
+        }, _checkInterval, _checkInterval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    public boolean isUsable() {
+        return _usable;
+    }
+
+    /**
+     * @return replication lag in seconds seen by the last check, -1 if it is unknown
+     */
+    public long getLag() {
+        return _lag;
+    }
+
+    public long getMaxLag() {
+        return _maxLag;
+    }
+
+    public long getReads() {
+        return _reads.get();
+    }
+
+    public long getFallbacks() {
+        return _fallbacks.get();
+    }
+
+    /**
+     * @return a connection to the replica, null if the replica is not usable and the caller has to go to the primary
+     */
+    public Connection getConnection() {
+        if (!_usable) {
+            _fallbacks.incrementAndGet();
+            return null;
+        }
+        try {
+            Connection conn = _ds.getConnection();
+            _reads.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            setUnusable("unable to get a connection: " + e.getMessage());
+            _fallbacks.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Checks the replication lag and updates whether the replica is usable.
+     */
+    public void check() {
+        long lag = -1;
+        String reason = null;
+        Connection conn = null;
+        try {
+            conn = _ds.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("SHOW SLAVE STATUS");
+                if (!rs.next()) {
+                    reason = "it is not set up as a replica";
+                } else {
+                    lag = rs.getLong("Seconds_Behind_Master");
+                    if (rs.wasNull()) {
+                        lag = -1;
+                        reason = "replication is not running";
+                    }
+                }
+                rs.close();
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            reason = "unable to check the replication lag: " + e.getMessage();
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    s_logger.debug("Unable to close the connection to the read replica", e);
+                }
+            }
+        }
+
+        _lag = lag;
+        if (reason != null) {
+            setUnusable(reason);
+        } else if (lag > _maxLag) {
+            setUnusable("it is " + lag + " seconds behind the primary");
+        } else if (!_usable) {
+            _usable = true;
+            s_logger.info("Read replica is " + lag + " seconds behind the primary, sending read-only searches to it");
+        }
+    }
+
+    private void setUnusable(String reason) {
+        if (_usable) {
+            s_logger.warn("Not using the read replica, " + reason);
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Read replica is still not usable, " + reason);
+        }
+        _usable = false;
+    }
+}
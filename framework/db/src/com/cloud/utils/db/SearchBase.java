@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.Column;
 import javax.persistence.Transient;
@@ -66,6 +67,11 @@ public abstract class SearchBase<J extends SearchBase<?, T, K>, T, K> {
     protected SelectType _selectType;
     T _entity;
 
+    // the where clause and joins built for each shape of the criteria, see SearchCriteria.getShape()
+    private static final int MAX_QUERY_PLANS = 64;
+    private volatile ConcurrentHashMap<String, QueryPlan> _queryPlans;
+    private volatile int _created;
+
     SearchBase(Class<T> entityType, Class<K> resultType) {
         _dao = (GenericDaoBase<? extends T, ? extends Serializable>)GenericDaoBase.getDao(entityType);
         if (_dao == null) {
@@ -259,9 +265,40 @@ public abstract class SearchBase<J extends SearchBase<?, T, K>, T, K> {
         if (_entity != null) {
             finalize();
         }
+        _created++;
         return new SearchCriteria<K>(this);
     }
 
+    /**
+     * @return the query plan of the given shape of the criteria of this builder, null if there is none yet
+     */
+    QueryPlan getQueryPlan(String shape) {
+        Map<String, QueryPlan> plans = _queryPlans;
+        return plans != null ? plans.get(shape) : null;
+    }
+
+    /**
+     * Keeps the query plan for the criteria of this builder of the given shape. Builders that only made one
+     * criteria so far, as those built for a single search, keep none.
+     */
+    void putQueryPlan(String shape, QueryPlan plan) {
+        if (_created < 2) {
+            return;
+        }
+        Map<String, QueryPlan> plans = _queryPlans;
+        if (plans == null) {
+            synchronized (this) {
+                if (_queryPlans == null) {
+                    _queryPlans = new ConcurrentHashMap<String, QueryPlan>();
+                }
+                plans = _queryPlans;
+            }
+        }
+        if (plans.size() < MAX_QUERY_PLANS) {
+            plans.put(shape, plan);
+        }
+    }
+
     /**
      * Adds an OR condition to the search.  Normally you should use this to
      * perform an 'OR' with a big conditional in parenthesis.  For example,
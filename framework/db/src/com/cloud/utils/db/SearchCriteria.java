@@ -118,8 +118,10 @@ public class SearchCriteria<K> {
     private final List<Object> _groupByValues;
     private final Class<K> _resultType;
     private final SelectType _selectType;
+    private final SearchBase<?, ?, K> _builder;
 
     protected SearchCriteria(SearchBase<?, ?, K> sb) {
+        this._builder = sb;
         this._attrs = sb._attrs;
         this._conditions = sb._conditions;
         this._additionals = new ArrayList<Condition>();
@@ -293,6 +295,119 @@ public class SearchCriteria<K> {
         return sql.toString();
     }
 
+    SearchBase<?, ?, K> getBuilder() {
+        return _builder;
+    }
+
+    /**
+     * Describes what the where clause and the joins of this criteria depend on besides the builder: which
+     * conditions are in, and for each the number of values or whether it is compared to null. Criteria of the
+     * same builder and the same shape get the same sql.
+     *
+     * @param shape to append the shape to
+     * @return false if the sql depends on more than that, for nested criteria and group bys
+     */
+    boolean getShape(StringBuilder shape) {
+        if (_groupBy != null) {
+            return false;
+        }
+        for (Condition condition : _conditions) {
+            if (condition.isPreset()) {
+                _params.put(condition.name, condition.presets);
+            }
+            Object[] params = _params.get(condition.name);
+            if ((condition.op == null || condition.op.params == 0) || (params != null)) {
+                if (!getShape(shape, condition, params)) {
+                    return false;
+                }
+            } else {
+                shape.append('-');
+            }
+        }
+
+        for (Condition condition : _additionals) {
+            if (condition.isPreset()) {
+                _params.put(condition.name, condition.presets);
+            }
+            Object[] params = _params.get(condition.name);
+            if ((condition.op.params == 0) || (params != null)) {
+                // unlike those of the builder, these conditions differ from criteria to criteria
+                shape.append('{').append(condition.cond).append(condition.attr != null ? condition.attr.table + "." + condition.attr.columnName : null)
+                .append(condition.op.name()).append('}');
+                if (!getShape(shape, condition, params)) {
+                    return false;
+                }
+            }
+        }
+
+        if (_joins != null) {
+            for (Map.Entry<String, JoinBuilder<SearchCriteria<?>>> join : _joins.entrySet()) {
+                shape.append('[').append(join.getKey()).append(':');
+                if (!join.getValue().getT().getShape(shape)) {
+                    return false;
+                }
+                shape.append(']');
+            }
+        }
+        return true;
+    }
+
+    private static boolean getShape(StringBuilder shape, Condition condition, Object[] params) {
+        if (condition.op == Op.SC) {
+            return false;
+        }
+        if (params == null) {
+            shape.append('+');
+        } else if ((condition.op == Op.EQ || condition.op == Op.NEQ) && (params.length == 0 || params[0] == null)) {
+            shape.append('0');
+        } else {
+            shape.append(params.length);
+        }
+        shape.append(',');
+        return true;
+    }
+
+    /**
+     * @return the value the where clause requires the attribute to be equal to, null if the where clause may match
+     *         rows with other values of the attribute
+     */
+    Object getEqualValue(Attribute attr) {
+        Object value = null;
+        for (Condition condition : _conditions) {
+            Object[] params = condition.isPreset() ? condition.presets : _params.get(condition.name);
+            if ((condition.op == null || condition.op.params == 0) || (params != null)) {
+                if (!isConjunct(condition)) {
+                    return null;
+                }
+                if (isEqual(condition, attr, params)) {
+                    value = params[0];
+                }
+            }
+        }
+
+        for (Condition condition : _additionals) {
+            Object[] params = condition.isPreset() ? condition.presets : _params.get(condition.name);
+            if ((condition.op.params == 0) || (params != null)) {
+                if (!isConjunct(condition)) {
+                    return null;
+                }
+                if (isEqual(condition, attr, params)) {
+                    value = params[0];
+                }
+            }
+        }
+        return value;
+    }
+
+    private static boolean isConjunct(Condition condition) {
+        return condition.op != Op.SC && (condition.cond == null || !condition.cond.contains("OR"));
+    }
+
+    private static boolean isEqual(Condition condition, Attribute attr, Object[] params) {
+        return condition.op == Op.EQ && condition.attr != null && condition.attr.table.equals(attr.table) && condition.attr.columnName.equals(attr.columnName)
+                && params != null && params.length == 1 && params[0] != null;
+    }
+
     public List<Pair<Attribute, Object>> getValues() {
         ArrayList<Pair<Attribute, Object>> params = new ArrayList<Pair<Attribute, Object>>(_params.size());
         for (Condition condition : _conditions) {
@@ -0,0 +1,384 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Per statement counters for the SQL prepared through TransactionLegacy.
+ *
+ * Statements are grouped by shape: the SQL with whitespace collapsed,
+ * literals replaced by ? and lists of parameters, as in IN clauses, folded
+ * into one. For each shape it keeps the number of executions and failures,
+ * the time spent executing them with a latency histogram, the rows fetched
+ * or changed and the DAO methods preparing it, the latter sampled.
+ *
+ * While disabled TransactionLegacy hands out the driver's statements as
+ * they are and the only cost is a check of the flag. While enabled the
+ * statements are wrapped to time the execute calls and count the rows.
+ */
+public class SqlStatistics {
+    /**
+     * Upper bounds in milliseconds of the histogram buckets, the last bucket takes everything slower
+     */
+    public static final long[] BUCKET_LIMITS_MS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+    public static final String OTHER_STATEMENTS = "(other statements)";
+
+    private static final int MAX_STATEMENTS = 1000;
+    private static final int MAX_SHAPES = 5000;
+    private static final int MAX_CALLERS = 10;
+    // the stack is only walked for one statement out of this many
+    private static final int CALLER_SAMPLE_RATE = 16;
+
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?( ?, ?\\?)+");
+
+    private static volatile boolean s_enabled = false;
+    private static final Map<String, StatementStats> s_statements = new ConcurrentHashMap<String, StatementStats>();
+    private static final Map<String, String> s_shapes = new ConcurrentHashMap<String, String>();
+
+    public static class StatementStats {
+        private final String _sql;
+        private final AtomicLong _prepared = new AtomicLong();
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _totalNanos = new AtomicLong();
+        private final AtomicLong _maxNanos = new AtomicLong();
+        private final AtomicLong _rows = new AtomicLong();
+        private final AtomicLongArray _histogram = new AtomicLongArray(BUCKET_LIMITS_MS.length + 1);
+        private final Map<String, AtomicLong> _callers = new ConcurrentHashMap<String, AtomicLong>();
+
+        StatementStats(String sql) {
+            _sql = sql;
+        }
+
+        void record(long nanos, boolean failed) {
+            _count.incrementAndGet();
+            if (failed) {
+                _errors.incrementAndGet();
+            }
+            _totalNanos.addAndGet(nanos);
+            long max = _maxNanos.get();
+            while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+                max = _maxNanos.get();
+            }
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && millis >= BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            _histogram.incrementAndGet(bucket);
+        }
+
+        void addRows(long rows) {
+            if (rows > 0) {
+                _rows.addAndGet(rows);
+            }
+        }
+
+        boolean prepared() {
+            return _prepared.incrementAndGet() % CALLER_SAMPLE_RATE == 1;
+        }
+
+        void addCaller(String caller) {
+            AtomicLong count = _callers.get(caller);
+            if (count == null) {
+                if (_callers.size() >= MAX_CALLERS) {
+                    caller = "(other callers)";
+                }
+                synchronized (_callers) {
+                    count = _callers.get(caller);
+                    if (count == null) {
+                        count = new AtomicLong();
+                        _callers.put(caller, count);
+                    }
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        public String getSql() {
+            return _sql;
+        }
+
+        public long getCount() {
+            return _count.get();
+        }
+
+        public long getErrors() {
+            return _errors.get();
+        }
+
+        public long getTotalMillis() {
+            return _totalNanos.get() / 1000000;
+        }
+
+        public double getAverageMillis() {
+            long count = _count.get();
+            return count > 0 ? _totalNanos.get() / 1000000.0 / count : 0;
+        }
+
+        public long getMaxMillis() {
+            return _maxNanos.get() / 1000000;
+        }
+
+        public long getRows() {
+            return _rows.get();
+        }
+
+        /**
+         * @return the number of executions per bucket of BUCKET_LIMITS_MS
+         */
+        public long[] getHistogram() {
+            long[] histogram = new long[_histogram.length()];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = _histogram.get(i);
+            }
+            return histogram;
+        }
+
+        /**
+         * @return the sampled callers preparing the statement with the number of times each was seen
+         */
+        public Map<String, Long> getCallers() {
+            Map<String, Long> callers = new HashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : _callers.entrySet()) {
+                callers.put(entry.getKey(), entry.getValue().get());
+            }
+            return callers;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return s_enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        s_enabled = enabled;
+    }
+
+    public static void reset() {
+        s_statements.clear();
+    }
+
+    /**
+     * @return the statements seen, the ones the most time was spent in first
+     */
+    public static List<StatementStats> getStatements() {
+        List<StatementStats> statements = new ArrayList<StatementStats>(s_statements.values());
+        Collections.sort(statements, new Comparator<StatementStats>() {
+            @Override
+            public int compare(StatementStats s1, StatementStats s2) {
+                long t1 = s1._totalNanos.get();
+                long t2 = s2._totalNanos.get();
+                return t1 < t2 ? 1 : t1 > t2 ? -1 : 0;
+            }
+        });
+        return statements;
+    }
+
+    static PreparedStatement wrap(PreparedStatement pstmt, String sql) {
+        StatementStats stats = getStats(getShape(sql));
+        if (stats.prepared()) {
+            stats.addCaller(findCaller(new Throwable().getStackTrace()));
+        }
+        return (PreparedStatement)Proxy.newProxyInstance(SqlStatistics.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+            new StatementHandler(pstmt, stats));
+    }
+
+    private static StatementStats getStats(String shape) {
+        StatementStats stats = s_statements.get(shape);
+        if (stats == null) {
+            if (s_statements.size() >= MAX_STATEMENTS) {
+                shape = OTHER_STATEMENTS;
+            }
+            synchronized (s_statements) {
+                stats = s_statements.get(shape);
+                if (stats == null) {
+                    stats = new StatementStats(shape);
+                    s_statements.put(shape, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static String getShape(String sql) {
+        String shape = s_shapes.get(sql);
+        if (shape == null) {
+            shape = normalize(sql);
+            if (s_shapes.size() < MAX_SHAPES) {
+                s_shapes.put(sql, shape);
+            }
+        }
+        return shape;
+    }
+
+    static String normalize(String sql) {
+        StringBuilder shape = new StringBuilder(sql.length());
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i);
+                shape.append('?');
+            } else if (Character.isWhitespace(c)) {
+                if (shape.length() > 0 && shape.charAt(shape.length() - 1) != ' ') {
+                    shape.append(' ');
+                }
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                while (i + 1 < length && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            } else {
+                shape.append(c);
+            }
+        }
+        int end = shape.length();
+        while (end > 0 && shape.charAt(end - 1) == ' ') {
+            end--;
+        }
+        shape.setLength(end);
+        return PARAMETER_LIST.matcher(shape).replaceAll("?, ...");
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    /**
+     * @return the position of the quote closing the literal starting at start, or the end of the statement
+     */
+    private static int skipQuoted(String sql, int start) {
+        char quote = sql.charAt(start);
+        for (int i = start + 1; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+        }
+        return sql.length() - 1;
+    }
+
+    /**
+     * @return the DAO method on the stack, or the first method outside of the database layer if there is none
+     */
+    static String findCaller(StackTraceElement[] stack) {
+        String first = null;
+        for (StackTraceElement frame : stack) {
+            String className = frame.getClassName();
+            if (className.startsWith("com.cloud.utils.db.") || className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.")
+                || className.startsWith("com.sun.") || className.startsWith("jdk.") || className.startsWith("org.springframework.")
+                || className.startsWith("net.sf.cglib.") || className.contains("$$") || className.contains("$Proxy")) {
+                continue;
+            }
+            String caller = className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+            if (className.endsWith("DaoImpl") || className.endsWith("DaoBase")) {
+                return caller;
+            }
+            if (first == null) {
+                first = caller;
+            }
+        }
+        return first != null ? first : "unknown";
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        private final PreparedStatement _pstmt;
+        private final StatementStats _stats;
+
+        StatementHandler(PreparedStatement pstmt, StatementStats stats) {
+            _pstmt = pstmt;
+            _stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getResultSet")) {
+                ResultSet rs = (ResultSet)SqlStatistics.invoke(_pstmt, method, args);
+                return rs != null ? wrap(rs) : null;
+            }
+            if (!name.startsWith("execute")) {
+                return SqlStatistics.invoke(_pstmt, method, args);
+            }
+
+            Object result;
+            boolean failed = true;
+            long start = System.nanoTime();
+            try {
+                result = SqlStatistics.invoke(_pstmt, method, args);
+                failed = false;
+            } finally {
+                _stats.record(System.nanoTime() - start, failed);
+            }
+
+            if (result instanceof ResultSet) {
+                return wrap((ResultSet)result);
+            } else if (result instanceof Integer) {
+                _stats.addRows((Integer)result);
+            } else if (result instanceof int[]) {
+                for (int rows : (int[])result) {
+                    _stats.addRows(rows);
+                }
+            }
+            return result;
+        }
+
+        private ResultSet wrap(final ResultSet rs) {
+            return (ResultSet)Proxy.newProxyInstance(SqlStatistics.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    Object result = SqlStatistics.invoke(rs, method, args);
+                    if (Boolean.TRUE.equals(result) && method.getName().equals("next")) {
+                        _stats.addRows(1);
+                    }
+                    return result;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.db.SqlStatistics.StatementStats;
+
+public class SqlStatisticsMBeanImpl extends StandardMBean implements SqlStatisticsMBean {
+
+    public SqlStatisticsMBeanImpl() {
+        super(SqlStatisticsMBean.class, false);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return SqlStatistics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        SqlStatistics.setEnabled(enabled);
+    }
+
+    @Override
+    public void reset() {
+        SqlStatistics.reset();
+    }
+
+    @Override
+    public int getStatementCount() {
+        return SqlStatistics.getStatements().size();
+    }
+
+    @Override
+    public List<Map<String, String>> getStatements() {
+        return getTopStatements(0);
+    }
+
+    @Override
+    public List<Map<String, String>> getTopStatements(int count) {
+        List<Map<String, String>> statements = new ArrayList<Map<String, String>>();
+        for (StatementStats stats : SqlStatistics.getStatements()) {
+            if (count > 0 && statements.size() >= count) {
+                break;
+            }
+            statements.add(toMap(stats));
+        }
+        return statements;
+    }
+
+    protected Map<String, String> toMap(StatementStats stats) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("sql", stats.getSql());
+        map.put("count", Long.toString(stats.getCount()));
+        map.put("errors", Long.toString(stats.getErrors()));
+        map.put("totalMs", Long.toString(stats.getTotalMillis()));
+        map.put("avgMs", String.format("%.3f", stats.getAverageMillis()));
+        map.put("maxMs", Long.toString(stats.getMaxMillis()));
+        map.put("rows", Long.toString(stats.getRows()));
+        map.put("histogramLimitsMs", Arrays.toString(SqlStatistics.BUCKET_LIMITS_MS));
+        map.put("histogram", Arrays.toString(stats.getHistogram()));
+        map.put("callers", stats.getCallers().toString());
+        return map;
+    }
+}
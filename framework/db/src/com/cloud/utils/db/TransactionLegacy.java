@@ -24,12 +24,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.InstanceNotFoundException;
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.ConnectionFactory;
@@ -37,6 +39,8 @@ import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.commons.pool.impl.StackKeyedObjectPoolFactory;
 import org.apache.log4j.Logger;
@@ -67,6 +71,12 @@ public class TransactionLegacy {
     private static final Logger s_connLogger = Logger.getLogger(Transaction.class.getName() + "." + "Connection");
 
     private static final ThreadLocal<TransactionLegacy> tls = new ThreadLocal<TransactionLegacy>();
+    private static final ThreadLocal<int[]> s_readOnlyDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
     private static final String START_TXN = "start_txn";
     private static final String CURRENT_TXN = "current_txn";
     private static final String CREATE_TXN = "create_txn";
@@ -89,6 +99,11 @@ public class TransactionLegacy {
         } catch (Exception e) {
             s_logger.error("Unable to register mbean for transaction", e);
         }
+        try {
+            JmxUtil.registerMBean("Transaction", "SqlStatistics", new SqlStatisticsMBeanImpl());
+        } catch (Exception e) {
+            s_logger.error("Unable to register mbean for sql statistics", e);
+        }
     }
 
     private final LinkedList<StackElement> _stack;
@@ -98,11 +113,15 @@ public class TransactionLegacy {
 
     private String _name;
     private Connection _conn;
+    private Connection _replicaConn;
+    private boolean _primaryOnly;
     private boolean _txn;
     private short _dbId;
     private long _txnTime;
     private Statement _stmt;
     private String _creator;
+    private List<Runnable> _afterCompletion;
+    private List<Runnable> _afterCommit;
 
     public static TransactionLegacy currentTxn() {
         return currentTxn(true);
@@ -283,6 +302,34 @@ public class TransactionLegacy {
         txn.attach(value);
     }
 
+    /**
+     * Marks the current thread as running a read-only context until the matching endReadOnly(). Searches of
+     * GenericDaoBase outside of a transaction then go to the read replica of the cloud db, if there is one and
+     * it is not lagging behind. Contexts nest, and a context that writes reads from the primary from then on.
+     */
+    public static void beginReadOnly() {
+        s_readOnlyDepth.get()[0]++;
+    }
+
+    public static void endReadOnly() {
+        int[] depth = s_readOnlyDepth.get();
+        assert depth[0] > 0 : "endReadOnly() without beginReadOnly()";
+        if (depth[0] > 0 && --depth[0] == 0) {
+            TransactionLegacy txn = tls.get();
+            if (txn != null) {
+                txn._primaryOnly = false;
+            }
+        }
+    }
+
+    public static boolean isReadOnly() {
+        return s_readOnlyDepth.get()[0] > 0;
+    }
+
+    public static ReadReplica getReadReplica() {
+        return s_replica;
+    }
+
     public static TransactionAttachment detachFromTxn(String name) {
         TransactionLegacy txn = tls.get();
         assert txn != null : "No Transaction in TLS";
@@ -465,13 +512,76 @@ public class TransactionLegacy {
 
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         final Connection conn = getConnection();
-        final PreparedStatement pstmt = conn.prepareStatement(sql);
+        PreparedStatement pstmt = conn.prepareStatement(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
+        pinToPrimaryOnWrite(sql);
+        if (SqlStatistics.isEnabled()) {
+            pstmt = SqlStatistics.wrap(pstmt, sql);
+        }
+        return pstmt;
+    }
+
+    /**
+     * Prepares an auto close statement for a search. In a read-only context outside of a transaction the
+     * statement goes to the read replica of the cloud db when it is usable, otherwise this is the same as
+     * prepareAutoCloseStatement().
+     *
+     * @param sql select statement
+     * @return PreparedStatement
+     * @throws SQLException if problem with JDBC layer.
+     */
+    public PreparedStatement prepareAutoCloseReadStatement(final String sql) throws SQLException {
+        final Connection conn = getReplicaConnection();
+        if (conn == null) {
+            return prepareAutoCloseStatement(sql);
+        }
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        if (s_stmtLogger.isTraceEnabled()) {
+            s_stmtLogger.trace("Preparing on the read replica: " + sql);
+        }
+        if (SqlStatistics.isEnabled()) {
+            pstmt = SqlStatistics.wrap(pstmt, sql);
+        }
+        closePreviousStatement();
+        _stmt = pstmt;
         return pstmt;
     }
 
+    private Connection getReplicaConnection() {
+        if (s_replica == null || _dbId != CLOUD_DB || _txn || _primaryOnly || !isReadOnly()) {
+            return null;
+        }
+        if (_replicaConn == null) {
+            _replicaConn = s_replica.getConnection();
+            if (_replicaConn != null && s_connLogger.isTraceEnabled()) {
+                s_connLogger.trace("Read replica connection: dbconn" + System.identityHashCode(_replicaConn));
+            }
+        } else if (!s_replica.isUsable()) {
+            return null;
+        }
+        return _replicaConn;
+    }
+
+    /**
+     * Once a read-only context writes, it has to read its own writes, which the replica may not have yet.
+     * Writes to the usage tables, which the usage server makes while copying from the cloud db, are not
+     * read back from the cloud db and do not count.
+     */
+    private void pinToPrimaryOnWrite(final String sql) {
+        if (_primaryOnly || !isReadOnly()) {
+            return;
+        }
+        final String statement = sql.trim();
+        if (statement.regionMatches(true, 0, "SELECT", 0, 6) || statement.regionMatches(true, 0, "SHOW", 0, 4)) {
+            return;
+        }
+        if (!statement.toLowerCase().contains("cloud_usage.")) {
+            _primaryOnly = true;
+        }
+    }
+
     /**
      * Prepares an auto close statement.  The statement is closed automatically if it is
      * retrieved with this method.
@@ -485,10 +595,14 @@ public class TransactionLegacy {
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         final Connection conn = getConnection();
-        final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
+        pinToPrimaryOnWrite(sql);
+        if (SqlStatistics.isEnabled()) {
+            pstmt = SqlStatistics.wrap(pstmt, sql);
+        }
         closePreviousStatement();
         _stmt = pstmt;
         return pstmt;
@@ -507,10 +621,14 @@ public class TransactionLegacy {
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
         final Connection conn = getConnection();
-        final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
+        PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
+        pinToPrimaryOnWrite(sql);
+        if (SqlStatistics.isEnabled()) {
+            pstmt = SqlStatistics.wrap(pstmt, sql);
+        }
         closePreviousStatement();
         _stmt = pstmt;
         return pstmt;
@@ -528,10 +646,14 @@ public class TransactionLegacy {
      */
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
         final Connection conn = getConnection();
-        final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
+        pinToPrimaryOnWrite(sql);
+        if (SqlStatistics.isEnabled()) {
+            pstmt = SqlStatistics.wrap(pstmt, sql);
+        }
         closePreviousStatement();
         _stmt = pstmt;
         return pstmt;
@@ -741,6 +863,7 @@ public class TransactionLegacy {
                 clearLockTimes();
                 closeConnection();
             }
+            runAfterCompletion(true);
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -748,9 +871,67 @@ public class TransactionLegacy {
         }
     }
 
+    /**
+     * Runs the task once the current db transaction is over, whether it commits or rolls back, or right away if
+     * there is none. Used to tell others about changes only once they can see them.
+     */
+    public void afterCompletion(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_afterCompletion == null) {
+            _afterCompletion = new ArrayList<Runnable>();
+        }
+        _afterCompletion.add(task);
+    }
+
+    /**
+     * Runs the task once the current db transaction commits, or right away if there is none. The task is dropped
+     * if the transaction rolls back. Tasks waiting for the commit run before those waiting for the completion.
+     */
+    public void afterCommit(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_afterCommit == null) {
+            _afterCommit = new ArrayList<Runnable>();
+        }
+        _afterCommit.add(task);
+    }
+
+    private void runAfterCompletion(boolean committed) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        if (committed && _afterCommit != null) {
+            tasks.addAll(_afterCommit);
+        }
+        if (_afterCompletion != null) {
+            tasks.addAll(_afterCompletion);
+        }
+        _afterCommit = null;
+        _afterCompletion = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run " + task + " at the end of the transaction", e);
+            }
+        }
+    }
+
     protected void closeConnection() {
         closePreviousStatement();
 
+        if (_replicaConn != null) {
+            try {
+                _replicaConn.close();
+            } catch (final SQLException e) {
+                s_logger.warn("Unable to close the read replica connection", e);
+            }
+            _replicaConn = null;
+        }
+
         if (_conn == null) {
             return;
         }
@@ -862,6 +1043,7 @@ public class TransactionLegacy {
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        runAfterCompletion(false);
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -876,6 +1058,7 @@ public class TransactionLegacy {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCompletion(false);
         }
     }
 
@@ -927,6 +1110,7 @@ public class TransactionLegacy {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCompletion(true);
         }
     }
 
@@ -1010,6 +1194,7 @@ public class TransactionLegacy {
     private static DataSource s_usageDS;
     private static DataSource s_awsapiDS;
     private static DataSource s_simulatorDS;
+    private static ReadReplica s_replica;
     private static boolean s_dbHAEnabled;
 
     static {
@@ -1034,6 +1219,7 @@ public class TransactionLegacy {
             
             s_dbHAEnabled = Boolean.valueOf(dbProps.getProperty("db.ha.enabled"));
             s_logger.info("Is Data Base High Availiability enabled? Ans : " + s_dbHAEnabled);
+            SqlStatistics.setEnabled(Boolean.parseBoolean(dbProps.getProperty("db.statement.stats.enabled")));
             String loadBalanceStrategy = dbProps.getProperty("db.ha.loadBalanceStrategy");
             // FIXME:  If params are missing...default them????
             final int cloudMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.maxActive"));
@@ -1068,6 +1254,7 @@ public class TransactionLegacy {
             final long cloudTimeBtwEvictionRunsMillis = Long.parseLong(dbProps.getProperty("db.cloud.timeBetweenEvictionRunsMillis"));
             final long cloudMinEvcitableIdleTimeMillis = Long.parseLong(dbProps.getProperty("db.cloud.minEvictableIdleTimeMillis"));
             final boolean cloudPoolPreparedStatements = Boolean.parseBoolean(dbProps.getProperty("db.cloud.poolPreparedStatements"));
+            final int cloudMaxOpenPreparedStatements = Integer.parseInt(dbProps.getProperty("db.cloud.maxOpenPreparedStatements", "100"));
             final String url = dbProps.getProperty("db.cloud.url.params");
 
             String cloudDbHAParams = null;
@@ -1092,13 +1279,46 @@ public class TransactionLegacy {
             final ConnectionFactory cloudConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + cloudHost + (s_dbHAEnabled ? "," + cloudSlaves : "") + ":" + cloudPort + "/" + cloudDbName +
                     "?autoReconnect=" + cloudAutoReconnect + (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : "") + (s_dbHAEnabled ? "&" + cloudDbHAParams : "") + (s_dbHAEnabled ? "&loadBalanceStrategy=" + loadBalanceStrategy : ""), cloudUsername, cloudPassword);
 
-            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
+            // Statements are pooled per connection and keyed by their sql, the least recently used idle ones make room once
+            // a connection holds maxOpenPreparedStatements of them
+            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new GenericKeyedObjectPoolFactory(null, -1,
+                    GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 0, 1, cloudMaxOpenPreparedStatements) : null);
 
             final PoolableConnectionFactory cloudPoolableConnectionFactory = new PoolableConnectionFactory(cloudConnectionFactory, cloudConnectionPool, poolableObjFactory,
                     cloudValidationQuery, false, false, isolationLevel);
 
             // Default Data Source for CloudStack
-            s_ds = new PoolingDataSource(cloudPoolableConnectionFactory.getPool());
+            s_ds = registerPoolMetrics("cloud", cloudConnectionPool, cloudPoolPreparedStatements, cloudMaxOpenPreparedStatements,
+                    new PoolingDataSource(cloudPoolableConnectionFactory.getPool()));
+
+            // Optional read replica of the cloud db, used by read-only contexts
+            if (s_replica != null) {
+                s_replica.stop();
+                s_replica = null;
+            }
+            if (Boolean.parseBoolean(dbProps.getProperty("db.cloud.replica.enabled"))) {
+                final String replicaHost = dbProps.getProperty("db.cloud.replica.host");
+                final int replicaPort = Integer.parseInt(dbProps.getProperty("db.cloud.replica.port", String.valueOf(cloudPort)));
+                final String replicaUsername = dbProps.getProperty("db.cloud.replica.username", cloudUsername);
+                final String replicaPassword = dbProps.getProperty("db.cloud.replica.password", cloudPassword);
+                final int replicaMaxActive = Integer.parseInt(dbProps.getProperty("db.cloud.replica.maxActive", String.valueOf(cloudMaxActive)));
+                final int replicaMaxIdle = Integer.parseInt(dbProps.getProperty("db.cloud.replica.maxIdle", String.valueOf(cloudMaxIdle)));
+                final long replicaMaxWait = Long.parseLong(dbProps.getProperty("db.cloud.replica.maxWait", String.valueOf(cloudMaxWait)));
+                final long replicaMaxLag = Long.parseLong(dbProps.getProperty("db.cloud.replica.maxLag", "10"));
+                final long replicaCheckInterval = Long.parseLong(dbProps.getProperty("db.cloud.replica.checkInterval", "5"));
+
+                final GenericObjectPool replicaConnectionPool = new GenericObjectPool(null, replicaMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
+                        replicaMaxWait, replicaMaxIdle, cloudTestOnBorrow, false, cloudTimeBtwEvictionRunsMillis, 1, cloudMinEvcitableIdleTimeMillis, cloudTestWhileIdle);
+                final ConnectionFactory replicaConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://" + replicaHost + ":" + replicaPort + "/" + cloudDbName +
+                        "?autoReconnect=" + cloudAutoReconnect + (url != null ? "&" + url : "") + (useSSL ? "&useSSL=true" : ""), replicaUsername, replicaPassword);
+                final PoolableConnectionFactory replicaPoolableConnectionFactory = new PoolableConnectionFactory(replicaConnectionFactory, replicaConnectionPool,
+                        poolableObjFactory, cloudValidationQuery, true, true, isolationLevel);
+
+                s_replica = new ReadReplica(registerPoolMetrics("replica", replicaConnectionPool, cloudPoolPreparedStatements, cloudMaxOpenPreparedStatements,
+                        new PoolingDataSource(replicaPoolableConnectionFactory.getPool())), replicaMaxLag, replicaCheckInterval);
+                s_replica.start();
+                s_logger.info("Read replica of the cloud db is at " + replicaHost + ":" + replicaPort + ", used while less than " + replicaMaxLag + " seconds behind");
+            }
 
             // Configure the usage db
             final int usageMaxActive = Integer.parseInt(dbProps.getProperty("db.usage.maxActive"));
@@ -1122,7 +1342,7 @@ public class TransactionLegacy {
                     new StackKeyedObjectPoolFactory(), null, false, false);
 
             // Data Source for usage server
-            s_usageDS = new PoolingDataSource(usagePoolableConnectionFactory.getPool());
+            s_usageDS = registerPoolMetrics("usage", usageConnectionPool, true, 0, new PoolingDataSource(usagePoolableConnectionFactory.getPool()));
 
             // Configure awsapi db
             final String awsapiDbName = dbProps.getProperty("db.awsapi.name");
@@ -1168,6 +1388,26 @@ public class TransactionLegacy {
         }
     }
     
+    /**
+     * Publishes the metrics of the pool through JMX, replacing those of the pool it was built before, if any.
+     *
+     * @return the data source to use, which times getting connections from the pool
+     */
+    private static DataSource registerPoolMetrics(String name, GenericObjectPool pool, boolean poolPreparedStatements, int maxOpenPreparedStatements, DataSource ds) {
+        ConnectionPoolMBeanImpl mbean = new ConnectionPoolMBeanImpl(name, pool, poolPreparedStatements, maxOpenPreparedStatements);
+        try {
+            try {
+                JmxUtil.unregisterMBean("ConnectionPool", name);
+            } catch (InstanceNotFoundException e) {
+                // first time the pool is built
+            }
+            JmxUtil.registerMBean("ConnectionPool", name, mbean);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for the " + name + " connection pool", e);
+        }
+        return mbean.wrap(ds);
+    }
+
     private static String getDBHAParams(String dbName,Properties dbProps) {
         StringBuilder sb = new StringBuilder();
         sb.append("failOverReadOnly=" + dbProps.getProperty("db." + dbName + ".failOverReadOnly"));
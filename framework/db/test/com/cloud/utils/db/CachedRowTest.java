@@ -0,0 +1,112 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.utils.net.Ip;
+
+public class CachedRowTest {
+    enum State {
+        Enabled, Disabled
+    }
+
+    static class Entity {
+        long id;
+        int count;
+        boolean enabled;
+        double ratio;
+        String name;
+        String description;
+        Long parentId;
+        Integer size;
+        State state;
+        Date created;
+        Calendar updated;
+        Boolean system;
+        URI url;
+        Ip address;
+        byte[] data;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Entity entity = new Entity();
+        entity.id = 42;
+        entity.count = -3;
+        entity.enabled = true;
+        entity.ratio = 1.5;
+        entity.name = "h\u00f4te-1";
+        entity.description = null;
+        entity.parentId = 7L;
+        entity.size = null;
+        entity.state = State.Disabled;
+        entity.created = new Date(1380000000000L);
+        entity.updated = Calendar.getInstance();
+        entity.system = Boolean.FALSE;
+        entity.url = new URI("nfs://10.1.1.1/export");
+        entity.address = new Ip("10.1.1.2");
+        entity.data = new byte[] {1, 2, 3};
+
+        FieldMapping[] columns = columns();
+        Entity copy = new Entity();
+        copy.description = "not null";
+        copy.size = 1;
+        CachedRow.deserialize(CachedRow.serialize(entity, columns), columns, copy);
+
+        Assert.assertEquals(42, copy.id);
+        Assert.assertEquals(-3, copy.count);
+        Assert.assertTrue(copy.enabled);
+        Assert.assertEquals(1.5, copy.ratio, 0);
+        Assert.assertEquals("h\u00f4te-1", copy.name);
+        Assert.assertNull(copy.description);
+        Assert.assertEquals(Long.valueOf(7), copy.parentId);
+        Assert.assertNull(copy.size);
+        Assert.assertSame(State.Disabled, copy.state);
+        Assert.assertEquals(entity.created, copy.created);
+        Assert.assertEquals(entity.updated.getTimeInMillis(), copy.updated.getTimeInMillis());
+        Assert.assertEquals(Boolean.FALSE, copy.system);
+        Assert.assertEquals(entity.url, copy.url);
+        Assert.assertEquals(entity.address.longValue(), copy.address.longValue());
+        Assert.assertArrayEquals(entity.data, copy.data);
+    }
+
+    @Test
+    public void testSupportedTypes() {
+        for (FieldMapping column : columns()) {
+            Assert.assertTrue(column.getField().toString(), CachedRow.isSupported(column.getField().getType()));
+        }
+        Assert.assertFalse(CachedRow.isSupported(char.class));
+        Assert.assertFalse(CachedRow.isSupported(Object.class));
+    }
+
+    private static FieldMapping[] columns() {
+        Field[] fields = Entity.class.getDeclaredFields();
+        FieldMapping[] columns = new FieldMapping[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i].setAccessible(true);
+            columns[i] = FieldMapping.get(fields[i]);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.junit.Test;
+
+public class ConnectionPoolMBeanImplTest {
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(ConnectionPoolMBeanImplTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Data source taking waitMs to hand out a connection, or failing with the given exception.
+     */
+    private static DataSource dataSource(final Connection conn, final long waitMs, final SQLException failure) {
+        return (DataSource)proxy(DataSource.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getConnection")) {
+                    Thread.sleep(waitMs);
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return conn;
+                } else if (method.getName().equals("getLoginTimeout")) {
+                    return 7;
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testRecordsBorrowWait() throws SQLException {
+        Connection conn = (Connection)proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                return null;
+            }
+        });
+        ConnectionPoolMBeanImpl mbean = new ConnectionPoolMBeanImpl("cloud", new GenericObjectPool(null, 10), true, 100);
+        DataSource ds = mbean.wrap(dataSource(conn, 20, null));
+
+        assertSame(conn, ds.getConnection());
+        assertSame(conn, ds.getConnection("cloud", "cloud"));
+        assertEquals(7, ds.getLoginTimeout());
+
+        assertEquals(2, mbean.getBorrowCount());
+        assertTrue(mbean.getMaxBorrowWaitMillis() >= 20);
+        assertTrue(mbean.getAverageBorrowWaitMillis() >= 20);
+        assertEquals(0, mbean.getTimeoutCount());
+        assertEquals(0, mbean.getFailureCount());
+        assertEquals(10, mbean.getMaxActive());
+        assertEquals(0, mbean.getNumActive());
+        assertEquals(0.0, mbean.getUtilization(), 0.0);
+
+        mbean.reset();
+        assertEquals(0, mbean.getBorrowCount());
+        assertEquals(0, mbean.getMaxBorrowWaitMillis());
+    }
+
+    @Test
+    public void testSeparatesTimeoutsFromFailures() {
+        ConnectionPoolMBeanImpl mbean = new ConnectionPoolMBeanImpl("cloud", new GenericObjectPool(null, 10), false, 0);
+
+        // what commons-dbcp throws once maxWait is over on an exhausted pool
+        SQLException timeout = new SQLException("Cannot get a connection, pool error Timeout waiting for idle object");
+        timeout.initCause(new NoSuchElementException("Timeout waiting for idle object"));
+        try {
+            mbean.wrap(dataSource(null, 0, timeout)).getConnection();
+            fail("Expected the timeout to be rethrown");
+        } catch (SQLException e) {
+            assertSame(timeout, e);
+        }
+
+        try {
+            mbean.wrap(dataSource(null, 0, new SQLException("Communications link failure"))).getConnection();
+            fail("Expected the failure to be rethrown");
+        } catch (SQLException e) {
+            assertEquals("Communications link failure", e.getMessage());
+        }
+
+        assertEquals(1, mbean.getTimeoutCount());
+        assertEquals(1, mbean.getFailureCount());
+        assertEquals(0, mbean.getBorrowCount());
+    }
+}
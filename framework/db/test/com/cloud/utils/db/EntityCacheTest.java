@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EntityCacheTest {
+
+    @After
+    public void tearDown() {
+        EntityCache.setClusterListener(null);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        EntityCache cache = EntityCache.create("test.putAndGet", Arrays.asList("test_put"), 1024, -1);
+        Assert.assertNull(cache.get("1"));
+        Assert.assertTrue(cache.put("1", new byte[] {1, 2, 3}, cache.getGeneration()));
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, cache.get("1"));
+
+        Assert.assertTrue(cache.put("1", new byte[] {4, 5}, cache.getGeneration()));
+        Assert.assertArrayEquals(new byte[] {4, 5}, cache.get("1"));
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertEquals(2, cache.getBytes());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testOldestRowsMakeRoom() {
+        EntityCache cache = EntityCache.create("test.evict", Arrays.asList("test_evict"), 100, -1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(cache.put(Integer.toString(i), row(i, 20), cache.getGeneration()));
+        }
+        // only the last five rows fit
+        for (int i = 0; i < 5; i++) {
+            Assert.assertNull(cache.get(Integer.toString(i)));
+        }
+        for (int i = 5; i < 10; i++) {
+            Assert.assertArrayEquals(row(i, 20), cache.get(Integer.toString(i)));
+        }
+        Assert.assertEquals(5, cache.getEntries());
+        Assert.assertEquals(100, cache.getBytes());
+        Assert.assertEquals(5, cache.getEvictions());
+
+        // rows of other sizes wrap around the end of the store
+        for (int i = 10; i < 40; i++) {
+            Assert.assertTrue(cache.put(Integer.toString(i), row(i, 7 + i % 13), cache.getGeneration()));
+            Assert.assertArrayEquals(row(i, 7 + i % 13), cache.get(Integer.toString(i)));
+        }
+        Assert.assertTrue(cache.getBytes() <= 100);
+    }
+
+    @Test
+    public void testTooLargeRowIsNotStored() {
+        EntityCache cache = EntityCache.create("test.large", Arrays.asList("test_large"), 100, -1);
+        Assert.assertFalse(cache.put("1", new byte[26], cache.getGeneration()));
+        Assert.assertNull(cache.get("1"));
+    }
+
+    @Test
+    public void testRowReadBeforeInvalidationIsNotStored() {
+        EntityCache cache = EntityCache.create("test.generation", Arrays.asList("test_generation"), 1024, -1);
+        long generation = cache.getGeneration();
+        EntityCache.invalidate("test_generation", "1");
+        Assert.assertFalse(cache.put("1", new byte[] {1}, generation));
+        Assert.assertTrue(cache.put("1", new byte[] {1}, cache.getGeneration()));
+    }
+
+    @Test
+    public void testInvalidateByTable() {
+        EntityCache offerings = EntityCache.create("test.offerings", Arrays.asList("test_disk_offering", "test_service_offering"), 1024, -1);
+        EntityCache diskOfferings = EntityCache.create("test.diskOfferings", Arrays.asList("test_disk_offering"), 1024, -1);
+        offerings.put("1", new byte[] {1}, offerings.getGeneration());
+        offerings.put("2", new byte[] {2}, offerings.getGeneration());
+        diskOfferings.put("1", new byte[] {1}, diskOfferings.getGeneration());
+
+        EntityCache.invalidate("test_disk_offering", "1");
+        Assert.assertNull(offerings.get("1"));
+        Assert.assertNull(diskOfferings.get("1"));
+        Assert.assertNotNull(offerings.get("2"));
+
+        EntityCache.invalidate("test_service_offering", null);
+        Assert.assertNull(offerings.get("2"));
+        Assert.assertEquals(0, offerings.getEntries());
+        Assert.assertTrue(EntityCache.isCached("test_service_offering"));
+        Assert.assertFalse(EntityCache.isCached("test_unknown"));
+    }
+
+    @Test
+    public void testInvalidateInCluster() {
+        final List<String> published = new ArrayList<String>();
+        EntityCache.setClusterListener(new EntityCache.ClusterListener() {
+            @Override
+            public void invalidated(String table, String id) {
+                published.add(table + ":" + id);
+            }
+        });
+        EntityCache cache = EntityCache.create("test.cluster", Arrays.asList("test_cluster"), 1024, -1);
+        cache.put("1", new byte[] {1}, cache.getGeneration());
+
+        EntityCache.invalidateInCluster("test_cluster", "1");
+        Assert.assertNull(cache.get("1"));
+        Assert.assertEquals(Arrays.asList("test_cluster:1"), published);
+    }
+
+    @Test
+    public void testExpiredRowIsNotReturned() throws Exception {
+        EntityCache cache = EntityCache.create("test.ttl", Arrays.asList("test_ttl"), 1024, 0);
+        cache.put("1", new byte[] {1}, cache.getGeneration());
+        Thread.sleep(5);
+        Assert.assertNull(cache.get("1"));
+        Assert.assertEquals(0, cache.getEntries());
+    }
+
+    private static byte[] row(int id, int length) {
+        byte[] row = new byte[length];
+        Arrays.fill(row, (byte)id);
+        return row;
+    }
+}
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FieldMappingTest {
+    enum State {
+        Up, Down, down
+    }
+
+    static class Entity {
+        State stringState;
+
+        @Enumerated(value = EnumType.ORDINAL)
+        State ordinalState;
+
+        @Encrypt
+        String secret;
+
+        String name;
+    }
+
+    @Test
+    public void testEnumByName() throws Exception {
+        FieldMapping mapping = FieldMapping.get(Entity.class.getDeclaredField("stringState"));
+        Assert.assertEquals(EnumType.STRING, mapping.getEnumType());
+        Assert.assertSame(State.Up, mapping.getEnum("Up"));
+        Assert.assertSame(State.Up, mapping.getEnum("UP"));
+        // constants differing only in case, the first one wins as it did when the constants were searched in order
+        Assert.assertSame(State.Down, mapping.getEnum("down"));
+        Assert.assertNull(mapping.getEnum("Unknown"));
+        Assert.assertNull(mapping.getEnum(null));
+    }
+
+    @Test
+    public void testEnumByOrdinal() throws Exception {
+        FieldMapping mapping = FieldMapping.get(Entity.class.getDeclaredField("ordinalState"));
+        Assert.assertEquals(EnumType.ORDINAL, mapping.getEnumType());
+        Assert.assertSame(State.Down, mapping.getEnum(1));
+        Assert.assertNull(mapping.getEnum(3));
+        Assert.assertNull(mapping.getEnum(-1));
+    }
+
+    @Test
+    public void testEncrypted() throws Exception {
+        Assert.assertTrue(FieldMapping.get(Entity.class.getDeclaredField("secret")).isEncrypted());
+        Assert.assertFalse(FieldMapping.get(Entity.class.getDeclaredField("name")).isEncrypted());
+    }
+
+    @Test
+    public void testSameMappingForSameField() throws Exception {
+        Assert.assertSame(FieldMapping.get(Entity.class.getDeclaredField("name")), FieldMapping.get(Entity.class.getDeclaredField("name")));
+    }
+}
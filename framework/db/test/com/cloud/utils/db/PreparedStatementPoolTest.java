@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.apache.commons.dbcp.DelegatingStatement;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Checks that with db.cloud.poolPreparedStatements a connection hands out the driver statement it prepared before
+ * for the same sql, as GenericDaoBase.findById prepares it on every call, and a new one without it. Like
+ * TransactionTest it needs the database of db.properties.
+ */
+public class PreparedStatementPoolTest {
+    private static final String FIND_BY_ID = "SELECT * FROM `cloud`.`test` WHERE id = ?";
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` (" + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255)," + "PRIMARY KEY (`id`)" + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+        execute("INSERT INTO `cloud`.`test` (id, fld_int, fld_long, fld_string) VALUES (1, 1, 1, 'Record 1')");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+        // back to the pools of db.properties
+        TransactionLegacy.initDataSource(DbProperties.getDbProperties());
+    }
+
+    @Test
+    public void testStatementIsReusedWithThePool() throws SQLException {
+        initDataSource(true);
+        Assert.assertTrue("the pool should hand out the statement prepared before", preparesSameStatement());
+    }
+
+    @Test
+    public void testStatementIsNotReusedWithoutThePool() throws SQLException {
+        initDataSource(false);
+        Assert.assertFalse("without the pool every prepare should reach the driver", preparesSameStatement());
+    }
+
+    @Test
+    public void testFindByIdWithAndWithoutThePool() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+
+        for (boolean poolPreparedStatements : new boolean[] {false, true}) {
+            initDataSource(poolPreparedStatements);
+            // more than once, the later lookups get their statement from the pool when it is on
+            for (int i = 0; i < 3; i++) {
+                TransactionLegacy txn = TransactionLegacy.open("PreparedStatementPoolTest");
+                try {
+                    DbTestVO vo = testDao.findById(1L);
+                    Assert.assertNotNull(vo);
+                    Assert.assertEquals("Record 1", vo.getFieldString());
+                } finally {
+                    txn.close();
+                }
+            }
+        }
+    }
+
+    private static void initDataSource(boolean poolPreparedStatements) {
+        Properties props = new Properties();
+        props.putAll(DbProperties.getDbProperties());
+        props.setProperty("db.cloud.poolPreparedStatements", Boolean.toString(poolPreparedStatements));
+        TransactionLegacy.initDataSource(props);
+    }
+
+    private static boolean preparesSameStatement() throws SQLException {
+        TransactionLegacy txn = TransactionLegacy.open("PreparedStatementPoolTest");
+        try {
+            Connection conn = txn.getConnection();
+            Statement first = prepareAndClose(conn);
+            Statement second = prepareAndClose(conn);
+            return first == second;
+        } finally {
+            txn.close();
+        }
+    }
+
+    private static Statement prepareAndClose(Connection conn) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(FIND_BY_ID);
+        try {
+            return ((DelegatingStatement)pstmt).getInnermostDelegate();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = TransactionLegacy.getStandaloneConnection();
+
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+}
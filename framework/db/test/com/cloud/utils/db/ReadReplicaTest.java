@@ -0,0 +1,187 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+/**
+ * Covers the lag checks and fallbacks against a fake replica. The routing is
+ * checked by hand against two MySQL instances as follows:
+ *
+ * 1. Make the second instance replicate the cloud database of the first
+ *    (CHANGE MASTER TO ..., START SLAVE) and grant the cloud user REPLICATION
+ *    CLIENT on it.
+ * 2. Set db.cloud.replica.enabled=true, db.cloud.replica.host and
+ *    db.cloud.replica.port in db.properties and restart the management
+ *    server. Its log shows "Read replica is 0 seconds behind the primary,
+ *    sending read-only searches to it".
+ * 3. Turn the general query log on on both instances (SET GLOBAL
+ *    general_log=1). The SELECTs of listVirtualMachines only show up on the
+ *    replica, those of deployVirtualMachine only on the primary.
+ * 4. Run STOP SLAVE SQL_THREAD on the replica. Within checkInterval seconds
+ *    the log shows "Not using the read replica, replication is not running"
+ *    and listVirtualMachines reads from the primary again. After START SLAVE
+ *    the replica is used again.
+ * 5. Set CHANGE MASTER TO MASTER_DELAY to more than maxLag on the replica and
+ *    update a vm: the replica is dropped while it lags behind.
+ * 6. Stop the replica instance: list APIs keep answering from the primary
+ *    and the log shows "unable to check the replication lag".
+ */
+public class ReadReplicaTest {
+
+    /**
+     * Replica whose SHOW SLAVE STATUS reports the given lag, null for a stopped replication, or fails.
+     */
+    private static class FakeReplica implements InvocationHandler {
+        Long lag;
+        boolean rows = true;
+        boolean down;
+
+        DataSource getDataSource() {
+            return (DataSource)proxy(DataSource.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                if (down) {
+                    throw new SQLException("Connection refused");
+                }
+                return proxy(Connection.class, this);
+            } else if (name.equals("createStatement")) {
+                return proxy(Statement.class, this);
+            } else if (name.equals("executeQuery")) {
+                assertEquals("SHOW SLAVE STATUS", args[0]);
+                return proxy(ResultSet.class, new InvocationHandler() {
+                    boolean _next = rows;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("next")) {
+                            boolean next = _next;
+                            _next = false;
+                            return next;
+                        } else if (name.equals("getLong")) {
+                            assertEquals("Seconds_Behind_Master", args[0]);
+                            return lag != null ? lag : 0L;
+                        } else if (name.equals("wasNull")) {
+                            return lag == null;
+                        }
+                        return null;
+                    }
+                });
+            }
+            return null;
+        }
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(ReadReplicaTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    @Test
+    public void testUsableWhileLagIsWithinLimit() {
+        FakeReplica fake = new FakeReplica();
+        fake.lag = 3L;
+        ReadReplica replica = new ReadReplica(fake.getDataSource(), 10, 5);
+
+        assertFalse(replica.isUsable());
+        replica.check();
+        assertTrue(replica.isUsable());
+        assertEquals(3, replica.getLag());
+        assertNotNull(replica.getConnection());
+        assertEquals(1, replica.getReads());
+        assertEquals(0, replica.getFallbacks());
+    }
+
+    @Test
+    public void testFallsBackWhileLagging() {
+        FakeReplica fake = new FakeReplica();
+        fake.lag = 0L;
+        ReadReplica replica = new ReadReplica(fake.getDataSource(), 10, 5);
+        replica.check();
+        assertTrue(replica.isUsable());
+
+        fake.lag = 11L;
+        replica.check();
+        assertFalse(replica.isUsable());
+        assertEquals(11, replica.getLag());
+        assertNull(replica.getConnection());
+        assertEquals(1, replica.getFallbacks());
+
+        fake.lag = 10L;
+        replica.check();
+        assertTrue(replica.isUsable());
+    }
+
+    @Test
+    public void testNotUsableWithoutReplication() {
+        FakeReplica fake = new FakeReplica();
+        fake.lag = null;
+        ReadReplica replica = new ReadReplica(fake.getDataSource(), 10, 5);
+        replica.check();
+        assertFalse(replica.isUsable());
+        assertEquals(-1, replica.getLag());
+
+        fake.lag = 0L;
+        fake.rows = false;
+        replica.check();
+        assertFalse(replica.isUsable());
+        assertEquals(-1, replica.getLag());
+    }
+
+    @Test
+    public void testNotUsableWhileUnreachable() {
+        FakeReplica fake = new FakeReplica();
+        fake.lag = 0L;
+        ReadReplica replica = new ReadReplica(fake.getDataSource(), 10, 5);
+        replica.check();
+        assertTrue(replica.isUsable());
+
+        // a failing connection takes the replica out right away, without waiting for the next check
+        fake.down = true;
+        assertNull(replica.getConnection());
+        assertFalse(replica.isUsable());
+        assertEquals(1, replica.getFallbacks());
+
+        replica.check();
+        assertFalse(replica.isUsable());
+
+        fake.down = false;
+        replica.check();
+        assertTrue(replica.isUsable());
+        assertNotNull(replica.getConnection());
+    }
+}
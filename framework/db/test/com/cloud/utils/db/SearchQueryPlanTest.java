@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Runs a search builder search a few times against the test db and checks that the searches after the first one
+ * reuse the query plan of the builder and its column mappings. Like TransactionTest it needs the database of
+ * db.properties.
+ */
+public class SearchQueryPlanTest {
+    private static final int ROWS = 20;
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` (" + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255)," + "PRIMARY KEY (`id`)" + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+        for (int i = 0; i < ROWS; i++) {
+            execute("INSERT INTO `cloud`.`test` (fld_int, fld_long, fld_string) VALUES (1, " + i + ", 'Record " + i + "')");
+        }
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+    }
+
+    @Test
+    public void testSearchReusesItsQueryPlan() {
+        DbTestDao testDao = ComponentContext.inject(DbTestDao.class);
+        SearchBuilder<DbTestVO> sb = testDao.createSearchBuilder();
+        sb.and("fieldInt", sb.entity().getFieldInt(), SearchCriteria.Op.EQ);
+        sb.done();
+
+        search(testDao, sb, 1);
+        SearchCriteria<DbTestVO> sc = sb.create();
+        sc.setParameters("fieldInt", 1);
+        StringBuilder shape = new StringBuilder("n");
+        Assert.assertTrue(sc.getShape(shape));
+        QueryPlan plan = sb.getQueryPlan(shape.toString());
+        Assert.assertNotNull(plan);
+        Assert.assertNotNull(plan.getColumns());
+
+        search(testDao, sb, 3);
+        // no search built its sql or resolved its columns again
+        Assert.assertSame(plan, sb.getQueryPlan(shape.toString()));
+    }
+
+    private static void search(DbTestDao testDao, SearchBuilder<DbTestVO> sb, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            SearchCriteria<DbTestVO> sc = sb.create();
+            sc.setParameters("fieldInt", 1);
+            // a transaction per search, as for a DAO call outside of any, so the connection goes back to the pool
+            TransactionLegacy txn = TransactionLegacy.open("SearchQueryPlanTest");
+            try {
+                Assert.assertEquals(ROWS, testDao.search(sc, null).size());
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = TransactionLegacy.getStandaloneConnection();
+
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloud.utils.db.SqlStatistics.StatementStats;
+
+public class SqlStatisticsTest {
+
+    @After
+    public void tearDown() {
+        SqlStatistics.reset();
+    }
+
+    @Test
+    public void testNormalizeCollapsesWhitespaceAndLiterals() {
+        assertEquals("SELECT * FROM vm_instance WHERE id = ? AND state = ? AND name = ?",
+            SqlStatistics.normalize("SELECT *  FROM vm_instance\n WHERE id = 42 AND state = 'Running' AND name = \"it's\" "));
+    }
+
+    @Test
+    public void testNormalizeKeepsIdentifiersWithDigits() {
+        assertEquals("SELECT v1.id FROM host_2 v1 WHERE v1.cpus > ?", SqlStatistics.normalize("SELECT v1.id FROM host_2 v1 WHERE v1.cpus > 4.5"));
+    }
+
+    @Test
+    public void testNormalizeFoldsParameterLists() {
+        String shape = SqlStatistics.normalize("SELECT id FROM host WHERE id IN (?, ?, ?) AND pod_id IN (1,2)");
+        assertEquals("SELECT id FROM host WHERE id IN (?, ...) AND pod_id IN (?, ...)", shape);
+        assertEquals(shape, SqlStatistics.normalize("SELECT id FROM host WHERE id IN (?,?) AND pod_id IN (7, 8, 9)"));
+    }
+
+    @Test
+    public void testNormalizeHandlesEscapedQuotes() {
+        assertEquals("UPDATE alert SET subject = ? WHERE id = ?", SqlStatistics.normalize("UPDATE alert SET subject = 'can\\'t ''start''' WHERE id = 3"));
+    }
+
+    @Test
+    public void testFindCallerPrefersDaoMethods() {
+        StackTraceElement[] stack = new StackTraceElement[] {new StackTraceElement("com.cloud.utils.db.TransactionLegacy", "prepareAutoCloseStatement", null, 1),
+            new StackTraceElement("com.cloud.utils.db.GenericDaoBase", "searchIncludingRemoved", null, 1),
+            new StackTraceElement("com.cloud.host.dao.HostDaoImpl$$EnhancerByCGLIB$$1", "listAll", null, 1),
+            new StackTraceElement("com.cloud.host.dao.HostDaoImpl", "listAll", null, 1),
+            new StackTraceElement("com.cloud.resource.ResourceManagerImpl", "listAllHosts", null, 1)};
+        assertEquals("HostDaoImpl.listAll", SqlStatistics.findCaller(stack));
+
+        stack = new StackTraceElement[] {new StackTraceElement("com.cloud.utils.db.GenericDaoBase", "findById", null, 1),
+            new StackTraceElement("com.cloud.resource.ResourceManagerImpl", "getHost", null, 1)};
+        assertEquals("ResourceManagerImpl.getHost", SqlStatistics.findCaller(stack));
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(SqlStatisticsTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static PreparedStatement statement(final int rows, final boolean fail) {
+        final ResultSet rs = (ResultSet)proxy(ResultSet.class, new InvocationHandler() {
+            int _fetched = 0;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("next")) {
+                    return _fetched++ < rows;
+                }
+                return null;
+            }
+        });
+        return (PreparedStatement)proxy(PreparedStatement.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                if (fail && method.getName().startsWith("execute")) {
+                    throw new SQLException("Deadlock found");
+                }
+                if (method.getName().equals("executeQuery")) {
+                    return rs;
+                }
+                if (method.getName().equals("executeUpdate")) {
+                    return rows;
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testWrappedStatementIsCounted() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            ResultSet rs = SqlStatistics.wrap(statement(2, false), "SELECT * FROM host WHERE id = " + i).executeQuery();
+            while (rs.next()) {
+            }
+        }
+        SqlStatistics.wrap(statement(5, false), "UPDATE host SET removed = now() WHERE id IN (1, 2, 3, 4, 5)").executeUpdate();
+
+        assertEquals(2, SqlStatistics.getStatements().size());
+        StatementStats select = null;
+        for (StatementStats stats : SqlStatistics.getStatements()) {
+            if (stats.getSql().startsWith("SELECT")) {
+                select = stats;
+            } else {
+                assertEquals("UPDATE host SET removed = now() WHERE id IN (?, ...)", stats.getSql());
+                assertEquals(1, stats.getCount());
+                assertEquals(5, stats.getRows());
+            }
+        }
+        assertEquals("SELECT * FROM host WHERE id = ?", select.getSql());
+        assertEquals(3, select.getCount());
+        assertEquals(6, select.getRows());
+        long executions = 0;
+        for (long bucket : select.getHistogram()) {
+            executions += bucket;
+        }
+        assertEquals(3, executions);
+        // the caller is sampled, only the first of the three executions looked it up
+        assertEquals(1, select.getCallers().size());
+        assertEquals(Long.valueOf(1), select.getCallers().values().iterator().next());
+    }
+
+    @Test
+    public void testFailedExecutionIsCounted() {
+        try {
+            SqlStatistics.wrap(statement(0, true), "DELETE FROM op_lock WHERE id = 1").executeUpdate();
+        } catch (SQLException e) {
+            assertEquals("Deadlock found", e.getMessage());
+        }
+        StatementStats stats = SqlStatistics.getStatements().get(0);
+        assertEquals(1, stats.getCount());
+        assertEquals(1, stats.getErrors());
+        assertTrue(stats.getMaxMillis() >= 0);
+    }
+}
@@ -26,6 +26,11 @@ public interface MessageBus {
 	MessageSerializer getMessageSerializer();
 	
 	void subscribe(String subject, MessageSubscriber subscriber);
+	/**
+	 * Same as subscribe() but the subscriber is notified on a thread of the bus, in publish order, instead of on
+	 * the publishing thread.
+	 */
+	void subscribeAsync(String subject, MessageSubscriber subscriber);
 	void unsubscribe(String subject, MessageSubscriber subscriber);
 	void clearAll();
 	void prune();
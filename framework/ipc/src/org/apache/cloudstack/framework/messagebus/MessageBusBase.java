@@ -20,387 +20,463 @@
 package org.apache.cloudstack.framework.messagebus;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.framework.serializer.MessageSerializer;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
+/**
+ * Subscriptions are kept in a tree indexed by the tokens of the subject. The
+ * tree is never changed once published: subscribe and unsubscribe build a
+ * copy of the path they change under a lock and swap the root, publish walks
+ * whatever root it read without taking any lock. A publish running while the
+ * subscriptions change sees either the old or the new tree.
+ *
+ * Subscribers registered through subscribeAsync() get the messages through
+ * a queue of their own drained on a shared pool, in publish order, so that
+ * a slow subscriber does not hold up the publisher.
+ */
 public class MessageBusBase implements MessageBus {
+	private static final Logger s_logger = Logger.getLogger(MessageBusBase.class);
+
+	// messages an async subscriber gets in a row before giving the pool thread up
+	private static final int ASYNC_BATCH_SIZE = 64;
+
+	private final Object _writeLock = new Object();
+	private volatile SubscriptionNode _subscriberRoot;
+	private final Map<MessageSubscriber, AsyncQueue> _asyncQueues;
+	private ExecutorService _asyncExecutor;
+
+	private MessageSerializer _messageSerializer;
+
+	private final AtomicLong _publishCount = new AtomicLong();
+	private final AtomicLong _publishNanos = new AtomicLong();
+	private final AtomicLong _maxPublishNanos = new AtomicLong();
+	private final AtomicLong _deliveryCount = new AtomicLong();
+	private final AtomicLong _deliveryNanos = new AtomicLong();
+	private final AtomicLong _maxDeliveryNanos = new AtomicLong();
 
-	private final Gate _gate;
-	private final List<ActionRecord> _pendingActions;
-	
-	private final SubscriptionNode _subscriberRoot;
-	private MessageSerializer _messageSerializer; 
-	
 	public MessageBusBase() {
-		_gate = new Gate();
-		_pendingActions = new ArrayList<ActionRecord>();
-		
-		_subscriberRoot = new SubscriptionNode(null, "/", null);
+		_subscriberRoot = SubscriptionNode.EMPTY;
+		_asyncQueues = new HashMap<MessageSubscriber, AsyncQueue>();
 	}
-	
+
 	@Override
 	public void setMessageSerializer(MessageSerializer messageSerializer) {
 		_messageSerializer = messageSerializer;
 	}
-	
+
 	@Override
 	public MessageSerializer getMessageSerializer() {
 		return _messageSerializer;
 	}
-	
+
 	@Override
 	public void subscribe(String subject, MessageSubscriber subscriber) {
 		assert(subject != null);
 		assert(subscriber != null);
-		if(_gate.enter()) {
-			SubscriptionNode current = locate(subject, null, true);
-			assert(current != null);
-			current.addSubscriber(subscriber);
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Subscribe, subject, subscriber));
+		synchronized(_writeLock) {
+			_subscriberRoot = _subscriberRoot.with(tokenize(subject), 0, new Subscription(subscriber, null));
+		}
+	}
+
+	@Override
+	public void subscribeAsync(String subject, MessageSubscriber subscriber) {
+		assert(subject != null);
+		assert(subscriber != null);
+		synchronized(_writeLock) {
+			AsyncQueue queue = _asyncQueues.get(subscriber);
+			if(queue == null) {
+				queue = new AsyncQueue(subscriber);
+				_asyncQueues.put(subscriber, queue);
 			}
+			_subscriberRoot = _subscriberRoot.with(tokenize(subject), 0, new Subscription(subscriber, queue));
 		}
 	}
 
 	@Override
 	public void unsubscribe(String subject, MessageSubscriber subscriber) {
-		if(_gate.enter()) {
+		synchronized(_writeLock) {
+			SubscriptionNode root;
 			if(subject != null) {
-				SubscriptionNode current = locate(subject, null, false);
-				if(current != null)
-					current.removeSubscriber(subscriber, false);
+				root = _subscriberRoot.without(tokenize(subject), 0, subscriber);
 			} else {
-				_subscriberRoot.removeSubscriber(subscriber, true);
+				root = _subscriberRoot.withoutRecursively(subscriber);
 			}
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Unsubscribe, subject, subscriber));
+			_subscriberRoot = root != null ? root : SubscriptionNode.EMPTY;
+
+			AsyncQueue queue = _asyncQueues.get(subscriber);
+			if(queue != null && !_subscriberRoot.contains(subscriber)) {
+				_asyncQueues.remove(subscriber);
+				queue.close();
 			}
 		}
 	}
-	
+
 	@Override
 	public void clearAll() {
-		if(_gate.enter()) {
-			_subscriberRoot.clearAll();
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.ClearAll, null, null));
+		synchronized(_writeLock) {
+			_subscriberRoot = SubscriptionNode.EMPTY;
+			for(AsyncQueue queue : _asyncQueues.values()) {
+				queue.close();
 			}
+			_asyncQueues.clear();
 		}
 	}
-		
+
 	@Override
 	public void prune() {
-		if(_gate.enter()) {
-			doPrune();
-			_gate.leave();
-		} else {
-			synchronized(_pendingActions) {
-				_pendingActions.add(new ActionRecord(ActionType.Prune, null, null));
+		// nodes left without subscriptions are dropped as soon as they are
+	}
+
+	@Override
+	public void publish(String senderAddress, String subject, PublishScope scope,
+		Object args) {
+
+		long start = System.nanoTime();
+		try {
+			SubscriptionNode root = _subscriberRoot;
+
+			// "/" is special name for root node
+			if(subject.equals("/")) {
+				root.notifySubscribers(this, senderAddress, subject, args, start);
+				return;
+			}
+
+			// subscribers of the subject first, then those of its parents up to the root
+			String[] tokens = tokenize(subject);
+			SubscriptionNode[] chainFromTop = new SubscriptionNode[tokens.length + 1];
+			chainFromTop[0] = root;
+			int depth = 0;
+			while(depth < tokens.length) {
+				SubscriptionNode next = chainFromTop[depth].getChild(tokens[depth]);
+				if(next == null)
+					break;
+				chainFromTop[++depth] = next;
 			}
+
+			for(int i = depth; i >= 0; i--)
+				chainFromTop[i].notifySubscribers(this, senderAddress, subject, args, start);
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			_publishCount.incrementAndGet();
+			_publishNanos.addAndGet(elapsed);
+			updateMax(_maxPublishNanos, elapsed);
 		}
 	}
-	
-	private void doPrune() {
-		List<SubscriptionNode> trimNodes = new ArrayList<SubscriptionNode>();
-		_subscriberRoot.prune(trimNodes);
-		
-		while(trimNodes.size() > 0) {
-			SubscriptionNode node = trimNodes.remove(0);
-			SubscriptionNode parent = node.getParent();
-			if(parent != null) {
-				parent.removeChild(node.getNodeKey());
-				if(parent.isTrimmable()) {
-					trimNodes.add(parent);
-				}
+
+	/**
+	 * @return the number of messages published
+	 */
+	public long getPublishCount() {
+		return _publishCount.get();
+	}
+
+	/**
+	 * @return the average time publish() took, in nanoseconds. Async subscribers only count for the time it took
+	 *         to queue the message for them.
+	 */
+	public long getAveragePublishNanos() {
+		long count = _publishCount.get();
+		return count > 0 ? _publishNanos.get() / count : 0;
+	}
+
+	public long getMaxPublishNanos() {
+		return _maxPublishNanos.get();
+	}
+
+	/**
+	 * @return the number of times a subscriber was handed a message
+	 */
+	public long getDeliveryCount() {
+		return _deliveryCount.get();
+	}
+
+	/**
+	 * @return the average time between the publish of a message and a subscriber being handed it, in nanoseconds
+	 */
+	public long getAverageDeliveryNanos() {
+		long count = _deliveryCount.get();
+		return count > 0 ? _deliveryNanos.get() / count : 0;
+	}
+
+	public long getMaxDeliveryNanos() {
+		return _maxDeliveryNanos.get();
+	}
+
+	/**
+	 * @return the number of messages waiting in the queues of async subscribers
+	 */
+	public int getPendingAsyncCount() {
+		int count = 0;
+		synchronized(_writeLock) {
+			for(AsyncQueue queue : _asyncQueues.values()) {
+				count += queue.size();
 			}
 		}
+		return count;
 	}
-	
-	@Override
-	public void publish(String senderAddress, String subject, PublishScope scope, 
-		Object args) {
-		
-		if(_gate.enter(true)) {
-
-			List<SubscriptionNode> chainFromTop = new ArrayList<SubscriptionNode>();
-			SubscriptionNode current = locate(subject, chainFromTop, false);
-			
-			if(current != null)
-				current.notifySubscribers(senderAddress, subject, args);
-			
-			Collections.reverse(chainFromTop);
-			for(SubscriptionNode node : chainFromTop)
-				node.notifySubscribers(senderAddress, subject, args);
-			
-			_gate.leave();
+
+	private void deliver(MessageSubscriber subscriber, String senderAddress, String subject, Object args, long publishedAt) {
+		long latency = System.nanoTime() - publishedAt;
+		_deliveryCount.incrementAndGet();
+		_deliveryNanos.addAndGet(latency);
+		updateMax(_maxDeliveryNanos, latency);
+		subscriber.onPublishMessage(senderAddress, subject, args);
+	}
+
+	private synchronized ExecutorService getAsyncExecutor() {
+		if(_asyncExecutor == null) {
+			_asyncExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("MessageBus-Async"));
 		}
+		return _asyncExecutor;
 	}
-	
-	private void onGateOpen() {
-		synchronized(_pendingActions) {
-			ActionRecord record = null;
-            while (_pendingActions.size() > 0) {
-                record = _pendingActions.remove(0);
-					switch(record.getType()) {
-                case Subscribe: {
-							SubscriptionNode current = locate(record.getSubject(), null, true);
-							assert(current != null);
-							current.addSubscriber(record.getSubscriber());
-						}
-						break;
-						
-					case Unsubscribe :
-						if(record.getSubject() != null) {
-							SubscriptionNode current = locate(record.getSubject(), null, false);
-							if(current != null)
-								current.removeSubscriber(record.getSubscriber(), false);
-						} else {
-                        _subscriberRoot.removeSubscriber(record.getSubscriber(), true);
-						}
-						break;
-					
-					case ClearAll :
-						_subscriberRoot.clearAll();
-						break;
-						
-					case Prune :
-						doPrune();
-						break;
-						
-					default :
-						assert(false);
-						break;
-					
-					}
-				}
-			}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
 		}
-	
-	private SubscriptionNode locate(String subject, List<SubscriptionNode> chainFromTop,
-		boolean createPath) {
-		
+	}
+
+	private static String[] tokenize(String subject) {
 		assert(subject != null);
-		// "/" is special name for root node
 		if(subject.equals("/"))
-			return _subscriberRoot;
-		
-		String[] subjectPathTokens = subject.split("\\.");
-		return locate(subjectPathTokens, _subscriberRoot, chainFromTop, createPath);
+			return new String[0];
+		return subject.split("\\.");
 	}
-	
-	private static SubscriptionNode locate(String[] subjectPathTokens, 
-		SubscriptionNode current, List<SubscriptionNode> chainFromTop, boolean createPath) {
-		
-		assert(current != null);
-		assert(subjectPathTokens != null);
-		assert(subjectPathTokens.length > 0);
-
-		if(chainFromTop != null)
-			chainFromTop.add(current);
-		
-		SubscriptionNode next = current.getChild(subjectPathTokens[0]);
-		if(next == null) {
-			if(createPath) {
-				next = new SubscriptionNode(current, subjectPathTokens[0], null);
-				current.addChild(subjectPathTokens[0], next);
-			} else {
-				return null;
-			}
-		}
-		
-		if(subjectPathTokens.length > 1) {
-			return locate(Arrays.copyOfRange(subjectPathTokens, 1, subjectPathTokens.length),
-				next, chainFromTop, createPath);
-		} else {
-			return next;
-		}
-	}
-	
-	
+
 	//
 	// Support inner classes
 	//
-	private static enum ActionType {
-		Subscribe,
-		Unsubscribe,
-		ClearAll,
-		Prune
+	private static class Subscription {
+		private final MessageSubscriber _subscriber;
+		// null for subscribers notified on the publishing thread
+		private final AsyncQueue _queue;
+
+		public Subscription(MessageSubscriber subscriber, AsyncQueue queue) {
+			_subscriber = subscriber;
+			_queue = queue;
+		}
 	}
-	
-	private static class ActionRecord {
-		private final ActionType _type;
+
+	private static class PendingMessage {
+		private final String _senderAddress;
 		private final String _subject;
-		private final MessageSubscriber _subscriber;
-		
-		public ActionRecord(ActionType type, String subject, MessageSubscriber subscriber) {
-			_type = type;
+		private final Object _args;
+		private final long _publishedAt;
+
+		public PendingMessage(String senderAddress, String subject, Object args, long publishedAt) {
+			_senderAddress = senderAddress;
 			_subject = subject;
-			_subscriber = subscriber;
+			_args = args;
+			_publishedAt = publishedAt;
 		}
-		
-		public ActionType getType() { 
-			return _type; 
+	}
+
+	private class AsyncQueue extends ManagedContextRunnable {
+		private final MessageSubscriber _subscriber;
+		private final ConcurrentLinkedQueue<PendingMessage> _messages = new ConcurrentLinkedQueue<PendingMessage>();
+		private final AtomicBoolean _scheduled = new AtomicBoolean();
+		private volatile boolean _closed;
+
+		public AsyncQueue(MessageSubscriber subscriber) {
+			_subscriber = subscriber;
 		}
-		
-		public String getSubject() {
-			return _subject;
+
+		public void offer(PendingMessage message) {
+			if(_closed)
+				return;
+			_messages.add(message);
+			schedule();
 		}
-		
-		public MessageSubscriber getSubscriber() {
-			return _subscriber;
+
+		public int size() {
+			return _messages.size();
 		}
-	}
-	
-	private class Gate {
-		private int _reentranceCount;
-		private Thread _gateOwner;
-		
-		public Gate() {
-			_reentranceCount = 0;
-			_gateOwner = null;
+
+		public void close() {
+			_closed = true;
+			_messages.clear();
 		}
-		
-		public boolean enter() {
-			return enter(false);
+
+		private void schedule() {
+			if(_scheduled.compareAndSet(false, true))
+				getAsyncExecutor().execute(this);
 		}
-		
-		public boolean enter(boolean wait) {
-			while(true) {
-				synchronized(this) {
-					if(_reentranceCount == 0) {
-						assert(_gateOwner == null);
-						
-						_reentranceCount++;
-						_gateOwner = Thread.currentThread();
-						return true;
-					} else {
-						if(wait) {
-							try {
-								wait();
-							} catch (InterruptedException e) {
-							}
-						} else {
-							break;
-						}
+
+		@Override
+		protected void runInContext() {
+			try {
+				for(int i = 0; i < ASYNC_BATCH_SIZE && !_closed; i++) {
+					PendingMessage message = _messages.poll();
+					if(message == null)
+						break;
+					try {
+						deliver(_subscriber, message._senderAddress, message._subject, message._args, message._publishedAt);
+					} catch(Throwable e) {
+						s_logger.warn("Subscriber " + _subscriber + " failed to handle message " + message._subject, e);
 					}
 				}
-			}
-			
-			return false;
-		}
-		
-		public void leave() {
-			synchronized(this) {
-				if(_reentranceCount > 0) {
-					assert(_gateOwner == Thread.currentThread());
-					
-					onGateOpen();
-					_reentranceCount--;
-					assert(_reentranceCount == 0);
-					_gateOwner = null;
-					
-					notifyAll();
-				}
+			} finally {
+				_scheduled.set(false);
+				if(!_closed && !_messages.isEmpty())
+					schedule();
 			}
 		}
 	}
-	
+
+	/**
+	 * Node of the subscription tree, never changed once created.
+	 */
 	private static class SubscriptionNode {
-		private final String _nodeKey;
-		private final List<MessageSubscriber> _subscribers;
+		static final SubscriptionNode EMPTY = new SubscriptionNode(new Subscription[0],
+			Collections.<String, SubscriptionNode>emptyMap());
+
+		private final Subscription[] _subscriptions;
 		private final Map<String, SubscriptionNode> _children;
-		private final SubscriptionNode _parent;
-		
-		public SubscriptionNode(SubscriptionNode parent, String nodeKey, MessageSubscriber subscriber) {
-			assert(nodeKey != null);
-			_parent = parent;
-			_nodeKey = nodeKey;
-			_subscribers = new ArrayList<MessageSubscriber>();
-			
-			if(subscriber != null)
-				_subscribers.add(subscriber);
-			
-			_children = new HashMap<String, SubscriptionNode>();
-		}
-		
-		public SubscriptionNode getParent() {
-			return _parent;			
-		}
-		
-		public String getNodeKey() {
-			return _nodeKey;
+
+		private SubscriptionNode(Subscription[] subscriptions, Map<String, SubscriptionNode> children) {
+			_subscriptions = subscriptions;
+			_children = children;
 		}
-		
-		@SuppressWarnings("unused")
-		public List<MessageSubscriber> getSubscriber() {
-			return _subscribers;
+
+		public SubscriptionNode getChild(String key) {
+			return _children.get(key);
 		}
-		
-		public void addSubscriber(MessageSubscriber subscriber) {
-			if(!_subscribers.contains(subscriber))
-				_subscribers.add(subscriber);
+
+		public boolean contains(MessageSubscriber subscriber) {
+			if(indexOf(subscriber) >= 0)
+				return true;
+			for(SubscriptionNode child : _children.values()) {
+				if(child.contains(subscriber))
+					return true;
+			}
+			return false;
 		}
-		
-		public void removeSubscriber(MessageSubscriber subscriber, boolean recursively) {
-			if(recursively) {
-				for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-					entry.getValue().removeSubscriber(subscriber, true);
+
+		/**
+		 * @return a copy of this node with the subscription added under the given path
+		 */
+		public SubscriptionNode with(String[] tokens, int depth, Subscription subscription) {
+			if(depth == tokens.length) {
+				int index = indexOf(subscription._subscriber);
+				Subscription[] subscriptions;
+				if(index >= 0) {
+					// subscribing again only changes how the subscriber is notified
+					subscriptions = _subscriptions.clone();
+					subscriptions[index] = subscription;
+				} else {
+					subscriptions = new Subscription[_subscriptions.length + 1];
+					System.arraycopy(_subscriptions, 0, subscriptions, 0, _subscriptions.length);
+					subscriptions[_subscriptions.length] = subscription;
 				}
+				return new SubscriptionNode(subscriptions, _children);
 			}
-			_subscribers.remove(subscriber);
-		}
-		
-		public SubscriptionNode getChild(String key) {
-			return _children.get(key);
-		}
-		
-		public void addChild(String key, SubscriptionNode childNode) {
-			_children.put(key, childNode);
+
+			SubscriptionNode child = _children.get(tokens[depth]);
+			if(child == null)
+				child = EMPTY;
+			return withChild(tokens[depth], child.with(tokens, depth + 1, subscription));
 		}
-		
-		public void removeChild(String key) {
-			_children.remove(key);
+
+		/**
+		 * @return a copy of this node without the subscriber under the given path, null if nothing is left in it
+		 */
+		public SubscriptionNode without(String[] tokens, int depth, MessageSubscriber subscriber) {
+			if(depth == tokens.length) {
+				int index = indexOf(subscriber);
+				if(index < 0)
+					return this;
+				return create(remove(_subscriptions, index), _children);
+			}
+
+			SubscriptionNode child = _children.get(tokens[depth]);
+			if(child == null)
+				return this;
+			SubscriptionNode newChild = child.without(tokens, depth + 1, subscriber);
+			if(newChild == child)
+				return this;
+			return newChild != null ? withChild(tokens[depth], newChild) : create(_subscriptions, withoutKey(_children, tokens[depth]));
 		}
-		
-		public void clearAll() {
-			// depth-first
+
+		/**
+		 * @return a copy of this node without the subscriber anywhere in it, null if nothing is left in it
+		 */
+		public SubscriptionNode withoutRecursively(MessageSubscriber subscriber) {
+			Map<String, SubscriptionNode> children = null;
 			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().clearAll();
+				SubscriptionNode child = entry.getValue();
+				SubscriptionNode newChild = child.withoutRecursively(subscriber);
+				if(newChild == child)
+					continue;
+				if(children == null)
+					children = new HashMap<String, SubscriptionNode>(_children);
+				if(newChild != null)
+					children.put(entry.getKey(), newChild);
+				else
+					children.remove(entry.getKey());
 			}
-			_subscribers.clear();
+
+			int index = indexOf(subscriber);
+			if(index < 0 && children == null)
+				return this;
+			return create(index >= 0 ? remove(_subscriptions, index) : _subscriptions,
+				children != null ? Collections.unmodifiableMap(children) : _children);
 		}
-		
-		public void prune(List<SubscriptionNode> trimNodes) {
-			assert(trimNodes != null);
-			
-			for(Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-				entry.getValue().prune(trimNodes);
+
+		public void notifySubscribers(MessageBusBase bus, String senderAddress, String subject, Object args, long publishedAt) {
+			for(Subscription subscription : _subscriptions) {
+				if(subscription._queue != null)
+					subscription._queue.offer(new PendingMessage(senderAddress, subject, args, publishedAt));
+				else
+					bus.deliver(subscription._subscriber, senderAddress, subject, args, publishedAt);
 			}
-			
-			if(isTrimmable())
-				trimNodes.add(this);
 		}
-		
-		public void notifySubscribers(String senderAddress, String subject,  Object args) {
-			for(MessageSubscriber subscriber : _subscribers) {
-				subscriber.onPublishMessage(senderAddress, subject, args);
+
+		private int indexOf(MessageSubscriber subscriber) {
+			for(int i = 0; i < _subscriptions.length; i++) {
+				if(_subscriptions[i]._subscriber.equals(subscriber))
+					return i;
 			}
+			return -1;
 		}
-		
-		public boolean isTrimmable() {
-			return _children.size() == 0 && _subscribers.size() == 0;
+
+		private SubscriptionNode withChild(String key, SubscriptionNode child) {
+			Map<String, SubscriptionNode> children = new HashMap<String, SubscriptionNode>(_children);
+			children.put(key, child);
+			return new SubscriptionNode(_subscriptions, Collections.unmodifiableMap(children));
+		}
+
+		private static SubscriptionNode create(Subscription[] subscriptions, Map<String, SubscriptionNode> children) {
+			if(subscriptions.length == 0 && children.isEmpty())
+				return null;
+			return new SubscriptionNode(subscriptions, children);
+		}
+
+		private static Map<String, SubscriptionNode> withoutKey(Map<String, SubscriptionNode> map, String key) {
+			Map<String, SubscriptionNode> copy = new HashMap<String, SubscriptionNode>(map);
+			copy.remove(key);
+			return Collections.unmodifiableMap(copy);
+		}
+
+		private static Subscription[] remove(Subscription[] subscriptions, int index) {
+			Subscription[] copy = new Subscription[subscriptions.length - 1];
+			System.arraycopy(subscriptions, 0, copy, 0, index);
+			System.arraycopy(subscriptions, index + 1, copy, index, copy.length - index);
+			return copy;
 		}
 	}
 }
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.messagebus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+public class MessageBusBaseTest {
+	private static class RecordingSubscriber implements MessageSubscriber {
+		final List<String> subjects = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void onPublishMessage(String senderAddress, String subject, Object args) {
+			subjects.add(subject + (args != null ? "=" + args : ""));
+		}
+	}
+
+	@Test
+	public void testNotifiesSubjectThenParents() {
+		MessageBusBase bus = new MessageBusBase();
+		final List<String> order = new ArrayList<String>();
+		bus.subscribe("/", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				order.add("root");
+			}
+		});
+		bus.subscribe("Host", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				order.add("Host");
+			}
+		});
+		bus.subscribe("Host.123.state", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				order.add("Host.123.state");
+			}
+		});
+
+		bus.publish(null, "Host.123.state", PublishScope.LOCAL, null);
+		bus.publish(null, "Host.321", PublishScope.LOCAL, null);
+		bus.publish(null, "/", PublishScope.LOCAL, null);
+		assertEquals("[Host.123.state, Host, root, Host, root, root]", order.toString());
+		assertEquals(3, bus.getPublishCount());
+		assertEquals(6, bus.getDeliveryCount());
+	}
+
+	@Test
+	public void testUnsubscribe() {
+		MessageBusBase bus = new MessageBusBase();
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		RecordingSubscriber other = new RecordingSubscriber();
+		bus.subscribe("VM", subscriber);
+		bus.subscribe("VM.1", subscriber);
+		bus.subscribe("VM.1", other);
+
+		bus.unsubscribe("VM.1", subscriber);
+		bus.publish(null, "VM.1", PublishScope.LOCAL, null);
+		assertEquals("[VM.1]", subscriber.subjects.toString());
+		assertEquals("[VM.1]", other.subjects.toString());
+
+		bus.unsubscribe(null, other);
+		bus.publish(null, "VM.1", PublishScope.LOCAL, null);
+		assertEquals(2, subscriber.subjects.size());
+		assertEquals(1, other.subjects.size());
+
+		bus.clearAll();
+		bus.publish(null, "VM.1", PublishScope.LOCAL, null);
+		assertEquals(2, subscriber.subjects.size());
+	}
+
+	@Test
+	public void testSubscribeWhilePublishing() {
+		final MessageBusBase bus = new MessageBusBase();
+		final RecordingSubscriber late = new RecordingSubscriber();
+		bus.subscribe("Job", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				bus.subscribe("/", late);
+				// publishing from a subscriber does not wait for the outer publish
+				bus.publish(null, "Host", PublishScope.LOCAL, null);
+			}
+		});
+		bus.publish(null, "Job", PublishScope.LOCAL, null);
+		// the outer publish kept the subscriptions it started with
+		assertEquals("[Host]", late.subjects.toString());
+	}
+
+	@Test
+	public void testAsyncDeliveryKeepsOrder() throws Exception {
+		MessageBusBase bus = new MessageBusBase();
+		final CountDownLatch done = new CountDownLatch(1000);
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final Thread publisher = Thread.currentThread();
+		final AtomicInteger onPublisherThread = new AtomicInteger();
+		bus.subscribeAsync("VM.state", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				if (Thread.currentThread() == publisher) {
+					onPublisherThread.incrementAndGet();
+				}
+				received.add(args);
+				done.countDown();
+			}
+		});
+
+		for (int i = 0; i < 1000; i++) {
+			bus.publish(null, "VM.state", PublishScope.LOCAL, i);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, onPublisherThread.get());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, received.get(i));
+		}
+		assertEquals(0, bus.getPendingAsyncCount());
+	}
+
+	@Test
+	public void testSlowAsyncSubscriberDoesNotBlockPublisher() throws Exception {
+		MessageBusBase bus = new MessageBusBase();
+		final CountDownLatch release = new CountDownLatch(1);
+		bus.subscribeAsync("Host", new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		RecordingSubscriber sync = new RecordingSubscriber();
+		bus.subscribe("Host", sync);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			bus.publish(null, "Host", PublishScope.LOCAL, null);
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(100, sync.subjects.size());
+		release.countDown();
+
+		bus.unsubscribe(null, sync);
+		bus.clearAll();
+		assertEquals(0, bus.getPendingAsyncCount());
+	}
+
+	@Test
+	public void testConcurrentPublishAndSubscribe() throws Exception {
+		final MessageBusBase bus = new MessageBusBase();
+		final AtomicLong delivered = new AtomicLong();
+		MessageSubscriber counter = new MessageSubscriber() {
+			@Override
+			public void onPublishMessage(String senderAddress, String subject, Object args) {
+				delivered.incrementAndGet();
+			}
+		};
+		bus.subscribe("Job", counter);
+
+		final int threads = 8;
+		final int publishes = 200000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> publishers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < publishes; i++) {
+						bus.publish(null, "Job." + (i % 100) + ".done", PublishScope.LOCAL, id);
+					}
+				}
+			});
+			thread.start();
+			publishers.add(thread);
+		}
+
+		start.countDown();
+		// subscriptions keep changing while the publishers run
+		RecordingSubscriber churn = new RecordingSubscriber();
+		for (int i = 0; i < 1000; i++) {
+			bus.subscribe("Job." + (i % 100), churn);
+			bus.unsubscribe("Job." + (i % 100), churn);
+		}
+		for (Thread thread : publishers) {
+			thread.join();
+		}
+		assertEquals((long)threads * publishes, delivered.get());
+		// no publish got lost from the counters either
+		assertEquals((long)threads * publishes, bus.getPublishCount());
+		assertTrue(bus.getDeliveryCount() >= delivered.get());
+		assertTrue(bus.getMaxPublishNanos() >= bus.getAveragePublishNanos());
+	}
+}
@@ -18,7 +18,9 @@
  */
 package org.apache.cloudstack.spring.lifecycle;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -32,7 +34,10 @@ import javax.naming.ConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ComponentLifecycle;
+import com.cloud.utils.component.ComponentStartupProfiler;
+import com.cloud.utils.component.ComponentStartupScheduler;
 import com.cloud.utils.component.SystemIntegrityChecker;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
@@ -72,7 +77,7 @@ public class CloudStackExtendedLifeCycle extends AbstractBeanCollector {
     public void startBeans() {
         log.info("Starting CloudStack Components");
 
-        with(new WithComponentLifeCycle() {
+        withEachRunLevel("start", new WithComponentLifeCycle() {
             @Override
             public void with(ComponentLifecycle lifecycle) {
                 lifecycle.start();
@@ -110,7 +115,7 @@ public class CloudStackExtendedLifeCycle extends AbstractBeanCollector {
     private void configure() {
         log.info("Configuring CloudStack Components");
         
-        with(new WithComponentLifeCycle() {
+        withEachRunLevel("configure", new WithComponentLifeCycle() {
             @Override
             public void with(ComponentLifecycle lifecycle) {
                 try {
@@ -158,6 +163,29 @@ public class CloudStackExtendedLifeCycle extends AbstractBeanCollector {
         }
     }
     
+    /**
+     * Runs the run levels in turn, the components of a run level in parallel
+     * as far as ComponentContext.STARTUP_THREADS_PROPERTY and their StartAfter
+     * declarations allow, and records the time each of them took.
+     */
+    protected void withEachRunLevel(final String phase, final WithComponentLifeCycle with) {
+        ComponentStartupScheduler scheduler = new ComponentStartupScheduler(Integer.getInteger(ComponentContext.STARTUP_THREADS_PROPERTY, 1));
+        final ComponentStartupProfiler profiler = ComponentContext.getStartupProfiler();
+
+        long phaseStart = System.currentTimeMillis();
+        for ( Set<ComponentLifecycle> lifecycles : sorted.values() ) {
+            scheduler.run(new ArrayList<ComponentLifecycle>(lifecycles), new ComponentStartupScheduler.Phase() {
+                @Override
+                public void run(ComponentLifecycle lifecycle) {
+                    long start = System.currentTimeMillis();
+                    with.with(lifecycle);
+                    profiler.record(phase, ComponentContext.getTargetClass(lifecycle).getName(), System.currentTimeMillis() - start);
+                }
+            });
+        }
+        profiler.recordPhase(phase, System.currentTimeMillis() - phaseStart);
+    }
+
     @Override
     public int getPhase() {
         return 2000;
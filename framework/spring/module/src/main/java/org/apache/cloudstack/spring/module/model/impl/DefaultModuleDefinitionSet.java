@@ -46,6 +46,8 @@ import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.util.StringUtils;
 
+import com.cloud.utils.component.ComponentContext;
+
 public class DefaultModuleDefinitionSet implements ModuleDefinitionSet {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultModuleDefinitionSet.class);
@@ -77,6 +79,8 @@ public class DefaultModuleDefinitionSet implements ModuleDefinitionSet {
         printHierarchy();
         loadContexts();
         startContexts();
+
+        ComponentContext.componentsStarted();
     }
     
     protected boolean loadRootContext() {
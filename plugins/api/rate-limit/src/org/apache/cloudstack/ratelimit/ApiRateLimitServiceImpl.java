@@ -17,8 +17,12 @@
 package org.apache.cloudstack.ratelimit;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -34,14 +38,23 @@ import org.apache.cloudstack.api.command.admin.ratelimit.ResetApiLimitCmd;
 import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateMessageCommand;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.user.User;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.AdapterBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 import org.springframework.stereotype.Component;
 
@@ -50,6 +63,8 @@ import org.springframework.stereotype.Component;
 public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService {
 	private static final Logger s_logger = Logger.getLogger(ApiRateLimitServiceImpl.class);
 
+    public static final String USAGE_SUBJECT = "api.limit.usage";
+
 	/**
 	 * True if api rate limiting is enabled
 	 */
@@ -65,7 +80,19 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 	 */
 	private int maxAllowed = 30;
 
-	private LimitStore _store = null;
+	/**
+	 * Number of requests a command counts for, commands not listed count once.
+	 */
+	private Map<String, Integer> _commandWeights = new HashMap<String, Integer>();
+
+	/**
+	 * Interval in milliseconds at which token bucket usage is shared with the other management servers, 0 if not shared.
+	 */
+	private int _clusterSyncInterval = 0;
+
+	LimitStore _store = null;
+
+	private ScheduledExecutorService _syncExecutor;
 
 	@Inject
 	AccountService _accountService;
@@ -73,6 +100,12 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    ClusterManager _clusterMgr;
+
+    @Inject
+    MessageBus _messageBus;
+
 	@Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
@@ -91,25 +124,129 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
+            _commandWeights = parseCommandWeights(_configDao.getValue(Config.ApiLimitCommandWeights.key()));
             // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
             int maxElements = 10000;
             String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
             if ( cachesize != null ){
                 maxElements = Integer.parseInt(cachesize);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements );
-            cacheStore.setCache(cache);
-            _store = cacheStore;
+            if ("tokenbucket".equalsIgnoreCase(_configDao.getValue(Config.ApiLimitStore.key()))) {
+                _store = new TokenBucketLimitStore(maxAllowed, timeToLive, maxElements);
+                _clusterSyncInterval = NumbersUtil.parseInt(_configDao.getValue(Config.ApiLimitClusterSyncInterval.key()), 0);
+                s_logger.info("Token bucket limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements
+                        + ", clusterSyncInterval=" + _clusterSyncInterval);
+            } else {
+                EhcacheLimitStore cacheStore = new EhcacheLimitStore();
+                CacheManager cm = CacheManager.create();
+                Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
+                cm.addCache(cache);
+                s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements );
+                cacheStore.setCache(cache);
+                _store = cacheStore;
+            }
 
         }
 
         return true;
     }
 
+    @Override
+    public boolean start() {
+        if (_clusterSyncInterval > 0 && _store instanceof TokenBucketLimitStore) {
+            _messageBus.subscribe(USAGE_SUBJECT, new MessageSubscriber() {
+                @Override
+                public void onPublishMessage(String senderAddress, String subject, Object args) {
+                    ((TokenBucketLimitStore)_store).applyRemoteUsage(decodeUsage((String)args));
+                }
+            });
+            _syncExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ApiLimitSync"));
+            _syncExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    syncClusterUsage();
+                }
+            }, _clusterSyncInterval, _clusterSyncInterval, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_syncExecutor != null) {
+            _syncExecutor.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * Tells the other management servers how many tokens each account used here since the last sync.
+     */
+    protected void syncClusterUsage() {
+        try {
+            Map<Long, Integer> usage = ((TokenBucketLimitStore)_store).drainLocalUsage();
+            if (usage.isEmpty()) {
+                return;
+            }
+            Command[] cmds = new Command[] { new PropagateMessageCommand(USAGE_SUBJECT, encodeUsage(usage)) };
+            _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+        } catch (Exception e) {
+            s_logger.warn("Unable to share api usage with other management servers", e);
+        }
+    }
+
+    static String encodeUsage(Map<Long, Integer> usage) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Integer> entry : usage.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    static Map<Long, Integer> decodeUsage(String message) {
+        Map<Long, Integer> usage = new HashMap<Long, Integer>();
+        if (message == null || message.isEmpty()) {
+            return usage;
+        }
+        for (String token : message.split(",")) {
+            String[] pair = token.split(":");
+            if (pair.length == 2) {
+                usage.put(Long.parseLong(pair[0]), Integer.parseInt(pair[1]));
+            }
+        }
+        return usage;
+    }
+
+    static Map<String, Integer> parseCommandWeights(String weights) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        if (weights == null || weights.trim().isEmpty()) {
+            return result;
+        }
+        for (String token : weights.split(",")) {
+            String[] pair = token.trim().split(":");
+            if (pair.length != 2) {
+                s_logger.warn("Ignoring malformed api weight " + token);
+                continue;
+            }
+            int weight = NumbersUtil.parseInt(pair[1].trim(), 1);
+            if (weight > 0) {
+                result.put(pair[0].trim().toLowerCase(), weight);
+            }
+        }
+        return result;
+    }
+
+    protected int getWeight(String apiCommandName) {
+        if (apiCommandName == null) {
+            return 1;
+        }
+        Integer weight = _commandWeights.get(apiCommandName.toLowerCase());
+        return weight == null ? 1 : weight;
+    }
+
     @Override
     public ApiLimitResponse searchApiLimit(Account caller) {
         ApiLimitResponse response = new ApiLimitResponse();
@@ -169,7 +306,7 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
         }
 
         /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
+        int current = entry.addAndGet(getWeight(apiCommandName));
 
         if (current <= maxAllowed) {
             s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
@@ -196,6 +333,9 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public void setTimeToLive(int timeToLive) {
         this.timeToLive = timeToLive;
+        if (_store instanceof TokenBucketLimitStore) {
+            ((TokenBucketLimitStore)_store).setRate(maxAllowed, timeToLive);
+        }
     }
 
 
@@ -203,6 +343,9 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public void setMaxAllowed(int max) {
         this.maxAllowed = max;
+        if (_store instanceof TokenBucketLimitStore) {
+            ((TokenBucketLimitStore)_store).setRate(maxAllowed, timeToLive);
+        }
 
     }
 
@@ -26,6 +26,8 @@ public interface StoreEntry {
 
     int incrementAndGet();
 
+    int addAndGet(int delta);
+
     boolean isExpired();
 
     long getExpireDuration();  /* seconds to reset counter */
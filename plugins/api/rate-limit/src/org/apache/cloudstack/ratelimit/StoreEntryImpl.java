@@ -56,6 +56,11 @@ public class StoreEntryImpl implements StoreEntry {
         return this.counter.incrementAndGet();
     }
 
+    @Override
+    public int addAndGet(int delta) {
+        return this.counter.addAndGet(delta);
+    }
+
     @Override
     public int getCounter(){
         return this.counter.get();
@@ -0,0 +1,223 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free limit store where every account owns a token bucket that holds
+ * up to maxAllowed tokens and is refilled at maxAllowed tokens per timeToLive
+ * seconds.
+ *
+ * A bucket is a single theoretical arrival time, i.e. the time at which the
+ * bucket will be full again; taking tokens moves it forward with a compare and
+ * set, so lookups never block each other. Tokens taken locally are tracked
+ * separately so that they can be shared with the other management servers.
+ */
+public class TokenBucketLimitStore implements LimitStore {
+
+    private static final long SWEEP_INTERVAL = 1000000000L; // 1 second, in nanoseconds
+
+    private final ConcurrentHashMap<Long, TokenBucket> buckets = new ConcurrentHashMap<Long, TokenBucket>();
+
+    private final int maxElements;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private volatile Rate rate;
+
+    static class Rate {
+        final int capacity;
+        final long tokenNanos; // time to refill one token
+
+        Rate(int maxAllowed, int timeToLive) {
+            capacity = Math.max(maxAllowed, 1);
+            tokenNanos = Math.max(timeToLive * 1000000000L / capacity, 1L);
+        }
+
+        int tokensUsed(long debtNanos) {
+            if (debtNanos <= 0) {
+                return 0;
+            }
+            return (int)Math.min((debtNanos + tokenNanos - 1) / tokenNanos, Integer.MAX_VALUE);
+        }
+    }
+
+    class TokenBucket implements StoreEntry {
+
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        private final AtomicInteger localUsage = new AtomicInteger(0);
+
+        /**
+         * Takes the tokens if the bucket holds enough of them.
+         *
+         * @return the number of tokens in use including the requested ones; larger than
+         *         maxAllowed if the tokens were not taken
+         */
+        @Override
+        public int addAndGet(int delta) {
+            Rate current = rate;
+            while (true) {
+                long now = System.nanoTime();
+                long last = tat.get();
+                long next = Math.max(last, now) + delta * current.tokenNanos;
+                int used = current.tokensUsed(next - now);
+                if (used > current.capacity) {
+                    return used;
+                }
+                if (tat.compareAndSet(last, next)) {
+                    localUsage.addAndGet(delta);
+                    return used;
+                }
+            }
+        }
+
+        @Override
+        public int incrementAndGet() {
+            return addAndGet(1);
+        }
+
+        /**
+         * Takes tokens used on another management server, whether or not the bucket holds enough of them.
+         */
+        void consume(int tokens) {
+            Rate current = rate;
+            while (true) {
+                long now = System.nanoTime();
+                long last = tat.get();
+                long next = Math.min(Math.max(last, now) + tokens * current.tokenNanos, now + current.capacity * current.tokenNanos);
+                if (next <= last || tat.compareAndSet(last, next)) {
+                    return;
+                }
+            }
+        }
+
+        int drainLocalUsage() {
+            return localUsage.getAndSet(0);
+        }
+
+        @Override
+        public int getCounter() {
+            return Math.min(rate.tokensUsed(tat.get() - System.nanoTime()), rate.capacity);
+        }
+
+        @Override
+        public boolean isExpired() {
+            return tat.get() - System.nanoTime() <= 0 && localUsage.get() == 0;
+        }
+
+        @Override
+        public long getExpireDuration() {
+            Rate current = rate;
+            long wait = tat.get() - System.nanoTime() - (current.capacity - 1) * current.tokenNanos;
+            return wait > 0 ? wait / 1000000 : 0;
+        }
+    }
+
+    public TokenBucketLimitStore(int maxAllowed, int timeToLive, int maxElements) {
+        this.rate = new Rate(maxAllowed, timeToLive);
+        this.maxElements = maxElements;
+    }
+
+    public void setRate(int maxAllowed, int timeToLive) {
+        this.rate = new Rate(maxAllowed, timeToLive);
+    }
+
+    /**
+     * Never returns null, a missing bucket is created full.
+     */
+    @Override
+    public StoreEntry get(Long account) {
+        TokenBucket bucket = buckets.get(account);
+        if (bucket == null) {
+            sweep();
+            bucket = new TokenBucket();
+            TokenBucket existing = buckets.putIfAbsent(account, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    @Override
+    public StoreEntry create(Long account, int timeToLiveInSecs) {
+        TokenBucket bucket = new TokenBucket();
+        buckets.put(account, bucket);
+        return bucket;
+    }
+
+    @Override
+    public void resetCounters() {
+        buckets.clear();
+    }
+
+    /**
+     * @return the tokens taken on this management server per account since the last call
+     */
+    public Map<Long, Integer> drainLocalUsage() {
+        Map<Long, Integer> usage = new HashMap<Long, Integer>();
+        for (Map.Entry<Long, TokenBucket> entry : buckets.entrySet()) {
+            int tokens = entry.getValue().drainLocalUsage();
+            if (tokens > 0) {
+                usage.put(entry.getKey(), tokens);
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Takes the tokens used by the accounts on another management server.
+     */
+    public void applyRemoteUsage(Map<Long, Integer> usage) {
+        for (Map.Entry<Long, Integer> entry : usage.entrySet()) {
+            TokenBucket bucket = (TokenBucket)get(entry.getKey());
+            bucket.consume(entry.getValue());
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /*
+     * Full buckets carry no state, drop them once the store grows past its
+     * size, at most once per second.
+     */
+    private void sweep() {
+        if (buckets.size() < maxElements) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+}
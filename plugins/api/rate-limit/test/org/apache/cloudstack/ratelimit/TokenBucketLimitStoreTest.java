@@ -0,0 +1,191 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+import com.cloud.configuration.Config;
+import com.cloud.exception.RequestLimitException;
+import com.cloud.user.Account;
+import com.cloud.user.AccountService;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+
+public class TokenBucketLimitStoreTest {
+    @Test
+    public void bucketHoldsMaxAllowedTokens() {
+        TokenBucketLimitStore store = new TokenBucketLimitStore(10, 3600, 100);
+        StoreEntry entry = store.get(1L);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, entry.incrementAndGet());
+        }
+        assertTrue("A request beyond the bucket size should be refused", entry.incrementAndGet() > 10);
+        assertEquals("A refused request should not take tokens", 10, entry.getCounter());
+        assertTrue(entry.getExpireDuration() > 0);
+    }
+
+    @Test
+    public void weightedRequestsTakeMoreTokens() {
+        TokenBucketLimitStore store = new TokenBucketLimitStore(10, 3600, 100);
+        StoreEntry entry = store.get(1L);
+        assertEquals(8, entry.addAndGet(8));
+        assertTrue("Not enough tokens left for a request of weight 5", entry.addAndGet(5) > 10);
+        assertEquals(10, entry.addAndGet(2));
+    }
+
+    @Test
+    public void bucketRefills() throws Exception {
+        TokenBucketLimitStore store = new TokenBucketLimitStore(2, 1, 100);
+        StoreEntry entry = store.get(1L);
+        entry.incrementAndGet();
+        entry.incrementAndGet();
+        assertTrue(entry.incrementAndGet() > 2);
+
+        // one token is back after half a second
+        Thread.sleep(520);
+        assertTrue(entry.incrementAndGet() <= 2);
+    }
+
+    @Test
+    public void remoteUsageIsShared() {
+        TokenBucketLimitStore local = new TokenBucketLimitStore(10, 3600, 100);
+        TokenBucketLimitStore remote = new TokenBucketLimitStore(10, 3600, 100);
+        local.get(1L).addAndGet(4);
+        local.get(2L).addAndGet(1);
+
+        Map<Long, Integer> usage = ApiRateLimitServiceImpl.decodeUsage(ApiRateLimitServiceImpl.encodeUsage(local.drainLocalUsage()));
+        assertEquals(Integer.valueOf(4), usage.get(1L));
+        assertTrue("Usage is only shared once", local.drainLocalUsage().isEmpty());
+
+        remote.applyRemoteUsage(usage);
+        assertEquals(4, remote.get(1L).getCounter());
+        assertEquals(10, remote.get(1L).addAndGet(6));
+        assertTrue(remote.get(1L).incrementAndGet() > 10);
+        // applied usage is not shared back
+        Map<Long, Integer> remoteUsage = remote.drainLocalUsage();
+        assertEquals(Integer.valueOf(6), remoteUsage.get(1L));
+        assertFalse(remoteUsage.containsKey(2L));
+    }
+
+    @Test
+    public void parseCommandWeights() {
+        Map<String, Integer> weights = ApiRateLimitServiceImpl.parseCommandWeights("deployVirtualMachine:5, listEvents:2,bogus,createVolume:0");
+        assertEquals(2, weights.size());
+        assertEquals(Integer.valueOf(5), weights.get("deployvirtualmachine"));
+        assertEquals(Integer.valueOf(2), weights.get("listevents"));
+    }
+
+    private static ApiRateLimitServiceImpl createService(int maxAllowed, int timeToLive) throws Exception {
+        ApiRateLimitServiceImpl service = new ApiRateLimitServiceImpl();
+        ConfigurationDao configDao = mock(ConfigurationDao.class);
+        when(configDao.getValue(Config.ApiLimitEnabled.key())).thenReturn("true");
+        when(configDao.getValue(Config.ApiLimitMax.key())).thenReturn(Integer.toString(maxAllowed));
+        when(configDao.getValue(Config.ApiLimitInterval.key())).thenReturn(Integer.toString(timeToLive));
+        when(configDao.getValue(Config.ApiLimitStore.key())).thenReturn("tokenbucket");
+        when(configDao.getValue(Config.ApiLimitCommandWeights.key())).thenReturn("deployVirtualMachine:5");
+        service._configDao = configDao;
+        service.configure("TokenBucketLimitStoreTest", Collections.<String, Object> emptyMap());
+
+        AccountService accountService = mock(AccountService.class);
+        for (long id = 1; id <= 4; id++) {
+            AccountVO account = new AccountVO(id);
+            account.setType(Account.ACCOUNT_TYPE_NORMAL);
+            when(accountService.getAccount(id)).thenReturn(account);
+        }
+        service._accountService = accountService;
+        return service;
+    }
+
+    private static UserVO createUser(long accountId) {
+        UserVO user = new UserVO();
+        user.setAccountId(accountId);
+        return user;
+    }
+
+    @Test
+    public void commandWeightsApplyInCheckAccess() throws Exception {
+        ApiRateLimitServiceImpl service = createService(6, 3600);
+        UserVO user = createUser(1L);
+        service.checkAccess(user, "deployVirtualMachine");
+        service.checkAccess(user, "listVirtualMachines");
+        try {
+            service.checkAccess(user, "deployVirtualMachine");
+            assertTrue("The second deploy should exceed the limit", false);
+        } catch (RequestLimitException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Many threads hitting a handful of buckets must not take more tokens than
+     * the buckets hold, nor be refused while tokens are left. The interval is
+     * long enough for no token to come back while the test runs.
+     */
+    @Test
+    public void bucketsUnderContention() throws Exception {
+        final int threads = 16;
+        final int accounts = 4;
+        final int callsPerThread = 20000;
+        final int maxAllowed = 20000;
+
+        final TokenBucketLimitStore store = new TokenBucketLimitStore(maxAllowed, 100000000, 100);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch endGate = new CountDownLatch(threads);
+        final AtomicIntegerArray allowed = new AtomicIntegerArray(accounts + 1);
+        for (int i = 0; i < threads; i++) {
+            final long account = 1 + i % accounts;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        for (int j = 0; j < callsPerThread; j++) {
+                            if (store.get(account).incrementAndGet() <= maxAllowed) {
+                                allowed.incrementAndGet((int)account);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        endGate.countDown();
+                    }
+                }
+            }).start();
+        }
+        startGate.countDown();
+        endGate.await();
+
+        Map<Long, Integer> usage = store.drainLocalUsage();
+        for (int id = 1; id <= accounts; id++) {
+            assertEquals("Tokens handed out for account " + id, maxAllowed, allowed.get(id));
+            assertEquals("Tokens taken for account " + id, Integer.valueOf(maxAllowed), usage.get((long)id));
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local outbox for the events published to the message broker. publish()
+ * only appends the event to a memory-mapped file and returns, a background
+ * thread sends the events to the broker in batches and moves the confirmed
+ * offset past a batch once the broker confirmed all of it.
+ *
+ * The file is a ring: a header holding the confirmed offset, followed by
+ * records of [length][crc][routing key length][routing key][body]. A
+ * record that does not fit before the end of the file is written at the
+ * start and a wrap marker is left behind. Events that were not confirmed,
+ * because the connection to the broker was lost or the management server
+ * stopped, are sent again, so delivery is at least once. When the outbox
+ * is full append() fails right away instead of blocking the caller.
+ *
+ * The mapped file survives a crash of the JVM, not one of the host.
+ */
+public class EventOutbox {
+    private static final Logger s_logger = Logger.getLogger(EventOutbox.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x45564f42;
+    private static final int HEADER_SIZE = 16;
+    private static final int CONFIRMED_OFFSET = 4;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int WRAP = -1;
+
+    /**
+     * Where the outbox sends the events to.
+     */
+    public interface Sink {
+        void publish(String routingKey, byte[] body) throws Exception;
+
+        /**
+         * Blocks until the broker confirmed every event published since the previous call.
+         */
+        void confirm() throws Exception;
+
+        /**
+         * Drops the connection state after a failure, the unconfirmed events are published again.
+         */
+        void reset();
+    }
+
+    public static class OutboxFullException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public OutboxFullException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Record {
+        final String routingKey;
+        final byte[] body;
+        final int end;
+
+        Record(String routingKey, byte[] body, int end) {
+            this.routingKey = routingKey;
+            this.body = body;
+            this.end = end;
+        }
+    }
+
+    private final File _file;
+    private final RandomAccessFile _raf;
+    private final MappedByteBuffer _buffer;
+    private final int _capacity;
+    private final Sink _sink;
+    private final int _batchSize;
+    private final long _retryInterval;
+
+    // guarded by this, published to the publisher thread through the volatile write
+    private volatile int _writePos;
+    // only moved by the publisher thread
+    private volatile int _confirmedPos;
+    private int _readPos;
+
+    private volatile boolean _running;
+    private volatile Thread _publisher;
+
+    public EventOutbox(File file, int capacity, Sink sink, int batchSize, long retryInterval) throws IOException {
+        _file = file;
+        _capacity = capacity;
+        _sink = sink;
+        _batchSize = batchSize;
+        _retryInterval = retryInterval;
+
+        _raf = new RandomAccessFile(file, "rw");
+        boolean existing = _raf.length() == capacity;
+        _buffer = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (existing && _buffer.getInt(0) == MAGIC) {
+            recover();
+        } else {
+            _buffer.putInt(HEADER_SIZE, 0);
+            _buffer.putInt(CONFIRMED_OFFSET, HEADER_SIZE);
+            _buffer.putInt(0, MAGIC);
+            _confirmedPos = HEADER_SIZE;
+            _writePos = HEADER_SIZE;
+        }
+        _readPos = _confirmedPos;
+    }
+
+    /**
+     * Finds the end of the records written after the confirmed offset.
+     */
+    private void recover() {
+        int pos = _buffer.getInt(CONFIRMED_OFFSET);
+        if (pos < HEADER_SIZE || pos >= _capacity) {
+            s_logger.warn("Invalid confirmed offset " + pos + " in event outbox " + _file + ", dropping its content");
+            pos = HEADER_SIZE;
+            _buffer.putInt(HEADER_SIZE, 0);
+        }
+        _confirmedPos = pos;
+
+        int pending = 0;
+        while (true) {
+            int length = _buffer.getInt(pos);
+            if (length == WRAP) {
+                pos = HEADER_SIZE;
+                continue;
+            }
+            if (length < RECORD_HEADER_SIZE || pos + length + 4 > _capacity || readRecord(pos) == null) {
+                break;
+            }
+            pos += length;
+            pending++;
+        }
+        _buffer.putInt(pos, 0);
+        _writePos = pos;
+        if (pending > 0) {
+            s_logger.info("Event outbox " + _file + " holds " + pending + " events not confirmed by the message broker, they will be published again");
+        }
+    }
+
+    /**
+     * @return the record at pos, null if it is not a valid one
+     */
+    private Record readRecord(int pos) {
+        ByteBuffer buffer = _buffer.duplicate();
+        int length = buffer.getInt(pos);
+        int crc = buffer.getInt(pos + 4);
+        byte[] data = new byte[length - 8];
+        buffer.position(pos + 8);
+        buffer.get(data);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data);
+        if ((int)checksum.getValue() != crc) {
+            return null;
+        }
+        int keyLength = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        if (keyLength > data.length - 2) {
+            return null;
+        }
+        String routingKey = new String(data, 2, keyLength, UTF8);
+        byte[] body = new byte[data.length - 2 - keyLength];
+        System.arraycopy(data, 2 + keyLength, body, 0, body.length);
+        return new Record(routingKey, body, pos + length);
+    }
+
+    /**
+     * Adds the event to the outbox. Never waits for the broker.
+     *
+     * @throws OutboxFullException if the broker is away for long enough that the outbox filled up
+     */
+    public void append(String routingKey, byte[] body) throws OutboxFullException {
+        byte[] key = routingKey.getBytes(UTF8);
+        byte[] data = new byte[2 + key.length + body.length];
+        data[0] = (byte)(key.length >> 8);
+        data[1] = (byte)key.length;
+        System.arraycopy(key, 0, data, 2, key.length);
+        System.arraycopy(body, 0, data, 2 + key.length, body.length);
+        CRC32 checksum = new CRC32();
+        checksum.update(data);
+        int length = 8 + data.length;
+
+        synchronized (this) {
+            int confirmed = _confirmedPos;
+            int pos = _writePos;
+            // room for the record and the terminator behind it
+            int needed = length + 4;
+            if (pos >= confirmed) {
+                if (pos + needed <= _capacity) {
+                    write(pos, data, (int)checksum.getValue(), length);
+                } else if (HEADER_SIZE + needed <= confirmed) {
+                    // the record goes to the start before the wrap marker makes it reachable
+                    write(HEADER_SIZE, data, (int)checksum.getValue(), length);
+                    _buffer.putInt(pos, WRAP);
+                    pos = HEADER_SIZE;
+                } else {
+                    throw new OutboxFullException("Event outbox " + _file + " is full");
+                }
+            } else if (pos + needed <= confirmed) {
+                write(pos, data, (int)checksum.getValue(), length);
+            } else {
+                throw new OutboxFullException("Event outbox " + _file + " is full");
+            }
+            _writePos = pos + length;
+        }
+
+        Thread publisher = _publisher;
+        if (publisher != null) {
+            LockSupport.unpark(publisher);
+        }
+    }
+
+    private void write(int pos, byte[] data, int crc, int length) {
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(pos + 8);
+        buffer.put(data);
+        buffer.putInt(pos + length, 0);
+        buffer.putInt(pos + 4, crc);
+        buffer.putInt(pos, length);
+    }
+
+    public boolean isEmpty() {
+        return _confirmedPos == _writePos;
+    }
+
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+        _running = true;
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, "EventOutboxPublisher");
+        publisher.setDaemon(true);
+        _publisher = publisher;
+        publisher.start();
+    }
+
+    /**
+     * Stops the publisher, the events it did not get confirmed are published after the next start.
+     */
+    public void stop() {
+        Thread publisher;
+        synchronized (this) {
+            _running = false;
+            publisher = _publisher;
+            _publisher = null;
+        }
+        if (publisher != null) {
+            publisher.interrupt();
+            try {
+                publisher.join(_retryInterval + 10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void close() {
+        stop();
+        _buffer.force();
+        try {
+            _raf.close();
+        } catch (IOException e) {
+            s_logger.warn("Unable to close event outbox " + _file, e);
+        }
+    }
+
+    private List<Record> readBatch() {
+        List<Record> batch = new ArrayList<Record>();
+        int pos = _readPos;
+        while (batch.size() < _batchSize && pos != _writePos) {
+            if (_buffer.getInt(pos) == WRAP) {
+                pos = HEADER_SIZE;
+                continue;
+            }
+            Record record = readRecord(pos);
+            if (record == null) {
+                // only appended records are ever read, a bad one means the file was changed under us
+                s_logger.error("Corrupted record at " + pos + " in event outbox " + _file + ", skipping to the end");
+                pos = _writePos;
+                break;
+            }
+            batch.add(record);
+            pos = record.end;
+        }
+        _readPos = pos;
+        return batch;
+    }
+
+    private void publish() {
+        while (_running) {
+            List<Record> batch = readBatch();
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, 1000000000L);
+                continue;
+            }
+
+            try {
+                for (Record record : batch) {
+                    _sink.publish(record.routingKey, record.body);
+                }
+                _sink.confirm();
+                int confirmed = batch.get(batch.size() - 1).end;
+                _buffer.putInt(CONFIRMED_OFFSET, confirmed);
+                _confirmedPos = confirmed;
+            } catch (Exception e) {
+                s_logger.warn("Failed to publish " + batch.size() + " events to the message broker, retrying in " + _retryInterval + "ms: " + e.getMessage());
+                _sink.reset();
+                _readPos = _confirmedPos;
+                // appends unpark the publisher, an outage must not be retried at the event rate
+                long nextAttemptAt = System.nanoTime() + _retryInterval * 1000000L;
+                long remaining;
+                while (_running && (remaining = nextAttemptAt - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.cloud.utils.component.ManagerBase;
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.Map;
@@ -55,6 +56,12 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // local outbox events are queued in when set, publish() then does not wait for the AMQP server
+    private static String outboxFile;
+    private static Integer outboxSize;
+    private static Integer outboxBatchSize;
+    private EventOutbox _outbox;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> _subscribers;
 
@@ -104,6 +111,16 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
 
+        if (outboxFile != null && !outboxFile.isEmpty()) {
+            int size = (outboxSize != null ? outboxSize : 64) * 1024 * 1024;
+            int batchSize = outboxBatchSize != null ? outboxBatchSize : 100;
+            try {
+                _outbox = new EventOutbox(new File(outboxFile), size, new ConfirmingSink(), batchSize, retryInterval);
+            } catch (IOException e) {
+                throw new ConfigurationException("Unable to open event outbox " + outboxFile + " due to " + e.getMessage());
+            }
+        }
+
         return true;
     }
 
@@ -135,6 +152,21 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         this.retryInterval = retryInterval;
     }
 
+    public void setOutboxFile(String outboxFile) {
+        this.outboxFile = outboxFile;
+    }
+
+    /**
+     * @param outboxSize size of the outbox file in MB
+     */
+    public void setOutboxSize(Integer outboxSize) {
+        this.outboxSize = outboxSize;
+    }
+
+    public void setOutboxBatchSize(Integer outboxBatchSize) {
+        this.outboxBatchSize = outboxBatchSize;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -237,6 +269,15 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
 
+        if (_outbox != null) {
+            try {
+                _outbox.append(routingKey, eventDescription.getBytes());
+            } catch (EventOutbox.OutboxFullException e) {
+                throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+            }
+            return;
+        }
+
         try {
             Connection connection = getConnection();
             Channel channel = createChannel(connection);
@@ -448,12 +489,19 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+        if (_outbox != null) {
+            _outbox.start();
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
 
+        if (_outbox != null) {
+            _outbox.close();
+        }
+
         if (_connection.isOpen()) {
             for (String subscriberId : _subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = _subscribers.get(subscriberId);
@@ -472,6 +520,41 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         return true;
     }
 
+    // publishes the events of the outbox on a channel of its own in confirm mode
+    private class ConfirmingSink implements EventOutbox.Sink {
+        private Channel _channel;
+
+        @Override
+        public void publish(String routingKey, byte[] body) throws Exception {
+            if (_channel == null || !_channel.isOpen()) {
+                Channel channel = createChannel(getConnection());
+                createExchange(channel, amqpExchangeName);
+                channel.confirmSelect();
+                _channel = channel;
+            }
+            _channel.basicPublish(amqpExchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, body);
+        }
+
+        @Override
+        public void confirm() throws Exception {
+            if (_channel != null && !_channel.waitForConfirms()) {
+                throw new IOException("AMQP server did not accept all of the events published");
+            }
+        }
+
+        @Override
+        public void reset() {
+            if (_channel != null) {
+                try {
+                    _channel.abort();
+                } catch (IOException e) {
+                    s_logger.debug("Failed to abort the outbox channel due to " + e.getMessage());
+                }
+                _channel = null;
+            }
+        }
+    }
+
     // logic to deal with loss of connection to AMQP server
     private class DisconnectHandler implements ShutdownListener {
 
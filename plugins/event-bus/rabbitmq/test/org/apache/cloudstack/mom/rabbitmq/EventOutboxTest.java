@@ -0,0 +1,228 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventOutboxTest {
+    private File _file;
+
+    /**
+     * In-process stand-in for the AMQP server: keeps what was confirmed, can fail the next confirms and
+     * simulates the round trip of a confirm.
+     */
+    private static class StandInSink implements EventOutbox.Sink {
+        final List<String> confirmed = new ArrayList<String>();
+        final List<String> pending = new ArrayList<String>();
+        volatile int failures;
+        final long confirmDelayMs;
+        int confirms;
+
+        StandInSink(long confirmDelayMs) {
+            this.confirmDelayMs = confirmDelayMs;
+        }
+
+        @Override
+        public synchronized void publish(String routingKey, byte[] body) throws Exception {
+            pending.add(routingKey + "=" + new String(body, "UTF-8"));
+        }
+
+        @Override
+        public void confirm() throws Exception {
+            if (confirmDelayMs > 0) {
+                Thread.sleep(confirmDelayMs);
+            }
+            synchronized (this) {
+                if (failures > 0) {
+                    failures--;
+                    throw new Exception("connection lost");
+                }
+                confirmed.addAll(pending);
+                pending.clear();
+                confirms++;
+            }
+        }
+
+        @Override
+        public synchronized void reset() {
+            pending.clear();
+        }
+
+        synchronized int size() {
+            return confirmed.size();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _file = File.createTempFile("outbox", ".dat");
+        _file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        _file.delete();
+    }
+
+    private static void waitFor(StandInSink sink, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sink.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, sink.size());
+    }
+
+    @Test
+    public void testPublishesInOrder() throws Exception {
+        StandInSink sink = new StandInSink(0);
+        EventOutbox outbox = new EventOutbox(_file, 1024 * 1024, sink, 10, 10);
+        outbox.start();
+        for (int i = 0; i < 100; i++) {
+            outbox.append("key" + i, ("event" + i).getBytes("UTF-8"));
+        }
+        waitFor(sink, 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key" + i + "=event" + i, sink.confirmed.get(i));
+        }
+        outbox.close();
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void testRepublishesAfterFailure() throws Exception {
+        StandInSink sink = new StandInSink(0);
+        sink.failures = 3;
+        EventOutbox outbox = new EventOutbox(_file, 1024 * 1024, sink, 5, 10);
+        for (int i = 0; i < 20; i++) {
+            outbox.append("key", ("event" + i).getBytes("UTF-8"));
+        }
+        outbox.start();
+        waitFor(sink, 20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("key=event" + i, sink.confirmed.get(i));
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void testOutageIsRetriedAtTheRetryInterval() throws Exception {
+        StandInSink sink = new StandInSink(0);
+        sink.failures = 1000;
+        EventOutbox outbox = new EventOutbox(_file, 1024 * 1024, sink, 10, 200);
+        outbox.start();
+        // new events keep coming in during the outage
+        for (int i = 0; i < 500; i++) {
+            outbox.append("key", ("event" + i).getBytes("UTF-8"));
+            Thread.sleep(2);
+        }
+        int attempts = 1000 - sink.failures;
+        assertTrue(attempts + " attempts", attempts <= 10);
+
+        sink.failures = 0;
+        waitFor(sink, 500);
+        outbox.close();
+    }
+
+    @Test
+    public void testRecoversUnconfirmedEvents() throws Exception {
+        StandInSink sink = new StandInSink(0);
+        EventOutbox outbox = new EventOutbox(_file, 64 * 1024, sink, 10, 10);
+        outbox.start();
+        for (int i = 0; i < 10; i++) {
+            outbox.append("key", ("event" + i).getBytes("UTF-8"));
+        }
+        waitFor(sink, 10);
+        outbox.stop();
+        for (int i = 10; i < 15; i++) {
+            outbox.append("key", ("event" + i).getBytes("UTF-8"));
+        }
+        outbox.close();
+
+        StandInSink recovered = new StandInSink(0);
+        outbox = new EventOutbox(_file, 64 * 1024, recovered, 10, 10);
+        outbox.start();
+        waitFor(recovered, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("key=event" + (i + 10), recovered.confirmed.get(i));
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void testWrapsAroundAndRejectsWhenFull() throws Exception {
+        StandInSink sink = new StandInSink(0);
+        // room for a few dozen records only
+        EventOutbox outbox = new EventOutbox(_file, 1024, sink, 4, 10);
+        byte[] body = new byte[40];
+        int appended = 0;
+        try {
+            for (int i = 0; i < 100; i++) {
+                outbox.append("key", body);
+                appended++;
+            }
+            fail("Outbox should be full");
+        } catch (EventOutbox.OutboxFullException e) {
+            // expected, nothing takes events out of the outbox yet
+        }
+        assertTrue(appended > 10);
+
+        outbox.start();
+        waitFor(sink, appended);
+        for (int i = 0; i < 500; i++) {
+            outbox.append("key", body);
+            waitFor(sink, appended + i + 1);
+        }
+        outbox.close();
+
+        // the outbox wrapped around several times, reopening it must not publish anything again
+        StandInSink recovered = new StandInSink(0);
+        outbox = new EventOutbox(_file, 1024, recovered, 4, 10);
+        assertTrue(outbox.isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void testConfirmsAreBatched() throws Exception {
+        int count = 100000;
+        int batchSize = 500;
+        byte[] body = new byte[512];
+        // 1ms per confirm round trip, as for a broker on the local network
+        StandInSink sink = new StandInSink(1);
+        EventOutbox outbox = new EventOutbox(_file, 128 * 1024 * 1024, sink, batchSize, 10);
+        outbox.start();
+
+        for (int i = 0; i < count; i++) {
+            outbox.append("ResourceStateEvent.VirtualMachine", body);
+        }
+        waitFor(sink, count);
+        outbox.close();
+
+        // a confirm covers at most a batch, and events appended while one is outstanding share the next
+        assertTrue(sink.confirms + " confirms", sink.confirms >= count / batchSize);
+        assertTrue(sink.confirms + " confirms", sink.confirms < count / 10);
+    }
+}
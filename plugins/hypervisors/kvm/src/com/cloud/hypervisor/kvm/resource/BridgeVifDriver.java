@@ -210,11 +210,11 @@ public class BridgeVifDriver extends VifDriverBase {
 
     private void deleteVnetBr(String brName) {
         synchronized (_vnetBridgeMonitor) {
-            String cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName);
+            String cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName, 0, true);
             if (cmdout == null)
                 // Bridge does not exist
                 return;
-            cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName + "/brif | tr '\n' ' '");
+            cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName + "/brif | tr '\n' ' '", 0, true);
             if (cmdout != null && cmdout.contains("vnet")) {
                 // Active VM remains on that bridge
                 return;
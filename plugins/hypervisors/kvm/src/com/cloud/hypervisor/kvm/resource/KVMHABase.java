@@ -65,7 +65,7 @@ public class KVMHABase {
     protected String checkingMountPoint(NfsStoragePool pool, String poolName) {
         String mountSource = pool._poolIp + ":" + pool._poolMountSourcePath;
         String mountPaths = Script
-                .runSimpleBashScript("cat /proc/mounts | grep " + mountSource);
+                .runSimpleBashScript("cat /proc/mounts | grep " + mountSource, 0, true);
         String destPath = pool._mountDestPath;
 
         if (mountPaths != null) {
@@ -148,6 +148,8 @@ import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.RebootRouterCommand;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
 import com.cloud.agent.api.SetupGuestNetworkAnswer;
 import com.cloud.agent.api.SetupGuestNetworkCommand;
 import com.cloud.agent.api.StartAnswer;
@@ -379,6 +381,9 @@ ServerResource {
     protected String _guestCpuModel;
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+    // last ruleset programmed for each vm, the base of SecurityGroupRulesDeltaCmd;
+    // dropped whenever the rules of the vm are reset or go away with it
+    private final Map<String, SecurityGroupRulesCmd> _appliedRulesets = new ConcurrentHashMap<String, SecurityGroupRulesCmd>();
 
     protected boolean _disconnected = true;
     protected int _timeout;
@@ -759,6 +764,13 @@ ServerResource {
         _dom0MinMem = NumbersUtil.parseInt(value, 0) * 1024 * 1024;
 
         LibvirtConnection.initialize(_hypervisorURI);
+        value = (String) params.get("libvirt.connection.check.interval");
+        LibvirtConnection.setCheckInterval(NumbersUtil.parseInt(value, 10) * 1000L);
+        value = (String) params.get("libvirt.domain.events");
+        if (value == null || Boolean.parseBoolean(value)) {
+            value = (String) params.get("libvirt.domain.resync.interval");
+            LibvirtConnection.enableDomainEvents(NumbersUtil.parseInt(value, 300) * 1000L);
+        }
         Connect conn = null;
         try {
             conn = LibvirtConnection.getConnection();
@@ -1299,6 +1311,8 @@ ServerResource {
                 return execute((ModifyStoragePoolCommand) cmd);
             } else if (cmd instanceof SecurityGroupRulesCmd) {
                 return execute((SecurityGroupRulesCmd) cmd);
+            } else if (cmd instanceof SecurityGroupRulesDeltaCmd) {
+                return execute((SecurityGroupRulesDeltaCmd) cmd);
             } else if (cmd instanceof DeleteStoragePoolCommand) {
                 return execute((DeleteStoragePoolCommand) cmd);
             } else if (cmd instanceof FenceCommand) {
@@ -2743,6 +2757,19 @@ ServerResource {
         return answer;
     }
 
+    private Answer execute(SecurityGroupRulesDeltaCmd cmd) {
+        SecurityGroupRulesCmd full = cmd.rebuild(_appliedRulesets.get(cmd.getVmName()));
+        if (full == null) {
+            s_logger.debug("Ruleset delta for vm " + cmd.getVmName() + " does not apply on top of the programmed ruleset, base sig=" + cmd.getBaseSignature());
+            return new SecurityGroupRuleAnswer(cmd, false, "base ruleset mismatch", FailureReason.DELTA_BASE_MISMATCH);
+        }
+        Answer answer = execute(full);
+        if (!answer.getResult()) {
+            return new SecurityGroupRuleAnswer(cmd, false, answer.getDetails(), FailureReason.PROGRAMMING_FAILED);
+        }
+        return new SecurityGroupRuleAnswer(cmd);
+    }
+
     private Answer execute(SecurityGroupRulesCmd cmd) {
         String vif = null;
         String brname = null;
@@ -2752,6 +2779,7 @@ ServerResource {
             vif = nics.get(0).getDevName();
             brname = nics.get(0).getBrName();
         } catch (LibvirtException e) {
+            _appliedRulesets.remove(cmd.getVmName());
             return new SecurityGroupRuleAnswer(cmd, false, e.toString());
         }
 
@@ -2761,11 +2789,13 @@ ServerResource {
                 cmd.getGuestMac(), cmd.stringifyRules(), vif, brname, cmd.getSecIpsString());
 
         if (!result) {
+            _appliedRulesets.remove(cmd.getVmName());
             s_logger.warn("Failed to program network rules for vm "
                     + cmd.getVmName());
             return new SecurityGroupRuleAnswer(cmd, false,
                     "programming network rules failed");
         } else {
+            _appliedRulesets.put(cmd.getVmName(), cmd);
             s_logger.debug("Programmed network rules for vm " + cmd.getVmName()
                     + " guestIp=" + cmd.getGuestIp() + ",ingress numrules="
                     + cmd.getIngressRuleSet().length + ",egress numrules="
@@ -4272,6 +4302,13 @@ ServerResource {
             }
         }
 
+        // the rules of a vm that stopped behind our back are gone with it
+        for (final Map.Entry<String, State> change : changes.entrySet()) {
+            if (change.getValue() != State.Running) {
+                _appliedRulesets.remove(change.getKey());
+            }
+        }
+
         return changes;
     }
 
@@ -4350,6 +4387,35 @@ ServerResource {
         return la;
     }
 
+    /**
+     * @return the domain states tracked from lifecycle events for the connection, or null if they are not tracked
+     */
+    private Map<String, DomainInfo.DomainState> getRegisteredDomainStates(HypervisorType type, Connect conn) {
+        LibvirtDomainRegistry registry = LibvirtConnection.getDomainRegistry(LibvirtConnection.getHypervisorURI(type.toString()));
+        if (registry == null) {
+            return null;
+        }
+        return registry.getDomainStates(conn);
+    }
+
+    private HashMap<String, State> convertToStates(Map<String, DomainInfo.DomainState> states) {
+        final HashMap<String, State> vmStates = new HashMap<String, State>();
+        for (Map.Entry<String, DomainInfo.DomainState> entry : states.entrySet()) {
+            vmStates.put(entry.getKey(), convertToState(entry.getValue()));
+        }
+        return vmStates;
+    }
+
+    private HashMap<String, HostVmStateReportEntry> convertToHostVmStateReport(Map<String, DomainInfo.DomainState> states, Connect conn)
+            throws LibvirtException {
+        final HashMap<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
+        String hostName = conn.getHostName();
+        for (Map.Entry<String, DomainInfo.DomainState> entry : states.entrySet()) {
+            vmStates.put(entry.getKey(), new HostVmStateReportEntry(convertToPowerState(entry.getValue()), hostName, null));
+        }
+        return vmStates;
+    }
+
     private HashMap<String, State> getAllVms() {
         final HashMap<String, State> vmStates = new HashMap<String, State>();
         Connect conn = null;
@@ -4357,7 +4423,8 @@ ServerResource {
         if (_hypervisorType == HypervisorType.LXC) {
         try {
             conn = LibvirtConnection.getConnectionByType(HypervisorType.LXC.toString());
-            vmStates.putAll(getAllVms(conn));
+            Map<String, DomainInfo.DomainState> states = getRegisteredDomainStates(HypervisorType.LXC, conn);
+            vmStates.putAll(states != null ? convertToStates(states) : getAllVms(conn));
         } catch (LibvirtException e) {
             s_logger.debug("Failed to get connection: " + e.getMessage());
         }
@@ -4366,7 +4433,8 @@ ServerResource {
         if (_hypervisorType == HypervisorType.KVM) {
         try {
             conn = LibvirtConnection.getConnectionByType(HypervisorType.KVM.toString());
-            vmStates.putAll(getAllVms(conn));
+            Map<String, DomainInfo.DomainState> states = getRegisteredDomainStates(HypervisorType.KVM, conn);
+            vmStates.putAll(states != null ? convertToStates(states) : getAllVms(conn));
         } catch (LibvirtException e) {
             s_logger.debug("Failed to get connection: " + e.getMessage());
         }
@@ -4455,7 +4523,8 @@ ServerResource {
         if (_hypervisorType == HypervisorType.LXC) {
         try {
             conn = LibvirtConnection.getConnectionByType(HypervisorType.LXC.toString());
-            vmStates.putAll(getHostVmStateReport(conn));
+            Map<String, DomainInfo.DomainState> states = getRegisteredDomainStates(HypervisorType.LXC, conn);
+            vmStates.putAll(states != null ? convertToHostVmStateReport(states, conn) : getHostVmStateReport(conn));
         } catch (LibvirtException e) {
             s_logger.debug("Failed to get connection: " + e.getMessage());
         }
@@ -4464,7 +4533,8 @@ ServerResource {
         if (_hypervisorType == HypervisorType.KVM) {
         try {
             conn = LibvirtConnection.getConnectionByType(HypervisorType.KVM.toString());
-            vmStates.putAll(getHostVmStateReport(conn));
+            Map<String, DomainInfo.DomainState> states = getRegisteredDomainStates(HypervisorType.KVM, conn);
+            vmStates.putAll(states != null ? convertToHostVmStateReport(states, conn) : getHostVmStateReport(conn));
         } catch (LibvirtException e) {
             s_logger.debug("Failed to get connection: " + e.getMessage());
         }
@@ -4492,6 +4562,14 @@ ServerResource {
             return null;
         }
 
+        String hostName = null;
+        try {
+            hostName = conn.getHostName();
+        } catch (final LibvirtException e) {
+            s_logger.warn("Unable to get host name", e);
+            return null;
+        }
+
         Domain dm = null;
         for (int i = 0; i < ids.length; i++) {
             try {
@@ -4504,7 +4582,7 @@ ServerResource {
                 s_logger.trace("VM " + dm.getName() + ": powerstate = " + ps
                         + "; vm state=" + state.toString());
                 String vmName = dm.getName();
-                vmStates.put(vmName, new HostVmStateReportEntry(state, conn.getHostName(), null));
+                vmStates.put(vmName, new HostVmStateReportEntry(state, hostName, null));
             } catch (final LibvirtException e) {
                 s_logger.warn("Unable to get vms", e);
             } finally {
@@ -4529,7 +4607,7 @@ ServerResource {
                 s_logger.trace("VM " + vmName + ": powerstate = " + ps
                         + "; vm state=" + state.toString());
 
-                vmStates.put(vmName, new HostVmStateReportEntry(state, conn.getHostName(), null));
+                vmStates.put(vmName, new HostVmStateReportEntry(state, hostName, null));
             } catch (final LibvirtException e) {
                 s_logger.warn("Unable to get vms", e);
             } finally {
@@ -5115,6 +5193,7 @@ ServerResource {
     }
 
     protected boolean destroy_network_rules_for_vm(Connect conn, String vmName) {
+        _appliedRulesets.remove(vmName);
         if (!_can_bridge_firewall) {
             return false;
         }
@@ -5139,6 +5218,7 @@ ServerResource {
 
     protected boolean default_network_rules(Connect conn, String vmName,
             NicTO nic, Long vmId, String secIpStr) {
+        _appliedRulesets.remove(vmName);
         if (!_can_bridge_firewall) {
             return false;
         }
@@ -16,49 +16,112 @@
 // under the License.
 package com.cloud.hypervisor.kvm.resource;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
 
+import com.cloud.exception.InternalErrorException;
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 
 public class LibvirtConnection {
     private static final Logger s_logger = Logger.getLogger(LibvirtConnection.class);
-    static private Map<String, Connect> _connections = new HashMap<String, Connect>();
+    // read without locking, only changed under the class lock
+    static private Map<String, Connect> _connections = new ConcurrentHashMap<String, Connect>();
+    static private Map<String, Long> _lastChecked = new ConcurrentHashMap<String, Long>();
+    static private Map<String, LibvirtDomainRegistry> _registries = new ConcurrentHashMap<String, LibvirtDomainRegistry>();
 
     static private Connect _connection;
     static private String _hypervisorURI;
 
+    // how long a connection that answered is trusted without asking libvirtd again
+    static private volatile long _checkInterval = 0;
+    static private boolean _domainEvents = false;
+    static private long _resyncInterval = 300000;
+    static private Thread _eventLoop;
+
     static public Connect getConnection() throws LibvirtException {
         return getConnection(_hypervisorURI);
     }
 
+    /**
+     * Only opening and reopening a connection is serialized, callers sharing a live connection
+     * do not wait for each other.
+     */
     static public Connect getConnection(String hypervisorURI) throws LibvirtException {
         Connect conn = _connections.get(hypervisorURI);
+        if (conn != null && isAlive(hypervisorURI, conn)) {
+            return conn;
+        }
 
-        if (conn == null) {
-            conn = new Connect(hypervisorURI, false);
-            _connections.put(hypervisorURI, conn);
-        } else {
-            try {
-                conn.getVersion();
-            } catch (LibvirtException e) {
-                s_logger.debug("Connection with libvirtd is broken, due to " + e.getMessage());
-                conn = new Connect(hypervisorURI, false);
-                _connections.put(hypervisorURI, conn);
+        synchronized (LibvirtConnection.class) {
+            Connect current = _connections.get(hypervisorURI);
+            if (current != null && current != conn) {
+                // opened or reopened by another thread in the meantime
+                return current;
             }
+            return connect(hypervisorURI);
         }
+    }
 
+    static private boolean isAlive(String hypervisorURI, Connect conn) {
+        long now = System.currentTimeMillis();
+        Long lastChecked = _lastChecked.get(hypervisorURI);
+        if (lastChecked != null && now - lastChecked < _checkInterval) {
+            return true;
+        }
+        try {
+            conn.getVersion();
+        } catch (LibvirtException e) {
+            s_logger.debug("Connection with libvirtd is broken, due to " + e.getMessage());
+            return false;
+        }
+        _lastChecked.put(hypervisorURI, now);
+        return true;
+    }
+
+    // called with the class lock held
+    static private Connect connect(String hypervisorURI) throws LibvirtException {
+        Connect conn = new Connect(hypervisorURI, false);
+        _lastChecked.put(hypervisorURI, System.currentTimeMillis());
+        _connections.put(hypervisorURI, conn);
+        if (_domainEvents) {
+            // listeners registered on the old connection died with it
+            LibvirtDomainRegistry registry = _registries.get(hypervisorURI);
+            if (registry == null) {
+                registry = new LibvirtDomainRegistry(_resyncInterval);
+                _registries.put(hypervisorURI, registry);
+            }
+            registry.attach(conn);
+        }
         return conn;
     }
 
+    /**
+     * @return the domain registry of the connection, or null if domain events are not tracked for it
+     */
+    static public LibvirtDomainRegistry getDomainRegistry(String hypervisorURI) {
+        LibvirtDomainRegistry registry = _registries.get(hypervisorURI);
+        if (registry == null || !registry.isActive()) {
+            return null;
+        }
+        return registry;
+    }
+
     static public Connect getConnectionByVmName(String vmName) throws LibvirtException {
         HypervisorType[] hypervisors = new HypervisorType[] { HypervisorType.KVM, Hypervisor.HypervisorType.LXC };
 
+        for (HypervisorType hypervisor : hypervisors) {
+            String uri = getHypervisorURI(hypervisor.toString());
+            LibvirtDomainRegistry registry = getDomainRegistry(uri);
+            if (registry != null && registry.contains(vmName)) {
+                return getConnection(uri);
+            }
+        }
+
         for (HypervisorType hypervisor : hypervisors) {
             try {
                 Connect conn = LibvirtConnection.getConnectionByType(hypervisor.toString());
@@ -83,6 +146,55 @@ public class LibvirtConnection {
         _hypervisorURI = hypervisorURI;
     }
 
+    static void setCheckInterval(long checkInterval) {
+        _checkInterval = checkInterval;
+    }
+
+    /**
+     * Starts the libvirt event loop and tracks domains of every connection opened from now on
+     * through lifecycle events. Must be called before the first connection is opened.
+     */
+    static synchronized void enableDomainEvents(long resyncInterval) {
+        if (_domainEvents) {
+            return;
+        }
+        try {
+            LibvirtEvents.initEventLoop();
+        } catch (InternalErrorException e) {
+            s_logger.warn("Unable to start libvirt event loop, domain states will be polled: " + e.getMessage());
+            return;
+        }
+        _resyncInterval = resyncInterval;
+        _domainEvents = true;
+
+        _eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        LibvirtEvents.processEvent();
+                    } catch (InternalErrorException e) {
+                        s_logger.warn("Error while processing libvirt events: " + e.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "LibvirtEventLoop");
+        _eventLoop.setDaemon(true);
+        _eventLoop.start();
+
+        // connections opened before events were on do not carry a listener yet
+        for (Map.Entry<String, Connect> entry : _connections.entrySet()) {
+            LibvirtDomainRegistry registry = new LibvirtDomainRegistry(_resyncInterval);
+            _registries.put(entry.getKey(), registry);
+            registry.attach(entry.getValue());
+        }
+    }
+
     static String getHypervisorURI(String hypervisorType) {
         if ("LXC".equalsIgnoreCase(hypervisorType)) {
             return "lxc:///";
@@ -0,0 +1,226 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+
+import com.cloud.exception.InternalErrorException;
+
+/**
+ * Keeps the name and state of every domain known to one libvirt connection,
+ * maintained from libvirt domain lifecycle events. State reports are served
+ * from the registry instead of listing and looking up every domain.
+ *
+ * The registry is loaded with a full listing when it is attached to a
+ * connection and reloaded every resync interval to make up for events missed
+ * while libvirtd restarted. If the listener cannot be registered the registry
+ * stays inactive and callers go to libvirt directly.
+ */
+public class LibvirtDomainRegistry implements LibvirtEvents.LifecycleListener {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainRegistry.class);
+
+    /**
+     * Domain lifecycle event types, in the order of virDomainEventType.
+     */
+    public static enum EventType {
+        DEFINED, UNDEFINED, STARTED, SUSPENDED, RESUMED, STOPPED, SHUTDOWN, PMSUSPENDED, CRASHED
+    }
+
+    private static final int MAX_RELOADS = 3;
+
+    private final Map<String, DomainState> _states = new ConcurrentHashMap<String, DomainState>();
+    private final AtomicLong _eventSeq = new AtomicLong();
+    private final long _resyncInterval;
+    private volatile boolean _active = false;
+    private volatile long _lastSync = 0;
+    // keeps the native callback alive for as long as the connection
+    private Object _callback;
+
+    public LibvirtDomainRegistry(long resyncInterval) {
+        _resyncInterval = resyncInterval;
+    }
+
+    public void attach(Connect conn) {
+        _active = false;
+        try {
+            _callback = register(conn);
+            reload(conn);
+            _active = true;
+        } catch (InternalErrorException e) {
+            s_logger.warn("Unable to track domain events on libvirt connection, falling back to polling: " + e.getMessage());
+        } catch (LibvirtException e) {
+            s_logger.warn("Unable to track domain events on libvirt connection, falling back to polling: " + e.getMessage());
+        }
+    }
+
+    protected Object register(Connect conn) throws InternalErrorException {
+        return LibvirtEvents.addLifecycleListener(conn, this);
+    }
+
+    public void detach() {
+        _active = false;
+    }
+
+    public boolean isActive() {
+        return _active;
+    }
+
+    /**
+     * @return a copy of the domain states, or null if the registry is not tracking the connection
+     */
+    public Map<String, DomainState> getDomainStates(Connect conn) {
+        if (!_active) {
+            return null;
+        }
+        if (System.currentTimeMillis() - _lastSync > _resyncInterval) {
+            try {
+                reload(conn);
+            } catch (LibvirtException e) {
+                s_logger.warn("Unable to reload domains from libvirt: " + e.getMessage());
+                return null;
+            }
+        }
+        return new HashMap<String, DomainState>(_states);
+    }
+
+    /**
+     * @return true if the domain is known, false if it is not, null if the registry is not tracking the connection
+     */
+    public Boolean contains(String vmName) {
+        if (!_active) {
+            return null;
+        }
+        return _states.containsKey(vmName);
+    }
+
+    protected void reload(Connect conn) throws LibvirtException {
+        for (int i = 0; i < MAX_RELOADS; i++) {
+            long seq = _eventSeq.get();
+            Map<String, DomainState> states = listDomains(conn);
+            if (_eventSeq.get() == seq || i == MAX_RELOADS - 1) {
+                // drop domains that went away, then take the listing
+                _states.keySet().retainAll(states.keySet());
+                _states.putAll(states);
+                _lastSync = System.currentTimeMillis();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Loaded " + states.size() + " domains from libvirt");
+                }
+                return;
+            }
+            // events arrived while listing, the listing may predate them
+        }
+    }
+
+    protected Map<String, DomainState> listDomains(Connect conn) throws LibvirtException {
+        Map<String, DomainState> states = new HashMap<String, DomainState>();
+        for (int id : conn.listDomains()) {
+            Domain dm = null;
+            try {
+                dm = conn.domainLookupByID(id);
+                states.put(dm.getName(), dm.getInfo().state);
+            } catch (LibvirtException e) {
+                // the domain went away in between
+                s_logger.trace("Ignoring libvirt error.", e);
+            } finally {
+                free(dm);
+            }
+        }
+        for (String name : conn.listDefinedDomains()) {
+            Domain dm = null;
+            try {
+                dm = conn.domainLookupByName(name);
+                states.put(name, dm.getInfo().state);
+            } catch (LibvirtException e) {
+                s_logger.trace("Ignoring libvirt error.", e);
+            } finally {
+                free(dm);
+            }
+        }
+        return states;
+    }
+
+    private static void free(Domain dm) {
+        try {
+            if (dm != null) {
+                dm.free();
+            }
+        } catch (LibvirtException e) {
+            s_logger.trace("Ignoring libvirt error.", e);
+        }
+    }
+
+    @Override
+    public void onLifecycleChange(String name, EventType type, boolean persistent) {
+        _eventSeq.incrementAndGet();
+        if (name == null || type == null) {
+            // resync on next read
+            _lastSync = 0;
+            return;
+        }
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Domain " + name + " lifecycle event " + type);
+        }
+        if (type == EventType.STOPPED && persistent) {
+            // a stopped persistent domain is still defined
+            _states.put(name, DomainState.VIR_DOMAIN_SHUTOFF);
+            return;
+        }
+        onEvent(name, type);
+    }
+
+    protected void onEvent(String name, EventType type) {
+        switch (type) {
+        case DEFINED:
+            if (!_states.containsKey(name)) {
+                _states.put(name, DomainState.VIR_DOMAIN_SHUTOFF);
+            }
+            break;
+        case UNDEFINED:
+            _states.remove(name);
+            break;
+        case STARTED:
+        case RESUMED:
+            _states.put(name, DomainState.VIR_DOMAIN_RUNNING);
+            break;
+        case SUSPENDED:
+            _states.put(name, DomainState.VIR_DOMAIN_PAUSED);
+            break;
+        case SHUTDOWN:
+            _states.put(name, DomainState.VIR_DOMAIN_SHUTDOWN);
+            break;
+        case CRASHED:
+            _states.put(name, DomainState.VIR_DOMAIN_CRASHED);
+            break;
+        case STOPPED:
+            // transient domains, which is what the agent starts, are gone once stopped
+            _states.remove(name);
+            break;
+        default:
+            _lastSync = 0;
+            break;
+        }
+    }
+}
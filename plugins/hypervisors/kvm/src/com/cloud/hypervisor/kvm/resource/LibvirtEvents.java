@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.lang.reflect.Field;
+
+import org.libvirt.Connect;
+import org.libvirt.jna.ConnectionPointer;
+import org.libvirt.jna.DomainPointer;
+
+import com.cloud.exception.InternalErrorException;
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * Domain lifecycle events straight from the libvirt C library. libvirt-java
+ * 0.5.1 only exposes the generic domain event callback, which does not carry
+ * the event type, and does not expose the default event loop either.
+ */
+final class LibvirtEvents {
+    // virDomainEventID
+    private static final int VIR_DOMAIN_EVENT_ID_LIFECYCLE = 0;
+
+    // virDomainEventType, in the order of LibvirtDomainRegistry.EventType
+    private static final LibvirtDomainRegistry.EventType[] EVENT_TYPES = LibvirtDomainRegistry.EventType.values();
+
+    interface Api extends Library {
+        int virEventRegisterDefaultImpl();
+
+        int virEventRunDefaultImpl();
+
+        int virConnectDomainEventRegisterAny(ConnectionPointer conn, DomainPointer dom, int eventID, LifecycleCallback cb, Pointer opaque, Pointer freecb);
+
+        String virDomainGetName(DomainPointer dom);
+
+        int virDomainIsPersistent(DomainPointer dom);
+    }
+
+    interface LifecycleCallback extends Callback {
+        int eventCallback(ConnectionPointer conn, DomainPointer dom, int event, int detail, Pointer opaque);
+    }
+
+    interface LifecycleListener {
+        /**
+         * @param name name of the domain, null if it could not be read
+         * @param type type of the event, null for event types this version does not know
+         */
+        void onLifecycleChange(String name, LibvirtDomainRegistry.EventType type, boolean persistent);
+    }
+
+    private static Api s_api;
+
+    private LibvirtEvents() {
+    }
+
+    private static synchronized Api getApi() throws InternalErrorException {
+        if (s_api == null) {
+            try {
+                s_api = (Api)Native.loadLibrary("virt", Api.class);
+            } catch (UnsatisfiedLinkError e) {
+                throw new InternalErrorException("Unable to load the libvirt library: " + e.getMessage());
+            }
+        }
+        return s_api;
+    }
+
+    /**
+     * Registers the default event loop of libvirt. Must be called before the connections
+     * events are wanted on are opened.
+     */
+    static void initEventLoop() throws InternalErrorException {
+        if (getApi().virEventRegisterDefaultImpl() < 0) {
+            throw new InternalErrorException("Unable to register the libvirt default event loop");
+        }
+    }
+
+    /**
+     * Waits for and dispatches one round of events, called over and over by the event loop thread.
+     */
+    static void processEvent() throws InternalErrorException {
+        if (getApi().virEventRunDefaultImpl() < 0) {
+            throw new InternalErrorException("Unable to run the libvirt default event loop");
+        }
+    }
+
+    /**
+     * Passes the lifecycle events of every domain of the connection to the listener. The returned
+     * callback must stay referenced for as long as the connection lives, the native side only
+     * holds on to a pointer to it.
+     */
+    static Object addLifecycleListener(Connect conn, final LifecycleListener listener) throws InternalErrorException {
+        final Api api = getApi();
+        LifecycleCallback callback = new LifecycleCallback() {
+            @Override
+            public int eventCallback(ConnectionPointer conn, DomainPointer dom, int event, int detail, Pointer opaque) {
+                LibvirtDomainRegistry.EventType type = event >= 0 && event < EVENT_TYPES.length ? EVENT_TYPES[event] : null;
+                listener.onLifecycleChange(api.virDomainGetName(dom), type, api.virDomainIsPersistent(dom) == 1);
+                return 0;
+            }
+        };
+        if (api.virConnectDomainEventRegisterAny(getPointer(conn), null, VIR_DOMAIN_EVENT_ID_LIFECYCLE, callback, null, null) < 0) {
+            throw new InternalErrorException("Unable to register for domain lifecycle events");
+        }
+        return callback;
+    }
+
+    private static ConnectionPointer getPointer(Connect conn) throws InternalErrorException {
+        try {
+            Field field = Connect.class.getDeclaredField("VCP");
+            field.setAccessible(true);
+            return (ConnectionPointer)field.get(conn);
+        } catch (Exception e) {
+            throw new InternalErrorException("Unable to get the native connection: " + e.getMessage());
+        }
+    }
+}
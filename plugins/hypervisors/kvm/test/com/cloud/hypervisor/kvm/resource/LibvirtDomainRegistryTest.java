@@ -0,0 +1,183 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.mockito.Mockito;
+
+import com.cloud.exception.InternalErrorException;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainRegistry.EventType;
+
+public class LibvirtDomainRegistryTest {
+
+    private static final String TEST_DOMAIN_XML = "<domain type='test'><name>registry-test</name><memory>8192</memory>"
+            + "<os><type>hvm</type></os></domain>";
+
+    private static boolean s_eventLoopStarted = false;
+
+    private static synchronized void startEventLoop() throws InternalErrorException {
+        if (s_eventLoopStarted) {
+            return;
+        }
+        LibvirtEvents.initEventLoop();
+        Thread loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        LibvirtEvents.processEvent();
+                    } catch (InternalErrorException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        loop.setDaemon(true);
+        loop.start();
+        s_eventLoopStarted = true;
+    }
+
+    private static Connect connectTestDriver() {
+        try {
+            startEventLoop();
+            return new Connect("test:///default", false);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException(e);
+        } catch (NoClassDefFoundError e) {
+            Assume.assumeNoException(e);
+        } catch (InternalErrorException e) {
+            Assume.assumeNoException(e);
+        } catch (LibvirtException e) {
+            Assume.assumeNoException(e);
+        }
+        return null;
+    }
+
+    private static boolean waitForState(LibvirtDomainRegistry registry, Connect conn, String name, DomainState expected) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            DomainState state = registry.getDomainStates(conn).get(name);
+            if (expected == null ? state == null : expected == state) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    @Test
+    public void testEventsUpdateStates() throws LibvirtException {
+        Connect conn = Mockito.mock(Connect.class);
+        Mockito.when(conn.listDomains()).thenReturn(new int[0]);
+        Mockito.when(conn.listDefinedDomains()).thenReturn(new String[0]);
+
+        LibvirtDomainRegistry registry = new LibvirtDomainRegistry(Long.MAX_VALUE) {
+            @Override
+            protected Object register(Connect conn) {
+                return null;
+            }
+        };
+        registry.attach(conn);
+        assertTrue(registry.isActive());
+        assertTrue(registry.getDomainStates(conn).isEmpty());
+
+        registry.onEvent("i-2-10-VM", EventType.STARTED);
+        assertEquals(DomainState.VIR_DOMAIN_RUNNING, registry.getDomainStates(conn).get("i-2-10-VM"));
+        registry.onEvent("i-2-10-VM", EventType.SUSPENDED);
+        assertEquals(DomainState.VIR_DOMAIN_PAUSED, registry.getDomainStates(conn).get("i-2-10-VM"));
+        registry.onEvent("i-2-10-VM", EventType.RESUMED);
+        assertEquals(DomainState.VIR_DOMAIN_RUNNING, registry.getDomainStates(conn).get("i-2-10-VM"));
+        registry.onEvent("i-2-10-VM", EventType.STOPPED);
+        assertFalse(registry.contains("i-2-10-VM"));
+
+        // a defined domain keeps its state on redefinition
+        registry.onEvent("r-4-VM", EventType.STARTED);
+        registry.onEvent("r-4-VM", EventType.DEFINED);
+        assertEquals(DomainState.VIR_DOMAIN_RUNNING, registry.getDomainStates(conn).get("r-4-VM"));
+        registry.onEvent("r-4-VM", EventType.UNDEFINED);
+        assertFalse(registry.contains("r-4-VM"));
+
+        // a persistent domain that stops stays defined
+        registry.onLifecycleChange("r-4-VM", EventType.STOPPED, true);
+        assertEquals(DomainState.VIR_DOMAIN_SHUTOFF, registry.getDomainStates(conn).get("r-4-VM"));
+
+        // listing is done once on attach, reads are served from the registry
+        Mockito.verify(conn, Mockito.times(1)).listDomains();
+    }
+
+    @Test
+    public void testInactiveWithoutListener() throws LibvirtException {
+        Connect conn = Mockito.mock(Connect.class);
+
+        LibvirtDomainRegistry registry = new LibvirtDomainRegistry(Long.MAX_VALUE) {
+            @Override
+            protected Object register(Connect conn) throws InternalErrorException {
+                throw new InternalErrorException("no events");
+            }
+        };
+        registry.attach(conn);
+        assertFalse(registry.isActive());
+        assertNull(registry.getDomainStates(conn));
+        assertNull(registry.contains("i-2-10-VM"));
+    }
+
+    @Test
+    public void testAgainstTestDriver() throws Exception {
+        Connect conn = connectTestDriver();
+        LibvirtDomainRegistry registry = new LibvirtDomainRegistry(Long.MAX_VALUE);
+        registry.attach(conn);
+        Assume.assumeTrue(registry.isActive());
+
+        // the test driver comes with one running domain named "test"
+        Map<String, DomainState> states = registry.getDomainStates(conn);
+        assertEquals(DomainState.VIR_DOMAIN_RUNNING, states.get("test"));
+
+        Domain dm = conn.domainLookupByName("test");
+        try {
+            dm.suspend();
+            assertTrue(waitForState(registry, conn, "test", DomainState.VIR_DOMAIN_PAUSED));
+            dm.resume();
+            assertTrue(waitForState(registry, conn, "test", DomainState.VIR_DOMAIN_RUNNING));
+        } finally {
+            dm.free();
+        }
+
+        Domain defined = conn.domainDefineXML(TEST_DOMAIN_XML);
+        try {
+            assertTrue(waitForState(registry, conn, "registry-test", DomainState.VIR_DOMAIN_SHUTOFF));
+            defined.create();
+            assertTrue(waitForState(registry, conn, "registry-test", DomainState.VIR_DOMAIN_RUNNING));
+            defined.destroy();
+            defined.undefine();
+            assertTrue(waitForState(registry, conn, "registry-test", null));
+        } finally {
+            defined.free();
+        }
+        conn.close();
+    }
+}
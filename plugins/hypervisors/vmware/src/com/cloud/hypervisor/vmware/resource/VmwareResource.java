@@ -75,7 +75,6 @@ import com.vmware.vim25.HostScsiTopologyTarget;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ObjectContent;
 import com.vmware.vim25.OptionValue;
-import com.vmware.vim25.PerfCounterInfo;
 import com.vmware.vim25.PerfEntityMetric;
 import com.vmware.vim25.PerfEntityMetricBase;
 import com.vmware.vim25.PerfMetricId;
@@ -86,7 +85,6 @@ import com.vmware.vim25.PerfSampleInfo;
 import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ToolsUnavailableFaultMsg;
 import com.vmware.vim25.VMwareDVSPortSetting;
-import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VirtualDevice;
 import com.vmware.vim25.VirtualDeviceBackingInfo;
 import com.vmware.vim25.VirtualDeviceConfigSpec;
@@ -282,6 +280,7 @@ import com.cloud.hypervisor.vmware.mo.HostMO;
 import com.cloud.hypervisor.vmware.mo.HostStorageSystemMO;
 import com.cloud.hypervisor.vmware.mo.HypervisorHostHelper;
 import com.cloud.hypervisor.vmware.mo.NetworkDetails;
+import com.cloud.hypervisor.vmware.mo.PerfManagerMO;
 import com.cloud.hypervisor.vmware.mo.VirtualEthernetCardType;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfo;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfoBuilder;
@@ -290,6 +289,7 @@ import com.cloud.hypervisor.vmware.mo.VirtualSwitchType;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostNetworkSummary;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostResourceSummary;
+import com.cloud.hypervisor.vmware.util.VmStateTracker;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
 import com.cloud.hypervisor.vmware.util.VmwareGuestOsMapper;
 import com.cloud.hypervisor.vmware.util.VmwareHelper;
@@ -6528,7 +6528,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
         // CLOUD_VM_INTERNAL_NAME stores the internal CS generated vm name. This was earlier stored in name. Now, name can be either the hostname or
         // the internal CS name, but the custom field CLOUD_VM_INTERNAL_NAME always stores the internal CS name.
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(
+        ObjectContent[] ocs = getTrackedVmProperties(hyperHost,
                 new String[] { "name", "runtime.powerState", "config.template", instanceNameCustomField }
                 );
 
@@ -6587,7 +6587,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
         // CLOUD_VM_INTERNAL_NAME stores the internal CS generated vm name. This was earlier stored in name. Now, name can be either the hostname or
         // the internal CS name, but the custom field CLOUD_VM_INTERNAL_NAME always stores the internal CS name.
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] { "name", "runtime.powerState", "config.template", instanceNameCustomField });
+        ObjectContent[] ocs = getTrackedVmProperties(hyperHost, new String[] { "name", "runtime.powerState", "config.template", instanceNameCustomField });
 
         HashMap<String, State> newStates = new HashMap<String, State>();
         if (ocs != null && ocs.length > 0) {
@@ -6629,25 +6629,41 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return newStates;
     }
 
-    private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
-        VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
-        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
-        ManagedObjectReference perfMgr = getServiceContext().getServiceContent().getPerfManager();
-        VimPortType service = getServiceContext().getService();
-        PerfCounterInfo rxPerfCounterInfo = null;
-        PerfCounterInfo txPerfCounterInfo = null;
-
-        List<PerfCounterInfo> cInfo = (List<PerfCounterInfo>) getServiceContext().getVimClient().getDynamicProperty(perfMgr, "perfCounter");
-        for(PerfCounterInfo info : cInfo) {
-            if ("net".equalsIgnoreCase(info.getGroupInfo().getKey())) {
-                if ("transmitted".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    txPerfCounterInfo = info;
-                }
-                if ("received".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    rxPerfCounterInfo = info;
+    /**
+     * Returns the VM properties from a VmStateTracker kept with the service context, so that only what changed
+     * since the previous call is transferred. Falls back to retrieving all properties if the tracker fails.
+     */
+    private ObjectContent[] getTrackedVmProperties(VmwareHypervisorHost hyperHost, String[] propertyPaths) throws Exception {
+        VmwareContext context = hyperHost.getContext();
+        String stockName = "VmStateTracker." + hyperHost.getMor().getValue();
+        VmStateTracker tracker = context.getStockObject(stockName);
+        try {
+            if (tracker == null || !tracker.isTracking(propertyPaths)) {
+                if (tracker != null) {
+                    tracker.destroy();
                 }
+                tracker = context.getVimClient().createVmStateTracker(hyperHost.getMor(), propertyPaths);
+                context.registerStockObject(stockName, tracker);
+            }
+            return tracker.getVmProperties();
+        } catch (Exception e) {
+            s_logger.warn("Unable to get VM properties from the VM state tracker, retrieving all of them", e);
+            context.uregisterStockObject(stockName);
+            if (tracker != null) {
+                tracker.destroy();
             }
+            return hyperHost.getVmPropertiesOnHyperHost(propertyPaths);
         }
+    }
+
+    private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
+        VmwareContext context = getServiceContext();
+        VmwareHypervisorHost hyperHost = getHyperHost(context);
+        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
+        PerfManagerMO perfMgr = new PerfManagerMO(context, context.getServiceContent().getPerfManager());
+
+        Integer rxCounterId = perfMgr.getCounterId("net", "received", "average");
+        Integer txCounterId = perfMgr.getCounterId("net", "transmitted", "average");
 
         int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
         if(key == 0) {
@@ -6655,13 +6671,19 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         }
         String instanceNameCustomField = "value[" + key + "]";
 
+        // name, number of cpus and cpu usage of each vm we report on, keyed by the vm MOR value
+        Map<String, String> names = new HashMap<String, String>();
+        Map<String, String> numberCPUs = new HashMap<String, String>();
+        Map<String, String> maxCpuUsages = new HashMap<String, String>();
+        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
+
         ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField});
         if (ocs != null && ocs.length > 0) {
             for (ObjectContent oc : ocs) {
                 List<DynamicProperty> objProps = oc.getPropSet();
                 if (objProps != null) {
                     String name = null;
-                    String numberCPUs = null;
+                    String numberCPU = null;
                     String maxCpuUsage = null;
                     String vmNameOnVcenter = null;
                     String vmInternalCSName = null;
@@ -6673,12 +6695,11 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                                 vmInternalCSName = ((CustomFieldStringValue)objProp.getVal()).getValue();
                         }
                         else if (objProp.getName().equals("summary.config.numCpu")) {
-                            numberCPUs = objProp.getVal().toString();
+                            numberCPU = objProp.getVal().toString();
                         } else if (objProp.getName().equals("summary.quickStats.overallCpuUsage")) {
                             maxCpuUsage =  objProp.getVal().toString();
                         }
                     }
-                    new VirtualMachineMO(hyperHost.getContext(), oc.getObj());
                     if (vmInternalCSName != null) {
                         name = vmInternalCSName;
                     } else {
@@ -6689,67 +6710,97 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert(vmMor!=null);
-
-                    ArrayList vmNetworkMetrics = new ArrayList();
-                    // get all the metrics from the available sample period
-                    List<PerfMetricId> perfMetrics = service.queryAvailablePerfMetric(perfMgr, vmMor, null, null, null);
-                    if(perfMetrics != null) {
-                        for(int index=0; index < perfMetrics.size(); ++index) {
-                            if ( ((rxPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == rxPerfCounterInfo.getKey())) ||
-                                    ((txPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == txPerfCounterInfo.getKey())) ) {
-                                vmNetworkMetrics.add(perfMetrics.get(index));
-                            }
+                    String vmKey = oc.getObj().getValue();
+                    names.put(vmKey, name);
+                    numberCPUs.put(vmKey, numberCPU);
+                    maxCpuUsages.put(vmKey, maxCpuUsage);
+
+                    if (rxCounterId != null || txCounterId != null) {
+                        // instance "" is the aggregate over all the nics of the vm
+                        PerfQuerySpec qSpec = new PerfQuerySpec();
+                        qSpec.setEntity(oc.getObj());
+                        if (rxCounterId != null) {
+                            qSpec.getMetricId().add(createPerfMetricId(rxCounterId));
                         }
+                        if (txCounterId != null) {
+                            qSpec.getMetricId().add(createPerfMetricId(txCounterId));
+                        }
+                        qSpecs.add(qSpec);
                     }
+                }
+            }
+        }
 
-                    double networkReadKBs=0;
-                    double networkWriteKBs=0;
-                    long sampleDuration=0;
+        Map<String, double[]> networkKBs = new HashMap<String, double[]>();
+        if (!qSpecs.isEmpty()) {
+            List<PerfEntityMetricBase> values;
+            try {
+                // one round trip for all the vms on the host
+                values = perfMgr.queryPerf(qSpecs);
+            } catch (Exception e) {
+                // a vm going away in the meantime fails the whole batch, query the others one by one
+                s_logger.debug("Batched network stats query failed, querying VMs one by one. " + e.getMessage());
+                values = new ArrayList<PerfEntityMetricBase>();
+                for (PerfQuerySpec qSpec : qSpecs) {
+                    try {
+                        values.addAll(perfMgr.queryPerf(Arrays.asList(qSpec)));
+                    } catch (Exception ex) {
+                        s_logger.debug("Unable to get network stats of " + names.get(qSpec.getEntity().getValue()) + ". " + ex.getMessage());
+                    }
+                }
+            }
 
-                    if (vmNetworkMetrics.size() != 0) {
-                        PerfQuerySpec qSpec = new PerfQuerySpec();
-                        qSpec.setEntity(vmMor);
-                        PerfMetricId[] availableMetricIds = (PerfMetricId[]) vmNetworkMetrics.toArray(new PerfMetricId[0]);
-                        qSpec.getMetricId().addAll(Arrays.asList(availableMetricIds));
-                        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
-                        qSpecs.add(qSpec);
-                        List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
-
-                        for(int i=0; i<values.size(); ++i) {
-                            List<PerfSampleInfo>  infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
-                            if (infos != null && infos.size() > 0) {
-                                int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
-                                int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
-                                sampleDuration = (endMs - beginMs) /1000;
-                                List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
-                                for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
-                                    if(vals.get(vi) instanceof PerfMetricIntSeries) {
-                                        PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
-                                        List<Long> perfValues = val.getValue();
-                                        Long sumRate = 0L;
-                                        for (int j = 0; j < infos.size(); j++) { // Size of the array matches the size as the PerfSampleInfo
-                                            sumRate += perfValues.get(j);
-                                        }
-                                        Long averageRate = sumRate / infos.size();
-                                        if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
-                                            networkReadKBs = sampleDuration * averageRate; //get the average RX rate multiplied by sampled duration
-                                        }
-                                        if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
-                                            networkWriteKBs = sampleDuration * averageRate; //get the average TX rate multiplied by sampled duration
-                                        }
-                                    }
-                                }
+            for (PerfEntityMetricBase value : values) {
+                if (!(value instanceof PerfEntityMetric)) {
+                    continue;
+                }
+                PerfEntityMetric metric = (PerfEntityMetric)value;
+                List<PerfSampleInfo> infos = metric.getSampleInfo();
+                if (infos != null && infos.size() > 0) {
+                    int endMs = infos.get(infos.size()-1).getTimestamp().getSecond() * 1000 + infos.get(infos.size()-1).getTimestamp().getMillisecond();
+                    int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
+                    long sampleDuration = (endMs - beginMs) /1000;
+                    double[] readWriteKBs = new double[2];
+                    List<PerfMetricSeries> vals = metric.getValue();
+                    for(int vi = 0; ((vals!= null) && (vi < vals.size())); ++vi){
+                        if(vals.get(vi) instanceof PerfMetricIntSeries) {
+                            PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
+                            List<Long> perfValues = val.getValue();
+                            Long sumRate = 0L;
+                            for (int j = 0; j < infos.size(); j++) { // Size of the array matches the size as the PerfSampleInfo
+                                sumRate += perfValues.get(j);
+                            }
+                            Long averageRate = sumRate / infos.size();
+                            if (rxCounterId != null && vals.get(vi).getId().getCounterId() == rxCounterId) {
+                                readWriteKBs[0] = sampleDuration * averageRate; //get the average RX rate multiplied by sampled duration
+                            }
+                            if (txCounterId != null && vals.get(vi).getId().getCounterId() == txCounterId) {
+                                readWriteKBs[1] = sampleDuration * averageRate; //get the average TX rate multiplied by sampled duration
                             }
                         }
                     }
-                    vmResponseMap.put(name, new VmStatsEntry(Integer.parseInt(maxCpuUsage), networkReadKBs, networkWriteKBs, Integer.parseInt(numberCPUs), "vm"));
+                    networkKBs.put(metric.getEntity().getValue(), readWriteKBs);
                 }
             }
         }
+
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            String vmKey = entry.getKey();
+            double[] readWriteKBs = networkKBs.get(vmKey);
+            double networkReadKBs = readWriteKBs != null ? readWriteKBs[0] : 0;
+            double networkWriteKBs = readWriteKBs != null ? readWriteKBs[1] : 0;
+            vmResponseMap.put(entry.getValue(), new VmStatsEntry(Integer.parseInt(maxCpuUsages.get(vmKey)), networkReadKBs, networkWriteKBs,
+                    Integer.parseInt(numberCPUs.get(vmKey)), "vm"));
+        }
         return vmResponseMap;
     }
+
+    private static PerfMetricId createPerfMetricId(int counterId) {
+        PerfMetricId metricId = new PerfMetricId();
+        metricId.setCounterId(counterId);
+        metricId.setInstance("");
+        return metricId;
+    }
     // TODO vmsync }
 
     protected String networkUsage(final String privateIpAddress, final String option, final String ethName) {
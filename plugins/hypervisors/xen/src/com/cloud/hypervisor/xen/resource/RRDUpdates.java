@@ -0,0 +1,157 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Averages of the columns of an rrd_updates document, as returned by the
+ * gethostvmstats plugin call:
+ *
+ * <xport><meta>...<legend><entry>AVERAGE:vm:uuid:cpu0</entry>...</legend></meta>
+ * <data><row><t>...</t><v>...</v>...</row>...</data></xport>
+ *
+ * The document is streamed rather than loaded, and only the columns the
+ * filter accepts are kept, as a running sum and count of the values that
+ * are not NaN. A pool with hundreds of VMs produces tens of MB of XML of
+ * which the stats only need a few columns per VM.
+ */
+public class RRDUpdates {
+    private static final Logger s_logger = Logger.getLogger(RRDUpdates.class);
+
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+    static {
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        s_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    public interface ColumnFilter {
+        /**
+         * @param type host or vm
+         * @param uuid uuid of the host or vm
+         * @param param name of the data source, cpu0 or vif_0_rx for instance
+         */
+        boolean accept(String type, String uuid, String param);
+    }
+
+    private final List<String[]> _columns = new ArrayList<String[]>();
+    private double[] _sums;
+    private int[] _counts;
+    private int _rows;
+
+    private RRDUpdates() {
+    }
+
+    public static RRDUpdates parse(Reader reader, ColumnFilter filter) throws XMLStreamException {
+        RRDUpdates updates = new RRDUpdates();
+        XMLStreamReader xml = s_factory.createXMLStreamReader(reader);
+        try {
+            updates.read(xml, filter);
+        } finally {
+            xml.close();
+        }
+        return updates;
+    }
+
+    private void read(XMLStreamReader xml, ColumnFilter filter) throws XMLStreamException {
+        // position in the selected columns of every legend entry, -1 for the ones not selected
+        List<Integer> selected = new ArrayList<Integer>();
+        int[] positions = null;
+        int column = 0;
+
+        while (xml.hasNext()) {
+            if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = xml.getLocalName();
+            if (name.equals("entry")) {
+                String[] metadata = xml.getElementText().split(":");
+                if (metadata.length == 4 && filter.accept(metadata[1], metadata[2], metadata[3])) {
+                    selected.add(_columns.size());
+                    _columns.add(metadata);
+                } else {
+                    selected.add(-1);
+                }
+            } else if (name.equals("data")) {
+                positions = new int[selected.size()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = selected.get(i);
+                }
+                _sums = new double[_columns.size()];
+                _counts = new int[_columns.size()];
+            } else if (name.equals("row")) {
+                _rows++;
+                column = 0;
+            } else if (name.equals("v") && positions != null) {
+                if (column < positions.length && positions[column] >= 0) {
+                    double value = Double.parseDouble(xml.getElementText().trim());
+                    if (!Double.isNaN(value)) {
+                        _sums[positions[column]] += value;
+                        _counts[positions[column]]++;
+                    }
+                }
+                column++;
+            }
+        }
+
+        if (_sums == null) {
+            _sums = new double[_columns.size()];
+            _counts = new int[_columns.size()];
+        }
+    }
+
+    public int getColumnCount() {
+        return _columns.size();
+    }
+
+    public int getRowCount() {
+        return _rows;
+    }
+
+    public String getType(int column) {
+        return _columns.get(column)[1];
+    }
+
+    public String getUuid(int column) {
+        return _columns.get(column)[2];
+    }
+
+    public String getParam(int column) {
+        return _columns.get(column)[3];
+    }
+
+    /**
+     * @return the average of the values of the column that are not NaN, 0 if the average is not a number
+     */
+    public double getAverage(int column) {
+        double average = _counts[column] == 0 ? _sums[column] : _sums[column] / _counts[column];
+        if (Double.isInfinite(average) || Double.isNaN(average)) {
+            s_logger.warn("Found an invalid value (infinity/NaN) averaging " + getType(column) + ":" + getUuid(column) + ":" + getParam(column));
+            return 0;
+        }
+        return average;
+    }
+}
@@ -0,0 +1,200 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class RRDUpdatesTest {
+    private static final String VM1 = "0f8c4d3a-1b2e-4c5d-8e9f-a0b1c2d3e4f5";
+    private static final String VM2 = "7a6b5c4d-3e2f-4a1b-9c8d-e7f6a5b4c3d2";
+
+    private static RRDUpdates parseFixture(String name, RRDUpdates.ColumnFilter filter) throws Exception {
+        InputStreamReader reader = new InputStreamReader(RRDUpdatesTest.class.getResourceAsStream("/rrd_updates/" + name), "UTF-8");
+        try {
+            return RRDUpdates.parse(reader, filter);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static RRDUpdates.ColumnFilter vmFilter(final Set<String> uuids) {
+        return new RRDUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("vm") && uuids.contains(uuid) && (param.contains("cpu") || param.matches("vif_\\d_rx") || param.matches("vif_\\d_tx"));
+            }
+        };
+    }
+
+    @Test
+    public void testHostColumns() throws Exception {
+        RRDUpdates rrd = parseFixture("host.xml", new RRDUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("host") && (param.contains("cpu") || param.contains("pif_eth0_rx") || param.contains("memory_free_kib"));
+            }
+        });
+
+        assertEquals(3, rrd.getRowCount());
+        assertEquals(4, rrd.getColumnCount());
+        assertEquals("cpu0", rrd.getParam(0));
+        assertEquals(0.3, rrd.getAverage(0), 1e-9);
+        assertEquals("cpu1", rrd.getParam(1));
+        assertEquals(0.2, rrd.getAverage(1), 1e-9);
+        assertEquals("pif_eth0_rx", rrd.getParam(2));
+        assertEquals(1500, rrd.getAverage(2), 1e-9);
+        assertEquals("memory_free_kib", rrd.getParam(3));
+        assertEquals(4193280, rrd.getAverage(3), 1e-9);
+    }
+
+    @Test
+    public void testOnlyRequestedVmsAreKept() throws Exception {
+        Set<String> uuids = new HashSet<String>();
+        uuids.add(VM2);
+        RRDUpdates rrd = parseFixture("vm.xml", vmFilter(uuids));
+
+        assertEquals(3, rrd.getColumnCount());
+        for (int col = 0; col < rrd.getColumnCount(); col++) {
+            assertEquals(VM2, rrd.getUuid(col));
+        }
+        // the second row is NaN throughout and is left out of the averages
+        assertEquals(0.1, rrd.getAverage(0), 1e-9);
+        assertEquals(640, rrd.getAverage(1), 1e-9);
+        assertEquals(320, rrd.getAverage(2), 1e-9);
+
+        uuids.add(VM1);
+        rrd = parseFixture("vm.xml", vmFilter(uuids));
+        assertEquals(7, rrd.getColumnCount());
+        assertEquals(VM1, rrd.getUuid(0));
+        assertEquals(0.4, rrd.getAverage(0), 1e-9);
+        assertEquals(2400, rrd.getAverage(2), 1e-9);
+    }
+
+    @Test
+    public void testInvalidAveragesAreZero() throws Exception {
+        String xml = "<xport><meta><rows>2</rows><columns>2</columns><legend>" + "<entry>AVERAGE:host:h:cpu0</entry><entry>AVERAGE:host:h:cpu1</entry>"
+                + "</legend></meta><data><row><t>2</t><v>NaN</v><v>Infinity</v></row><row><t>1</t><v>NaN</v><v>1.0</v></row></data></xport>";
+        RRDUpdates rrd = RRDUpdates.parse(new StringReader(xml), new RRDUpdates.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return true;
+            }
+        });
+        assertEquals(0, rrd.getAverage(0), 0);
+        assertEquals(0, rrd.getAverage(1), 0);
+    }
+
+    private static String generateVmUpdates(int vms, int rows) {
+        String[] params = new String[] {"cpu0", "cpu1", "cpu2", "cpu3", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read", "vbd_xvda_write", "memory", "memory_internal_free"};
+        StringBuilder xml = new StringBuilder();
+        xml.append("<xport><meta><start>0</start><step>60</step><end>0</end><rows>").append(rows).append("</rows><columns>").append(vms * params.length)
+                .append("</columns><legend>");
+        for (int vm = 0; vm < vms; vm++) {
+            for (String param : params) {
+                xml.append("<entry>AVERAGE:vm:").append(uuid(vm)).append(':').append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(rows - row).append("</t>");
+            for (int vm = 0; vm < vms; vm++) {
+                for (int p = 0; p < params.length; p++) {
+                    xml.append("<v>").append((row + vm + p) % 17 == 0 ? "NaN" : String.valueOf((row * 31 + vm * 7 + p) / 3.0)).append("</v>");
+                }
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    private static String uuid(int vm) {
+        return String.format("00000000-0000-0000-0000-%012d", vm);
+    }
+
+    /**
+     * The DOM based averaging RRDUpdates replaces, kept here as the reference.
+     */
+    private static double domAverage(double[][] rows, int col) {
+        double value = 0;
+        int numRowsUsed = 0;
+        for (double[] row : rows) {
+            Double current = row[col];
+            if (!current.isNaN()) {
+                numRowsUsed++;
+                value += current;
+            }
+        }
+        return numRowsUsed == 0 ? value : value / numRowsUsed;
+    }
+
+    @Test
+    public void testStreamingMatchesDomOnLargePool() throws Exception {
+        int vms = 400;
+        String xml = generateVmUpdates(vms, 60);
+        Set<String> uuids = new HashSet<String>();
+        for (int vm = 0; vm < vms; vm += 8) {
+            uuids.add(uuid(vm));
+        }
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        RRDUpdates rrd = RRDUpdates.parse(new StringReader(xml), vmFilter(uuids));
+
+        // NodeList.getLength() and item() walk the tree again on a deferred DOM, copy everything out once
+        NodeList entryNodes = doc.getElementsByTagName("entry");
+        String[] entries = new String[entryNodes.getLength()];
+        for (int col = 0; col < entries.length; col++) {
+            entries[col] = entryNodes.item(col).getTextContent();
+        }
+        NodeList rowNodes = doc.getElementsByTagName("row");
+        double[][] rows = new double[rowNodes.getLength()][entries.length];
+        for (int row = 0; row < rows.length; row++) {
+            // skip <t>
+            Node v = rowNodes.item(row).getFirstChild().getNextSibling();
+            for (int col = 0; v != null; col++, v = v.getNextSibling()) {
+                rows[row][col] = Double.parseDouble(v.getTextContent());
+            }
+        }
+
+        int selected = 0;
+        for (int col = 0; col < entries.length; col++) {
+            String[] metadata = entries[col].split(":");
+            if (!vmFilter(uuids).accept(metadata[1], metadata[2], metadata[3])) {
+                continue;
+            }
+            assertEquals(metadata[2], rrd.getUuid(selected));
+            assertEquals(metadata[3], rrd.getParam(selected));
+            assertEquals(domAverage(rows, col), rrd.getAverage(selected), 1e-9);
+            selected++;
+        }
+        assertEquals(selected, rrd.getColumnCount());
+        assertEquals(uuids.size() * 8, selected);
+    }
+}
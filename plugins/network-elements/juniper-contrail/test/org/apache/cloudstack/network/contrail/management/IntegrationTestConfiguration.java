@@ -206,6 +206,7 @@ import com.cloud.projects.dao.ProjectAccountDaoImpl;
 import com.cloud.projects.ProjectManagerImpl;
 import com.cloud.projects.dao.ProjectDaoImpl;
 import com.cloud.region.ha.GlobalLoadBalancingRulesService;
+import com.cloud.resource.HostAttributeCache;
 import com.cloud.resource.ResourceManager;
 import com.cloud.server.ConfigurationServerImpl;
 import com.cloud.server.ManagementServer;
@@ -744,6 +745,10 @@ public class IntegrationTestConfiguration {
         return Mockito.mock(ResourceManager.class);
     }
     @Bean
+    public HostAttributeCache hostAttributeCache() {
+        return Mockito.mock(HostAttributeCache.class);
+    }
+    @Bean
     public ResourceMetaDataService resourceMetaDataService() {
         return Mockito.mock(ResourceMetaDataService.class);
     }
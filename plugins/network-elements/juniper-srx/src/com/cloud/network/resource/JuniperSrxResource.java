@@ -70,6 +70,7 @@ import com.cloud.network.rules.FirewallRule;
 import com.cloud.network.rules.FirewallRule.Purpose;
 import com.cloud.resource.ServerResource;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.CommitBatcher;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.Script;
@@ -98,6 +99,7 @@ public class JuniperSrxResource implements ServerResource {
     private String _ikeProposalName;
     private String _ipsecPolicyName;
     private String _primaryDnsAddress;
+    private CommitBatcher _commitBatcher;
     private String _ikeGatewayHostname;
     private String _vpnObjectPrefix;
     private UsageFilter _usageFilterVlanInput;
@@ -418,6 +420,10 @@ public class JuniperSrxResource implements ServerResource {
 
             _timeoutInSeconds = NumbersUtil.parseInt((String) params.get("timeout"), 300);
 
+            // changes queued while a commit runs, or within the window, go into the next commit together
+            _commitBatcher = new CommitBatcher("SRX " + _ip, new SrxCommitTarget(),
+                    NumbersUtil.parseLong((String) params.get("commitwindow"), 100), NumbersUtil.parseInt((String) params.get("commitbatchsize"), 50));
+
             _objectNameWordSep = "-";
             
             _ikeProposalName = "cloud-ike-proposal";
@@ -538,9 +544,14 @@ public class JuniperSrxResource implements ServerResource {
         return sendRequestAndCheckResponse(SrxCommand.LOGIN, xml);
     }
 
+    /* Connects to the XML API of the SRX. */
+    protected Socket openSrxSocket() throws IOException {
+        return new Socket(_ip, 3221);
+    }
+
     private boolean openSocket() {
         try {
-            Socket s = new Socket(_ip, 3221);
+            Socket s = openSrxSocket();
             s.setKeepAlive(true);
             s.setSoTimeout(_timeoutInSeconds * 1000);
             _toSrx = new PrintWriter(s.getOutputStream(), true);
@@ -583,7 +594,7 @@ public class JuniperSrxResource implements ServerResource {
     
     private boolean openUsageSocket() throws ExecutionException {
     	try {
-    		Socket s = new Socket(_ip, 3221);
+    		Socket s = openSrxSocket();
     		s.setKeepAlive(true);
     		s.setSoTimeout(_timeoutInSeconds * 1000);
     		_UsagetoSrx = new PrintWriter(s.getOutputStream(), true);
@@ -657,12 +668,35 @@ public class JuniperSrxResource implements ServerResource {
         }
     }
 
+    /*
+     * Every change runs in one private configuration opened on a fresh
+     * connection, closing it without a commit drops the changes.
+     */
+    private class SrxCommitTarget implements CommitBatcher.Device {
+        @Override
+        public void begin() throws ExecutionException {
+            if (!refreshSrxConnection()) {
+                throw new ExecutionException("Unable to open a connection to the SRX.");
+            }
+            openConfiguration();
+        }
+
+        @Override
+        public void commit() throws ExecutionException {
+            commitConfiguration();
+        }
+
+        @Override
+        public void rollback() {
+            closeConfiguration();
+        }
+    }
+
     /*
      * Guest networks
      */
 
-    private synchronized Answer execute(IpAssocCommand cmd) {
-    	refreshSrxConnection();
+    private Answer execute(IpAssocCommand cmd) {
         return execute(cmd, _numRetries);
     }
 
@@ -670,15 +704,15 @@ public class JuniperSrxResource implements ServerResource {
         String[] results = new String[cmd.getIpAddresses().length];
         int i = 0;
         try {
-            IpAddressTO ip;
+            final IpAddressTO ip;
             if (cmd.getIpAddresses().length != 1) {
                 throw new ExecutionException("Received an invalid number of guest IPs to associate.");
             } else {
                 ip = cmd.getIpAddresses()[0];
             }
 
-            String sourceNatIpAddress = null;
-            GuestNetworkType type = GuestNetworkType.INTERFACE_NAT;
+            final String sourceNatIpAddress;
+            final GuestNetworkType type;
 
             if (ip.isSourceNat()) {
                 type = GuestNetworkType.SOURCE_NAT;
@@ -688,42 +722,45 @@ public class JuniperSrxResource implements ServerResource {
                 } else {
                     sourceNatIpAddress = ip.getPublicIp();
                 }
+            } else {
+                type = GuestNetworkType.INTERFACE_NAT;
+                sourceNatIpAddress = null;
             }
 
-            long guestVlanTag = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.GUEST_VLAN_TAG));
-            String guestVlanGateway = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_GATEWAY);
+            final long guestVlanTag = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.GUEST_VLAN_TAG));
+            final String guestVlanGateway = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_GATEWAY);
             String cidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
-            long cidrSize = NetUtils.cidrToLong(cidr)[1];
-            String guestVlanSubnet = NetUtils.getCidrSubNet(guestVlanGateway, cidrSize);
+            final long cidrSize = NetUtils.cidrToLong(cidr)[1];
+            final String guestVlanSubnet = NetUtils.getCidrSubNet(guestVlanGateway, cidrSize);
             
-            Long publicVlanTag = null;
+            Long vlanTag = null;
             if (ip.getBroadcastUri() != null && !ip.getBroadcastUri().equals("untagged")) {
             	try {
-                    publicVlanTag = Long.parseLong(BroadcastDomainType.getValue(ip.getBroadcastUri()));
+                    vlanTag = Long.parseLong(BroadcastDomainType.getValue(ip.getBroadcastUri()));
             	} catch (Exception e) {
 			throw new ExecutionException("Could not parse public VLAN tag: " + ip.getBroadcastUri());
             	}
             }
+            final Long publicVlanTag = vlanTag;
 
-            openConfiguration();
-
-            // Remove the guest network:
-            // Remove source, static, and destination NAT rules
-            // Remove VPN
-            shutdownGuestNetwork(type, ip.getAccountId(), publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
+            _commitBatcher.submit(new CommitBatcher.Change() {
+                @Override
+                public void apply() throws ExecutionException {
+                    // Remove the guest network:
+                    // Remove source, static, and destination NAT rules
+                    // Remove VPN
+                    shutdownGuestNetwork(type, ip.getAccountId(), publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
             
-            if (ip.isAdd()) {
-                // Implement the guest network for this VLAN
-                implementGuestNetwork(type, publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
-            }
-
-            commitConfiguration();
+                    if (ip.isAdd()) {
+                        // Implement the guest network for this VLAN
+                        implementGuestNetwork(type, publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
+                    }
+                }
+            });
             results[i++] = ip.getPublicIp() + " - success";
         } catch (ExecutionException e) {
             s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying IPAssocCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -824,88 +861,87 @@ public class JuniperSrxResource implements ServerResource {
     }
 
     /* security policies */
-    private synchronized Answer execute(SetFirewallRulesCommand cmd) {
-        refreshSrxConnection();
+    private Answer execute(SetFirewallRulesCommand cmd) {
         return execute(cmd, _numRetries);
     }
     
     private Answer execute(SetFirewallRulesCommand cmd, int numRetries) {
-        FirewallRuleTO[] rules = cmd.getRules();
+        final FirewallRuleTO[] rules = cmd.getRules();
         try {
-            openConfiguration();
-            if (rules[0].getTrafficType() == FirewallRule.TrafficType.Egress) {
-                Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveFirewallEgressRules(rules);
-                Set<String> guestVlans = activeRules.keySet();
-               // List<String> cidrs = new ArrayList();
-                boolean defaultEgressPolicy = rules[0].isDefaultEgressPolicy();
-                FirewallRule.FirewallRuleType type = rules[0].getType();
-                //getting
-                String guestCidr = rules[0].getGuestCidr();
-                List<String> cidrs = new ArrayList<String>();
-                cidrs.add(guestCidr);
-
-                List<Object[]> applications = new ArrayList<Object[]>();
-                Object[] application = new Object[3];
-                application[0] = Protocol.all;
-                application[1] = NetUtils.PORT_RANGE_MIN;
-                application[2] = NetUtils.PORT_RANGE_MAX;
-                applications.add(application);
-
-                for (String guestVlan : guestVlans) {
-                    List<FirewallRuleTO> activeRulesForGuestNw = activeRules.get(guestVlan);
-
-                    removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS, guestVlan, extractCidrs(activeRulesForGuestNw), defaultEgressPolicy);
-                    if (activeRulesForGuestNw.size() > 0 && type == FirewallRule.FirewallRuleType.User) {
-                        addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS, guestVlan, extractApplications(activeRulesForGuestNw), extractCidrs(activeRulesForGuestNw), defaultEgressPolicy);
-
-                        /* Adding default policy rules are required because the order of rules is important.
-                        * Depending on the rules order the traffic accept/drop is performed
-                        */
-                        removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, cidrs, defaultEgressPolicy);
-                        addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, applications, cidrs, defaultEgressPolicy);
-                    }
-
+            _commitBatcher.submit(new CommitBatcher.Change() {
+                @Override
+                public void apply() throws ExecutionException {
+                    if (rules[0].getTrafficType() == FirewallRule.TrafficType.Egress) {
+                        Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveFirewallEgressRules(rules);
+                        Set<String> guestVlans = activeRules.keySet();
+                       // List<String> cidrs = new ArrayList();
+                        boolean defaultEgressPolicy = rules[0].isDefaultEgressPolicy();
+                        FirewallRule.FirewallRuleType type = rules[0].getType();
+                        //getting
+                        String guestCidr = rules[0].getGuestCidr();
+                        List<String> cidrs = new ArrayList<String>();
+                        cidrs.add(guestCidr);
+
+                        List<Object[]> applications = new ArrayList<Object[]>();
+                        Object[] application = new Object[3];
+                        application[0] = Protocol.all;
+                        application[1] = NetUtils.PORT_RANGE_MIN;
+                        application[2] = NetUtils.PORT_RANGE_MAX;
+                        applications.add(application);
+
+                        for (String guestVlan : guestVlans) {
+                            List<FirewallRuleTO> activeRulesForGuestNw = activeRules.get(guestVlan);
+
+                            removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS, guestVlan, extractCidrs(activeRulesForGuestNw), defaultEgressPolicy);
+                            if (activeRulesForGuestNw.size() > 0 && type == FirewallRule.FirewallRuleType.User) {
+                                addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS, guestVlan, extractApplications(activeRulesForGuestNw), extractCidrs(activeRulesForGuestNw), defaultEgressPolicy);
+
+                                /* Adding default policy rules are required because the order of rules is important.
+                                * Depending on the rules order the traffic accept/drop is performed
+                                */
+                                removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, cidrs, defaultEgressPolicy);
+                                addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, applications, cidrs, defaultEgressPolicy);
+                            }
 
-                    //remove required with out comparing default policy  because in upgrade network offering we may required to delete
-                    // the previously added rule
-                    if (defaultEgressPolicy == true && type == FirewallRule.FirewallRuleType.System) {
-                        removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, cidrs, defaultEgressPolicy);
-                        if (activeRulesForGuestNw.size() > 0) {
-                            //add default egress security policy
-                            addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, applications, cidrs, defaultEgressPolicy);
-                        }
-                    }
 
-                }
-                commitConfiguration();
-            } else {
-                for (FirewallRuleTO rule : rules) {
-                    int startPort = NetUtils.PORT_RANGE_MIN, endPort = NetUtils.PORT_RANGE_MAX;
-                    if (rule.getSrcPortRange() != null) {
-                        startPort = rule.getSrcPortRange()[0];
-                        endPort = rule.getSrcPortRange()[1];
-                    }
+                            //remove required with out comparing default policy  because in upgrade network offering we may required to delete
+                            // the previously added rule
+                            if (defaultEgressPolicy == true && type == FirewallRule.FirewallRuleType.System) {
+                                removeEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, cidrs, defaultEgressPolicy);
+                                if (activeRulesForGuestNw.size() > 0) {
+                                    //add default egress security policy
+                                    addEgressSecurityPolicyAndApplications(SecurityPolicyType.SECURITYPOLICY_EGRESS_DEFAULT, guestVlan, applications, cidrs, defaultEgressPolicy);
+                                }
+                            }
 
-                    FirewallFilterTerm term = new FirewallFilterTerm(genIpIdentifier(rule.getSrcIp()) + "-" + String.valueOf(rule.getId()), rule.getSourceCidrList(),
-                            rule.getSrcIp(), rule.getProtocol(), startPort, endPort,
-                            rule.getIcmpType(), rule.getIcmpCode(), genIpIdentifier(rule.getSrcIp()) + _usageFilterIPInput.getCounterIdentifier());
-                    if (!rule.revoked()) {
-                        manageProxyArp(SrxCommand.ADD, getVlanTag(rule.getSrcVlanTag()), rule.getSrcIp());
-                        manageFirewallFilter(SrxCommand.ADD, term, _publicZoneInputFilterName);
+                        }
                     } else {
-                        manageFirewallFilter(SrxCommand.DELETE, term, _publicZoneInputFilterName);
-                        manageProxyArp(SrxCommand.DELETE, getVlanTag(rule.getSrcVlanTag()), rule.getSrcIp());
+                        for (FirewallRuleTO rule : rules) {
+                            int startPort = NetUtils.PORT_RANGE_MIN, endPort = NetUtils.PORT_RANGE_MAX;
+                            if (rule.getSrcPortRange() != null) {
+                                startPort = rule.getSrcPortRange()[0];
+                                endPort = rule.getSrcPortRange()[1];
+                            }
+
+                            FirewallFilterTerm term = new FirewallFilterTerm(genIpIdentifier(rule.getSrcIp()) + "-" + String.valueOf(rule.getId()), rule.getSourceCidrList(),
+                                    rule.getSrcIp(), rule.getProtocol(), startPort, endPort,
+                                    rule.getIcmpType(), rule.getIcmpCode(), genIpIdentifier(rule.getSrcIp()) + _usageFilterIPInput.getCounterIdentifier());
+                            if (!rule.revoked()) {
+                                manageProxyArp(SrxCommand.ADD, getVlanTag(rule.getSrcVlanTag()), rule.getSrcIp());
+                                manageFirewallFilter(SrxCommand.ADD, term, _publicZoneInputFilterName);
+                            } else {
+                                manageFirewallFilter(SrxCommand.DELETE, term, _publicZoneInputFilterName);
+                                manageProxyArp(SrxCommand.DELETE, getVlanTag(rule.getSrcVlanTag()), rule.getSrcIp());
+                            }
+                        }
                     }
                 }
-                commitConfiguration();
-            }
+            });
                 
             return new Answer(cmd);
         } catch (ExecutionException e) {
             s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying SetFirewallRulesCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -919,44 +955,42 @@ public class JuniperSrxResource implements ServerResource {
      * Static NAT
      */
 
-    private synchronized Answer execute(SetStaticNatRulesCommand cmd) {
-    	refreshSrxConnection();
+    private Answer execute(SetStaticNatRulesCommand cmd) {
         return execute(cmd, _numRetries);
     }
 
     private Answer execute(SetStaticNatRulesCommand cmd, int numRetries) {
         StaticNatRuleTO[] allRules = cmd.getRules();
-        Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveRules(allRules);
-        Map<String, String> vlanTagMap = getVlanTagMap(allRules);
+        final Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveRules(allRules);
+        final Map<String, String> vlanTagMap = getVlanTagMap(allRules);
 
         try {
-            openConfiguration();
-
-            Set<String> ipPairs = activeRules.keySet();
-            for (String ipPair : ipPairs) {
-                String[] ipPairComponents = ipPair.split("-");
-                String publicIp = ipPairComponents[0];
-                String privateIp = ipPairComponents[1];
-
-                List<FirewallRuleTO> activeRulesForIpPair = activeRules.get(ipPair);
-                Long publicVlanTag = getVlanTag(vlanTagMap.get(publicIp));
-
-                // Delete the existing static NAT rule for this IP pair
-                removeStaticNatRule(publicVlanTag, publicIp, privateIp);
-
-                if (activeRulesForIpPair.size() > 0) {
-                    // If there are active FirewallRules for this IP pair, add the static NAT rule and open the specified port ranges
-                    addStaticNatRule(publicVlanTag, publicIp, privateIp, activeRulesForIpPair);
+            _commitBatcher.submit(new CommitBatcher.Change() {
+                @Override
+                public void apply() throws ExecutionException {
+                    Set<String> ipPairs = activeRules.keySet();
+                    for (String ipPair : ipPairs) {
+                        String[] ipPairComponents = ipPair.split("-");
+                        String publicIp = ipPairComponents[0];
+                        String privateIp = ipPairComponents[1];
+
+                        List<FirewallRuleTO> activeRulesForIpPair = activeRules.get(ipPair);
+                        Long publicVlanTag = getVlanTag(vlanTagMap.get(publicIp));
+
+                        // Delete the existing static NAT rule for this IP pair
+                        removeStaticNatRule(publicVlanTag, publicIp, privateIp);
+
+                        if (activeRulesForIpPair.size() > 0) {
+                            // If there are active FirewallRules for this IP pair, add the static NAT rule and open the specified port ranges
+                            addStaticNatRule(publicVlanTag, publicIp, privateIp, activeRulesForIpPair);
+                        }
+                    }
                 }
-            }
-
-            commitConfiguration();
+            });
             return new Answer(cmd);
         } catch (ExecutionException e) {
             s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying SetPortForwardingRulesCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -1009,39 +1043,37 @@ public class JuniperSrxResource implements ServerResource {
      * VPN
      */
     
-    private synchronized Answer execute(RemoteAccessVpnCfgCommand cmd) {
-    	refreshSrxConnection();
+    private Answer execute(RemoteAccessVpnCfgCommand cmd) {
     	return execute(cmd, _numRetries);
     }
     
-    private Answer execute(RemoteAccessVpnCfgCommand cmd, int numRetries) {
-    	long accountId = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.ACCOUNT_ID));
-    	String guestNetworkCidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
-    	String preSharedKey = cmd.getPresharedKey();
-    	String[] ipRange = cmd.getIpRange().split("-");
+    private Answer execute(final RemoteAccessVpnCfgCommand cmd, int numRetries) {
+    	final long accountId = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.ACCOUNT_ID));
+    	final String guestNetworkCidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
+    	final String preSharedKey = cmd.getPresharedKey();
+    	final String[] ipRange = cmd.getIpRange().split("-");
     	
     	try {
-    		openConfiguration();
-    		
-    		// Delete existing VPN objects for this account
-    		deleteVpnObjectsForAccount(accountId);
+    		_commitBatcher.submit(new CommitBatcher.Change() {
+    		    @Override
+    		    public void apply() throws ExecutionException {
+            		// Delete existing VPN objects for this account
+            		deleteVpnObjectsForAccount(accountId);
     		
-    		if (cmd.isCreate()) {
-    			// Add IKE policy
-    			manageIkePolicy(SrxCommand.ADD, null, accountId, preSharedKey);
-    		
-    			// Add address pool
-    			manageAddressPool(SrxCommand.ADD, null, accountId, guestNetworkCidr, ipRange[0], ipRange[1], _primaryDnsAddress);
-    		}
+            		if (cmd.isCreate()) {
+            			// Add IKE policy
+            			manageIkePolicy(SrxCommand.ADD, null, accountId, preSharedKey);
     		
-    		commitConfiguration();
+            			// Add address pool
+            			manageAddressPool(SrxCommand.ADD, null, accountId, guestNetworkCidr, ipRange[0], ipRange[1], _primaryDnsAddress);
+            		}
+    		    }
+    		});
     		
     		return new Answer(cmd);
     	} catch (ExecutionException e) {
     		s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying RemoteAccessVpnCfgCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -1122,52 +1154,50 @@ public class JuniperSrxResource implements ServerResource {
         return vpnObjectNames;
     }
     
-    private synchronized Answer execute(VpnUsersCfgCommand cmd) {
-    	refreshSrxConnection();
+    private Answer execute(VpnUsersCfgCommand cmd) {
     	return execute(cmd, _numRetries);
     }
     
     private Answer execute(VpnUsersCfgCommand cmd, int numRetries) {
-    	long accountId = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.ACCOUNT_ID));
-    	String guestNetworkCidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
-    	String ikePolicyName = genIkePolicyName(accountId);
-    	UsernamePassword[] users = cmd.getUserpwds();
+    	final long accountId = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.ACCOUNT_ID));
+    	final String guestNetworkCidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
+    	final String ikePolicyName = genIkePolicyName(accountId);
+    	final UsernamePassword[] users = cmd.getUserpwds();
     	
     	try {
-    		openConfiguration();
-    		
-    		for (UsernamePassword user : users) {
-    			SrxCommand srxCmd = user.isAdd() ? SrxCommand.ADD : SrxCommand.DELETE;
+    		_commitBatcher.submit(new CommitBatcher.Change() {
+    		    @Override
+    		    public void apply() throws ExecutionException {
+            		for (UsernamePassword user : users) {
+            			SrxCommand srxCmd = user.isAdd() ? SrxCommand.ADD : SrxCommand.DELETE;
     			
-    			String ipsecVpnName =  genIpsecVpnName(accountId, user.getUsername());
+            			String ipsecVpnName =  genIpsecVpnName(accountId, user.getUsername());
     			
-    			// IKE gateway
-        		manageIkeGateway(srxCmd, null, accountId, ikePolicyName, _ikeGatewayHostname , user.getUsername());
+            			// IKE gateway
+                		manageIkeGateway(srxCmd, null, accountId, ikePolicyName, _ikeGatewayHostname , user.getUsername());
 
-        		// IPSec VPN
-        		manageIpsecVpn(srxCmd, null, accountId, guestNetworkCidr, user.getUsername(), _ipsecPolicyName);
+                		// IPSec VPN
+                		manageIpsecVpn(srxCmd, null, accountId, guestNetworkCidr, user.getUsername(), _ipsecPolicyName);
 
-        		// Dynamic VPN client
-        		manageDynamicVpnClient(srxCmd, null, accountId, guestNetworkCidr, ipsecVpnName, user.getUsername());
+                		// Dynamic VPN client
+                		manageDynamicVpnClient(srxCmd, null, accountId, guestNetworkCidr, ipsecVpnName, user.getUsername());
         		
-        		// Access profile
-        		manageAccessProfile(srxCmd, null, accountId, user.getUsername(), user.getPassword(), genAddressPoolName(accountId));
+                		// Access profile
+                		manageAccessProfile(srxCmd, null, accountId, user.getUsername(), user.getPassword(), genAddressPoolName(accountId));
     		
-        		// Address book entry
-    			manageAddressBookEntry(srxCmd, _privateZone , guestNetworkCidr, ipsecVpnName);
+                		// Address book entry
+            			manageAddressBookEntry(srxCmd, _privateZone , guestNetworkCidr, ipsecVpnName);
     			
-    			// Security policy
-                manageSecurityPolicy(SecurityPolicyType.VPN, srxCmd, null, null, guestNetworkCidr, null, null, ipsecVpnName, false);
-    		}
-    		
-    		commitConfiguration();
+            			// Security policy
+                        manageSecurityPolicy(SecurityPolicyType.VPN, srxCmd, null, null, guestNetworkCidr, null, null, ipsecVpnName, false);
+            		}
+    		    }
+    		});
     		
     		return new Answer(cmd);
     	} catch (ExecutionException e) {
     		s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying RemoteAccessVpnCfgCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -1182,50 +1212,48 @@ public class JuniperSrxResource implements ServerResource {
      * Destination NAT
      */
 
-    private synchronized Answer execute (SetPortForwardingRulesCommand cmd) {
-    	refreshSrxConnection();
+    private Answer execute (SetPortForwardingRulesCommand cmd) {
         return execute(cmd, _numRetries);
     }
 
     private Answer execute(SetPortForwardingRulesCommand cmd, int numRetries) {
         PortForwardingRuleTO[] allRules = cmd.getRules();
-        Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveRules(allRules);
+        final Map<String, ArrayList<FirewallRuleTO>> activeRules = getActiveRules(allRules);
 
         try {
-            openConfiguration();
-
-            Set<String> ipPairs = activeRules.keySet();
-            for (String ipPair : ipPairs) {
-                String[] ipPairComponents = ipPair.split("-");
-                String publicIp = ipPairComponents[0];
-                String privateIp = ipPairComponents[1];
-
-                List<FirewallRuleTO> activeRulesForIpPair = activeRules.get(ipPair);
-
-                // Get a list of all destination NAT rules for the public/private IP address pair
-                List<String[]> destNatRules = getDestNatRules(RuleMatchCondition.PUBLIC_PRIVATE_IPS, publicIp, privateIp, null, null);
-                Map<String, Long> publicVlanTags = getPublicVlanTagsForNatRules(destNatRules);
-
-                // Delete all of these rules, along with the destination NAT pools and security policies they use
-                removeDestinationNatRules(null, publicVlanTags, destNatRules);
-
-                // If there are active rules for the public/private IP address pair, add them back
-                for (FirewallRuleTO rule : activeRulesForIpPair) {
-                	Long publicVlanTag = getVlanTag(rule.getSrcVlanTag());
-                    PortForwardingRuleTO portForwardingRule = (PortForwardingRuleTO) rule;
-                    addDestinationNatRule(getProtocol(rule.getProtocol()), publicVlanTag, portForwardingRule.getSrcIp(), portForwardingRule.getDstIp(),
-                                          portForwardingRule.getSrcPortRange()[0], portForwardingRule.getSrcPortRange()[1],
-                                          portForwardingRule.getDstPortRange()[0], portForwardingRule.getDstPortRange()[1]);
+            _commitBatcher.submit(new CommitBatcher.Change() {
+                @Override
+                public void apply() throws ExecutionException {
+                    Set<String> ipPairs = activeRules.keySet();
+                    for (String ipPair : ipPairs) {
+                        String[] ipPairComponents = ipPair.split("-");
+                        String publicIp = ipPairComponents[0];
+                        String privateIp = ipPairComponents[1];
+
+                        List<FirewallRuleTO> activeRulesForIpPair = activeRules.get(ipPair);
+
+                        // Get a list of all destination NAT rules for the public/private IP address pair
+                        List<String[]> destNatRules = getDestNatRules(RuleMatchCondition.PUBLIC_PRIVATE_IPS, publicIp, privateIp, null, null);
+                        Map<String, Long> publicVlanTags = getPublicVlanTagsForNatRules(destNatRules);
+
+                        // Delete all of these rules, along with the destination NAT pools and security policies they use
+                        removeDestinationNatRules(null, publicVlanTags, destNatRules);
+
+                        // If there are active rules for the public/private IP address pair, add them back
+                        for (FirewallRuleTO rule : activeRulesForIpPair) {
+                        	Long publicVlanTag = getVlanTag(rule.getSrcVlanTag());
+                            PortForwardingRuleTO portForwardingRule = (PortForwardingRuleTO) rule;
+                            addDestinationNatRule(getProtocol(rule.getProtocol()), publicVlanTag, portForwardingRule.getSrcIp(), portForwardingRule.getDstIp(),
+                                                  portForwardingRule.getSrcPortRange()[0], portForwardingRule.getSrcPortRange()[1],
+                                                  portForwardingRule.getDstPortRange()[0], portForwardingRule.getDstPortRange()[1]);
+                        }
+                    }
                 }
-            }
-
-            commitConfiguration();
+            });
             return new Answer(cmd);
         } catch (ExecutionException e) {
             s_logger.error(e);
-            closeConfiguration();
-
-            if (numRetries > 0 && refreshSrxConnection()) {
+            if (numRetries > 0) {
                 int numRetriesRemaining = numRetries - 1;
                 s_logger.debug("Retrying SetPortForwardingRulesCommand. Number of retries remaining: " + numRetriesRemaining);
                 return execute(cmd, numRetriesRemaining);
@@ -0,0 +1,241 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the 
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.RemoteAccessVpnCfgCommand;
+
+public class JuniperSrxResourceTest {
+    private SrxXmlEndpoint _srx;
+    private JuniperSrxResource _resource;
+
+    /*
+     * Stands in for the XML API of an SRX on a local port. Nothing is
+     * configured on it, every load succeeds unless it names the object
+     * set to fail, and every commit takes a while.
+     */
+    private static class SrxXmlEndpoint implements Runnable {
+        final ServerSocket _serverSocket;
+        final AtomicInteger _commits = new AtomicInteger();
+        final AtomicInteger _loads = new AtomicInteger();
+        volatile String _failingObject;
+
+        SrxXmlEndpoint() throws IOException {
+            _serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(this, "SrxXmlEndpoint");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return _serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!_serverSocket.isClosed()) {
+                try {
+                    final Socket socket = _serverSocket.accept();
+                    Thread session = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "SrxXmlSession");
+                    session.setDaemon(true);
+                    session.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void serve(Socket socket) {
+            try {
+                Reader in = new InputStreamReader(socket.getInputStream());
+                Writer out = new OutputStreamWriter(socket.getOutputStream());
+                StringBuilder request = new StringBuilder();
+                int c;
+                while ((c = in.read()) != -1) {
+                    request.append((char)c);
+                    if (request.indexOf("</rpc>") >= 0) {
+                        out.write(reply(request.toString()) + "\n");
+                        out.flush();
+                        request.setLength(0);
+                    }
+                }
+            } catch (IOException e) {
+                // the resource closed the session
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        String reply(String request) {
+            if (request.contains("<request-login>")) {
+                return "<rpc-reply><authentication-response><status>success</status></authentication-response></rpc-reply>";
+            } else if (request.contains("<commit-configuration>")) {
+                _commits.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                return "<rpc-reply><commit-results><routing-engine><name>re0</name><commit-success/></routing-engine></commit-results></rpc-reply>";
+            } else if (request.contains("<load-configuration>")) {
+                _loads.incrementAndGet();
+                String failingObject = _failingObject;
+                if (failingObject != null && request.contains("<name>" + failingObject + "</name>")) {
+                    return "<rpc-reply><load-configuration-results><xnm:error><message>syntax error</message></xnm:error>"
+                        + "<load-error-count>1</load-error-count></load-configuration-results></rpc-reply>";
+                }
+                return "<rpc-reply><load-configuration-results><load-success/></load-configuration-results></rpc-reply>";
+            } else if (request.contains("<get-configuration>")) {
+                return "<rpc-reply><configuration></configuration></rpc-reply>";
+            }
+            // open and close configuration
+            return "<rpc-reply></rpc-reply>";
+        }
+
+        void close() throws IOException {
+            _serverSocket.close();
+        }
+    }
+
+    @BeforeClass
+    public static void findXmlTemplates() {
+        // the XML templates are in scripts/network/juniper of the source tree
+        System.setProperty("paths.script", "../../..");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _srx = new SrxXmlEndpoint();
+        _resource = new JuniperSrxResource() {
+            @Override
+            protected Socket openSrxSocket() throws IOException {
+                return new Socket("127.0.0.1", _srx.getPort());
+            }
+        };
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("name", "JuniperSrxResource");
+        params.put("zoneId", "1");
+        params.put("ip", "192.168.80.1");
+        params.put("username", "admin");
+        params.put("password", "admin");
+        params.put("publicinterface", "ge-0/0/1");
+        params.put("privateinterface", "ge-0/0/2");
+        params.put("guid", "aaaaa-bbbbb-ccccc");
+        params.put("timeout", "10");
+        _resource.configure("JuniperSrxResource", params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _srx.close();
+    }
+
+    private RemoteAccessVpnCfgCommand createVpnCommand(long accountId) {
+        RemoteAccessVpnCfgCommand cmd = new RemoteAccessVpnCfgCommand(true, "192.168.80.10", "10.1.1.1", "10.1.2.2-10.1.2.8", "secret", false);
+        cmd.setAccessDetail(NetworkElementCommand.ACCOUNT_ID, Long.toString(accountId));
+        cmd.setAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR, "10.1.1.0/24");
+        return cmd;
+    }
+
+    private List<Answer> executeConcurrently(int accounts) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(accounts);
+        try {
+            List<Future<Answer>> futures = new ArrayList<Future<Answer>>();
+            for (int i = 0; i < accounts; i++) {
+                final RemoteAccessVpnCfgCommand cmd = createVpnCommand(10 + i);
+                futures.add(executor.submit(new Callable<Answer>() {
+                    @Override
+                    public Answer call() {
+                        return _resource.executeRequest(cmd);
+                    }
+                }));
+            }
+            List<Answer> answers = new ArrayList<Answer>();
+            for (Future<Answer> future : futures) {
+                answers.add(future.get());
+            }
+            return answers;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentChangesShareCommits() throws Exception {
+        int accounts = 8;
+        List<Answer> answers = executeConcurrently(accounts);
+
+        for (Answer answer : answers) {
+            assertTrue(answer.getDetails(), answer.getResult());
+        }
+        // an IKE policy and an address pool per account
+        assertEquals(2 * accounts, _srx._loads.get());
+        assertTrue(_srx._commits.get() + " commits for " + accounts + " commands", _srx._commits.get() < accounts);
+    }
+
+    @Test
+    public void failedChangeDoesNotFailTheOthers() throws Exception {
+        // the IKE policy of account 13
+        _srx._failingObject = "vpn-a-13";
+        int accounts = 8;
+        List<Answer> answers = executeConcurrently(accounts);
+
+        for (int i = 0; i < accounts; i++) {
+            if (i == 3) {
+                assertFalse(answers.get(i).getResult());
+            } else {
+                assertTrue(answers.get(i).getDetails(), answers.get(i).getResult());
+            }
+        }
+    }
+}
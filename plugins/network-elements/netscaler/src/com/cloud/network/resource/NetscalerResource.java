@@ -20,11 +20,15 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.naming.ConfigurationException;
 
@@ -41,6 +45,7 @@ import org.apache.log4j.Logger;
 
 import com.citrix.netscaler.nitro.exception.nitro_exception;
 import com.citrix.netscaler.nitro.resource.base.base_response;
+import com.citrix.netscaler.nitro.resource.base.base_responses;
 import com.citrix.netscaler.nitro.resource.config.autoscale.autoscalepolicy;
 import com.citrix.netscaler.nitro.resource.config.autoscale.autoscaleprofile;
 import com.citrix.netscaler.nitro.resource.config.basic.server_service_binding;
@@ -104,6 +109,7 @@ import com.cloud.agent.api.routing.HealthCheckLBConfigCommand;
 import com.cloud.agent.api.routing.IpAssocAnswer;
 import com.cloud.agent.api.routing.IpAssocCommand;
 import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
 import com.cloud.agent.api.routing.SetStaticNatRulesAnswer;
 import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
 import com.cloud.agent.api.routing.SiteLoadBalancerConfig;
@@ -160,19 +166,29 @@ public class NetscalerResource implements ServerResource {
     private String _publicIPNetmask;
     private String _publicIPGateway;
     private String _publicIPVlan;
+    private boolean _bulkRequests;
 
     private static final Logger s_logger = Logger.getLogger(NetscalerResource.class);
     protected Gson _gson;
     private final String _objectNamePathSep = "-";
 
     // interface to interact with VPX and MPX devices
-    com.citrix.netscaler.nitro.service.nitro_service _netscalerService ;
+    volatile com.citrix.netscaler.nitro.service.nitro_service _netscalerService ;
 
     // interface to interact with service VM of the SDX appliance
     com.citrix.sdx.nitro.service.nitro_service _netscalerSdxService;
 
     Long _timeout = new Long(100000);
-    base_response apiCallResult;
+
+    // commands only serialize on the device objects they have in common
+    private final NitroObjectLocks _locks = new NitroObjectLocks();
+
+    // a failed command logs in again unless another one just did
+    private static final long MIN_RELOGIN_INTERVAL_MS = 5000;
+    private volatile long _lastLogin;
+
+    // logging in must not wait for the commands still synchronized on the resource
+    private final Object _loginLock = new Object();
 
     public NetscalerResource () {
         _gson = GsonHelper.getGsonLogger();
@@ -237,6 +253,8 @@ public class NetscalerResource implements ServerResource {
 
             _inline = Boolean.parseBoolean((String) params.get("inline"));
 
+            _bulkRequests = Boolean.parseBoolean((String) params.get("bulkrequests"));
+
             if (((String) params.get("cloudmanaged")) != null) {
                 _cloudManaged = Boolean.parseBoolean((String) params.get("cloudmanaged"));
             }
@@ -288,25 +306,42 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void login() throws ExecutionException {
+        synchronized (_loginLock) {
+            doLogin();
+        }
+    }
+
+    private void relogin() throws ExecutionException {
+        synchronized (_loginLock) {
+            if (System.currentTimeMillis() - _lastLogin > MIN_RELOGIN_INTERVAL_MS) {
+                doLogin();
+            }
+        }
+    }
+
+    private void doLogin() throws ExecutionException {
+        base_response apiCallResult;
         try {
             // If a previous session was open, log it out.
             logout();
             if (!_isSdx) {
-                _netscalerService = new nitro_service(_ip, "https");
-                _netscalerService.set_credential(_username, _password);
-                _netscalerService.set_timeout(_timeout);
-                apiCallResult = _netscalerService.login();
+                nitro_service netscalerService = createNitroService();
+                netscalerService.set_credential(_username, _password);
+                netscalerService.set_timeout(_timeout);
+                apiCallResult = netscalerService.login();
                 if (apiCallResult.errorcode != 0) {
                     throw new ExecutionException ("Failed to log in to Netscaler device at " + _ip + " due to error " + apiCallResult.errorcode + " and message " + apiCallResult.message);
                 }
+                _netscalerService = netscalerService;
             } else {
                 _netscalerSdxService = new com.citrix.sdx.nitro.service.nitro_service(_ip, "https");
                 _netscalerSdxService.set_credential(_username, _password);
                 com.citrix.sdx.nitro.resource.base.login login = _netscalerSdxService.login();
                 if (login == null) {
-                    throw new ExecutionException ("Failed to log in to Netscaler SDX device at " + _ip + " due to error " + apiCallResult.errorcode + " and message " + apiCallResult.message);
+                    throw new ExecutionException ("Failed to log in to Netscaler SDX device at " + _ip);
                 }
             }
+            _lastLogin = System.currentTimeMillis();
         } catch (nitro_exception e) {
             throw new ExecutionException("Failed to log in to Netscaler device at " + _ip + " due to " + e.getMessage());
         } catch (Exception e) {
@@ -314,7 +349,12 @@ public class NetscalerResource implements ServerResource {
         }
     }
 
+    protected nitro_service createNitroService() throws Exception {
+        return new nitro_service(_ip, "https");
+    }
+
     private void enableLoadBalancingFeature() throws ExecutionException {
+        base_response apiCallResult;
         if (_isSdx) {
             return;
         }
@@ -446,7 +486,20 @@ public class NetscalerResource implements ServerResource {
         return new MaintainAnswer(cmd);
     }
 
-    private synchronized Answer execute(IpAssocCommand cmd, int numRetries) {
+    private Answer execute(IpAssocCommand cmd, int numRetries) {
+        List<String> lockNames = new ArrayList<String>();
+        for (IpAddressTO ip : cmd.getIpAddresses()) {
+            lockNames.add("vlan:" + ip.getBroadcastUri());
+        }
+        NitroObjectLocks.Held locks = _locks.lock(lockNames);
+        try {
+            return associateIps(cmd, numRetries);
+        } finally {
+            locks.release();
+        }
+    }
+
+    private Answer associateIps(IpAssocCommand cmd, int numRetries) {
         if (_isSdx) {
             return Answer.createUnsupportedCommandAnswer(cmd);
         }
@@ -488,6 +541,25 @@ public class NetscalerResource implements ServerResource {
     }
 
     private Answer execute(HealthCheckLBConfigCommand cmd, int numRetries) {
+        NitroObjectLocks.Held locks = _locks.lock(Collections.<String>emptySet(), getSharedLockNames(cmd));
+        try {
+            return getHealthCheckedLoadBalancers(cmd, numRetries);
+        } finally {
+            locks.release();
+        }
+    }
+
+    // the servers of a load balancer are in the guest vlan, which IpAssocCommand may remove
+    private List<String> getSharedLockNames(NetworkElementCommand cmd) {
+        List<String> lockNames = new ArrayList<String>();
+        String guestVlanTag = cmd.getAccessDetail(NetworkElementCommand.GUEST_VLAN_TAG);
+        if (guestVlanTag != null) {
+            lockNames.add("vlan:" + guestVlanTag);
+        }
+        return lockNames;
+    }
+
+    private Answer getHealthCheckedLoadBalancers(HealthCheckLBConfigCommand cmd, int numRetries) {
 
         List<LoadBalancerTO> hcLB = new ArrayList<LoadBalancerTO>();
         try {
@@ -546,7 +618,42 @@ public class NetscalerResource implements ServerResource {
         return new HealthCheckLBConfigAnswer(hcLB);
     }
 
-    private synchronized Answer execute(LoadBalancerConfigCommand cmd, int numRetries) {
+    private Answer execute(LoadBalancerConfigCommand cmd, int numRetries) {
+        NitroObjectLocks.Held locks = _locks.lock(getLockNames(cmd), getSharedLockNames(cmd));
+        try {
+            return configureLoadBalancers(cmd, numRetries);
+        } finally {
+            locks.release();
+        }
+    }
+
+    private List<String> getLockNames(LoadBalancerConfigCommand cmd) {
+        List<String> lockNames = new ArrayList<String>();
+        if (cmd.getLoadBalancers() == null) {
+            return lockNames;
+        }
+        for (LoadBalancerTO loadBalancer : cmd.getLoadBalancers()) {
+            lockNames.add("vserver:" + generateNSVirtualServerName(loadBalancer.getSrcIp(), loadBalancer.getSrcPort()));
+            if (loadBalancer.getDestinations() != null) {
+                // servers are shared by the rules balancing to the same vm
+                for (DestinationTO destination : loadBalancer.getDestinations()) {
+                    lockNames.add("server:" + generateNSServerName(destination.getDestIp()));
+                }
+            }
+            LbSslCert sslCert = loadBalancer.getSslCert();
+            if (sslCert != null) {
+                lockNames.add("cert:" + sslCert.getFingerprint());
+                if (sslCert.getChain() != null) {
+                    // intermediate certificates are shared by the certificates they signed
+                    lockNames.add("certchain");
+                }
+            }
+        }
+        return lockNames;
+    }
+
+    private Answer configureLoadBalancers(LoadBalancerConfigCommand cmd, int numRetries) {
+        base_response apiCallResult;
         try {
             if (_isSdx) {
                 return Answer.createUnsupportedCommandAnswer(cmd);
@@ -608,6 +715,10 @@ public class NetscalerResource implements ServerResource {
 
                     }
 
+                    if (_bulkRequests) {
+                        addDestinationsInBulk(nsVirtualServerName, lbProtocol, loadBalancer.getDestinations());
+                    }
+
                     for (DestinationTO destination : loadBalancer.getDestinations()) {
 
                         String nsServerName = generateNSServerName(destination.getDestIp());
@@ -615,42 +726,10 @@ public class NetscalerResource implements ServerResource {
                         if (!destination.isRevoked()) {
                             // add a new destination to deployed load balancing rule
 
-                            // add a new server
-                            if (!nsServerExists(nsServerName)) {
-                                com.citrix.netscaler.nitro.resource.config.basic.server nsServer = new com.citrix.netscaler.nitro.resource.config.basic.server();
-                                nsServer.set_name(nsServerName);
-                                nsServer.set_ipaddress(destination.getDestIp());
-                                apiCallResult = com.citrix.netscaler.nitro.resource.config.basic.server.add(_netscalerService, nsServer);
-                                if ((apiCallResult.errorcode != 0) && (apiCallResult.errorcode != NitroError.NS_RESOURCE_EXISTS)) {
-                                    throw new ExecutionException("Failed to add server " + destination.getDestIp() + " due to" + apiCallResult.message);
-                                }
-                            }
-
-                            // create a new service using the server added
-                            if (!nsServiceExists(nsServiceName)) {
-                                com.citrix.netscaler.nitro.resource.config.basic.service newService = new com.citrix.netscaler.nitro.resource.config.basic.service();
-                                newService.set_name(nsServiceName);
-                                newService.set_port(destination.getDestPort());
-                                newService.set_servername(nsServerName);
-                                newService.set_state("ENABLED");
-                                newService.set_servicetype(lbProtocol);
-
-                                apiCallResult = com.citrix.netscaler.nitro.resource.config.basic.service.add(_netscalerService, newService);
-                                if (apiCallResult.errorcode != 0) {
-                                    throw new ExecutionException("Failed to create service " + nsServiceName + " using server " + nsServerName + " due to" + apiCallResult.message);
-                                }
-                            }
-
-                            //bind service to load balancing virtual server
-                            if (!nsServiceBindingExists(nsVirtualServerName, nsServiceName)) {
-                                com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding svcBinding = new com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding();
-                                svcBinding.set_name(nsVirtualServerName);
-                                svcBinding.set_servicename(nsServiceName);
-                                apiCallResult = com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding.add(_netscalerService, svcBinding);
-
-                                if (apiCallResult.errorcode != 0) {
-                                    throw new ExecutionException("Failed to bind service: " + nsServiceName + " to the lb virtual server: " + nsVirtualServerName + " on Netscaler device");
-                                }
+                            if (!_bulkRequests) {
+                                addServer(nsServerName, destination.getDestIp());
+                                addService(nsServiceName, nsServerName, destination.getDestPort(), lbProtocol);
+                                bindServiceToVirtualServer(nsVirtualServerName, nsServiceName);
                             }
 
                             // After binding the service to the LB Vserver
@@ -890,6 +969,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private synchronized Answer execute(CreateLoadBalancerApplianceCommand cmd, int numRetries) {
+        base_response apiCallResult;
 
         if (!_isSdx) {
             return Answer.createUnsupportedCommandAnswer(cmd);
@@ -2144,7 +2224,22 @@ public class NetscalerResource implements ServerResource {
         }
     }
 
-    private synchronized Answer execute(SetStaticNatRulesCommand cmd, int numRetries) {
+    private Answer execute(SetStaticNatRulesCommand cmd, int numRetries) {
+        List<String> lockNames = new ArrayList<String>();
+        for (StaticNatRuleTO rule : cmd.getRules()) {
+            lockNames.add("nat:" + rule.getSrcIp());
+            lockNames.add("nat:" + rule.getDstIp());
+        }
+        NitroObjectLocks.Held locks = _locks.lock(lockNames);
+        try {
+            return configureStaticNat(cmd, numRetries);
+        } finally {
+            locks.release();
+        }
+    }
+
+    private Answer configureStaticNat(SetStaticNatRulesCommand cmd, int numRetries) {
+        base_response apiCallResult;
 
         if (_isSdx) {
             return Answer.createUnsupportedCommandAnswer(cmd);
@@ -2252,7 +2347,7 @@ public class NetscalerResource implements ServerResource {
         return new SetStaticNatRulesAnswer(cmd, results, endResult);
     }
 
-    private synchronized Answer execute(ExternalNetworkResourceUsageCommand cmd, int numRetries) {
+    private Answer execute(ExternalNetworkResourceUsageCommand cmd, int numRetries) {
         try {
             if (!_isSdx) {
                 return getPublicIpBytesSentAndReceived(cmd);
@@ -2269,6 +2364,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void addSubnetIP(String snip, String netmask)  throws ExecutionException {
+        base_response apiCallResult;
         try {
             nsip selfIp = new nsip();
             selfIp.set_ipaddress(snip);
@@ -2286,6 +2382,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void addGuestVlanAndSubnet(long vlanTag, String vlanSelfIp, String vlanNetmask, boolean guestVlan) throws ExecutionException {
+        base_response apiCallResult;
         try {
             // add vlan object for guest VLAN
             if (!nsVlanExists(vlanTag)) {
@@ -2361,6 +2458,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void deleteGuestVlan(long vlanTag, String vlanSelfIp, String vlanNetmask) throws ExecutionException {
+        base_response apiCallResult;
         try {
 
             // Delete all servers and associated services from this guest VLAN
@@ -2462,6 +2560,152 @@ public class NetscalerResource implements ServerResource {
         }
     }
 
+    private void addServer(String nsServerName, String serverIp) throws Exception {
+        base_response apiCallResult;
+        if (!nsServerExists(nsServerName)) {
+            com.citrix.netscaler.nitro.resource.config.basic.server nsServer = new com.citrix.netscaler.nitro.resource.config.basic.server();
+            nsServer.set_name(nsServerName);
+            nsServer.set_ipaddress(serverIp);
+            apiCallResult = com.citrix.netscaler.nitro.resource.config.basic.server.add(_netscalerService, nsServer);
+            if ((apiCallResult.errorcode != 0) && (apiCallResult.errorcode != NitroError.NS_RESOURCE_EXISTS)) {
+                throw new ExecutionException("Failed to add server " + serverIp + " due to" + apiCallResult.message);
+            }
+        }
+    }
+
+    private void addService(String nsServiceName, String nsServerName, int port, String lbProtocol) throws Exception {
+        base_response apiCallResult;
+        if (!nsServiceExists(nsServiceName)) {
+            com.citrix.netscaler.nitro.resource.config.basic.service newService = newService(nsServiceName, nsServerName, port, lbProtocol);
+            apiCallResult = com.citrix.netscaler.nitro.resource.config.basic.service.add(_netscalerService, newService);
+            if (apiCallResult.errorcode != 0) {
+                throw new ExecutionException("Failed to create service " + nsServiceName + " using server " + nsServerName + " due to" + apiCallResult.message);
+            }
+        }
+    }
+
+    private com.citrix.netscaler.nitro.resource.config.basic.service newService(String nsServiceName, String nsServerName, int port, String lbProtocol) {
+        com.citrix.netscaler.nitro.resource.config.basic.service newService = new com.citrix.netscaler.nitro.resource.config.basic.service();
+        newService.set_name(nsServiceName);
+        newService.set_port(port);
+        newService.set_servername(nsServerName);
+        newService.set_state("ENABLED");
+        newService.set_servicetype(lbProtocol);
+        return newService;
+    }
+
+    private void bindServiceToVirtualServer(String nsVirtualServerName, String nsServiceName) throws Exception {
+        base_response apiCallResult;
+        if (!nsServiceBindingExists(nsVirtualServerName, nsServiceName)) {
+            com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding svcBinding = new com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding();
+            svcBinding.set_name(nsVirtualServerName);
+            svcBinding.set_servicename(nsServiceName);
+            apiCallResult = com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding.add(_netscalerService, svcBinding);
+
+            if (apiCallResult.errorcode != 0) {
+                throw new ExecutionException("Failed to bind service: " + nsServiceName + " to the lb virtual server: " + nsVirtualServerName + " on Netscaler device");
+            }
+        }
+    }
+
+    /**
+     * Adds the servers and services of the destinations not yet bound to the virtual server and binds them with
+     * one bulk request each, instead of an existence check and an add per object and destination. When the device
+     * turns a bulk request down, for instance because a server shared with another rule already exists, the
+     * objects of that request are added one at a time.
+     */
+    private void addDestinationsInBulk(String nsVirtualServerName, String lbProtocol, DestinationTO[] destinations) throws Exception {
+        Set<String> boundServices = new HashSet<String>();
+        com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding[] serviceBindings = com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding.get(_netscalerService, nsVirtualServerName);
+        if (serviceBindings != null) {
+            for (com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding binding : serviceBindings) {
+                boundServices.add(binding.get_servicename().toLowerCase());
+            }
+        }
+
+        Map<String, com.citrix.netscaler.nitro.resource.config.basic.server> servers = new LinkedHashMap<String, com.citrix.netscaler.nitro.resource.config.basic.server>();
+        List<com.citrix.netscaler.nitro.resource.config.basic.service> services = new ArrayList<com.citrix.netscaler.nitro.resource.config.basic.service>();
+        List<com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding> bindings = new ArrayList<com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding>();
+        for (DestinationTO destination : destinations) {
+            String nsServiceName = generateNSServiceName(destination.getDestIp(), destination.getDestPort());
+            if (destination.isRevoked() || boundServices.contains(nsServiceName.toLowerCase())) {
+                continue;
+            }
+            String nsServerName = generateNSServerName(destination.getDestIp());
+            if (!servers.containsKey(nsServerName)) {
+                com.citrix.netscaler.nitro.resource.config.basic.server nsServer = new com.citrix.netscaler.nitro.resource.config.basic.server();
+                nsServer.set_name(nsServerName);
+                nsServer.set_ipaddress(destination.getDestIp());
+                servers.put(nsServerName, nsServer);
+            }
+            services.add(newService(nsServiceName, nsServerName, destination.getDestPort(), lbProtocol));
+            com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding svcBinding = new com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding();
+            svcBinding.set_name(nsVirtualServerName);
+            svcBinding.set_servicename(nsServiceName);
+            bindings.add(svcBinding);
+        }
+        if (bindings.isEmpty()) {
+            return;
+        }
+
+        base_responses result = null;
+        try {
+            result = com.citrix.netscaler.nitro.resource.config.basic.server.add(_netscalerService,
+                    servers.values().toArray(new com.citrix.netscaler.nitro.resource.config.basic.server[servers.size()]));
+        } catch (nitro_exception e) {
+            s_logger.debug("Bulk add of " + servers.size() + " servers on Netscaler device " + _ip + " failed due to " + e.getMessage() + ", adding them one by one");
+        }
+        if (!isBulkSuccess(result)) {
+            for (com.citrix.netscaler.nitro.resource.config.basic.server nsServer : servers.values()) {
+                addServer(nsServer.get_name(), nsServer.get_ipaddress());
+            }
+        }
+
+        result = null;
+        try {
+            result = com.citrix.netscaler.nitro.resource.config.basic.service.add(_netscalerService,
+                    services.toArray(new com.citrix.netscaler.nitro.resource.config.basic.service[services.size()]));
+        } catch (nitro_exception e) {
+            s_logger.debug("Bulk add of " + services.size() + " services on Netscaler device " + _ip + " failed due to " + e.getMessage() + ", adding them one by one");
+        }
+        if (!isBulkSuccess(result)) {
+            for (com.citrix.netscaler.nitro.resource.config.basic.service newService : services) {
+                addService(newService.get_name(), newService.get_servername(), newService.get_port(), lbProtocol);
+            }
+        }
+
+        result = null;
+        try {
+            result = com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding.add(_netscalerService,
+                    bindings.toArray(new com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding[bindings.size()]));
+        } catch (nitro_exception e) {
+            s_logger.debug("Bulk binding of " + bindings.size() + " services to " + nsVirtualServerName + " failed due to " + e.getMessage() + ", binding them one by one");
+        }
+        if (!isBulkSuccess(result)) {
+            for (com.citrix.netscaler.nitro.resource.config.lb.lbvserver_service_binding svcBinding : bindings) {
+                bindServiceToVirtualServer(nsVirtualServerName, svcBinding.get_servicename());
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Added " + bindings.size() + " destinations to load balancer " + nsVirtualServerName + " on the Netscaler device " + _ip + " in bulk");
+        }
+    }
+
+    private boolean isBulkSuccess(base_responses result) {
+        if (result == null || result.errorcode != 0) {
+            return false;
+        }
+        if (result.response != null) {
+            for (base_response response : result.response) {
+                if (response != null && response.errorcode != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private boolean nsServerExists(String serverName) throws ExecutionException {
         try {
             if (com.citrix.netscaler.nitro.resource.config.basic.server.get(_netscalerService, serverName) != null) {
@@ -2657,6 +2901,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void deleteServersInGuestVlan(long vlanTag, String vlanSelfIp, String vlanNetmask) throws ExecutionException {
+        base_response apiCallResult;
         try {
             com.citrix.netscaler.nitro.resource.config.basic.server[] serverList = com.citrix.netscaler.nitro.resource.config.basic.server.get(_netscalerService);
 
@@ -2730,6 +2975,7 @@ public class NetscalerResource implements ServerResource {
 
     private void addLBVirtualServer(String virtualServerName, String publicIp, int publicPort, String lbAlgorithm, String protocol, StickinessPolicyTO[] stickyPolicies, AutoScaleVmGroupTO vmGroupTO)
     throws ExecutionException {
+        base_response apiCallResult;
         try {
             String lbMethod;
             if ("roundrobin".equalsIgnoreCase(lbAlgorithm)) {
@@ -2820,6 +3066,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void removeLBVirtualServer (String virtualServerName) throws ExecutionException {
+        base_response apiCallResult;
         try {
             lbvserver vserver = lbvserver.get(_netscalerService, virtualServerName);
             if (vserver == null) {
@@ -3631,6 +3878,7 @@ public class NetscalerResource implements ServerResource {
     }
 
     private void saveConfiguration() throws ExecutionException {
+        base_response apiCallResult;
         try {
             apiCallResult = nsconfig.save(_netscalerService);
             if (apiCallResult.errorcode != 0) {
@@ -3688,7 +3936,7 @@ public class NetscalerResource implements ServerResource {
     private boolean shouldRetry(int numRetries) {
         try {
             if (numRetries > 0) {
-                login();
+                relogin();
                 return true;
             }
         } catch (Exception e) {
@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.resource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks on the names of the objects a command changes on a Netscaler device,
+ * so that commands for different virtual servers, public IPs or guest VLANs
+ * run side by side while commands sharing an object still run one at a time.
+ *
+ * All the locks of a command are taken at once and in name order, which keeps
+ * commands with overlapping object sets from deadlocking. Locks nobody holds
+ * or waits for are dropped.
+ *
+ * A command only depending on an object, like a load balancer rule on the
+ * guest VLAN its servers are in, takes that lock shared. Such commands run
+ * side by side, but not while another command holds the lock to change or
+ * remove the object. A thread holding a lock shared must not ask for it
+ * exclusively.
+ */
+public class NitroObjectLocks {
+    private final Map<String, Entry> _locks = new HashMap<String, Entry>();
+
+    private static class Entry {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users;
+    }
+
+    /**
+     * The locks held for one command.
+     */
+    public class Held {
+        // lock name to whether it is held shared
+        private final TreeMap<String, Boolean> _names;
+
+        private Held(TreeMap<String, Boolean> names) {
+            _names = names;
+        }
+
+        public void release() {
+            for (Map.Entry<String, Boolean> name : _names.descendingMap().entrySet()) {
+                unlock(name.getKey(), name.getValue());
+            }
+        }
+    }
+
+    public Held lock(Collection<String> names) {
+        return lock(names, Collections.<String>emptySet());
+    }
+
+    /**
+     * Takes the locks in names exclusively and the ones in sharedNames
+     * shared. A name in both is taken exclusively.
+     */
+    public Held lock(Collection<String> names, Collection<String> sharedNames) {
+        TreeMap<String, Boolean> locked = new TreeMap<String, Boolean>();
+        for (String name : sharedNames) {
+            locked.put(name, true);
+        }
+        for (String name : names) {
+            locked.put(name, false);
+        }
+        for (Map.Entry<String, Boolean> name : locked.entrySet()) {
+            lock(name.getKey(), name.getValue());
+        }
+        return new Held(locked);
+    }
+
+    public boolean isLocked(String name) {
+        synchronized (_locks) {
+            Entry entry = _locks.get(name);
+            return entry != null && (entry.lock.isWriteLocked() || entry.lock.getReadLockCount() > 0);
+        }
+    }
+
+    public int size() {
+        synchronized (_locks) {
+            return _locks.size();
+        }
+    }
+
+    private static Lock getLock(Entry entry, boolean shared) {
+        return shared ? entry.lock.readLock() : entry.lock.writeLock();
+    }
+
+    private void lock(String name, boolean shared) {
+        Entry entry;
+        synchronized (_locks) {
+            entry = _locks.get(name);
+            if (entry == null) {
+                entry = new Entry();
+                _locks.put(name, entry);
+            }
+            entry.users++;
+        }
+        getLock(entry, shared).lock();
+    }
+
+    private void unlock(String name, boolean shared) {
+        Entry entry;
+        synchronized (_locks) {
+            entry = _locks.get(name);
+        }
+        getLock(entry, shared).unlock();
+        synchronized (_locks) {
+            if (--entry.users == 0) {
+                _locks.remove(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.resource;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.citrix.netscaler.nitro.service.nitro_service;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.LoadBalancerConfigCommand;
+import com.cloud.agent.api.to.LoadBalancerTO;
+import com.cloud.network.lb.LoadBalancingRule.LbDestination;
+
+/**
+ * Runs NetscalerResource against a stand-in Nitro endpoint answering every
+ * request after a fixed latency, the way a remote appliance would, and
+ * counts the requests rule rebuilds make with one request per object and
+ * with bulk requests, and how many of them are in flight at once.
+ */
+public class NetscalerResourceTest {
+    private static final String DONE = "\"errorcode\": 0, \"message\": \"Done\", \"severity\": \"NONE\"";
+    private static final long LATENCY_MS = 2;
+
+    private HttpServer _server;
+    private final AtomicInteger _requests = new AtomicInteger();
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private final AtomicInteger _maxInFlight = new AtomicInteger();
+
+    private class NitroHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int inFlight = _inFlight.incrementAndGet();
+            synchronized (_maxInFlight) {
+                _maxInFlight.set(Math.max(_maxInFlight.get(), inFlight));
+            }
+            try {
+                _requests.incrementAndGet();
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                }
+                Thread.sleep(LATENCY_MS);
+
+                String path = exchange.getRequestURI().getPath();
+                String body;
+                if (path.endsWith("/login")) {
+                    body = "{" + DONE + ", \"sessionid\": \"##standin\"}";
+                } else if (path.contains("/nshardware")) {
+                    body = "{" + DONE + ", \"nshardware\": { \"hwdescription\": \"NetScaler Virtual Appliance\" } }";
+                } else if (path.contains("/Interface")) {
+                    body = "{" + DONE + ", \"Interface\": [ { \"id\": \"1/1\" } ] }";
+                } else if (path.contains("/nsfeature")) {
+                    body = "{" + DONE + ", \"nsfeature\": { \"feature\": [ \"LB\", \"SSL\" ] } }";
+                } else {
+                    // nothing exists yet, and every change is accepted
+                    body = "{" + DONE + "}";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                _inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private class StandInNetscalerResource extends NetscalerResource {
+        @Override
+        protected nitro_service createNitroService() throws Exception {
+            return new nitro_service("127.0.0.1:" + _server.getAddress().getPort(), "http");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/nitro", new NitroHandler());
+        _server.setExecutor(Executors.newCachedThreadPool());
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop(0);
+    }
+
+    private NetscalerResource createResource(boolean bulkRequests) throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("name", "netscaler");
+        params.put("zoneId", "1");
+        params.put("physicalNetworkId", "1");
+        params.put("ip", "127.0.0.1");
+        params.put("username", "nsroot");
+        params.put("password", "nsroot");
+        params.put("publicinterface", "1/1");
+        params.put("privateinterface", "1/1");
+        params.put("guid", "netscaler-standin");
+        params.put("deviceName", "NetscalerVPXLoadBalancer");
+        params.put("numretries", "0");
+        params.put("bulkrequests", Boolean.toString(bulkRequests));
+        NetscalerResource resource = new StandInNetscalerResource();
+        resource.configure("netscaler", params);
+        return resource;
+    }
+
+    private LoadBalancerConfigCommand createLbCommand(String publicIp, int members) {
+        List<LbDestination> destinations = new ArrayList<LbDestination>();
+        for (int i = 0; i < members; i++) {
+            destinations.add(new LbDestination(8080, 8080, "10.1." + (i / 250) + "." + (i % 250 + 2), false));
+        }
+        LoadBalancerTO lb = new LoadBalancerTO("lb-" + publicIp, publicIp, 80, "tcp", "roundrobin", false, false, false, destinations);
+        return new LoadBalancerConfigCommand(new LoadBalancerTO[] {lb}, null);
+    }
+
+    private void rebuild(NetscalerResource resource, String publicIp, int members) {
+        Answer answer = resource.executeRequest(createLbCommand(publicIp, members));
+        assertTrue(answer.getDetails(), answer.getResult());
+    }
+
+    @Test
+    public void testBulkRequestsSaveRoundTrips() throws Exception {
+        int members = 500;
+
+        NetscalerResource perObject = createResource(false);
+        _requests.set(0);
+        rebuild(perObject, "192.168.10.10", members);
+        int perObjectRequests = _requests.get();
+
+        NetscalerResource bulk = createResource(true);
+        _requests.set(0);
+        rebuild(bulk, "192.168.10.10", members);
+        int bulkRequests = _requests.get();
+
+        // one object at a time, every member takes at least a request of its own
+        assertTrue(perObjectRequests + " requests one object at a time", perObjectRequests > members);
+        assertTrue(bulkRequests + " requests in bulk against " + perObjectRequests, bulkRequests < perObjectRequests / 2);
+    }
+
+    @Test
+    public void testRulesOfDifferentTenantsRunConcurrently() throws Exception {
+        final NetscalerResource resource = createResource(false);
+        final int tenants = 4;
+        final int members = 50;
+
+        ExecutorService executor = Executors.newFixedThreadPool(tenants);
+        List<Future<?>> rebuilds = new ArrayList<Future<?>>();
+        _maxInFlight.set(0);
+        for (int i = 0; i < tenants; i++) {
+            final String publicIp = "192.168.20." + (10 + i);
+            rebuilds.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    rebuild(resource, publicIp, members);
+                }
+            }));
+        }
+        for (Future<?> rebuild : rebuilds) {
+            rebuild.get();
+        }
+        executor.shutdown();
+
+        // rules sharing no object do not wait for each other
+        assertTrue(_maxInFlight.get() + " requests in flight", _maxInFlight.get() > 1);
+    }
+}
@@ -0,0 +1,168 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NitroObjectLocksTest {
+
+    private Thread lockInBackground(final NitroObjectLocks locks, final List<String> names, final CountDownLatch locked) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                NitroObjectLocks.Held held = locks.lock(names);
+                locked.countDown();
+                held.release();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testDisjointObjectsDoNotBlock() throws Exception {
+        NitroObjectLocks locks = new NitroObjectLocks();
+        NitroObjectLocks.Held held = locks.lock(Arrays.asList("vserver:a", "server:1"));
+
+        CountDownLatch locked = new CountDownLatch(1);
+        lockInBackground(locks, Arrays.asList("vserver:b", "server:2"), locked).join(5000);
+        assertTrue(locked.await(0, TimeUnit.MILLISECONDS));
+
+        held.release();
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testSharedObjectSerializes() throws Exception {
+        NitroObjectLocks locks = new NitroObjectLocks();
+        NitroObjectLocks.Held held = locks.lock(Arrays.asList("vserver:a", "server:1"));
+
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = lockInBackground(locks, Arrays.asList("vserver:b", "server:1"), locked);
+        assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+
+        held.release();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        thread.join(5000);
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testSharedLocksBlockOnlyExclusiveOnes() throws Exception {
+        final NitroObjectLocks locks = new NitroObjectLocks();
+        NitroObjectLocks.Held rule = locks.lock(Arrays.asList("vserver:a"), Arrays.asList("vlan:100"));
+
+        // another rule in the same vlan goes ahead
+        NitroObjectLocks.Held other = locks.lock(Arrays.asList("vserver:b"), Arrays.asList("vlan:100"));
+        other.release();
+
+        // removing the vlan waits for the rule
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = lockInBackground(locks, Arrays.asList("vlan:100"), locked);
+        assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+        rule.release();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        thread.join(5000);
+
+        // and a rule waits for the vlan to be removed
+        NitroObjectLocks.Held removal = locks.lock(Arrays.asList("vlan:100"));
+        final CountDownLatch sharedLocked = new CountDownLatch(1);
+        thread = new Thread() {
+            @Override
+            public void run() {
+                NitroObjectLocks.Held held = locks.lock(Arrays.asList("vserver:c"), Arrays.asList("vlan:100"));
+                sharedLocked.countDown();
+                held.release();
+            }
+        };
+        thread.start();
+        assertFalse(sharedLocked.await(200, TimeUnit.MILLISECONDS));
+        removal.release();
+        assertTrue(sharedLocked.await(5, TimeUnit.SECONDS));
+        thread.join(5000);
+
+        // a name asked for both ways is taken exclusively
+        NitroObjectLocks.Held both = locks.lock(Arrays.asList("vlan:100"), Arrays.asList("vlan:100"));
+        assertTrue(locks.isLocked("vlan:100"));
+        both.release();
+        assertFalse(locks.isLocked("vlan:100"));
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testReentrant() {
+        NitroObjectLocks locks = new NitroObjectLocks();
+        NitroObjectLocks.Held outer = locks.lock(Arrays.asList("vserver:a"));
+        NitroObjectLocks.Held inner = locks.lock(Arrays.asList("vserver:a", "server:1"));
+        inner.release();
+        assertTrue(locks.isLocked("vserver:a"));
+        assertFalse(locks.isLocked("server:1"));
+        outer.release();
+        assertFalse(locks.isLocked("vserver:a"));
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void testOverlappingObjectsDoNotDeadlock() throws Exception {
+        final NitroObjectLocks locks = new NitroObjectLocks();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger conflicts = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 500; j++) {
+                        // every thread also takes the shared object, in whatever position it ends up
+                        List<String> names = new ArrayList<String>(Arrays.asList("server:shared", "vserver:" + random.nextInt(4), "server:" + random.nextInt(4)));
+                        Collections.shuffle(names, random);
+                        NitroObjectLocks.Held held = locks.lock(names);
+                        if (inside.incrementAndGet() != 1) {
+                            conflicts.incrementAndGet();
+                        }
+                        inside.decrementAndGet();
+                        held.release();
+                        done.incrementAndGet();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        assertEquals(8 * 500, done.get());
+        assertEquals(0, conflicts.get());
+        assertEquals(0, locks.size());
+    }
+}
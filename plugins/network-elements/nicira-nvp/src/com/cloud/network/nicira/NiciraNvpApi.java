@@ -31,10 +31,14 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -75,6 +79,15 @@ public class NiciraNvpApi {
     private static final Logger s_logger = Logger.getLogger(NiciraNvpApi.class);
     private final static String _protocol = "https";
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
+    private static final int MAX_CONNECTIONS_PER_HOST = 20;
+    private static final int PAGE_LENGTH = 1000;
+    public static final long DEFAULT_CACHE_TTL_MS = 2000;
+
+    static {
+        // NiciraNvpResource runs independent calls in parallel, the default of 2 connections would serialize them again
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+        s_httpClientManager.getParams().setMaxTotalConnections(MAX_CONNECTIONS_PER_HOST * 5);
+    }
 
     private String _name;
     private String _host;
@@ -86,6 +99,65 @@ public class NiciraNvpApi {
 
     private Gson _gson;
 
+    // bumped by every login, a request refused with 401 only logs in again if nobody did since it was sent
+    private volatile long _loginGeneration;
+
+    private volatile long _cacheTtl = DEFAULT_CACHE_TTL_MS;
+    private final Map<String, CachedResponse> _cache = new ConcurrentHashMap<String, CachedResponse>();
+    // bumped on every invalidation so that a retrieval racing with a change is not cached
+    private final AtomicLong _cacheGeneration = new AtomicLong();
+    private final AtomicLong _cacheHits = new AtomicLong();
+    private final AtomicLong _cacheMisses = new AtomicLong();
+
+    private final Map<String, RequestStats> _requestStats = new ConcurrentHashMap<String, RequestStats>();
+
+    private static class CachedResponse {
+        final String root;
+        final String body;
+        final long loadedAt;
+
+        CachedResponse(String root, String body, long loadedAt) {
+            this.root = root;
+            this.body = body;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Number and duration of the requests sent to the controller with one HTTP method.
+     */
+    public static class RequestStats {
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _totalMs = new AtomicLong();
+        private volatile long _maxMs;
+
+        void record(long ms) {
+            _count.incrementAndGet();
+            _totalMs.addAndGet(ms);
+            if (ms > _maxMs) {
+                _maxMs = ms;
+            }
+        }
+
+        public long getCount() {
+            return _count.get();
+        }
+
+        public long getTotalMs() {
+            return _totalMs.get();
+        }
+
+        public long getMaxMs() {
+            return _maxMs;
+        }
+
+        @Override
+        public String toString() {
+            long count = _count.get();
+            return count + " requests, avg " + (count > 0 ? _totalMs.get() / count : 0) + "ms, max " + _maxMs + "ms";
+        }
+    }
+
     /* This factory method is protected so we can extend this
      * in the unittests.
      */
@@ -96,7 +168,7 @@ public class NiciraNvpApi {
     protected HttpMethod createMethod(String type, String uri) throws NiciraNvpApiException {
         String url;
         try {
-            url = new URL(_protocol, _host, uri).toString();
+            url = createUrl(uri).toString();
         } catch (MalformedURLException e) {
             s_logger.error("Unable to build Nicira API URL", e);
             throw new NiciraNvpApiException("Unable to build Nicira API URL", e);
@@ -119,6 +191,21 @@ public class NiciraNvpApi {
         }
     }
 
+    /* The controller address is a host name or address, optionally followed by :port.
+     * new URL(protocol, host, file) would take host:port for an IPv6 address.
+     */
+    private URL createUrl(String uri) throws MalformedURLException {
+        int colon = _host.lastIndexOf(':');
+        if (colon > 0 && (_host.indexOf(':') == colon || _host.charAt(colon - 1) == ']')) {
+            try {
+                return new URL(getProtocol(), _host.substring(0, colon), Integer.parseInt(_host.substring(colon + 1)), uri);
+            } catch (NumberFormatException e) {
+                throw new MalformedURLException("Invalid port in controller address " + _host);
+            }
+        }
+        return new URL(getProtocol(), _host, uri);
+    }
+
     public NiciraNvpApi() {
         _client = createHttpClient();
         _client.getParams().setCookiePolicy(CookiePolicy.BROWSER_COMPATIBILITY);
@@ -146,13 +233,44 @@ public class NiciraNvpApi {
         _adminpass = password;
     }
 
+    /**
+     * Sets how long retrieved objects are served from memory. Changes made through this
+     * api drop the cached objects they affect right away, the time to live only bounds
+     * how long changes made by others can go unnoticed. 0 disables the cache.
+     */
+    public void setCacheTtl(long cacheTtlMs) {
+        _cacheTtl = cacheTtlMs;
+        if (cacheTtlMs <= 0) {
+            _cache.clear();
+        }
+    }
+
+    public long getCacheHits() {
+        return _cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return _cacheMisses.get();
+    }
+
+    /**
+     * @return the request statistics by HTTP method
+     */
+    public Map<String, RequestStats> getRequestStats() {
+        return Collections.unmodifiableMap(_requestStats);
+    }
+
+    protected String getProtocol() {
+        return _protocol;
+    }
+
     /**
      * Logs into the Nicira API. The cookie is stored in the
      * <code>_authcookie<code> variable.
      * <p>
      * The method returns false if the login failed or the connection could not be made.
      */
-    protected void login() throws NiciraNvpApiException {
+    protected synchronized void login() throws NiciraNvpApiException {
         String url;
 
         if (_host == null || _host.isEmpty() ||
@@ -162,7 +280,7 @@ public class NiciraNvpApi {
         }
 
         try {
-            url = new URL(_protocol, _host, "/ws.v1/login").toString();
+            url = createUrl("/ws.v1/login").toString();
         } catch (MalformedURLException e) {
             s_logger.error("Unable to build Nicira API URL", e);
             throw new NiciraNvpApiException("Unable to build Nicira API URL", e);
@@ -172,6 +290,7 @@ public class NiciraNvpApi {
         pm.addParameter("username", _adminuser);
         pm.addParameter("password", _adminpass);
 
+        long start = System.currentTimeMillis();
         try {
             _client.executeMethod(pm);
         } catch (HttpException e) {
@@ -180,6 +299,7 @@ public class NiciraNvpApi {
             throw new NiciraNvpApiException("Nicira NVP API login failed ", e);
         } finally {
             pm.releaseConnection();
+            recordRequest("LOGIN", System.currentTimeMillis() - start);
         }
 
         if (pm.getStatusCode() != HttpStatus.SC_OK) {
@@ -194,6 +314,17 @@ public class NiciraNvpApi {
         }
 
         // Success; the cookie required for login is kept in _client
+        _loginGeneration++;
+    }
+
+    /**
+     * Logs in again after a request sent with the given login generation was refused,
+     * unless another request did so in the meantime.
+     */
+    private synchronized void relogin(long loginGeneration) throws NiciraNvpApiException {
+        if (_loginGeneration == loginGeneration) {
+            login();
+        }
     }
 
     public LogicalSwitch createLogicalSwitch(LogicalSwitch logicalSwitch) throws NiciraNvpApiException {
@@ -243,7 +374,8 @@ public class NiciraNvpApi {
 
     public ControlClusterStatus getControlClusterStatus() throws NiciraNvpApiException {
         String uri = "/ws.v1/control-cluster/status";
-        ControlClusterStatus ccs = executeRetrieveObject(new TypeToken<ControlClusterStatus>(){}.getType(), uri, null);
+        // this is the health check, never answer it from the cache
+        ControlClusterStatus ccs = executeRetrieveObject(new TypeToken<ControlClusterStatus>(){}.getType(), uri, null, false);
 
         return ccs;
     }
@@ -326,7 +458,7 @@ public class NiciraNvpApi {
         params.put("attachment_vlan", "0");
         params.put("fields","*");
 
-        return executeRetrieveObject(new TypeToken<NiciraNvpList<LogicalRouterPort>>(){}.getType(), uri, params);
+        return executeListObjects(new TypeToken<NiciraNvpList<LogicalRouterPort>>(){}.getType(), uri, params);
     }
 
     public LogicalRouterConfig findOneLogicalRouterByUuid(String logicalRouterUuid) throws NiciraNvpApiException {
@@ -344,18 +476,20 @@ public class NiciraNvpApi {
     public NiciraNvpList<NatRule> findNatRulesByLogicalRouterUuid(String logicalRouterUuid) throws NiciraNvpApiException {
         String uri = "/ws.v1/lrouter/" + logicalRouterUuid + "/nat";
         Map<String,String> params = new HashMap<String,String>();
+        // the rules are compared field by field with the wanted ones
         params.put("fields","*");
 
-        return executeRetrieveObject(new TypeToken<NiciraNvpList<NatRule>>(){}.getType(), uri, params);
+        return executeListObjects(new TypeToken<NiciraNvpList<NatRule>>(){}.getType(), uri, params);
     }
 
     public NiciraNvpList<LogicalRouterPort> findLogicalRouterPortByGatewayServiceUuid(String logicalRouterUuid, String l3GatewayServiceUuid) throws NiciraNvpApiException {
         String uri = "/ws.v1/lrouter/" + logicalRouterUuid + "/lport";
         Map<String,String> params = new HashMap<String,String>();
+        // the port is sent back whole with its new ip addresses
         params.put("fields", "*");
         params.put("attachment_gwsvc_uuid", l3GatewayServiceUuid);
 
-        return executeRetrieveObject(new TypeToken<NiciraNvpList<LogicalRouterPort>>(){}.getType(), uri, params);
+        return executeListObjects(new TypeToken<NiciraNvpList<LogicalRouterPort>>(){}.getType(), uri, params);
     }
 
     protected <T> void executeUpdateObject(T newObject, String uri, Map<String,String> parameters) throws NiciraNvpApiException {
@@ -374,7 +508,11 @@ public class NiciraNvpApi {
             throw new NiciraNvpApiException("Failed to encode json request body", e);
         }
 
-        executeMethod(pm);
+        try {
+            executeMethod(pm);
+        } finally {
+            invalidate(uri);
+        }
 
         if (pm.getStatusCode() != HttpStatus.SC_OK) {
             String errorMessage = responseToErrorMessage(pm);
@@ -401,7 +539,11 @@ public class NiciraNvpApi {
             throw new NiciraNvpApiException("Failed to encode json request body", e);
         }
 
-        executeMethod(pm);
+        try {
+            executeMethod(pm);
+        } finally {
+            invalidate(uri);
+        }
 
         if (pm.getStatusCode() != HttpStatus.SC_CREATED) {
             String errorMessage = responseToErrorMessage(pm);
@@ -432,7 +574,11 @@ public class NiciraNvpApi {
         DeleteMethod dm = (DeleteMethod) createMethod("delete", uri);
         dm.setRequestHeader("Content-Type", "application/json");
 
-        executeMethod(dm);
+        try {
+            executeMethod(dm);
+        } finally {
+            invalidate(uri);
+        }
 
         if (dm.getStatusCode() != HttpStatus.SC_NO_CONTENT) {
             String errorMessage = responseToErrorMessage(dm);
@@ -444,12 +590,28 @@ public class NiciraNvpApi {
     }
 
     protected <T> T executeRetrieveObject(Type returnObjectType, String uri, Map<String,String> parameters) throws NiciraNvpApiException {
+        return executeRetrieveObject(returnObjectType, uri, parameters, true);
+    }
+
+    protected <T> T executeRetrieveObject(Type returnObjectType, String uri, Map<String,String> parameters, boolean useCache) throws NiciraNvpApiException {
         if (_host == null || _host.isEmpty() ||
                 _adminuser == null || _adminuser.isEmpty() ||
                 _adminpass == null || _adminpass.isEmpty()) {
             throw new NiciraNvpApiException("Hostname/credentials are null or empty");
         }
 
+        String cacheKey = null;
+        if (useCache && _cacheTtl > 0) {
+            cacheKey = cacheKey(uri, parameters);
+            CachedResponse cached = _cache.get(cacheKey);
+            if (cached != null && System.currentTimeMillis() - cached.loadedAt < _cacheTtl) {
+                _cacheHits.incrementAndGet();
+                return (T)_gson.fromJson(cached.body, returnObjectType);
+            }
+            _cacheMisses.incrementAndGet();
+        }
+        long cacheGeneration = _cacheGeneration.get();
+
         GetMethod gm = (GetMethod) createMethod("get", uri);
         gm.setRequestHeader("Content-Type", "application/json");
         if (parameters != null && !parameters.isEmpty()) {
@@ -469,25 +631,61 @@ public class NiciraNvpApi {
             throw new NiciraNvpApiException("Failed to retrieve object : " + errorMessage);
         }
 
-        T returnValue;
+        String body;
         try {
-            returnValue = (T)_gson.fromJson(gm.getResponseBodyAsString(), returnObjectType);
+            body = gm.getResponseBodyAsString();
         } catch (IOException e) {
             s_logger.error("IOException while retrieving response body",e);
             throw new NiciraNvpApiException(e);
         } finally {
             gm.releaseConnection();
         }
+
+        T returnValue = (T)_gson.fromJson(body, returnObjectType);
+        if (cacheKey != null) {
+            _cache.put(cacheKey, new CachedResponse(rootOf(uri), body, System.currentTimeMillis()));
+            if (_cacheGeneration.get() != cacheGeneration) {
+                // something changed while we were retrieving, the response may predate it
+                _cache.remove(cacheKey);
+            }
+        }
         return returnValue;
     }
 
+    /**
+     * Retrieves every page of a list, PAGE_LENGTH objects per request.
+     */
+    protected <T> NiciraNvpList<T> executeListObjects(Type returnObjectType, String uri, Map<String,String> parameters) throws NiciraNvpApiException {
+        Map<String,String> pageParameters = new HashMap<String,String>(parameters);
+        pageParameters.put("_page_length", String.valueOf(PAGE_LENGTH));
+
+        NiciraNvpList<T> list = executeRetrieveObject(returnObjectType, uri, pageParameters);
+        while (list != null && list.getPageCursor() != null) {
+            pageParameters.put("_page_cursor", list.getPageCursor());
+            NiciraNvpList<T> page = executeRetrieveObject(returnObjectType, uri, pageParameters);
+            if (page == null) {
+                break;
+            }
+            if (page.getResults() != null) {
+                if (list.getResults() == null) {
+                    list.setResults(new ArrayList<T>());
+                }
+                list.getResults().addAll(page.getResults());
+            }
+            list.setPageCursor(page.getPageCursor());
+        }
+        return list;
+    }
+
     protected void executeMethod(HttpMethodBase method) throws NiciraNvpApiException {
+        long loginGeneration = _loginGeneration;
+        long start = System.currentTimeMillis();
         try {
             _client.executeMethod(method);
             if (method.getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
                 method.releaseConnection();
                 // login and try again
-                login();
+                relogin(loginGeneration);
                 _client.executeMethod(method);
             }
         } catch (HttpException e) {
@@ -498,6 +696,75 @@ public class NiciraNvpApi {
             s_logger.error("IOException caught while trying to connect to the Nicira NVP Controller", e);
             method.releaseConnection();
             throw new NiciraNvpApiException("API call to Nicira NVP Controller Failed", e);
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            recordRequest(method.getName(), elapsed);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace(method.getName() + " " + method.getPath() + " took " + elapsed + "ms");
+            }
+        }
+    }
+
+    private void recordRequest(String type, long ms) {
+        if (type == null) {
+            type = "UNKNOWN";
+        }
+        RequestStats stats = _requestStats.get(type);
+        if (stats == null) {
+            synchronized (_requestStats) {
+                stats = _requestStats.get(type);
+                if (stats == null) {
+                    stats = new RequestStats();
+                    _requestStats.put(type, stats);
+                }
+            }
+        }
+        stats.record(ms);
+    }
+
+    private static String cacheKey(String uri, Map<String,String> parameters) {
+        if (parameters == null || parameters.isEmpty()) {
+            return uri;
+        }
+        return uri + "?" + new TreeMap<String,String>(parameters);
+    }
+
+    /* Objects are cached under the top level object they belong to,
+     * /ws.v1/lrouter/<uuid>/nat belongs to /ws.v1/lrouter/<uuid>
+     * and /ws.v1/lrouter to itself.
+     */
+    static String rootOf(String uri) {
+        String[] parts = uri.split("/");
+        if (parts.length < 4) {
+            return uri;
+        }
+        return "/" + parts[1] + "/" + parts[2] + "/" + parts[3];
+    }
+
+    private static String collectionOf(String uri) {
+        String[] parts = uri.split("/");
+        if (parts.length < 3) {
+            return uri;
+        }
+        return "/" + parts[1] + "/" + parts[2];
+    }
+
+    /**
+     * Drops the cached objects belonging to the same top level object as the uri,
+     * and the cached lists of that kind of object.
+     */
+    private void invalidate(String uri) {
+        _cacheGeneration.incrementAndGet();
+        if (_cache.isEmpty()) {
+            return;
+        }
+        String root = rootOf(uri);
+        String collection = collectionOf(uri);
+        for (Iterator<CachedResponse> it = _cache.values().iterator(); it.hasNext();) {
+            CachedResponse cached = it.next();
+            if (cached.root.equals(root) || cached.root.equals(collection)) {
+                it.remove();
+            }
         }
     }
 
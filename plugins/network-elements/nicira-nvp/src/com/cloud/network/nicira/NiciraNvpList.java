@@ -21,6 +21,7 @@ import java.util.List;
 public class NiciraNvpList<T> {
     private List<T> results;
     private int result_count;
+    private String page_cursor;
 
     public List<T> getResults() {
         return results;
@@ -38,6 +39,14 @@ public class NiciraNvpList<T> {
         this.result_count = result_count;
     }
 
+    public String getPageCursor() {
+        return page_cursor;
+    }
+
+    public void setPageCursor(String page_cursor) {
+        this.page_cursor = page_cursor;
+    }
+
     public boolean isEmpty() {
         return result_count == 0;
     }
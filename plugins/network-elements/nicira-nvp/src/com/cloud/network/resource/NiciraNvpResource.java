@@ -19,6 +19,11 @@ package com.cloud.network.resource;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.naming.ConfigurationException;
 
@@ -80,6 +85,8 @@ import com.cloud.network.nicira.SourceNatRule;
 import com.cloud.network.nicira.TransportZoneBinding;
 import com.cloud.network.nicira.VifAttachment;
 import com.cloud.resource.ServerResource;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 public class NiciraNvpResource implements ServerResource {
     private static final Logger s_logger = Logger.getLogger(NiciraNvpResource.class);
@@ -90,6 +97,8 @@ public class NiciraNvpResource implements ServerResource {
     private int _numRetries;
 
     private NiciraNvpApi _niciraNvpApi;
+    // runs the independent calls of one command in parallel
+    private ExecutorService _executor;
 
     protected NiciraNvpApi createNiciraNvpApi() {
         return new NiciraNvpApi();
@@ -134,6 +143,12 @@ public class NiciraNvpResource implements ServerResource {
         _niciraNvpApi = createNiciraNvpApi();
         _niciraNvpApi.setControllerAddress(ip);
         _niciraNvpApi.setAdminCredentials(adminuser,adminpass);
+        _niciraNvpApi.setCacheTtl(NumbersUtil.parseLong((String) params.get("cachettl"), NiciraNvpApi.DEFAULT_CACHE_TTL_MS));
+
+        if (_executor == null) {
+            int concurrentCalls = NumbersUtil.parseInt((String) params.get("concurrentcalls"), 4);
+            _executor = Executors.newFixedThreadPool(Math.max(1, concurrentCalls), new NamedThreadFactory("NiciraNvpCalls-" + _name));
+        }
 
         return true;
     }
@@ -145,6 +160,15 @@ public class NiciraNvpResource implements ServerResource {
 
     @Override
     public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            // configure() starts a new pool
+            _executor = null;
+        }
+        if (_niciraNvpApi != null) {
+            s_logger.info("Nicira NVP requests of " + _name + ": " + _niciraNvpApi.getRequestStats() +
+                    ", cache hits " + _niciraNvpApi.getCacheHits() + ", misses " + _niciraNvpApi.getCacheMisses());
+        }
         return true;
     }
 
@@ -522,6 +546,7 @@ public class NiciraNvpResource implements ServerResource {
 
     private Answer executeRequest(ConfigureStaticNatRulesOnLogicalRouterCommand cmd, int numRetries) {
         try {
+            List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
             NiciraNvpList<NatRule> existingRules = _niciraNvpApi.findNatRulesByLogicalRouterUuid(cmd.getLogicalRouterUuid());
             // Rules of the game (also known as assumptions-that-will-make-stuff-break-later-on)
             // A SourceNat rule with a match other than a /32 cidr is assumed to be the "main" SourceNat rule
@@ -554,11 +579,7 @@ public class NiciraNvpResource implements ServerResource {
                 }
                 if (incoming != null && outgoing != null) {
                     if (rule.revoked()) {
-                        s_logger.debug("Deleting incoming rule " + incoming.getUuid());
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), incoming.getUuid());
-
-                        s_logger.debug("Deleting outgoing rule " + outgoing.getUuid());
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), outgoing.getUuid());
+                        calls.add(deleteNatRulePair(cmd.getLogicalRouterUuid(), incoming, outgoing));
                     }
                 }
                 else {
@@ -568,20 +589,11 @@ public class NiciraNvpResource implements ServerResource {
                         break;
                     }
 
-                    rulepair[0] = _niciraNvpApi.createLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[0]);
-                    s_logger.debug("Created " + natRuleToString(rulepair[0]));
-
-                    try {
-                        rulepair[1] = _niciraNvpApi.createLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[1]);
-                        s_logger.debug("Created " + natRuleToString(rulepair[1]));
-                    } catch (NiciraNvpApiException ex) {
-                        s_logger.debug("Failed to create SourceNatRule, rolling back DestinationNatRule");
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[0].getUuid());
-                        throw ex; // Rethrow original exception
-                    }
+                    calls.add(createNatRulePair(cmd.getLogicalRouterUuid(), rulepair));
 
                 }
             }
+            invokeAll(calls);
             return new ConfigureStaticNatRulesOnLogicalRouterAnswer(cmd, true, cmd.getRules().size() +" StaticNat rules applied");
         } catch (NiciraNvpApiException e) {
             if (numRetries > 0) {
@@ -595,6 +607,7 @@ public class NiciraNvpResource implements ServerResource {
 
     private Answer executeRequest(ConfigurePortForwardingRulesOnLogicalRouterCommand cmd, int numRetries) {
         try {
+            List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
             NiciraNvpList<NatRule> existingRules = _niciraNvpApi.findNatRulesByLogicalRouterUuid(cmd.getLogicalRouterUuid());
             // Rules of the game (also known as assumptions-that-will-make-stuff-break-later-on)
             // A SourceNat rule with a match other than a /32 cidr is assumed to be the "main" SourceNat rule
@@ -608,6 +621,8 @@ public class NiciraNvpResource implements ServerResource {
 
                 if (rule.getDstPortRange()[0] != rule.getDstPortRange()[1] ||
                         rule.getSrcPortRange()[0] != rule.getSrcPortRange()[1]    ) {
+                    // the rules before this one are applied, as they would have been one by one
+                    invokeAll(calls);
                     return new ConfigurePortForwardingRulesOnLogicalRouterAnswer(cmd, false, "Nicira NVP doesn't support port ranges for port forwarding");
                 }
 
@@ -636,11 +651,7 @@ public class NiciraNvpResource implements ServerResource {
                 }
                 if (incoming != null && outgoing != null) {
                     if (rule.revoked()) {
-                        s_logger.debug("Deleting incoming rule " + incoming.getUuid());
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), incoming.getUuid());
-
-                        s_logger.debug("Deleting outgoing rule " + outgoing.getUuid());
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), outgoing.getUuid());
+                        calls.add(deleteNatRulePair(cmd.getLogicalRouterUuid(), incoming, outgoing));
                     }
                 }
                 else {
@@ -650,20 +661,11 @@ public class NiciraNvpResource implements ServerResource {
                         break;
                     }
 
-                    rulepair[0] = _niciraNvpApi.createLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[0]);
-                    s_logger.debug("Created " + natRuleToString(rulepair[0]));
-
-                    try {
-                        rulepair[1] = _niciraNvpApi.createLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[1]);
-                        s_logger.debug("Created " + natRuleToString(rulepair[1]));
-                    } catch (NiciraNvpApiException ex) {
-                        s_logger.warn("NiciraNvpApiException during create call, rolling back previous create");
-                        _niciraNvpApi.deleteLogicalRouterNatRule(cmd.getLogicalRouterUuid(), rulepair[0].getUuid());
-                        throw ex; // Rethrow the original exception
-                    }
+                    calls.add(createNatRulePair(cmd.getLogicalRouterUuid(), rulepair));
 
                 }
             }
+            invokeAll(calls);
             return new ConfigurePortForwardingRulesOnLogicalRouterAnswer(cmd, true, cmd.getRules().size() +" PortForwarding rules applied");
         } catch (NiciraNvpApiException e) {
             if (numRetries > 0) {
@@ -684,6 +686,82 @@ public class NiciraNvpResource implements ServerResource {
         return new MaintainAnswer(cmd);
     }
 
+    private Callable<Void> deleteNatRulePair(final String logicalRouterUuid, final NatRule incoming, final NatRule outgoing) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws NiciraNvpApiException {
+                s_logger.debug("Deleting incoming rule " + incoming.getUuid());
+                _niciraNvpApi.deleteLogicalRouterNatRule(logicalRouterUuid, incoming.getUuid());
+
+                s_logger.debug("Deleting outgoing rule " + outgoing.getUuid());
+                _niciraNvpApi.deleteLogicalRouterNatRule(logicalRouterUuid, outgoing.getUuid());
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> createNatRulePair(final String logicalRouterUuid, final NatRule[] rulepair) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws NiciraNvpApiException {
+                rulepair[0] = _niciraNvpApi.createLogicalRouterNatRule(logicalRouterUuid, rulepair[0]);
+                s_logger.debug("Created " + natRuleToString(rulepair[0]));
+
+                try {
+                    rulepair[1] = _niciraNvpApi.createLogicalRouterNatRule(logicalRouterUuid, rulepair[1]);
+                    s_logger.debug("Created " + natRuleToString(rulepair[1]));
+                } catch (NiciraNvpApiException ex) {
+                    s_logger.warn("NiciraNvpApiException during create call, rolling back previous create");
+                    _niciraNvpApi.deleteLogicalRouterNatRule(logicalRouterUuid, rulepair[0].getUuid());
+                    throw ex; // Rethrow the original exception
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs calls that do not depend on each other in parallel. Every call is
+     * completed before the first failure, if any, is rethrown.
+     */
+    private void invokeAll(List<Callable<Void>> calls) throws NiciraNvpApiException {
+        if (calls.isEmpty()) {
+            return;
+        }
+        if (calls.size() == 1) {
+            try {
+                calls.get(0).call();
+            } catch (NiciraNvpApiException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new NiciraNvpApiException(e);
+            }
+            return;
+        }
+
+        List<Future<Void>> futures;
+        try {
+            futures = _executor.invokeAll(calls);
+        } catch (InterruptedException e) {
+            throw new NiciraNvpApiException("Interrupted while waiting for the Nicira NVP Controller", e);
+        }
+        NiciraNvpApiException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new NiciraNvpApiException("Interrupted while waiting for the Nicira NVP Controller", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof NiciraNvpApiException ? (NiciraNvpApiException)e.getCause() : new NiciraNvpApiException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     private Answer retry(Command cmd, int numRetries) {
         s_logger.warn("Retrying " + cmd.getClass().getSimpleName() + ". Number of retries remaining: " + numRetries);
         return executeRequest(cmd, numRetries);
@@ -0,0 +1,192 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.nicira;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs NiciraNvpApi against a stand-in NVP controller which requires a
+ * session cookie, lists NAT rules in pages of one rule and accepts every
+ * delete.
+ */
+public class NiciraNvpApiCacheTest {
+    private static final String RULE = "{ \"uuid\" : \"%s\", \"type\" : \"DestinationNatRule\", \"order\" : 100 }";
+    private static final String RULE_1 = "11111111-1111-1111-1111-111111111111";
+    private static final String RULE_2 = "22222222-2222-2222-2222-222222222222";
+
+    private HttpServer _server;
+    private NiciraNvpApi _api;
+    private final AtomicInteger _logins = new AtomicInteger();
+    private final AtomicInteger _gets = new AtomicInteger();
+    private final AtomicInteger _unauthorized = new AtomicInteger();
+
+    private class NvpHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            while (in.read() != -1) {
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+
+            if (path.equals("/ws.v1/login")) {
+                _logins.incrementAndGet();
+                exchange.getResponseHeaders().set("Set-Cookie", "nvp_sessionid=standin; Path=/");
+                respond(exchange, 200, "");
+                return;
+            }
+            if (cookie == null || !cookie.contains("nvp_sessionid=standin")) {
+                _unauthorized.incrementAndGet();
+                respond(exchange, 401, "");
+                return;
+            }
+            if ("DELETE".equals(exchange.getRequestMethod())) {
+                respond(exchange, 204, null);
+                return;
+            }
+
+            _gets.incrementAndGet();
+            if (query != null && query.contains("_page_cursor=second")) {
+                respond(exchange, 200, "{ \"results\" : [ " + String.format(RULE, RULE_2) + " ], \"result_count\" : 2 }");
+            } else {
+                respond(exchange, 200, "{ \"results\" : [ " + String.format(RULE, RULE_1) + " ], \"result_count\" : 2, \"page_cursor\" : \"second\" }");
+            }
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/ws.v1", new NvpHandler());
+        _server.setExecutor(Executors.newCachedThreadPool());
+        _server.start();
+
+        _api = new NiciraNvpApi() {
+            @Override
+            protected String getProtocol() {
+                return "http";
+            }
+        };
+        _api.setControllerAddress("127.0.0.1:" + _server.getAddress().getPort());
+        _api.setAdminCredentials("admin", "adminpass");
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop(0);
+    }
+
+    @Test
+    public void listsAreJoinedAcrossPages() throws NiciraNvpApiException {
+        NiciraNvpList<NatRule> rules = _api.findNatRulesByLogicalRouterUuid("router-1");
+
+        assertEquals(2, rules.getResults().size());
+        assertEquals(RULE_1, rules.getResults().get(0).getUuid().toString());
+        assertEquals(RULE_2, rules.getResults().get(1).getUuid().toString());
+        assertEquals(2, _gets.get());
+    }
+
+    @Test
+    public void retrievedObjectsAreCachedUntilChanged() throws NiciraNvpApiException {
+        _api.findNatRulesByLogicalRouterUuid("router-1");
+        _api.findNatRulesByLogicalRouterUuid("router-2");
+        _api.findNatRulesByLogicalRouterUuid("router-1");
+        assertEquals(4, _gets.get());
+
+        _api.deleteLogicalRouterNatRule("router-1", UUID.randomUUID());
+        _api.findNatRulesByLogicalRouterUuid("router-1");
+        _api.findNatRulesByLogicalRouterUuid("router-2");
+        assertEquals("only the changed router is retrieved again", 6, _gets.get());
+        assertTrue(_api.getCacheHits() > 0);
+    }
+
+    @Test
+    public void cacheIsDisabledWithZeroTtl() throws NiciraNvpApiException {
+        _api.setCacheTtl(0);
+        _api.findNatRulesByLogicalRouterUuid("router-1");
+        _api.findNatRulesByLogicalRouterUuid("router-1");
+        assertEquals(4, _gets.get());
+        assertEquals(0, _api.getCacheHits());
+    }
+
+    @Test
+    public void concurrentUnauthorizedRequestsLogInOnce() throws Exception {
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<NiciraNvpList<NatRule>>> futures = new ArrayList<Future<NiciraNvpList<NatRule>>>();
+        for (int i = 0; i < threads; i++) {
+            final String router = "router-" + i;
+            futures.add(executor.submit(new Callable<NiciraNvpList<NatRule>>() {
+                @Override
+                public NiciraNvpList<NatRule> call() throws Exception {
+                    start.await();
+                    return _api.findNatRulesByLogicalRouterUuid(router);
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<NiciraNvpList<NatRule>> future : futures) {
+            assertEquals(2, future.get().getResults().size());
+        }
+        executor.shutdown();
+
+        assertTrue(_unauthorized.get() > 0);
+        assertEquals("requests refused at the same time share one login", 1, _logins.get());
+        assertTrue(_api.getRequestStats().get("GET").getCount() >= threads * 2);
+        assertEquals(1, _api.getRequestStats().get("LOGIN").getCount());
+    }
+}
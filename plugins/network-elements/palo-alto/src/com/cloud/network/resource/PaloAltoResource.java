@@ -61,6 +61,7 @@ import com.cloud.network.rules.FirewallRule.TrafficType;
 import com.cloud.network.rules.FirewallRule.Purpose;
 import com.cloud.resource.ServerResource;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.CommitBatcher;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.Script;
@@ -72,6 +73,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -103,7 +105,7 @@ public class PaloAltoResource implements ServerResource {
     private String _username;
     private String _password;
     private String _guid;
-    private String _key;
+    private volatile String _key;
     private Integer _numRetries;
     private Integer _timeoutInSeconds;
     private String _publicZone;
@@ -116,10 +118,13 @@ public class PaloAltoResource implements ServerResource {
     private String _threatProfile;
     private String _logProfile;
     private String _pingManagementProfile;
+    private CommitBatcher _commitBatcher;
+    // commands refresh the connection side by side, one of them logs in at a time
+    private final Object _loginLock = new Object();
     private final Logger s_logger = Logger.getLogger(PaloAltoResource.class);
 
     private static String _apiUri = "/api";
-    private static HttpClient _httpclient;
+    private static volatile HttpClient _httpclient;
 
     protected enum PaloAltoMethod {
         GET, POST;
@@ -247,6 +252,10 @@ public class PaloAltoResource implements ServerResource {
             _numRetries = NumbersUtil.parseInt((String) params.get("numretries"), 1);
             _timeoutInSeconds = NumbersUtil.parseInt((String) params.get("timeout"), 300);
 
+            // changes queued while a commit runs, or within the window, go into the next commit together
+            _commitBatcher = new CommitBatcher("Palo Alto " + _ip, new PaloAltoCommitTarget(),
+                    NumbersUtil.parseLong((String) params.get("commitwindow"), 100), NumbersUtil.parseInt((String) params.get("commitbatchsize"), 50));
+
             // Open a socket and login
             if (!refreshPaloAltoConnection()) {
                 throw new ConfigurationException("Unable to open a connection to the Palo Alto.");
@@ -298,9 +307,12 @@ public class PaloAltoResource implements ServerResource {
 
             _pingManagementProfile = "Ping";
             try {
-                ArrayList<IPaloAltoCommand> cmdList = new ArrayList<IPaloAltoCommand>();
-                managePingProfile(cmdList, PaloAltoPrimative.ADD);
-                boolean status = requestWithCommit(cmdList);
+                boolean status = requestWithCommit(new CommandListBuilder() {
+                    @Override
+                    public void build(ArrayList<IPaloAltoCommand> cmdList) throws ExecutionException {
+                        managePingProfile(cmdList, PaloAltoPrimative.ADD);
+                    }
+                });
             } catch (ExecutionException e) {
                 throw new ConfigurationException(e.getMessage());
             }
@@ -364,23 +376,28 @@ public class PaloAltoResource implements ServerResource {
     /*
      * Login
      */
-    private void openHttpConnection(){
-        _httpclient = new DefaultHttpClient();
+    private static synchronized void openHttpConnection(){
+        if (_httpclient != null) {
+            return;
+        }
+
+        // commands send their requests side by side
+        HttpClient httpclient = new DefaultHttpClient(new PoolingClientConnectionManager());
 
         // Allows you to connect via SSL using unverified certs
-        _httpclient = HttpClientWrapper.wrapClient(_httpclient);
+        _httpclient = HttpClientWrapper.wrapClient(httpclient);
     }
 
     private boolean refreshPaloAltoConnection() {
-        if (_httpclient == null) {
-            openHttpConnection();
-        }
+        openHttpConnection();
 
-        try {
-            return login(_username, _password);
-        } catch (ExecutionException e) {
-            s_logger.error("Failed to login due to " + e.getMessage());
-            return false;
+        synchronized (_loginLock) {
+            try {
+                return login(_username, _password);
+            } catch (ExecutionException e) {
+                s_logger.error("Failed to login due to " + e.getMessage());
+                return false;
+            }
         }
     }
 
@@ -400,14 +417,15 @@ public class PaloAltoResource implements ServerResource {
         XPath xpath = XPathFactory.newInstance().newXPath();
         try {
             XPathExpression expr = xpath.compile("/response[@status='success']/result/key/text()");
-            _key = (String) expr.evaluate(keygen_doc, XPathConstants.STRING);
+            String key = (String) expr.evaluate(keygen_doc, XPathConstants.STRING);
+            if (key == null) {
+                return false;
+            }
+            _key = key;
+            return true;
         } catch (XPathExpressionException e) {
             throw new ExecutionException(e.getCause().getMessage());
         }
-        if (_key != null) {
-            return true;
-        }
-        return false;
     }
 
 
@@ -431,7 +449,7 @@ public class PaloAltoResource implements ServerResource {
      * Guest networks
      */
 
-    private synchronized Answer execute(IpAssocCommand cmd) {
+    private Answer execute(IpAssocCommand cmd) {
         refreshPaloAltoConnection();
         return execute(cmd, _numRetries);
     }
@@ -460,11 +478,11 @@ public class PaloAltoResource implements ServerResource {
                 }
             }
 
-            long guestVlanTag = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.GUEST_VLAN_TAG));
-            String guestVlanGateway = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_GATEWAY);
+            final long guestVlanTag = Long.parseLong(cmd.getAccessDetail(NetworkElementCommand.GUEST_VLAN_TAG));
+            final String guestVlanGateway = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_GATEWAY);
             String cidr = cmd.getAccessDetail(NetworkElementCommand.GUEST_NETWORK_CIDR);
-            long cidrSize = NetUtils.cidrToLong(cidr)[1];
-            String guestVlanSubnet = NetUtils.getCidrSubNet(guestVlanGateway, cidrSize);    
+            final long cidrSize = NetUtils.cidrToLong(cidr)[1];
+            final String guestVlanSubnet = NetUtils.getCidrSubNet(guestVlanGateway, cidrSize);    
             
             Long publicVlanTag = null;
             if (ip.getBroadcastUri() != null) {
@@ -478,17 +496,22 @@ public class PaloAltoResource implements ServerResource {
                 }
             } 
 
-            ArrayList<IPaloAltoCommand> commandList = new ArrayList<IPaloAltoCommand>();
-
-            if (ip.isAdd()) {                                 
-                // Implement the guest network for this VLAN
-                implementGuestNetwork(commandList, type, publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
-            } else {
-                // Remove the guest network:
-                shutdownGuestNetwork(commandList, type, publicVlanTag, sourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
-            }
-
-            boolean status = requestWithCommit(commandList);
+            final IpAddressTO guestIp = ip;
+            final GuestNetworkType guestType = type;
+            final Long guestPublicVlanTag = publicVlanTag;
+            final String guestSourceNatIpAddress = sourceNatIpAddress;
+            boolean status = requestWithCommit(new CommandListBuilder() {
+                @Override
+                public void build(ArrayList<IPaloAltoCommand> commandList) throws ExecutionException {
+                    if (guestIp.isAdd()) {
+                        // Implement the guest network for this VLAN
+                        implementGuestNetwork(commandList, guestType, guestPublicVlanTag, guestSourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
+                    } else {
+                        // Remove the guest network:
+                        shutdownGuestNetwork(commandList, guestType, guestPublicVlanTag, guestSourceNatIpAddress, guestVlanTag, guestVlanGateway, guestVlanSubnet, cidrSize);
+                    }
+                }
+            });
 
             results[i++] = ip.getPublicIp() + " - success";
         } catch (ExecutionException e) {
@@ -546,25 +569,26 @@ public class PaloAltoResource implements ServerResource {
     /*
      * Firewall rule entry point
      */
-    private synchronized Answer execute(SetFirewallRulesCommand cmd) {
+    private Answer execute(SetFirewallRulesCommand cmd) {
         refreshPaloAltoConnection();
         return execute(cmd, _numRetries);
     }
     
     private Answer execute(SetFirewallRulesCommand cmd, int numRetries) {
-        FirewallRuleTO[] rules = cmd.getRules();
+        final FirewallRuleTO[] rules = cmd.getRules();
         try {
-            ArrayList<IPaloAltoCommand> commandList = new ArrayList<IPaloAltoCommand>();
-
-            for (FirewallRuleTO rule : rules) {
-                if (!rule.revoked()) {
-                    manageFirewallRule(commandList, PaloAltoPrimative.ADD, rule);
-                } else {
-                    manageFirewallRule(commandList, PaloAltoPrimative.DELETE, rule);
+            boolean status = requestWithCommit(new CommandListBuilder() {
+                @Override
+                public void build(ArrayList<IPaloAltoCommand> commandList) throws ExecutionException {
+                    for (FirewallRuleTO rule : rules) {
+                        if (!rule.revoked()) {
+                            manageFirewallRule(commandList, PaloAltoPrimative.ADD, rule);
+                        } else {
+                            manageFirewallRule(commandList, PaloAltoPrimative.DELETE, rule);
+                        }
+                    }
                 }
-            }
-
-            boolean status = requestWithCommit(commandList);
+            });
                 
             return new Answer(cmd);
         } catch (ExecutionException e) {
@@ -585,26 +609,27 @@ public class PaloAltoResource implements ServerResource {
      * Static NAT rule entry point
      */
 
-    private synchronized Answer execute(SetStaticNatRulesCommand cmd) {
+    private Answer execute(SetStaticNatRulesCommand cmd) {
         refreshPaloAltoConnection();
         return execute(cmd, _numRetries);
     }       
 
     private Answer execute(SetStaticNatRulesCommand cmd, int numRetries) {      
-        StaticNatRuleTO[] rules = cmd.getRules();
+        final StaticNatRuleTO[] rules = cmd.getRules();
 
         try {
-            ArrayList<IPaloAltoCommand> commandList = new ArrayList<IPaloAltoCommand>();
-
-            for (StaticNatRuleTO rule : rules) {
-                if (!rule.revoked()) {
-                    manageStcNatRule(commandList, PaloAltoPrimative.ADD, rule);
-                } else {
-                    manageStcNatRule(commandList, PaloAltoPrimative.DELETE, rule);
+            boolean status = requestWithCommit(new CommandListBuilder() {
+                @Override
+                public void build(ArrayList<IPaloAltoCommand> commandList) throws ExecutionException {
+                    for (StaticNatRuleTO rule : rules) {
+                        if (!rule.revoked()) {
+                            manageStcNatRule(commandList, PaloAltoPrimative.ADD, rule);
+                        } else {
+                            manageStcNatRule(commandList, PaloAltoPrimative.DELETE, rule);
+                        }
+                    }
                 }
-            }
-
-            boolean status = requestWithCommit(commandList);
+            });
 
             return new Answer(cmd);
         } catch (ExecutionException e) {
@@ -624,26 +649,27 @@ public class PaloAltoResource implements ServerResource {
     /*
      * Destination NAT (Port Forwarding) entry point
      */
-    private synchronized Answer execute (SetPortForwardingRulesCommand cmd) {
+    private Answer execute (SetPortForwardingRulesCommand cmd) {
         refreshPaloAltoConnection();
         return execute(cmd, _numRetries);
     }
 
     private Answer execute(SetPortForwardingRulesCommand cmd, int numRetries) {     
-        PortForwardingRuleTO[] rules = cmd.getRules();
+        final PortForwardingRuleTO[] rules = cmd.getRules();
 
         try {
-            ArrayList<IPaloAltoCommand> commandList = new ArrayList<IPaloAltoCommand>();
-
-            for (PortForwardingRuleTO rule : rules) {
-                if (!rule.revoked()) {
-                    manageDstNatRule(commandList, PaloAltoPrimative.ADD, rule);
-                } else {
-                    manageDstNatRule(commandList, PaloAltoPrimative.DELETE, rule);
+            boolean status = requestWithCommit(new CommandListBuilder() {
+                @Override
+                public void build(ArrayList<IPaloAltoCommand> commandList) throws ExecutionException {
+                    for (PortForwardingRuleTO rule : rules) {
+                        if (!rule.revoked()) {
+                            manageDstNatRule(commandList, PaloAltoPrimative.ADD, rule);
+                        } else {
+                            manageDstNatRule(commandList, PaloAltoPrimative.DELETE, rule);
+                        }
+                    }
                 }
-            }
-
-            boolean status = requestWithCommit(commandList);         
+            });         
 
             return new Answer(cmd);
         } catch (ExecutionException e) {
@@ -1781,12 +1807,37 @@ public class PaloAltoResource implements ServerResource {
         return null;
     }
 
+    /* Adds the commands of one change to the list. The checks the builders make */
+    /* read the candidate configuration, so they only run while the change is applied. */
+    private interface CommandListBuilder {
+        void build(ArrayList<IPaloAltoCommand> cmdList) throws ExecutionException;
+    }
+
     /* Runs a sequence of commands and attempts to commit at the end. */
     /* Uses the Command pattern to enable overriding of the response handling if needed. */
-    private synchronized boolean requestWithCommit(ArrayList<IPaloAltoCommand> commandList) throws ExecutionException {
-        boolean result = true;
+    /* The commands are committed together with the ones other threads queued meanwhile. */
+    /* They are built when the change is applied, after the changes committed before it, */
+    /* and built again if the batch is rolled back and the change is applied on its own. */
+    private boolean requestWithCommit(final CommandListBuilder builder) throws ExecutionException {
+        final boolean[] result = new boolean[] {true};
+        _commitBatcher.submit(new CommitBatcher.Change() {
+            @Override
+            public void apply() throws ExecutionException {
+                ArrayList<IPaloAltoCommand> commandList = new ArrayList<IPaloAltoCommand>();
+                builder.build(commandList);
+                // RUN THE SEQUENCE OF COMMANDS
+                result[0] = true;
+                for (IPaloAltoCommand command : commandList) {
+                    result[0] = (result[0] && command.execute()); // run commands and modify result boolean
+                }
+            }
+        });
+        return result[0];
+    }
 
-        if (commandList.size() > 0) {
+    private class PaloAltoCommitTarget implements CommitBatcher.Device {
+        @Override
+        public void begin() throws ExecutionException {
             // CHECK IF THERE IS PENDING CHANGES THAT HAVE NOT BEEN COMMITTED...
             String pending_changes;
             Map<String, String> check_params = new HashMap<String, String>();
@@ -1803,98 +1854,81 @@ public class PaloAltoResource implements ServerResource {
             }
             if (pending_changes.equals("yes")) {
                 throw new ExecutionException("The Palo Alto has uncommited changes, so no changes can be made.  Try again later or contact your administrator.");
-            } else {
-                // ADD A CONFIG LOCK TO CAPTURE THE PALO ALTO RESOURCE
-                String add_lock_status;
-                Map<String, String> add_lock_params = new HashMap<String, String>();
-                add_lock_params.put("type", "op");
-                add_lock_params.put("cmd", "<request><config-lock><add></add></config-lock></request>");
-                String add_lock_response = request(PaloAltoMethod.GET, add_lock_params); 
-                Document add_lock_doc = getDocument(add_lock_response);
-                XPath add_lock_xpath = XPathFactory.newInstance().newXPath();
-                try {
-                    XPathExpression expr = add_lock_xpath.compile("/response[@status='success']/result/text()");
-                    add_lock_status = (String) expr.evaluate(add_lock_doc, XPathConstants.STRING);
-                } catch (XPathExpressionException e) {
-                    throw new ExecutionException(e.getCause().getMessage());
-                }
-                if (add_lock_status.length() == 0) {
-                    throw new ExecutionException("The Palo Alto is locked, no changes can be made at this time.");
-                }
+            }
 
-                try {
-                    // RUN THE SEQUENCE OF COMMANDS
-                    for (IPaloAltoCommand command : commandList) {
-                        result = (result && command.execute()); // run commands and modify result boolean
-                    }
+            // ADD A CONFIG LOCK TO CAPTURE THE PALO ALTO RESOURCE
+            String add_lock_status;
+            Map<String, String> add_lock_params = new HashMap<String, String>();
+            add_lock_params.put("type", "op");
+            add_lock_params.put("cmd", "<request><config-lock><add></add></config-lock></request>");
+            String add_lock_response = request(PaloAltoMethod.GET, add_lock_params); 
+            Document add_lock_doc = getDocument(add_lock_response);
+            XPath add_lock_xpath = XPathFactory.newInstance().newXPath();
+            try {
+                XPathExpression expr = add_lock_xpath.compile("/response[@status='success']/result/text()");
+                add_lock_status = (String) expr.evaluate(add_lock_doc, XPathConstants.STRING);
+            } catch (XPathExpressionException e) {
+                throw new ExecutionException(e.getCause().getMessage());
+            }
+            if (add_lock_status.length() == 0) {
+                throw new ExecutionException("The Palo Alto is locked, no changes can be made at this time.");
+            }
+        }
 
-                    // COMMIT THE CHANGES (ALSO REMOVES CONFIG LOCK)
-                    String commit_job_id;
-                    Map<String, String> commit_params = new HashMap<String, String>();
-                    commit_params.put("type", "commit");
-                    commit_params.put("cmd", "<commit></commit>");
-                    String commit_response = requestWithPolling(PaloAltoMethod.GET, commit_params);
-                    Document commit_doc = getDocument(commit_response);
-                    XPath commit_xpath = XPathFactory.newInstance().newXPath();
-                    try {
-                        XPathExpression expr = commit_xpath.compile("/response[@status='success']/result/job/id/text()");
-                        commit_job_id = (String) expr.evaluate(commit_doc, XPathConstants.STRING);
-                    } catch (XPathExpressionException e) {
-                        throw new ExecutionException(e.getCause().getMessage());
-                    }
-                    if (commit_job_id.length() == 0) { // no commit was done, so release the lock...
-                        // REMOVE THE CONFIG LOCK TO RELEASE THE PALO ALTO RESOURCE
-                        String remove_lock_status;
-                        Map<String, String> remove_lock_params = new HashMap<String, String>();
-                        remove_lock_params.put("type", "op");
-                        remove_lock_params.put("cmd", "<request><config-lock><remove></remove></config-lock></request>");
-                        String remove_lock_response = request(PaloAltoMethod.GET, remove_lock_params); 
-                        Document remove_lock_doc = getDocument(remove_lock_response);
-                        XPath remove_lock_xpath = XPathFactory.newInstance().newXPath();
-                        try {
-                            XPathExpression expr = remove_lock_xpath.compile("/response[@status='success']/result/text()");
-                            remove_lock_status = (String) expr.evaluate(remove_lock_doc, XPathConstants.STRING);
-                        } catch (XPathExpressionException e) {
-                            throw new ExecutionException(e.getCause().getMessage());
-                        }
-                        if (remove_lock_status.length() == 0) {
-                            throw new ExecutionException("Could not release the Palo Alto device.  Please notify an administrator!");
-                        }
-                    }
-                    
-                } catch (ExecutionException ex) {
-                    // REVERT TO RUNNING
-                    String revert_job_id;
-                    Map<String, String> revert_params = new HashMap<String, String>();
-                    revert_params.put("type", "op");
-                    revert_params.put("cmd", "<load><config><from>running-config.xml</from></config></load>");
-                    requestWithPolling(PaloAltoMethod.GET, revert_params);
-
-                    // REMOVE THE CONFIG LOCK TO RELEASE THE PALO ALTO RESOURCE
-                    String remove_lock_status;
-                    Map<String, String> remove_lock_params = new HashMap<String, String>();
-                    remove_lock_params.put("type", "op");
-                    remove_lock_params.put("cmd", "<request><config-lock><remove></remove></config-lock></request>");
-                    String remove_lock_response = request(PaloAltoMethod.GET, remove_lock_params); 
-                    Document remove_lock_doc = getDocument(remove_lock_response);
-                    XPath remove_lock_xpath = XPathFactory.newInstance().newXPath();
-                    try {
-                        XPathExpression expr = remove_lock_xpath.compile("/response[@status='success']/result/text()");
-                        remove_lock_status = (String) expr.evaluate(remove_lock_doc, XPathConstants.STRING);
-                    } catch (XPathExpressionException e) {
-                        throw new ExecutionException(e.getCause().getMessage());
-                    }
-                    if (remove_lock_status.length() == 0) {
-                        throw new ExecutionException("Could not release the Palo Alto device.  Please notify an administrator!");
-                    }
+        @Override
+        public void commit() throws ExecutionException {
+            // COMMIT THE CHANGES (ALSO REMOVES CONFIG LOCK)
+            String commit_job_id;
+            Map<String, String> commit_params = new HashMap<String, String>();
+            commit_params.put("type", "commit");
+            commit_params.put("cmd", "<commit></commit>");
+            String commit_response = requestWithPolling(PaloAltoMethod.GET, commit_params);
+            Document commit_doc = getDocument(commit_response);
+            XPath commit_xpath = XPathFactory.newInstance().newXPath();
+            try {
+                XPathExpression expr = commit_xpath.compile("/response[@status='success']/result/job/id/text()");
+                commit_job_id = (String) expr.evaluate(commit_doc, XPathConstants.STRING);
+            } catch (XPathExpressionException e) {
+                throw new ExecutionException(e.getCause().getMessage());
+            }
+            if (commit_job_id.length() == 0) { // no commit was done, so release the lock...
+                removeConfigLock();
+            }
+        }
 
-                    throw ex; // Bubble up the reason we reverted...
-                }
+        @Override
+        public void rollback() {
+            try {
+                // REVERT TO RUNNING
+                Map<String, String> revert_params = new HashMap<String, String>();
+                revert_params.put("type", "op");
+                revert_params.put("cmd", "<load><config><from>running-config.xml</from></config></load>");
+                requestWithPolling(PaloAltoMethod.GET, revert_params);
 
-                return result;
+                removeConfigLock();
+            } catch (ExecutionException e) {
+                s_logger.error(e.getMessage());
+            }
+        }
+
+        private void removeConfigLock() throws ExecutionException {
+            // REMOVE THE CONFIG LOCK TO RELEASE THE PALO ALTO RESOURCE
+            String remove_lock_status;
+            Map<String, String> remove_lock_params = new HashMap<String, String>();
+            remove_lock_params.put("type", "op");
+            remove_lock_params.put("cmd", "<request><config-lock><remove></remove></config-lock></request>");
+            String remove_lock_response = request(PaloAltoMethod.GET, remove_lock_params); 
+            Document remove_lock_doc = getDocument(remove_lock_response);
+            XPath remove_lock_xpath = XPathFactory.newInstance().newXPath();
+            try {
+                XPathExpression expr = remove_lock_xpath.compile("/response[@status='success']/result/text()");
+                remove_lock_status = (String) expr.evaluate(remove_lock_doc, XPathConstants.STRING);
+            } catch (XPathExpressionException e) {
+                throw new ExecutionException(e.getCause().getMessage());
+            }
+            if (remove_lock_status.length() == 0) {
+                throw new ExecutionException("Could not release the Palo Alto device.  Please notify an administrator!");
             }
-        } else {
-            return true; // nothing to do
         }
     }
 
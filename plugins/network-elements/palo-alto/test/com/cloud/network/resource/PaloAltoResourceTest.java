@@ -23,6 +23,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // basic imports
 import java.io.BufferedReader;
@@ -503,5 +509,117 @@ public class PaloAltoResourceTest {
         Answer answer = _resource.executeRequest(cmd);
         assertTrue(answer.getResult());
     }
-}
 
+    @Test
+    public void concurrentFirewallRulesShareCommits() throws ConfigurationException, Exception {
+        final AtomicInteger commits = new AtomicInteger();
+        // a device taking a while to commit, answering one request at a time
+        _resource = new MockablePaloAltoResource() {
+            @Override
+            protected String request(PaloAltoMethod method, Map<String, String> params) throws ExecutionException {
+                if ("commit".equals(params.get("type"))) {
+                    commits.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        throw new ExecutionException("Interrupted");
+                    }
+                }
+                synchronized (this) {
+                    return super.request(method, params);
+                }
+            }
+        };
+        _context.put("has_public_interface", "true");
+        _context.put("has_private_interface", "true");
+        _context.put("has_src_nat_rule", "true");
+        _context.put("has_isolation_fw_rule", "true");
+        _context.put("has_service_tcp_80", "true");
+        _resource.setMockContext(_context);
+        _resource.configure("PaloAltoResource", _resource_params);
+        commits.set(0);
+
+        int tenants = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(tenants);
+        List<Future<Answer>> answers = new ArrayList<Future<Answer>>();
+        for (int i = 0; i < tenants; i++) {
+            List<String> cidrList = new ArrayList<String>();
+            cidrList.add("0.0.0.0/0");
+            // the mocked device only knows the rule and network of addIngressFirewallRule
+            List<FirewallRuleTO> rules = new ArrayList<FirewallRuleTO>();
+            rules.add(new FirewallRuleTO(8, null, "192.168.80.103", "tcp", 80, 80, false, false,
+                FirewallRule.Purpose.Firewall, cidrList, null, null));
+            final SetFirewallRulesCommand cmd = new SetFirewallRulesCommand(rules);
+            cmd.setContextParam(NetworkElementCommand.GUEST_VLAN_TAG, "3954");
+            cmd.setContextParam(NetworkElementCommand.GUEST_NETWORK_CIDR, "10.3.96.1/20");
+            answers.add(executor.submit(new Callable<Answer>() {
+                @Override
+                public Answer call() {
+                    return _resource.executeRequest(cmd);
+                }
+            }));
+        }
+        for (Future<Answer> answer : answers) {
+            assertTrue(answer.get().getDetails(), answer.get().getResult());
+        }
+        executor.shutdown();
+
+        assertTrue("" + commits.get() + " commits for " + tenants + " commands", commits.get() < tenants);
+    }
+
+    @Test
+    public void configurationIsOnlyReadWhileLocked() throws ConfigurationException, Exception {
+        final AtomicInteger unlockedReads = new AtomicInteger();
+        final AtomicBoolean configured = new AtomicBoolean();
+        // tracks the config lock the batcher takes before applying the changes and the commit releases
+        _resource = new MockablePaloAltoResource() {
+            private boolean _locked;
+
+            @Override
+            protected synchronized String request(PaloAltoMethod method, Map<String, String> params) throws ExecutionException {
+                if ("<request><config-lock><add></add></config-lock></request>".equals(params.get("cmd"))) {
+                    _locked = true;
+                } else if ("commit".equals(params.get("type"))) {
+                    _locked = false;
+                } else if (configured.get() && "config".equals(params.get("type")) && "get".equals(params.get("action")) && !_locked) {
+                    unlockedReads.incrementAndGet();
+                }
+                return super.request(method, params);
+            }
+        };
+        _context.put("has_public_interface", "true");
+        _context.put("has_private_interface", "true");
+        _context.put("has_src_nat_rule", "true");
+        _context.put("has_isolation_fw_rule", "true");
+        _context.put("has_service_tcp_80", "true");
+        _resource.setMockContext(_context);
+        _resource.configure("PaloAltoResource", _resource_params);
+        configured.set(true);
+
+        int tenants = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(tenants);
+        List<Future<Answer>> answers = new ArrayList<Future<Answer>>();
+        for (int i = 0; i < tenants; i++) {
+            List<String> cidrList = new ArrayList<String>();
+            cidrList.add("0.0.0.0/0");
+            List<FirewallRuleTO> rules = new ArrayList<FirewallRuleTO>();
+            rules.add(new FirewallRuleTO(8, null, "192.168.80.103", "tcp", 80, 80, false, false,
+                FirewallRule.Purpose.Firewall, cidrList, null, null));
+            final SetFirewallRulesCommand cmd = new SetFirewallRulesCommand(rules);
+            cmd.setContextParam(NetworkElementCommand.GUEST_VLAN_TAG, "3954");
+            cmd.setContextParam(NetworkElementCommand.GUEST_NETWORK_CIDR, "10.3.96.1/20");
+            answers.add(executor.submit(new Callable<Answer>() {
+                @Override
+                public Answer call() {
+                    return _resource.executeRequest(cmd);
+                }
+            }));
+        }
+        for (Future<Answer> answer : answers) {
+            assertTrue(answer.get().getDetails(), answer.get().getResult());
+        }
+        executor.shutdown();
+
+        assertEquals(0, unlockedReads.get());
+    }
+}
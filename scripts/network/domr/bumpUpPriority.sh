@@ -23,6 +23,7 @@ usage() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 domRIp=$1
 shift
 
@@ -43,5 +44,5 @@ then
   exit 1
 fi
 
-ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/bumpup_priority.sh"
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/root/bumpup_priority.sh"
 exit $?
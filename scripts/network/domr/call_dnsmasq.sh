@@ -21,7 +21,8 @@ usage() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 
-ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$1 "/root/dnsmasq.sh $2"	 
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $1) root@$1 "/root/dnsmasq.sh $2"	 
 exit $?
       
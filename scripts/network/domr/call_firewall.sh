@@ -37,6 +37,7 @@ check_gw() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 domRIp=$1
 shift
 
@@ -60,11 +61,11 @@ done
 
 if [ -n "$eflag" ]
 then
-	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/firewallRule_egress.sh $*"
+	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/root/firewallRule_egress.sh $*"
 elif [ -n "$fflag" ]
 then
-	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/firewall_rule.sh $*"
+	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/root/firewall_rule.sh $*"
 else
-	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/firewall.sh $*"
+	ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/root/firewall.sh $*"
 fi
 exit $?
@@ -75,6 +75,7 @@ do
 done
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 
 if [ "$iflag$fflag" != "11" ]
 then
@@ -97,5 +98,5 @@ then
   exit 1
 fi
 	
-ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/loadbalancer.sh $*"
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/root/loadbalancer.sh $*"
 exit $?	
@@ -23,4 +23,5 @@ usage() {
 
 set -x
 cert="/root/.ssh/id_rsa.cloud"
-ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$1 "/root/createIpAlias.sh $2"
+. "$(dirname "$0")/router_ctl.sh"
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $1) root@$1 "/root/createIpAlias.sh $2"
@@ -27,6 +27,7 @@ usage() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 
 domrIp=
 vmMac=
@@ -77,6 +78,6 @@ do
   esac
 done
 
-ssh -p 3922 -o StrictHostKeyChecking=no -i $cert root@$domrIp "/root/edithosts.sh $opts " >/dev/null
+ssh -p 3922 -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domrIp) root@$domrIp "/root/edithosts.sh $opts " >/dev/null
 
 exit $?
@@ -0,0 +1,40 @@
+#!/bin/bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+# 
+#   http://www.apache.org/licenses/LICENSE-2.0
+# 
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+
+
+# sourced by the scripts that ssh into a router; expects $cert to name the
+# private key of the router.
+#
+# reuse one multiplexed ssh session per router across script invocations. The
+# session is keyed on the mac of the router as well as on its address, as a
+# new router can get the link local address of a destroyed one. The master
+# runs detached, so that callers reading our output do not wait for it.
+ctl_opts() {
+  local mac=$(ip neigh show $1 2>/dev/null | sed -n 's/.* lladdr \([0-9a-fA-F:]*\).*/\1/p' | tr -d :)
+  [ -z "$mac" ] && return
+  local path=/root/.ssh/cloud-ctl-$1-$mac
+  (
+    flock -w 10 9
+    ssh -o ControlPath=$path -O check root@$1 >/dev/null 2>&1 ||
+      ssh -p 3922 -q -fN -o StrictHostKeyChecking=no -i $cert -o ControlMaster=yes -o ControlPath=$path \
+        -o ControlPersist=${ROUTER_SSH_PERSIST:-300} -o ServerAliveInterval=10 -o ServerAliveCountMax=3 \
+        root@$1 </dev/null >/dev/null 2>&1 9>&-
+  ) 9>$path.lock
+  echo "-o ControlMaster=no -o ControlPath=$path"
+}
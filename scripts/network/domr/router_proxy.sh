@@ -36,6 +36,7 @@ check_gw() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 
 script=$1
 shift
@@ -45,7 +46,7 @@ shift
 
 check_gw "$domRIp"
 
-ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/opt/cloud/bin/$script $*"
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domRIp) root@$domRIp "/opt/cloud/bin/$script $*"
 exit $?
 
 
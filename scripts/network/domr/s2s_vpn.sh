@@ -22,8 +22,9 @@
 # @VERSION@
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 domr=$1
 shift
-ssh -p 3922 -o StrictHostKeyChecking=no -i $cert root@$domr "/opt/cloud/bin/ipsectunnel.sh $*" >/dev/null
+ssh -p 3922 -o StrictHostKeyChecking=no -i $cert $(ctl_opts $domr) root@$domr "/opt/cloud/bin/ipsectunnel.sh $*" >/dev/null
 
 exit $?
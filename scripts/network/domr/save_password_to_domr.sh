@@ -40,6 +40,7 @@ replace_in_file_on_domr() {
 }
 
 cert="/root/.ssh/id_rsa.cloud"
+. "$(dirname "$0")/router_ctl.sh"
 
 while getopts 'r:v:p:' OPTION
 do
@@ -59,7 +60,7 @@ do
   esac
 done
 
-VIA_SSH="ssh -p 3922 -o StrictHostKeyChecking=no -i $cert root@$DOMR_IP"
+VIA_SSH="ssh -p 3922 -o StrictHostKeyChecking=no -i $cert $(ctl_opts $DOMR_IP) root@$DOMR_IP"
 
 $VIA_SSH "if [ ! -f $PASSWD_FILE ]; then touch $PASSWD_FILE; fi;"
 
@@ -174,20 +174,10 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 if (account.getDomainId() == dof.getDomainId()) {
 					return true; //disk offering and account at exact node
                 } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == dof.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                    if (_domainDao.isChildDomain(dof.getDomainId(), account.getDomainId())) {
+                        //found as a child
+                        return true;
+                    }
 				}
 			}
 		}
@@ -210,20 +200,10 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 if (account.getDomainId() == so.getDomainId()) {
 					return true; //service offering and account at exact node
                 } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == so.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                    if (_domainDao.isChildDomain(so.getDomainId(), account.getDomainId())) {
+                        //found as a child
+                        return true;
+                    }
 				}
 			}
 		}
@@ -258,20 +238,10 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 if (account.getDomainId() == zone.getDomainId()) {
 					return true; //zone and account at exact node
                 } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == zone.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
+                    if (_domainDao.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                        //found as a child
+                        return true;
+                    }
 				}
 				//not found
 				return false;
@@ -282,28 +252,14 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 if (account.getDomainId() == zone.getDomainId()) {
 					return true; //zone and account at exact node
                 } else {
-                    Domain zoneDomainRecord = _domainDao.findById(zone.getDomainId());
-                    Domain accountDomainRecord = _domainDao.findById(account.getDomainId());
-                    if (accountDomainRecord != null) {
-                        Domain localRecord = accountDomainRecord;
-                        while (true) {
-                            if (localRecord.getId() == zone.getDomainId()) {
-		    					//found as a child
-		    					return true;
-		    				}
-                            if (localRecord.getParent() != null) {
-                                localRecord = _domainDao.findById(localRecord.getParent());
-                            } else {
-                                break;
-                            }
-		    			}
-		    		}
-		    		//didn't find in upper tree
-                    if (zoneDomainRecord != null &&
-                            accountDomainRecord != null &&
-                            zoneDomainRecord.getPath().contains(accountDomainRecord.getPath())) {
-		    			return true;
-		    		}
+                    if (_domainDao.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                        //found as a child
+                        return true;
+                    }
+                    //didn't find in upper tree
+                    if (_domainDao.isChildDomain(account.getDomainId(), zone.getDomainId())) {
+                        return true;
+                    }
 				}
 				//not found
 				return false;
@@ -19,8 +19,11 @@ package com.cloud.agent.manager.allocator.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -46,6 +49,8 @@ import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.offering.ServiceOffering;
 import com.cloud.org.Cluster;
+import com.cloud.resource.HostAttributeCache;
+import com.cloud.resource.HostAttributeSnapshot;
 import com.cloud.resource.ResourceManager;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.GuestOSCategoryVO;
@@ -99,6 +104,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     ClusterDao _clusterDao;
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    HostAttributeCache _hostAttributeCache;
     float _factor = 1;
     boolean _checkHvm = true;
     protected String _allocationAlgorithm = "random";
@@ -140,6 +147,35 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         List<HostVO> clusterHosts = new ArrayList<HostVO>();
 
         String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
+
+        List<HostVO> upHosts = null;
+        HostAttributeSnapshot snapshot = null;
+        if (_hostAttributeCache.isEnabled()) {
+            upHosts = _resourceMgr.listAllUpAndEnabledHosts(type, clusterId, podId, dcId);
+            snapshot = _hostAttributeCache.getSnapshot(upHosts);
+        }
+
+        if (snapshot != null) {
+            clusterHosts = listByHostAttributes(snapshot, upHosts, haVmTag, hostTagOnOffering, hostTagOnTemplate);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + clusterHosts.size() + " hosts matching ha tag " + haVmTag + ", offering tag " + hostTagOnOffering + " and template tag "
+                        + hostTagOnTemplate + " out of " + upHosts.size() + " hosts");
+            }
+
+            // add all hosts that we are not considering to the avoid list
+            Set<Long> considered = new HashSet<Long>();
+            for (HostVO host : clusterHosts) {
+                considered.add(host.getId());
+            }
+            for (HostVO host : upHosts) {
+                if (!considered.contains(host.getId())) {
+                    avoid.addHost(host.getId());
+                }
+            }
+
+            return allocateTo(plan, offering, template, avoid, clusterHosts, returnUpTo, considerReservedCapacity, account);
+        }
+
         if (haVmTag != null) {
             clusterHosts = _hostDao.listByHostTag(type, clusterId, podId, dcId, haVmTag);
         } else {
@@ -218,7 +254,25 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         boolean hasTemplateTag = hostTagOnTemplate != null ? true : false;
 
         String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
-        if (haVmTag != null) {
+
+        List<HostVO> upHosts = null;
+        HostAttributeSnapshot snapshot = null;
+        if (_hostAttributeCache.isEnabled()) {
+            upHosts = _resourceMgr.listAllUpAndEnabledHosts(type, clusterId, podId, dcId);
+            snapshot = _hostAttributeCache.getSnapshot(upHosts);
+        }
+
+        if (snapshot != null) {
+            Set<Long> matching = new HashSet<Long>();
+            for (HostVO host : listByHostAttributes(snapshot, upHosts, haVmTag, hostTagOnOffering, hostTagOnTemplate)) {
+                matching.add(host.getId());
+            }
+            for (Iterator<? extends Host> it = hosts.iterator(); it.hasNext();) {
+                if (!matching.contains(it.next().getId())) {
+                    it.remove();
+                }
+            }
+        } else if (haVmTag != null) {
             hosts.retainAll(_hostDao.listByHostTag(type, clusterId, podId, dcId, haVmTag));
         } else {
             if (hostTagOnOffering == null && hostTagOnTemplate == null) {
@@ -268,6 +322,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         }
 
         List<Host> suitableHosts = new ArrayList<Host>();
+        HostAttributeSnapshot snapshot = _hostAttributeCache.getSnapshot();
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -291,11 +346,19 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
             int cpu_requested = offering.getCpu() * offering.getSpeed();
             long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+            Float cpuOvercommitRatio = null;
+            Float memoryOvercommitRatio = null;
+            if (snapshot != null && host.getClusterId() != null) {
+                cpuOvercommitRatio = snapshot.getCpuOvercommitRatio(host.getClusterId());
+                memoryOvercommitRatio = snapshot.getMemoryOvercommitRatio(host.getClusterId());
+            }
+            if (cpuOvercommitRatio == null || memoryOvercommitRatio == null) {
+                Cluster cluster = _clusterDao.findById(host.getClusterId());
+                ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+                ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+                cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
+                memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+            }
 
             boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
             boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
@@ -321,6 +384,22 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    /**
+     * Selects the hosts a deployment may use by their tags: the hosts carrying the HA tag of the vm if it has
+     * one, otherwise the hosts carrying the tags of the offering and of the template, or all the hosts not
+     * reserved for HA if neither has a tag.
+     */
+    protected List<HostVO> listByHostAttributes(HostAttributeSnapshot snapshot, List<HostVO> hosts, String haVmTag, String hostTagOnOffering,
+            String hostTagOnTemplate) {
+        if (haVmTag != null) {
+            return snapshot.listByHostTags(hosts, haVmTag);
+        }
+        if (hostTagOnOffering == null && hostTagOnTemplate == null) {
+            return snapshot.listNonHAHosts(hosts);
+        }
+        return snapshot.listByHostTags(hosts, hostTagOnOffering, hostTagOnTemplate);
+    }
+
     private List<? extends Host> reorderHostsByNumberOfVms(DeploymentPlan plan, List<? extends Host> hosts, Account account) {
         if (account == null) {
             return hosts;
@@ -444,6 +523,11 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     }
 
     protected String getHostGuestOSCategory(Host host) {
+        HostAttributeSnapshot snapshot = _hostAttributeCache.getSnapshot();
+        if (snapshot != null && snapshot.contains(host.getId())) {
+            return snapshot.getHostGuestOSCategory(host.getId());
+        }
+
         DetailVO hostDetail = _hostDetailsDao.findDetail(host.getId(), "guest.os.category.id");
         if (hostDetail != null) {
             String guestOSCategoryIdString = hostDetail.getValue();
@@ -469,6 +553,10 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
     protected String getTemplateGuestOSCategory(VMTemplateVO template) {
         long guestOSId = template.getGuestOSId();
+        HostAttributeSnapshot snapshot = _hostAttributeCache.getSnapshot();
+        if (snapshot != null && snapshot.getGuestOSCategory(guestOSId) != null) {
+            return snapshot.getGuestOSCategory(guestOSId);
+        }
         GuestOSVO guestOS = _guestOSDao.findById(guestOSId);
         long guestOSCategoryId = guestOS.getCategoryId();
         GuestOSCategoryVO guestOSCategory = _guestOSCategoryDao.findById(guestOSCategoryId);
@@ -187,6 +187,7 @@ import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.JoinBuilder;
+import com.cloud.utils.db.ReadOnlyContext;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
@@ -357,6 +358,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
      * .api.command.admin.user.ListUsersCmd)
      */
     @Override
+    @ReadOnlyContext
     public ListResponse<UserResponse> searchForUsers(ListUsersCmd cmd) throws PermissionDeniedException {
         Pair<List<UserAccountJoinVO>, Integer> result = searchForUsersInternal(cmd);
         ListResponse<UserResponse> response = new ListResponse<UserResponse>();
@@ -463,6 +465,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<EventResponse> searchForEvents(ListEventsCmd cmd) {
         Pair<List<EventJoinVO>, Integer> result = searchForEventsInternal(cmd);
         ListResponse<EventResponse> response = new ListResponse<EventResponse>();
@@ -578,6 +581,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ResourceTagResponse> listTags(ListTagsCmd cmd) {
         Pair<List<ResourceTagJoinVO>, Integer> tags = listTagsInternal(cmd);
         ListResponse<ResourceTagResponse> response = new ListResponse<ResourceTagResponse>();
@@ -655,6 +659,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<InstanceGroupResponse> searchForVmGroups(ListVMGroupsCmd cmd) {
         Pair<List<InstanceGroupJoinVO>, Integer> groups = searchForVmGroupsInternal(cmd);
         ListResponse<InstanceGroupResponse> response = new ListResponse<InstanceGroupResponse>();
@@ -712,6 +717,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<UserVmResponse> searchForUserVMs(ListVMsCmd cmd) {
         Pair<List<UserVmJoinVO>, Integer> result = searchForUserVMsInternal(cmd);
         ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
@@ -978,6 +984,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<SecurityGroupResponse> searchForSecurityGroups(ListSecurityGroupsCmd cmd) {
         Pair<List<SecurityGroupJoinVO>, Integer> result = searchForSecurityGroupsInternal(cmd);
         ListResponse<SecurityGroupResponse> response = new ListResponse<SecurityGroupResponse>();
@@ -1093,6 +1100,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<DomainRouterResponse> searchForRouters(ListRoutersCmd cmd) {
         Pair<List<DomainRouterJoinVO>, Integer> result = searchForRoutersInternal(cmd, cmd.getId(), cmd.getRouterName(),
                 cmd.getState(), cmd.getZoneId(), cmd.getPodId(), cmd.getClusterId(), cmd.getHostId(), cmd.getKeyword(), cmd.getNetworkId(),
@@ -1106,6 +1114,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<DomainRouterResponse> searchForInternalLbVms(ListInternalLBVMsCmd cmd) {
         Pair<List<DomainRouterJoinVO>, Integer> result = searchForRoutersInternal(cmd, cmd.getId(), cmd.getRouterName(),
                 cmd.getState(), cmd.getZoneId(), cmd.getPodId(), null, cmd.getHostId(), cmd.getKeyword(), cmd.getNetworkId(),
@@ -1245,6 +1254,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ProjectResponse> listProjects(ListProjectsCmd cmd) {
         Pair<List<ProjectJoinVO>, Integer> projects = listProjectsInternal(cmd);
         ListResponse<ProjectResponse> response = new ListResponse<ProjectResponse>();
@@ -1388,6 +1398,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ProjectInvitationResponse> listProjectInvitations(ListProjectInvitationsCmd cmd) {
         Pair<List<ProjectInvitationJoinVO>, Integer> invites = listProjectInvitationsInternal(cmd);
         ListResponse<ProjectInvitationResponse> response = new ListResponse<ProjectInvitationResponse>();
@@ -1459,6 +1470,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ProjectAccountResponse> listProjectAccounts(ListProjectAccountsCmd cmd) {
         Pair<List<ProjectAccountJoinVO>, Integer> projectAccounts = listProjectAccountsInternal(cmd);
         ListResponse<ProjectAccountResponse> response = new ListResponse<ProjectAccountResponse>();
@@ -1519,6 +1531,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<HostResponse> searchForServers(ListHostsCmd cmd) {
         // FIXME: do we need to support list hosts with VmId, maybe we should
         // create another command just for this
@@ -1640,6 +1653,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<VolumeResponse> searchForVolumes(ListVolumesCmd cmd) {
         Pair<List<VolumeJoinVO>, Integer> result = searchForVolumesInternal(cmd);
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
@@ -1813,6 +1827,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<AccountResponse> searchForAccounts(ListAccountsCmd cmd) {
         Pair<List<AccountJoinVO>, Integer> result = searchForAccountsInternal(cmd);
         ListResponse<AccountResponse> response = new ListResponse<AccountResponse>();
@@ -1940,6 +1955,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<AsyncJobResponse> searchForAsyncJobs(ListAsyncJobsCmd cmd) {
         Pair<List<AsyncJobJoinVO>, Integer> result = searchForAsyncJobsInternal(cmd);
         ListResponse<AsyncJobResponse> response = new ListResponse<AsyncJobResponse>();
@@ -2018,6 +2034,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<StoragePoolResponse> searchForStoragePools(ListStoragePoolsCmd cmd) {
         Pair<List<StoragePoolJoinVO>, Integer> result = searchForStoragePoolsInternal(cmd);
         ListResponse<StoragePoolResponse> response = new ListResponse<StoragePoolResponse>();
@@ -2129,6 +2146,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ImageStoreResponse> searchForImageStores(ListImageStoresCmd cmd) {
         Pair<List<ImageStoreJoinVO>, Integer> result = searchForImageStoresInternal(cmd);
         ListResponse<ImageStoreResponse> response = new ListResponse<ImageStoreResponse>();
@@ -2209,6 +2227,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ImageStoreResponse> searchForSecondaryStagingStores(ListSecondaryStagingStoresCmd cmd) {
         Pair<List<ImageStoreJoinVO>, Integer> result = searchForCacheStoresInternal(cmd);
         ListResponse<ImageStoreResponse> response = new ListResponse<ImageStoreResponse>();
@@ -2289,6 +2308,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<DiskOfferingResponse> searchForDiskOfferings(ListDiskOfferingsCmd cmd) {
         Pair<List<DiskOfferingJoinVO>, Integer> result = searchForDiskOfferingsInternal(cmd);
         ListResponse<DiskOfferingResponse> response = new ListResponse<DiskOfferingResponse>();
@@ -2417,6 +2437,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ServiceOfferingResponse> searchForServiceOfferings(ListServiceOfferingsCmd cmd) {
         Pair<List<ServiceOfferingJoinVO>, Integer> result = searchForServiceOfferingsInternal(cmd);
         ListResponse<ServiceOfferingResponse> response = new ListResponse<ServiceOfferingResponse>();
@@ -2565,6 +2586,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<ZoneResponse> listDataCenters(ListZonesByCmd cmd) {
         Pair<List<DataCenterJoinVO>, Integer> result = listDataCentersInternal(cmd);
         ListResponse<ZoneResponse> response = new ListResponse<ZoneResponse>();
@@ -2801,6 +2823,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<TemplateResponse> listTemplates(ListTemplatesCmd cmd) {
         Pair<List<TemplateJoinVO>, Integer> result = searchForTemplatesInternal(cmd);
         ListResponse<TemplateResponse> response = new ListResponse<TemplateResponse>();
@@ -3109,6 +3132,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<TemplateResponse> listIsos(ListIsosCmd cmd) {
         Pair<List<TemplateJoinVO>, Integer> result = searchForIsosInternal(cmd);
         ListResponse<TemplateResponse> response = new ListResponse<TemplateResponse>();
@@ -3154,6 +3178,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public ListResponse<AffinityGroupResponse> listAffinityGroups(Long affinityGroupId, String affinityGroupName,
             String affinityGroupType, Long vmId, String accountName, Long domainId, boolean isRecursive,
             boolean listAll, Long startIndex, Long pageSize, String keyword) {
@@ -3341,6 +3366,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
     }
 
     @Override
+    @ReadOnlyContext
     public List<ResourceDetailResponse> listResourceDetails(ListResourceDetailsCmd cmd) {
         String key = cmd.getKey();
         Boolean forDisplay = cmd.forDisplay();
@@ -101,6 +101,8 @@ public enum Config {
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
 	SecurityGroupWorkPerAgentMaxQueueSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.per.agent.queue.size", "100", "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually", null),
+	SecurityGroupRuleGraphTtl("Network", ManagementServer.class, Integer.class, "network.securitygroups.graph.ttl", "60", "Time (seconds) security group membership and rules are cached in memory to compute rulesets. 0 disables the cache", null),
+	SecurityGroupDeltaUpdates("Network", ManagementServer.class, Boolean.class, "network.securitygroups.delta.updates", "true", "If true, ruleset updates to KVM hosts only carry the rules that changed since the last ruleset pushed to the host", "true/false"),
 
 	SecurityGroupDefaultAdding("Network", ManagementServer.class, Boolean.class, "network.securitygroups.defaultadding", "true", "If true, the user VM would be added to the default security group by default", null),
 
@@ -136,6 +138,9 @@ public enum Config {
     SnapshotMonthlyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.monthly", "8", "Maximum monthly snapshots for a volume", null),
     SnapshotPollInterval("Snapshots", SnapshotManager.class, Integer.class, "snapshot.poll.interval", "300", "The time interval in seconds when the management server polls for snapshots to be scheduled.", null),
     SnapshotDeltaMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.delta.max", "16", "max delta snapshots between two full snapshots.", null),
+    SnapshotMaxConcurrentPerPool("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.pool", "4", "Maximum number of scheduled snapshots running against one primary storage pool at a time, further due snapshots wait for the next poll. 0 for no limit", null),
+    SnapshotMaxConcurrentPerZone("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.zone", "16", "Maximum number of scheduled snapshots being taken and backed up to the secondary storage of one zone at a time, further due snapshots wait for the next poll. 0 for no limit", null),
+    SnapshotDispatchWindow("Snapshots", SnapshotManager.class, Integer.class, "snapshot.dispatch.window", "60", "Time (in seconds, at most snapshot.poll.interval) over which the scheduled snapshots admitted by one poll are started. 0 to start them all at once", null),
     BackupSnapshotAfterTakingSnapshot("Snapshots", SnapshotManager.class, Boolean.class, "snapshot.backup.rightafter", "true", "backup snapshot right after snapshot is taken", null),
     KVMSnapshotEnabled("Snapshots", SnapshotManager.class, Boolean.class, "kvm.snapshot.enabled", "false", "whether snapshot is enabled for KVM hosts", null),
 
@@ -171,6 +176,7 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
     MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
+	HAWorkersMax("Advanced", AgentManager.class, Integer.class, "ha.workers.max", "20", "Number of ha worker threads to go up to when ha work items pile up, ha.workers of them are always kept.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/cloudstack/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -217,6 +223,7 @@ public enum Config {
 	ApplyAllocationAlgorithmToPods("Advanced", ManagementServer.class, Boolean.class, "apply.allocation.algorithm.to.pods", "false", "If true, deployment planner applies the allocation heuristics at pods first in the given datacenter during VM resource allocation", "true,false"),
 	VmUserDispersionWeight("Advanced", ManagementServer.class, Float.class, "vm.user.dispersion.weight", "1", "Weight for user dispersion heuristic (as a value between 0 and 1) applied to resource allocation during vm deployment. Weight for capacity heuristic will be (1 - weight of user dispersion)", null),
     VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
+    HostAttributeSnapshotInterval("Advanced", ManagementServer.class, Integer.class, "host.attribute.snapshot.interval", "300", "Time (in seconds) after which the in-memory snapshot of host tags, guest OS categories and cluster overcommit ratios used by the host allocators is reloaded. 0 to look them up in the database for every deployment", null),
     VmDeploymentPlanner("Advanced", ManagementServer.class, String.class, "vm.deployment.planner", "FirstFitPlanner", "'FirstFitPlanner', 'UserDispersingPlanner', 'UserConcentratedPodPlanner': DeploymentPlanner heuristic that will be used for VM deployment.", null),
 	EndpointeUrl("Advanced", ManagementServer.class, String.class, "endpointe.url", "http://localhost:8080/client/api", "Endpointe Url", null),
 	ElasticLoadBalancerEnabled("Advanced", ManagementServer.class, String.class, "network.loadbalancer.basiczone.elb.enabled", "false", "Whether the load balancing service is enabled for basic zones", "true,false"),
@@ -326,6 +333,7 @@ public enum Config {
 	DefaultMaxAccountSecondaryStorage("Account Defaults", ManagementServer.class, Long.class, "max.account.secondary.storage", "400", "The default maximum secondary storage space (in GiB) that can be used for an account", null),
 
 	ResourceCountCheckInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.check.interval", "0", "Time (in seconds) to wait before retrying resource count check task. Default is 0 which is to never run the task", "Seconds"),
+	ResourceCountWriteBehindInterval("Advanced", ManagementServer.class, Long.class, "resourcecount.writebehind.interval", "0", "Time (in seconds) between writes of the in-memory resource counts to the database, limits then being enforced per management server between writes. Default is 0 which is to count resources in the database directly", "Seconds"),
 
 	//disabling lb as cluster sync does not work with distributed cluster
 	SubDomainNetworkAccess("Advanced", NetworkOrchestrationService.class, Boolean.class, "allow.subdomain.network.access", "true", "Allow subdomains to use networks dedicated to their parent domain(s)", null),
@@ -385,6 +393,9 @@ public enum Config {
 	ApiLimitInterval("Advanced", ManagementServer.class, Integer.class, "api.throttling.interval", "1", "Time interval (in seconds) to reset API count", null),
     ApiLimitMax("Advanced", ManagementServer.class, Integer.class, "api.throttling.max", "25", "Max allowed number of APIs within fixed interval", null),
     ApiLimitCacheSize("Advanced", ManagementServer.class, Integer.class, "api.throttling.cachesize", "50000", "Account based API count cache size", null),
+    ApiLimitStore("Advanced", ManagementServer.class, String.class, "api.throttling.store", "fixedwindow", "How API counts are kept: fixedwindow resets the count every interval, tokenbucket refills the allowance continuously", "fixedwindow,tokenbucket"),
+    ApiLimitCommandWeights("Advanced", ManagementServer.class, String.class, "api.throttling.weights", "", "Comma separated list of command:weight pairs, e.g. deployVirtualMachine:5. Commands not listed count as 1", null),
+    ApiLimitClusterSyncInterval("Advanced", ManagementServer.class, Integer.class, "api.throttling.cluster.sync.interval", "0", "Interval (in milliseconds) at which management servers exchange token bucket API counts so that limits apply cluster wide, 0 to keep counts local", null),
 
     // object store
     S3EnableRRS("Advanced", ManagementServer.class, Boolean.class, "s3.rrs.enabled", "false", "enable s3 reduced redundancy storage", null),
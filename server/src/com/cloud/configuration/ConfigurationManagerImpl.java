@@ -167,6 +167,7 @@ import com.cloud.org.Grouping;
 import com.cloud.org.Grouping.AllocationState;
 import com.cloud.projects.Project;
 import com.cloud.projects.ProjectManager;
+import com.cloud.resource.HostAttributeCache;
 import com.cloud.server.ConfigurationServer;
 import com.cloud.server.ManagementService;
 import com.cloud.service.ServiceOfferingDetailsVO;
@@ -294,6 +295,8 @@ ConfigurationManagerImpl extends ManagerBase implements ConfigurationManager, Co
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
     @Inject
+    HostAttributeCache _hostAttributeCache;
+    @Inject
     StoragePoolDetailsDao _storagePoolDetailsDao;
     @Inject
     AccountDetailsDao _accountDetailsDao;
@@ -471,6 +474,7 @@ ConfigurationManagerImpl extends ManagerBase implements ConfigurationManager, Co
                     clusterDetailsVO.setValue(value);
                     _clusterDetailsDao.update(clusterDetailsVO.getId(), clusterDetailsVO);
                 }
+                _hostAttributeCache.attributesChanged();
                 break;
 
             case StoragePool:
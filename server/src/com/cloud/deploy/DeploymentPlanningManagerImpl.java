@@ -107,6 +107,7 @@ import com.cloud.user.AccountManager;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.DB;
@@ -831,7 +832,12 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
     public boolean start() {
         _timer.schedule(new HostReservationReleaseChecker(), INITIAL_RESERVATION_RELEASE_CHECKER_DELAY,
                 _hostReservationReleasePeriod);
-        cleanupVMReservations();
+        ComponentContext.runAfterStartup("VM reservation cleanup", new Runnable() {
+            @Override
+            public void run() {
+                cleanupVMReservations();
+            }
+        });
         return true;
     }
 
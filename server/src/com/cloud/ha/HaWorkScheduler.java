@@ -0,0 +1,357 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * In-memory queue of the HA work items this management server knows about,
+ * handed to a pool of workers as soon as they are due instead of having
+ * every worker poll op_ha_work.
+ *
+ * Due items go out by priority: restarts before stops, migrations and
+ * destroys, system VMs before user VMs, items past investigation before
+ * those still to investigate, then oldest first. The pool keeps minWorkers
+ * threads and starts more, up to maxWorkers, while there are more than
+ * backlogPerWorker due items per worker; the extra threads go away after
+ * being idle for a while.
+ *
+ * The queue only holds ids. The WorkProcessor claims the row in the
+ * database before working on it, so items also queued by another
+ * management server are worked on once.
+ */
+public class HaWorkScheduler {
+    private static final Logger s_logger = Logger.getLogger(HaWorkScheduler.class);
+
+    private static final long IDLE_WORKER_TIMEOUT_MS = 60000;
+    private static final int MAX_TRACKED_VMS = 1000;
+
+    public interface WorkProcessor {
+        /**
+         * @return the time in ms the work is to be tried again, null if it is over or taken by another management
+         *         server
+         */
+        Long process(long workId);
+    }
+
+    private static class Item {
+        final long workId;
+        final int priority;
+        final long dueAt;
+
+        Item(long workId, int priority, long dueAt) {
+            this.workId = workId;
+            this.priority = priority;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private final String _name;
+    private final int _minWorkers;
+    private final int _maxWorkers;
+    private final int _backlogPerWorker;
+    private final WorkProcessor _processor;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _changed = _lock.newCondition();
+    private final PriorityQueue<Item> _delayed = new PriorityQueue<Item>(64, new Comparator<Item>() {
+        @Override
+        public int compare(Item item1, Item item2) {
+            return item1.dueAt < item2.dueAt ? -1 : (item1.dueAt > item2.dueAt ? 1 : 0);
+        }
+    });
+    private final PriorityQueue<Item> _ready = new PriorityQueue<Item>(64, new Comparator<Item>() {
+        @Override
+        public int compare(Item item1, Item item2) {
+            if (item1.priority != item2.priority) {
+                return item1.priority < item2.priority ? -1 : 1;
+            }
+            return item1.workId < item2.workId ? -1 : (item1.workId > item2.workId ? 1 : 0);
+        }
+    });
+    private final Map<Long, Item> _queued = new HashMap<Long, Item>();
+    private int _workers;
+    private int _workerSequence;
+    private boolean _stopped = true;
+
+    private final AtomicLong _processed = new AtomicLong();
+    private final AtomicLong _restarts = new AtomicLong();
+    private final AtomicLong _restartMillis = new AtomicLong();
+    private final AtomicLong _maxRestartMillis = new AtomicLong();
+    private final Map<Long, Long> _timeToRestart = Collections.synchronizedMap(new LinkedHashMap<Long, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_TRACKED_VMS;
+        }
+    });
+
+    public HaWorkScheduler(String name, int minWorkers, int maxWorkers, int backlogPerWorker, WorkProcessor processor) {
+        _name = name;
+        _minWorkers = Math.max(1, minWorkers);
+        _maxWorkers = Math.max(_minWorkers, maxWorkers);
+        _backlogPerWorker = Math.max(1, backlogPerWorker);
+        _processor = processor;
+    }
+
+    /**
+     * Lower is more urgent.
+     */
+    static int getPriority(WorkType workType, VirtualMachine.Type vmType, Step step) {
+        int priority;
+        switch (workType) {
+        case HA:
+            priority = 0;
+            break;
+        case ForceStop:
+        case CheckStop:
+        case Stop:
+            priority = 10;
+            break;
+        case Migration:
+            priority = 20;
+            break;
+        default:
+            priority = 30;
+            break;
+        }
+        if (vmType == VirtualMachine.Type.User) {
+            priority += 4;
+        } else if (vmType != VirtualMachine.Type.DomainRouter) {
+            priority += 2;
+        }
+        if (step == Step.Investigating) {
+            priority += 1;
+        }
+        return priority;
+    }
+
+    public void schedule(HaWorkVO work) {
+        long dueAt = work.getTimeToTry() << 10;
+        schedule(work.getId(), getPriority(work.getWorkType(), work.getType(), work.getStep()), dueAt);
+    }
+
+    /**
+     * Queues the work, or moves it up if it is queued already for a later time.
+     */
+    public void schedule(long workId, int priority, long dueAt) {
+        _lock.lock();
+        try {
+            Item queued = _queued.get(workId);
+            if (queued != null) {
+                if (queued.dueAt <= dueAt) {
+                    return;
+                }
+                _delayed.remove(queued);
+                _ready.remove(queued);
+            }
+            Item item = new Item(workId, priority, dueAt);
+            _queued.put(workId, item);
+            _delayed.add(item);
+            _changed.signal();
+            if (!_stopped) {
+                addWorkersIfNeeded(System.currentTimeMillis());
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void start() {
+        _lock.lock();
+        try {
+            _stopped = false;
+            while (_workers < _minWorkers) {
+                startWorker();
+            }
+            addWorkersIfNeeded(System.currentTimeMillis());
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void stop() {
+        _lock.lock();
+        try {
+            _stopped = true;
+            _changed.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getBacklog() {
+        _lock.lock();
+        try {
+            return _queued.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getWorkerCount() {
+        _lock.lock();
+        try {
+            return _workers;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public long getProcessedCount() {
+        return _processed.get();
+    }
+
+    /**
+     * Records how long it took from the failure being noticed to the VM running again.
+     */
+    public void recordRestart(long vmId, long millis) {
+        _restarts.incrementAndGet();
+        _restartMillis.addAndGet(millis);
+        long max = _maxRestartMillis.get();
+        while (millis > max && !_maxRestartMillis.compareAndSet(max, millis)) {
+            max = _maxRestartMillis.get();
+        }
+        _timeToRestart.put(vmId, millis);
+    }
+
+    public long getRestartCount() {
+        return _restarts.get();
+    }
+
+    public long getAverageTimeToRestart() {
+        long restarts = _restarts.get();
+        return restarts > 0 ? _restartMillis.get() / restarts : 0;
+    }
+
+    public long getMaxTimeToRestart() {
+        return _maxRestartMillis.get();
+    }
+
+    /**
+     * @return how long the last HA restart of the VM took in ms, null if it was not restarted recently
+     */
+    public Long getTimeToRestart(long vmId) {
+        return _timeToRestart.get(vmId);
+    }
+
+    // called with the lock held
+    private int promoteDueItems(long now) {
+        Item item = _delayed.peek();
+        while (item != null && item.dueAt <= now) {
+            _delayed.poll();
+            _ready.add(item);
+            item = _delayed.peek();
+        }
+        return _ready.size();
+    }
+
+    // called with the lock held
+    private void addWorkersIfNeeded(long now) {
+        int ready = promoteDueItems(now);
+        while (_workers < _maxWorkers && ready > _workers * _backlogPerWorker) {
+            startWorker();
+        }
+    }
+
+    // called with the lock held
+    private void startWorker() {
+        _workers++;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, _name + "-" + _workerSequence++);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the next due item, null if the worker is to exit
+     */
+    private Item take() throws InterruptedException {
+        _lock.lock();
+        try {
+            long idleSince = System.currentTimeMillis();
+            while (!_stopped) {
+                long now = System.currentTimeMillis();
+                promoteDueItems(now);
+                Item item = _ready.poll();
+                if (item != null) {
+                    _queued.remove(item.workId);
+                    addWorkersIfNeeded(now);
+                    return item;
+                }
+                if (_workers > _minWorkers && now - idleSince >= IDLE_WORKER_TIMEOUT_MS) {
+                    break;
+                }
+                Item next = _delayed.peek();
+                long wait = next != null ? Math.min(next.dueAt - now, IDLE_WORKER_TIMEOUT_MS) : IDLE_WORKER_TIMEOUT_MS;
+                _changed.await(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            }
+            _workers--;
+            return null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void work() {
+        s_logger.info("Starting work");
+        try {
+            Item item;
+            while ((item = take()) != null) {
+                Long nextTime = null;
+                try {
+                    nextTime = _processor.process(item.workId);
+                    _processed.incrementAndGet();
+                } catch (Throwable th) {
+                    s_logger.error("Caught this throwable, ", th);
+                }
+                if (nextTime != null) {
+                    schedule(item.workId, item.priority, nextTime);
+                }
+            }
+        } catch (InterruptedException e) {
+            s_logger.info("Interrupted");
+            _lock.lock();
+            try {
+                _workers--;
+            } finally {
+                _lock.unlock();
+            }
+        }
+        s_logger.info("Time to go home!");
+    }
+}
@@ -21,6 +21,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -78,8 +79,9 @@ import com.cloud.vm.dao.VMInstanceDao;
 
 /**
  * HighAvailabilityManagerImpl coordinates the HA process. VMs are registered with the HA Manager for HA. The request is stored
- * within a database backed work queue. HAManager has a number of workers that pick up these work items to perform HA on the
- * VMs.
+ * within a database backed work queue and handed to the HaWorkScheduler, whose workers pick up these work items to perform HA
+ * on the VMs as soon as they are due. Work items queued by other management servers are picked up by looking at the database
+ * every time.to.sleep seconds.
  * 
  * The HA process goes as follows: 1. Check with the list of Investigators to determine that the VM is no longer running. If a
  * Investigator finds the VM is still alive, the HA process is stopped and the state of the VM reverts back to its previous
@@ -91,7 +93,8 @@ import com.cloud.vm.dao.VMInstanceDao;
  * the VM.
  * 
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
- *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
+ *         processing | int | 1 || || ha.workers.max | number of worker threads to go up to when work items pile up | int | 20
+ *         || || time.to.sleep | Time between looks for work items queued by other servers | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
  *         consider it as another retry | seconds | 3600 || || time.between.cleanup | Time to wait before the cleanup thread
  *         runs | seconds | 86400 || || force.ha | Force HA to happen even if the VM says no | boolean | false || ||
@@ -101,7 +104,7 @@ import com.cloud.vm.dao.VMInstanceDao;
 @Local(value = { HighAvailabilityManager.class })
 public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener {
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
-    WorkerThread[] _workers;
+    HaWorkScheduler _scheduler;
     boolean _stopped;
     long _timeToSleep;
     @Inject
@@ -117,6 +120,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
     long _serverId;
+
+    // due work items per worker above which the scheduler starts more workers
+    private static final int BACKLOG_PER_WORKER = 5;
     
     @Inject
     ManagedContext _managedContext;
@@ -274,13 +280,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work);
         }
-        wakeupWorkers();
-    }
-
-    protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
-        }
+        _scheduler.schedule(work);
     }
 
     @Override
@@ -288,7 +288,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (vm.getHostId() != null) {
             final HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.Migration, Step.Scheduled, vm.getHostId(), vm.getState(), 0, vm.getUpdated());
             _haDao.persist(work);
-            wakeupWorkers();
+            _scheduler.schedule(work);
         }
         return true;
     }
@@ -378,7 +378,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             s_logger.info("Schedule vm for HA:  " + vm);
         }
 
-        wakeupWorkers();
+        _scheduler.schedule(work);
 
     }
 
@@ -563,6 +563,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             VMInstanceVO started = _instanceDao.findById(vm.getId());
             if (started != null && started.getState() == VirtualMachine.State.Running) {
                 s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId());
+                if (work.getCreated() != null) {
+                    _scheduler.recordRestart(vmId, System.currentTimeMillis() - work.getCreated().getTime());
+                }
                 return null;
             }
 
@@ -624,7 +627,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work.toString());
         }
-        wakeupWorkers();
+        _scheduler.schedule(work);
     }
 
     @Override
@@ -734,10 +737,24 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         String value = params.get(Config.HAWorkers.key());
         final int count = NumbersUtil.parseInt(value, 1);
-        _workers = new WorkerThread[count];
-        for (int i = 0; i < _workers.length; i++) {
-            _workers[i] = new WorkerThread("HA-Worker-" + i);
-        }
+        value = params.get(Config.HAWorkersMax.key());
+        final int maxCount = NumbersUtil.parseInt(value, 20);
+        _scheduler = new HaWorkScheduler("HA-Worker", count, maxCount, BACKLOG_PER_WORKER, new HaWorkScheduler.WorkProcessor() {
+            @Override
+            public Long process(final long workId) {
+                try {
+                    return _managedContext.callWithContext(new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            return processWork(workId);
+                        }
+                    });
+                } catch (Exception e) {
+                    s_logger.error("Caught this exception, ", e);
+                    return null;
+                }
+            }
+        });
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
@@ -786,10 +803,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean start() {
         _stopped = false;
 
-        for (final WorkerThread thread : _workers) {
-            thread.start();
-        }
+        _scheduler.start();
 
+        _executor.scheduleWithFixedDelay(new SweepTask(), 0, _timeToSleep, TimeUnit.MILLISECONDS);
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
 
         return true;
@@ -799,7 +815,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean stop() {
         _stopped = true;
 
-        wakeupWorkers();
+        _scheduler.stop();
 
         _executor.shutdown();
 
@@ -819,86 +835,77 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
-    protected class WorkerThread extends Thread {
-        public WorkerThread(String name) {
-            super(name);
-        }
-
+    /**
+     * Queues the work items no server has taken, such as those queued by other management servers, those released
+     * by management servers that left and those rescheduled anywhere.
+     */
+    protected class SweepTask extends ManagedContextRunnable {
         @Override
-        public void run() {
-            s_logger.info("Starting work");
-            while (!_stopped) {
-                _managedContext.runWithContext(new Runnable() {
-                    @Override
-                    public void run() {
-                        runWithContext();
-                    }
-                });
+        protected void runInContext() {
+            try {
+                List<HaWorkVO> works = _haDao.listUntakenWork();
+                for (HaWorkVO work : works) {
+                    _scheduler.schedule(work);
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Found " + works.size() + " untaken HA work items, " + _scheduler.getBacklog() + " queued for " + _scheduler.getWorkerCount() + " workers");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Error while looking for HA work", e);
             }
-            s_logger.info("Time to go home!");
         }
+    }
 
-        private void runWithContext() {
-            HaWorkVO work = null;
-                try {
-                s_logger.trace("Checking the database");
-                work = _haDao.take(_serverId);
-                if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
-                        }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
-                        return;
-                    }
-                }
-
-                NDC.push("work-" + work.getId());
-                s_logger.info("Processing " + work);
+    /**
+     * Takes the work item and works on it.
+     * 
+     * @return the time in ms to try the work again, null if it is over or another server took it.
+     */
+    protected Long processWork(long workId) {
+        HaWorkVO work = _haDao.take(workId, _serverId);
+        if (work == null) {
+            s_logger.trace("Work " + workId + " is taken or no longer due");
+            return null;
+        }
 
-                try {
-                    final WorkType wt = work.getWorkType();
-                    Long nextTime = null;
-                    if (wt == WorkType.Migration) {
-                        nextTime = migrate(work);
-                    } else if (wt == WorkType.HA) {
-                        nextTime = restart(work);
-                    } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
-                        nextTime = stopVM(work);
-                    } else if (wt == WorkType.Destroy) {
-                        nextTime = destroyVM(work);
-                    } else {
-                        assert false : "How did we get here with " + wt.toString();
-                        return;
-                    }
+        NDC.push("work-" + work.getId());
+        s_logger.info("Processing " + work);
 
-                    if (nextTime == null) {
-                        s_logger.info("Completed " + work);
-                        work.setStep(Step.Done);
-                    } else {
-                        s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
-                        work.setTimeToTry(nextTime);
-                        work.setServerId(null);
-                        work.setDateTaken(null);
-                    }
-                } catch (Exception e) {
-                    s_logger.error("Terminating " + work, e);
-                    work.setStep(Step.Error);
-                }
-                _haDao.update(work.getId(), work);
-            } catch (final Throwable th) {
-                s_logger.error("Caught this throwable, ", th);
-            } finally {
-                if (work != null) {
-                    NDC.pop();
-                    }
+        try {
+            Long nextTime = null;
+            try {
+                final WorkType wt = work.getWorkType();
+                if (wt == WorkType.Migration) {
+                    nextTime = migrate(work);
+                } else if (wt == WorkType.HA) {
+                    nextTime = restart(work);
+                } else if (wt == WorkType.Stop || wt == WorkType.CheckStop || wt == WorkType.ForceStop) {
+                    nextTime = stopVM(work);
+                } else if (wt == WorkType.Destroy) {
+                    nextTime = destroyVM(work);
+                } else {
+                    assert false : "How did we get here with " + wt.toString();
+                    return null;
                 }
-        }
 
-        public synchronized void wakup() {
-            notifyAll();
+                if (nextTime == null) {
+                    s_logger.info("Completed " + work);
+                    work.setStep(Step.Done);
+                } else {
+                    s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
+                    work.setTimeToTry(nextTime);
+                    work.setServerId(null);
+                    work.setDateTaken(null);
+                }
+            } catch (Exception e) {
+                s_logger.error("Terminating " + work, e);
+                work.setStep(Step.Error);
+                nextTime = null;
+            }
+            _haDao.update(work.getId(), work);
+            return nextTime != null ? nextTime << 10 : null;
+        } finally {
+            NDC.pop();
         }
     }
 
@@ -911,6 +918,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHost node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        if (!_stopped) {
+            _executor.execute(new SweepTask());
+        }
     }
 
     @Override
@@ -32,6 +32,22 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes the given HA work item if it is available.
+     * 
+     * @param workId work item id.
+     * @param serverId server that is taking this.
+     * @return WorkVO if it was available and is now taken by serverId; null otherwise.
+     */
+    HaWorkVO take(long workId, long serverId);
+
+    /**
+     * Finds the work items no server has taken, whether they are due or not.
+     * 
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> listUntakenWork();
+
     /**
      * Finds all the work items related to this instance.
      * 
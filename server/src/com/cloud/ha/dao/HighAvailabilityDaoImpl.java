@@ -50,6 +50,7 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private final SearchBuilder<HaWorkVO> ReleaseSearch;
     private final SearchBuilder<HaWorkVO> FutureHaWorkSearch;
     private final SearchBuilder<HaWorkVO> RunningHaWorkSearch;
+    private final SearchBuilder<HaWorkVO> UntakenSearch;
 
     protected HighAvailabilityDaoImpl() {
         super();
@@ -107,6 +108,12 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         RunningHaWorkSearch.and("taken", RunningHaWorkSearch.entity().getDateTaken(), Op.NNULL);
         RunningHaWorkSearch.and("step", RunningHaWorkSearch.entity().getStep(), Op.NIN);
         RunningHaWorkSearch.done();
+
+        UntakenSearch = createSearchBuilder();
+        UntakenSearch.and("server", UntakenSearch.entity().getServerId(), Op.NULL);
+        UntakenSearch.and("taken", UntakenSearch.entity().getDateTaken(), Op.NULL);
+        UntakenSearch.and("step", UntakenSearch.entity().getStep(), Op.NIN);
+        UntakenSearch.done();
     }
 
     @Override
@@ -160,6 +167,40 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         }
     }
 
+    @Override
+    public HaWorkVO take(final long workId, final long serverId) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            txn.start();
+            final HaWorkVO work = lockRow(workId, true);
+            if (work == null || work.getServerId() != null || work.getDateTaken() != null || work.getTimeToTry() > (System.currentTimeMillis() >> 10)
+                    || work.getStep() == Step.Done || work.getStep() == Step.Error || work.getStep() == Step.Cancelled) {
+                txn.commit();
+                return null;
+            }
+
+            work.setServerId(serverId);
+            work.setDateTaken(new Date());
+
+            update(work.getId(), work);
+
+            txn.commit();
+
+            return work;
+
+        } catch (final Throwable e) {
+            throw new CloudRuntimeException("Unable to execute take", e);
+        }
+    }
+
+    @Override
+    public List<HaWorkVO> listUntakenWork() {
+        SearchCriteria<HaWorkVO> sc = UntakenSearch.create();
+        sc.setParameters("step", Step.Done, Step.Cancelled, Step.Error);
+
+        return listBy(sc);
+    }
+
     @Override
     public List<HaWorkVO> findPreviousHA(final long instanceId) {
         final SearchCriteria<HaWorkVO> sc = PreviousInstanceSearch.create();
@@ -46,6 +46,7 @@ import com.cloud.alert.AlertManager;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.dc.AccountVlanMapVO;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.DataCenter.NetworkType;
@@ -758,7 +759,9 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                 if (!fetchFromDedicatedRange) {
                     // Check that the maximum number of public IPs for the given accountId will not be exceeded
                     try {
-                        _resourceLimitMgr.checkResourceLimit(owner, ResourceType.public_ip);
+                        ResourceReservation reservation = _resourceLimitMgr.reserveResource(owner, ResourceType.public_ip, 1);
+                        // the address is counted once marked allocated, hold its place until the transaction is over
+                        _resourceLimitMgr.releaseReservation(reservation);
                     } catch (ResourceAllocationException ex) {
                         s_logger.warn("Failed to allocate resource of type " + ex.getResourceType() + " for account " + owner);
                         throw new AccountLimitException("Maximum number of public IP addresses for account: " + owner.getAccountName() + " has been exceeded.");
@@ -44,6 +44,7 @@ import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkVO;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityCache;
 import com.cloud.utils.db.QueryBuilder;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionCallbackWithException;
@@ -118,6 +119,7 @@ public class StorageNetworkManagerImpl extends ManagerBase implements StorageNet
             stmt.executeUpdate();
             stmt.close();
         }
+        EntityCache.invalidateOnCompletion("data_center", String.valueOf(zoneId));
     }
 
     @Override
@@ -0,0 +1,258 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesVpcCommand;
+import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+import com.cloud.agent.api.to.StaticNatRuleTO;
+import com.cloud.agent.manager.Commands;
+
+/**
+ * Keeps the compiled configuration last applied to each running virtual
+ * router: one signature per configuration entry (port forwarding rule,
+ * static nat rule, dhcp entry), plus a version that is bumped every time a
+ * set of commands is applied successfully.
+ *
+ * Commands about to be sent to a router are diffed against that state so
+ * that entries the router already carries are not shipped again. The state
+ * of a router is dropped whenever it is started, stopped, rebooted or its
+ * network restarted, since a freshly booted router holds no configuration and
+ * must receive the full set, and whenever its host connects to a management
+ * server. Other management servers configure the same routers, so the manager
+ * also drops the state of a router on every other management server when it
+ * changes the router. State older than the time to live is dropped as well,
+ * which bounds the damage of a lost notification.
+ */
+public class RouterConfigTracker {
+    private static final Logger s_logger = Logger.getLogger(RouterConfigTracker.class);
+
+    private final ConcurrentHashMap<Long, RouterConfig> _configs = new ConcurrentHashMap<Long, RouterConfig>();
+    private volatile long _ttlMs = Long.MAX_VALUE;
+
+    protected static class RouterConfig {
+        long version;
+        final long createdAt = System.currentTimeMillis();
+        final Map<String, String> entries = new HashMap<String, String>();
+    }
+
+    /**
+     * @param ttlMs how long the configuration recorded for a router is trusted, counted from the first
+     *        command applied after the router was reset
+     */
+    public void setTimeToLive(long ttlMs) {
+        _ttlMs = ttlMs;
+    }
+
+    public void reset(long routerId) {
+        _configs.remove(routerId);
+    }
+
+    public long getVersion(long routerId) {
+        RouterConfig config = _configs.get(routerId);
+        if (config == null) {
+            return 0;
+        }
+        synchronized (config) {
+            return config.version;
+        }
+    }
+
+    /**
+     * @return for every command, the command holding only the entries that differ from what was last
+     *         applied to the router, or null if the router already carries all of them. Returns null
+     *         when every command has to be sent as is.
+     */
+    public Command[] diff(long routerId, Commands cmds) {
+        RouterConfig config = _configs.get(routerId);
+        if (config == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - config.createdAt >= _ttlMs) {
+            _configs.remove(routerId, config);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Configuration recorded for router " + routerId + " has expired, sending the full set");
+            }
+            return null;
+        }
+
+        Command[] result = new Command[cmds.size()];
+        boolean changed = false;
+        int i = 0;
+        synchronized (config) {
+            for (Command cmd : cmds) {
+                result[i] = diff(config, cmd);
+                if (result[i] != cmd) {
+                    changed = true;
+                }
+                i++;
+            }
+        }
+        return changed ? result : null;
+    }
+
+    /**
+     * Records the entries of successfully applied commands as the router's current configuration.
+     *
+     * @return true if the recorded configuration changed, false if the router already carried every
+     *         applied entry
+     */
+    public boolean commit(long routerId, Command[] cmds, Answer[] answers) {
+        if (cmds == null || answers == null || cmds.length != answers.length) {
+            return false;
+        }
+
+        RouterConfig config = _configs.get(routerId);
+        if (config == null) {
+            config = new RouterConfig();
+            RouterConfig existing = _configs.putIfAbsent(routerId, config);
+            if (existing != null) {
+                config = existing;
+            }
+        }
+
+        synchronized (config) {
+            boolean changed = false;
+            for (int i = 0; i < cmds.length; i++) {
+                if (answers[i] == null || !answers[i].getResult()) {
+                    continue;
+                }
+                Map<String, String> entries = getEntries(cmds[i]);
+                if (entries == null) {
+                    continue;
+                }
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    if (!entry.getValue().equals(config.entries.put(entry.getKey(), entry.getValue()))) {
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                config.version++;
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Router " + routerId + " configuration is now at version " + config.version + " with " + config.entries.size() + " entries");
+                }
+            }
+            return changed;
+        }
+    }
+
+    protected Command diff(RouterConfig config, Command cmd) {
+        if (cmd instanceof SetPortForwardingRulesCommand) {
+            SetPortForwardingRulesCommand pfCmd = (SetPortForwardingRulesCommand)cmd;
+            List<PortForwardingRuleTO> rules = new ArrayList<PortForwardingRuleTO>();
+            for (PortForwardingRuleTO rule : pfCmd.getRules()) {
+                if (!getSignature(rule).equals(config.entries.get(getKey(rule)))) {
+                    rules.add(rule);
+                }
+            }
+            if (rules.size() == pfCmd.getRules().length) {
+                return cmd;
+            }
+            if (rules.isEmpty()) {
+                return null;
+            }
+            SetPortForwardingRulesCommand diffed = cmd instanceof SetPortForwardingRulesVpcCommand ? new SetPortForwardingRulesVpcCommand(rules)
+                    : new SetPortForwardingRulesCommand(rules);
+            diffed.copyAccessDetails(pfCmd);
+            return diffed;
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            SetStaticNatRulesCommand snatCmd = (SetStaticNatRulesCommand)cmd;
+            List<StaticNatRuleTO> rules = new ArrayList<StaticNatRuleTO>();
+            for (StaticNatRuleTO rule : snatCmd.getRules()) {
+                if (!getSignature(rule).equals(config.entries.get(getKey(rule)))) {
+                    rules.add(rule);
+                }
+            }
+            if (rules.size() == snatCmd.getRules().length) {
+                return cmd;
+            }
+            if (rules.isEmpty()) {
+                return null;
+            }
+            SetStaticNatRulesCommand diffed = new SetStaticNatRulesCommand(rules, snatCmd.getVpcId());
+            diffed.copyAccessDetails(snatCmd);
+            return diffed;
+        } else if (cmd instanceof DhcpEntryCommand) {
+            DhcpEntryCommand dhcpCmd = (DhcpEntryCommand)cmd;
+            if (getSignature(dhcpCmd).equals(config.entries.get(getKey(dhcpCmd)))) {
+                return null;
+            }
+        }
+        return cmd;
+    }
+
+    protected Map<String, String> getEntries(Command cmd) {
+        Map<String, String> entries = null;
+        if (cmd instanceof SetPortForwardingRulesCommand) {
+            entries = new HashMap<String, String>();
+            for (PortForwardingRuleTO rule : ((SetPortForwardingRulesCommand)cmd).getRules()) {
+                entries.put(getKey(rule), getSignature(rule));
+            }
+        } else if (cmd instanceof SetStaticNatRulesCommand) {
+            entries = new HashMap<String, String>();
+            for (StaticNatRuleTO rule : ((SetStaticNatRulesCommand)cmd).getRules()) {
+                entries.put(getKey(rule), getSignature(rule));
+            }
+        } else if (cmd instanceof DhcpEntryCommand) {
+            entries = new HashMap<String, String>();
+            entries.put(getKey((DhcpEntryCommand)cmd), getSignature((DhcpEntryCommand)cmd));
+        }
+        return entries;
+    }
+
+    protected static String getKey(PortForwardingRuleTO rule) {
+        return "pf:" + rule.getSrcIp() + ":" + rule.getProtocol() + ":" + rule.getStringSrcPortRange();
+    }
+
+    protected static String getSignature(PortForwardingRuleTO rule) {
+        return (rule.revoked() ? "D:" : "A:") + rule.getDstIp() + ":" + rule.getStringDstPortRange();
+    }
+
+    protected static String getKey(StaticNatRuleTO rule) {
+        return "snat:" + rule.getSrcIp() + ":" + rule.getProtocol() + ":" + rule.getStringSrcPortRange();
+    }
+
+    protected static String getSignature(StaticNatRuleTO rule) {
+        return (rule.revoked() ? "D:" : "A:") + rule.getDstIp();
+    }
+
+    protected static String getKey(DhcpEntryCommand cmd) {
+        return "dhcp:" + cmd.getVmMac();
+    }
+
+    protected static String getSignature(DhcpEntryCommand cmd) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(cmd.getVmIpAddress()).append('|').append(cmd.getVmIp6Address()).append('|').append(cmd.getVmName());
+        sb.append('|').append(cmd.getDns()).append('|').append(cmd.getGateway()).append('|').append(cmd.getIp6Gateway());
+        sb.append('|').append(cmd.getNextServer()).append('|').append(cmd.getDefaultRouter()).append('|').append(cmd.getStaticRoutes());
+        sb.append('|').append(cmd.getDefaultDns()).append('|').append(cmd.getDuid()).append('|').append(cmd.isDefault());
+        return sb.toString();
+    }
+}
@@ -54,6 +54,8 @@ import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.jobs.AsyncJobManager;
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.apache.log4j.Logger;
@@ -74,6 +76,7 @@ import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.ModifySshKeysCommand;
 import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PropagateMessageCommand;
 import com.cloud.agent.api.PvlanSetupCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.check.CheckSshAnswer;
@@ -215,6 +218,7 @@ import com.cloud.offering.ServiceOffering;
 import com.cloud.offerings.NetworkOfferingVO;
 import com.cloud.offerings.dao.NetworkOfferingDao;
 import com.cloud.resource.ResourceManager;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.server.ConfigurationServer;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
@@ -394,6 +398,10 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     AsyncJobManager _asyncMgr;
     @Inject
     protected ApiAsyncJobDispatcher _asyncDispatcher;
+    @Inject
+    ClusterManager _clusterMgr;
+    @Inject
+    MessageBus _messageBus;
 
     int _routerRamSize;
     int _routerCpuMHz;
@@ -418,6 +426,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     private boolean _dailyOrHourly = false;
 
     ScheduledExecutorService _executor;
+    protected final RouterConfigTracker _configTracker = new RouterConfigTracker();
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
     ExecutorService _rvrStatusUpdateExecutor;
@@ -665,6 +674,14 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     static final ConfigKey<Boolean> routerVersionCheckEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "router.version.check", "true",
             "If true, router minimum required version is checked before sending command", false);
 
+    static final ConfigKey<Boolean> routerConfigDiffEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "router.config.diff.enabled", "true",
+            "If true, rules and dhcp entries a running router already carries are not sent to it again", true);
+
+    static final ConfigKey<Integer> routerConfigDiffTtl = new ConfigKey<Integer>("Advanced", Integer.class, "router.config.diff.ttl", "3600",
+            "Time (seconds) the rules and dhcp entries recorded as applied to a router are trusted before the full set is sent again", false);
+
+    public static final String ROUTER_CONFIG_SUBJECT = "router.config.reset";
+
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
 
@@ -747,6 +764,8 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
         _agentMgr.registerForHostEvents(this, true, false, false);
 
+        _configTracker.setTimeToLive(routerConfigDiffTtl.value() * 1000L);
+
         s_logger.info("DomainRouterManager is configured.");
 
         return true;
@@ -754,6 +773,13 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public boolean start() {
+        _messageBus.subscribe(ROUTER_CONFIG_SUBJECT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                _configTracker.reset(Long.parseLong((String)args));
+            }
+        });
+
         if (_routerStatsInterval > 0){
             _executor.scheduleAtFixedRate(new NetworkUsageTask(), _routerStatsInterval, _routerStatsInterval, TimeUnit.SECONDS);
         }else{
@@ -2022,6 +2048,9 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             if (!skip) {
                 if (state != State.Running) {
                     router = startVirtualRouter(router, _accountMgr.getSystemUser(), _accountMgr.getSystemAccount(), params);
+                } else if (params != null && Boolean.TRUE.equals(params.get(Param.ReProgramGuestNetworks))) {
+                    // the network is being restarted, the rules reapplied next go out in full
+                    resetRouterConfig(router.getId());
                 }
                 if (router != null) {
                     runningRouters.add(router);
@@ -2341,6 +2370,9 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             return false;
         }
 
+        // router comes up without any configuration, everything below is shipped in full
+        resetRouterConfig(router.getId());
+
         finalizeSshAndVersionAndNetworkUsageOnStart(cmds, profile, router, controlNic);
 
         // restart network if restartNetwork = false is not specified in profile parameters
@@ -2734,11 +2766,16 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             result = false;
         }
 
+        if (result) {
+            _configTracker.commit(router.getId(), cmds.toCommands(), cmds.getAnswers());
+        }
+
         return result;
     }
 
     @Override
     public void finalizeStop(VirtualMachineProfile profile, Answer answer) {
+        resetRouterConfig(profile.getId());
         if (answer != null) {
             VirtualMachine vm = profile.getVirtualMachine();
             DomainRouterVO domR = _routerDao.findById(vm.getId());
@@ -2757,6 +2794,28 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public void finalizeExpunge(VirtualMachine vm) {
+        resetRouterConfig(vm.getId());
+    }
+
+    /**
+     * Forgets the configuration recorded as applied to the router here and on the other management servers,
+     * so that the next commands for it are sent in full.
+     */
+    protected void resetRouterConfig(long routerId) {
+        _configTracker.reset(routerId);
+        routerConfigChanged(routerId);
+    }
+
+    /**
+     * Tells the other management servers that the configuration they recorded for the router is stale.
+     */
+    protected void routerConfigChanged(long routerId) {
+        try {
+            Command[] cmds = new Command[] { new PropagateMessageCommand(ROUTER_CONFIG_SUBJECT, String.valueOf(routerId)) };
+            _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+        } catch (Exception e) {
+            s_logger.warn("Unable to notify other management servers of the configuration change of router " + routerId, e);
+        }
     }
 
 
@@ -3615,22 +3674,61 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
             s_logger.debug("Router requires upgrade. Unable to send command to router:" + router.getId());
             throw new CloudRuntimeException("Unable to send command. Upgrade in progress. Please contact administrator.");
         }
+        Commands toSend = cmds;
+        Command[] diffed = routerConfigDiffEnabled.value() ? _configTracker.diff(router.getId(), cmds) : null;
+        if (diffed != null) {
+            toSend = new Commands(cmds.getErrorHandling());
+            for (Command cmd : diffed) {
+                if (cmd != null) {
+                    toSend.addCommand(cmd);
+                }
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Router " + router.getInstanceName() + " already carries part of the configuration at version "
+                        + _configTracker.getVersion(router.getId()) + ", sending " + toSend.size() + " of " + cmds.size() + " command(s)");
+            }
+        }
+
         Answer[] answers = null;
-        try {
-            answers = _agentMgr.send(router.getHostId(), cmds);
-        } catch (OperationTimedoutException e) {
-            s_logger.warn("Timed Out", e);
-            throw new AgentUnavailableException("Unable to send commands to virtual router ", router.getHostId(), e);
+        if (toSend.size() > 0) {
+            try {
+                answers = _agentMgr.send(router.getHostId(), toSend);
+            } catch (OperationTimedoutException e) {
+                s_logger.warn("Timed Out", e);
+                throw new AgentUnavailableException("Unable to send commands to virtual router ", router.getHostId(), e);
+            }
+        } else {
+            answers = new Answer[0];
         }
 
         if (answers == null) {
             return false;
         }
 
-        if (answers.length != cmds.size()) {
+        if (answers.length != toSend.size()) {
             return false;
         }
 
+        if (_configTracker.commit(router.getId(), toSend.toCommands(), answers)) {
+            routerConfigChanged(router.getId());
+        }
+
+        if (toSend != cmds) {
+            // report an answer for every original command, entries already on the router count as applied
+            Answer[] fullAnswers = new Answer[diffed.length];
+            Command[] originals = cmds.toCommands();
+            int j = 0;
+            for (int i = 0; i < diffed.length; i++) {
+                if (diffed[i] != null) {
+                    fullAnswers[i] = answers[j++];
+                } else {
+                    fullAnswers[i] = new Answer(originals[i], true, "Configuration is already applied on the router");
+                }
+            }
+            cmds.setAnswers(fullAnswers);
+            answers = fullAnswers;
+        }
+
         // FIXME: Have to return state for individual command in the future
         boolean result = true;
         if (answers.length > 0) {
@@ -4019,6 +4117,11 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public void processConnect(Host host, StartupCommand cmd, boolean forRebalance) throws ConnectionException {
+        // the routers may have been rebooted while their host was away, or configured by the previous owner of the host
+        for (DomainRouterVO router : _routerDao.listByHostId(host.getId())) {
+            resetRouterConfig(router.getId());
+        }
+
         List<DomainRouterVO> routers = _routerDao.listIsolatedByHostId(host.getId());
         for (DomainRouterVO router : routers) {
             if (router.isStopPending()) {
@@ -4300,6 +4403,6 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {UseExternalDnsServers, routerVersionCheckEnabled};
+        return new ConfigKey<?>[] {UseExternalDnsServers, routerVersionCheckEnabled, routerConfigDiffEnabled, routerConfigDiffTtl};
     }
 }
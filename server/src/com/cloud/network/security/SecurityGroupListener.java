@@ -96,10 +96,15 @@ public class SecurityGroupListener implements Listener {
                     recordSuccess(ruleAnswer.getVmId());
                 } else {
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);;
+                    // whatever the host holds now, it is not what we pushed last
+                    _securityGroupManager.forgetPushedRuleset(ruleAnswer.getVmId());
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId 
                             +" due to " + ruleAnswer.getDetails()
                             +" and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                    if (ruleAnswer.getReason() == FailureReason.DELTA_BASE_MISMATCH) {
+                        s_logger.debug("Host " + agentId + " does not hold the base ruleset of vm " + ruleAnswer.getVmId() + ", sending the full ruleset");
+                        affectedVms.add(ruleAnswer.getVmId());
+                    } else if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId + " cannot do bridge firewalling");
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED){
                         if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
@@ -52,17 +52,22 @@ import org.apache.cloudstack.api.command.user.securitygroup.RevokeSecurityGroupI
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 
 import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
 import com.cloud.agent.api.NetworkRulesVmSecondaryIpCommand;
+import com.cloud.agent.api.PropagateMessageCommand;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.manager.Commands;
 import com.cloud.api.query.dao.SecurityGroupJoinDao;
 import com.cloud.api.query.vo.SecurityGroupJoinVO;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.domain.dao.DomainDao;
 import com.cloud.event.ActionEvent;
@@ -85,6 +90,7 @@ import com.cloud.network.security.dao.SecurityGroupVMMapDao;
 import com.cloud.network.security.dao.SecurityGroupWorkDao;
 import com.cloud.network.security.dao.VmRulesetLogDao;
 import com.cloud.projects.ProjectManager;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.tags.dao.ResourceTagDao;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
@@ -93,6 +99,7 @@ import com.cloud.user.dao.AccountDao;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -102,6 +109,7 @@ import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionCallbackWithException;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
@@ -125,6 +133,8 @@ import com.cloud.vm.dao.VMInstanceDao;
 public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGroupManager, SecurityGroupService, StateListener<State, VirtualMachine.Event, VirtualMachine> {
     public static final Logger s_logger = Logger.getLogger(SecurityGroupManagerImpl.class);
 
+    public static final String RULE_GRAPH_SUBJECT = "security.group.graph.changed";
+
     @Inject
     SecurityGroupDao _securityGroupDao;
     @Inject
@@ -171,6 +181,10 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
     NicDao _nicDao;
     @Inject
     NicSecondaryIpDao _nicSecIpDao;
+    @Inject
+    ClusterManager _clusterMgr;
+    @Inject
+    MessageBus _messageBus;
 
     ScheduledExecutorService _executorPool;
     ScheduledExecutorService _cleanupExecutor;
@@ -186,6 +200,8 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
 
     SecurityGroupListener _answerListener;
+    SecurityGroupRuleGraph _ruleGraph;
+    boolean _deltaUpdates;
 
     private final class SecurityGroupVOComparator implements Comparator<SecurityGroupVO> {
         @Override
@@ -384,10 +400,80 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
     public void handleVmStarted(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        invalidateRuleGraphForVm(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStart(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
 
+    protected List<Long> invalidateRuleGraphForVm(long vmId) {
+        List<Long> groupIds = new ArrayList<Long>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vmId)) {
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
+        ruleGraphChanged(VM_CHANGE + vmId + ":" + StringUtils.join(groupIds, ","));
+        return groupIds;
+    }
+
+    static final String RULES_CHANGE = "rules:";
+    static final String GROUP_CHANGE = "group:";
+    static final String VM_CHANGE = "vm:";
+
+    /**
+     * Drops the changed part of the rule graph here and on the other management servers, which would
+     * otherwise keep computing rulesets from their cached copy and push them with a newer seqno. The
+     * local entries are dropped again once the current transaction is over, so that a ruleset computed
+     * before the change is visible does not stay cached.
+     */
+    protected void ruleGraphChanged(final String change) {
+        applyRuleGraphChange(change);
+        TransactionLegacy.currentTxn().afterCompletion(new Runnable() {
+            @Override
+            public void run() {
+                applyRuleGraphChange(change);
+                try {
+                    Command[] cmds = new Command[] { new PropagateMessageCommand(RULE_GRAPH_SUBJECT, change) };
+                    _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+                } catch (Exception e) {
+                    s_logger.warn("Unable to notify other management servers of the security group change " + change, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies a change from ruleGraphChanged, which is rules:groupId, group:groupId or vm:vmId:groupId,...
+     */
+    protected void applyRuleGraphChange(String change) {
+        if (change == null) {
+            return;
+        }
+        if (change.startsWith(RULES_CHANGE)) {
+            _ruleGraph.invalidateRules(Long.parseLong(change.substring(RULES_CHANGE.length())));
+        } else if (change.startsWith(GROUP_CHANGE)) {
+            _ruleGraph.invalidateGroup(Long.parseLong(change.substring(GROUP_CHANGE.length())));
+        } else if (change.startsWith(VM_CHANGE)) {
+            String[] parts = change.substring(VM_CHANGE.length()).split(":", 2);
+            List<Long> groupIds = new ArrayList<Long>();
+            if (parts.length > 1) {
+                for (String groupId : parts[1].split(",")) {
+                    if (!groupId.isEmpty()) {
+                        groupIds.add(Long.parseLong(groupId));
+                    }
+                }
+            }
+            _ruleGraph.invalidateVm(Long.parseLong(parts[0]), groupIds);
+        } else {
+            s_logger.warn("Ignoring unknown security group graph change " + change);
+        }
+    }
+
+    /**
+     * Forgets the ruleset last pushed for the vm, so that the next update carries the full ruleset.
+     */
+    public void forgetPushedRuleset(long vmId) {
+        _ruleGraph.forgetPushedRuleset(vmId);
+    }
+
     @DB
     public void scheduleRulesetUpdateToHosts(final List<Long> affectedVms, final boolean updateSeqno, Long delayMs) {
         if (affectedVms.size() == 0) {
@@ -531,6 +617,8 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
     protected void handleVmStopped(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        invalidateRuleGraphForVm(vm.getId());
+        forgetPushedRuleset(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStop(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
@@ -551,6 +639,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             }
 
         } else {
+            invalidateRuleGraphForVm(vm.getId());
             List<Long> affectedVms = new ArrayList<Long>();
             affectedVms.add(vm.getId());
             scheduleRulesetUpdateToHosts(affectedVms, true, null);
@@ -768,6 +857,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             }
         });
 
+        ruleGraphChanged(RULES_CHANGE + securityGroup.getId());
         try {
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
             affectedVms.addAll(_securityGroupVMMapDao.listVmIdsBySecurityGroup(securityGroup.getId()));
@@ -845,6 +935,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             }
         });
 
+        ruleGraphChanged(RULES_CHANGE + securityGroupId);
         try {
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
             affectedVms.addAll(_securityGroupVMMapDao.listVmIdsBySecurityGroup(securityGroupId));
@@ -899,8 +990,13 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
         _serverId = ManagementServerNode.getManagementServerId();
 
+        int graphTtl = NumbersUtil.parseInt(configs.get(Config.SecurityGroupRuleGraphTtl.key()), 60);
+        _ruleGraph = new SecurityGroupRuleGraph(_securityGroupVMMapDao, _securityGroupRuleDao, graphTtl * 1000L);
+        _deltaUpdates = Boolean.parseBoolean(configs.get(Config.SecurityGroupDeltaUpdates.key()));
+
         s_logger.info("SecurityGroupManager: num worker threads=" + _numWorkerThreads +
-                ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout);
+                ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout=" + _globalWorkLockTimeout +
+                " rule graph ttl=" + graphTtl + " delta updates=" + _deltaUpdates);
         createThreadPools();
 
         return true;
@@ -918,6 +1014,12 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
     @Override
     public boolean start() {
+        _messageBus.subscribe(RULE_GRAPH_SUBJECT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                applyRuleGraphChange((String)args);
+            }
+        });
         _cleanupExecutor.scheduleAtFixedRate(new CleanupThread(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
         return true;
     }
@@ -1038,7 +1140,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             return false;
         }
         if (groups != null && !groups.isEmpty()) {
-            return Transaction.execute(new TransactionCallback<Boolean>() {
+            Boolean result = Transaction.execute(new TransactionCallback<Boolean>() {
                 @Override
                 public Boolean doInTransaction(TransactionStatus status) {
                     UserVm userVm = _userVMDao.acquireInLockTable(userVmId); // ensures that duplicate entries are not created.
@@ -1072,6 +1174,8 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                     }
                 }
             });
+            invalidateRuleGraphForVm(userVmId);
+            return result;
         }
         return false;
 
@@ -1084,6 +1188,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             s_logger.trace("No security groups found for vm id=" + userVmId + ", returning");
             return;
         }
+        List<Long> groupIds = invalidateRuleGraphForVm(userVmId);
         Transaction.execute(new TransactionCallbackNoReturn() {
             @Override
             public void doInTransactionWithoutResult(TransactionStatus status) {
@@ -1097,6 +1202,8 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                 _userVMDao.releaseFromLockTable(userVmId);
             }
         });
+        ruleGraphChanged(VM_CHANGE + userVmId + ":" + StringUtils.join(groupIds, ","));
+        forgetPushedRuleset(userVmId);
         s_logger.debug("Security group mappings are removed successfully for vm id=" + userVmId);
     }
 
@@ -1115,7 +1222,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         // check permissions
         _accountMgr.checkAccess(caller, null, true, group);
 
-        return Transaction.execute(new TransactionCallbackWithException<Boolean,ResourceInUseException>() {
+        Boolean result = Transaction.execute(new TransactionCallbackWithException<Boolean,ResourceInUseException>() {
             @Override
             public Boolean doInTransaction(TransactionStatus status) throws ResourceInUseException {
                 SecurityGroupVO group = _securityGroupDao.lockRow(groupId, true);
@@ -1142,6 +1249,8 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                 return true;
             }
         });
+        ruleGraphChanged(GROUP_CHANGE + groupId);
+        return result;
 
     }
 
@@ -32,10 +32,13 @@ import org.apache.cloudstack.managed.context.ManagedContext;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
@@ -198,7 +201,27 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
                                    ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
+                Command update = cmd;
+                if (_deltaUpdates && vm.getHypervisorType() == HypervisorType.KVM) {
+                    if (_ruleGraph.isPushed(userVmId, agentId, cmd)) {
+                        // the change that queued this vm did not touch its rules
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("SecurityGroupManager v2: host " + agentId + " already holds ruleset sig=" + cmd.getSignature() + " for vm " + vm.getInstanceName() + ", not sending it");
+                        }
+                        _workDao.updateStep(userVmId, work.getLogsequenceNumber(), Step.Done);
+                        return;
+                    }
+                    SecurityGroupRulesCmd base = _ruleGraph.getPushedRuleset(userVmId, agentId);
+                    if (base != null) {
+                        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(base, cmd);
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("SecurityGroupManager v2: sending " + delta.getNumChangedRules() + " changed rules for vm " + vm.getInstanceName() + " on top of sig=" + base.getSignature());
+                        }
+                        update = delta;
+                    }
+                    _ruleGraph.setPushedRuleset(userVmId, agentId, cmd);
+                }
+                Commands cmds = new Commands(update);
                 try {
                     _agentMgr.send(agentId, cmds, _answerListener);
                     if (s_logger.isTraceEnabled()) {
@@ -206,6 +229,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     }
                 } catch (AgentUnavailableException e) {
                     s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
+                    _ruleGraph.forgetPushedRuleset(userVmId);
                     _workTracker.handleException(agentId);
                 }
             }
@@ -232,6 +256,9 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        if (_ruleGraph.isEnabled()) {
+            return _ruleGraph.generateRulesForVM(userVmId, type);
+        }
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
@@ -0,0 +1,251 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * In-memory view of the security group graph: vm to groups, group to rules and
+ * group to the guest ips of its running members. Rulesets are computed from the
+ * graph instead of querying the database for every group and every allowed
+ * group of every affected vm.
+ *
+ * Entries are loaded lazily and dropped by the manager whenever it changes the
+ * underlying rows; the manager passes the same change on to the other
+ * management servers of the cluster. Every entry also expires after a
+ * configurable time to live, which bounds the damage of a lost notification;
+ * a time to live of 0 disables the graph and every lookup goes to the database.
+ *
+ * The graph also remembers the last full ruleset pushed for each vm, which is
+ * the base delta updates are computed against, and lets the manager skip vms
+ * whose ruleset did not change at all. The graph does not narrow down which
+ * vms a change can affect; every vm of the groups that allow a changed group
+ * still has its ruleset computed.
+ */
+public class SecurityGroupRuleGraph {
+    private static final Logger s_logger = Logger.getLogger(SecurityGroupRuleGraph.class);
+
+    private final SecurityGroupVMMapDao _securityGroupVMMapDao;
+    private final SecurityGroupRuleDao _securityGroupRuleDao;
+    private final long _ttlMs;
+
+    // bumped on every invalidation so that a load racing with it is not cached
+    private final AtomicLong _generation = new AtomicLong();
+
+    private final Map<Long, Entry<List<Long>>> _vmGroups = new ConcurrentHashMap<Long, Entry<List<Long>>>();
+    private final Map<Long, Entry<List<String>>> _groupMembers = new ConcurrentHashMap<Long, Entry<List<String>>>();
+    private final Map<Long, Entry<List<SecurityGroupRuleVO>>> _ingressRules = new ConcurrentHashMap<Long, Entry<List<SecurityGroupRuleVO>>>();
+    private final Map<Long, Entry<List<SecurityGroupRuleVO>>> _egressRules = new ConcurrentHashMap<Long, Entry<List<SecurityGroupRuleVO>>>();
+
+    private final Map<Long, PushedRuleset> _pushed = new ConcurrentHashMap<Long, PushedRuleset>();
+
+    private static class Entry<T> {
+        final T value;
+        final long loadedAt;
+
+        Entry(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static class PushedRuleset {
+        final long hostId;
+        final SecurityGroupRulesCmd cmd;
+
+        PushedRuleset(long hostId, SecurityGroupRulesCmd cmd) {
+            this.hostId = hostId;
+            this.cmd = cmd;
+        }
+    }
+
+    public SecurityGroupRuleGraph(SecurityGroupVMMapDao securityGroupVMMapDao, SecurityGroupRuleDao securityGroupRuleDao, long ttlMs) {
+        _securityGroupVMMapDao = securityGroupVMMapDao;
+        _securityGroupRuleDao = securityGroupRuleDao;
+        _ttlMs = ttlMs;
+    }
+
+    public boolean isEnabled() {
+        return _ttlMs > 0;
+    }
+
+    public Map<PortAndProto, Set<String>> generateRulesForVM(long vmId, SecurityRuleType type) {
+        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+
+        for (Long groupId : getGroupsForVm(vmId)) {
+            for (SecurityGroupRuleVO rule : getRules(groupId, type)) {
+                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+                Set<String> cidrs = allowed.get(portAndProto);
+                if (cidrs == null) {
+                    cidrs = new TreeSet<String>(new CidrComparator());
+                }
+                if (rule.getAllowedNetworkId() != null) {
+                    cidrs.addAll(getRunningMemberCidrs(rule.getAllowedNetworkId()));
+                } else if (rule.getAllowedSourceIpCidr() != null) {
+                    cidrs.add(rule.getAllowedSourceIpCidr());
+                }
+                if (cidrs.size() > 0) {
+                    allowed.put(portAndProto, cidrs);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    public List<Long> getGroupsForVm(long vmId) {
+        Entry<List<Long>> entry = _vmGroups.get(vmId);
+        if (isValid(entry)) {
+            return entry.value;
+        }
+        long generation = _generation.get();
+        List<Long> groups = new ArrayList<Long>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vmId)) {
+            groups.add(mapVO.getSecurityGroupId());
+        }
+        groups = Collections.unmodifiableList(groups);
+        store(_vmGroups, vmId, groups, generation);
+        return groups;
+    }
+
+    public List<SecurityGroupRuleVO> getRules(long groupId, SecurityRuleType type) {
+        Map<Long, Entry<List<SecurityGroupRuleVO>>> cache = type == SecurityRuleType.IngressRule ? _ingressRules : _egressRules;
+        Entry<List<SecurityGroupRuleVO>> entry = cache.get(groupId);
+        if (isValid(entry)) {
+            return entry.value;
+        }
+        long generation = _generation.get();
+        List<SecurityGroupRuleVO> rules = Collections.unmodifiableList(_securityGroupRuleDao.listBySecurityGroupId(groupId, type));
+        store(cache, groupId, rules, generation);
+        return rules;
+    }
+
+    public List<String> getRunningMemberCidrs(long groupId) {
+        Entry<List<String>> entry = _groupMembers.get(groupId);
+        if (isValid(entry)) {
+            return entry.value;
+        }
+        long generation = _generation.get();
+        List<String> cidrs = new ArrayList<String>();
+        for (SecurityGroupVMMapVO ngmapVO : _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running)) {
+            cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+        }
+        cidrs = Collections.unmodifiableList(cidrs);
+        store(_groupMembers, groupId, cidrs, generation);
+        return cidrs;
+    }
+
+    public void invalidateRules(long groupId) {
+        _generation.incrementAndGet();
+        _ingressRules.remove(groupId);
+        _egressRules.remove(groupId);
+    }
+
+    public void invalidateMembers(long groupId) {
+        _generation.incrementAndGet();
+        _groupMembers.remove(groupId);
+    }
+
+    public void invalidateGroup(long groupId) {
+        invalidateRules(groupId);
+        invalidateMembers(groupId);
+    }
+
+    /**
+     * Drops the group membership of the vm and the member list of every group it is in,
+     * used when the vm changes state or ip, or joins or leaves groups.
+     */
+    public void invalidateVm(long vmId, List<Long> groupIds) {
+        _generation.incrementAndGet();
+        Entry<List<Long>> entry = _vmGroups.remove(vmId);
+        if (entry != null) {
+            for (Long groupId : entry.value) {
+                _groupMembers.remove(groupId);
+            }
+        }
+        if (groupIds != null) {
+            for (Long groupId : groupIds) {
+                _groupMembers.remove(groupId);
+            }
+        }
+    }
+
+    /**
+     * @return the last full ruleset pushed for the vm if it was pushed to the given host, null otherwise.
+     */
+    public SecurityGroupRulesCmd getPushedRuleset(long vmId, long hostId) {
+        PushedRuleset pushed = _pushed.get(vmId);
+        if (pushed == null || pushed.hostId != hostId) {
+            return null;
+        }
+        return pushed.cmd;
+    }
+
+    /**
+     * @return true if the given ruleset is the one last pushed for the vm to the given host, i.e. pushing it
+     *         again would not change what the host programs.
+     */
+    public boolean isPushed(long vmId, long hostId, SecurityGroupRulesCmd cmd) {
+        SecurityGroupRulesCmd pushed = getPushedRuleset(vmId, hostId);
+        return pushed != null && pushed.getSignature().equals(cmd.getSignature()) && StringUtils.equals(pushed.getGuestIp(), cmd.getGuestIp())
+                && StringUtils.equals(pushed.getGuestMac(), cmd.getGuestMac()) && pushed.getSecIpsString().equals(cmd.getSecIpsString());
+    }
+
+    public void setPushedRuleset(long vmId, long hostId, SecurityGroupRulesCmd cmd) {
+        _pushed.put(vmId, new PushedRuleset(hostId, cmd));
+    }
+
+    public void forgetPushedRuleset(long vmId) {
+        _pushed.remove(vmId);
+    }
+
+    private boolean isValid(Entry<?> entry) {
+        return entry != null && System.currentTimeMillis() - entry.loadedAt < _ttlMs;
+    }
+
+    private <T> void store(Map<Long, Entry<T>> cache, long id, T value, long generation) {
+        if (!isEnabled()) {
+            return;
+        }
+        cache.put(id, new Entry<T>(value, System.currentTimeMillis()));
+        if (_generation.get() != generation) {
+            // an invalidation ran while we were loading, the value may predate it
+            cache.remove(id);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Security group graph entry " + id + " was invalidated while loading, not caching it");
+            }
+        }
+    }
+}
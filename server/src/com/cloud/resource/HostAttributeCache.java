@@ -0,0 +1,249 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resource;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateMessageCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.configuration.Config;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.ha.HighAvailabilityManager;
+import com.cloud.host.DetailVO;
+import com.cloud.host.Host;
+import com.cloud.host.HostTagVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.host.dao.HostTagsDao;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.GuestOSVO;
+import com.cloud.storage.dao.GuestOSCategoryDao;
+import com.cloud.storage.dao.GuestOSDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ManagerBase;
+
+/**
+ * Holds the HostAttributeSnapshot the host allocators work from. The
+ * snapshot is loaded on first use with one query per attribute, dropped
+ * whenever hosts, host tags, host guest OS categories or cluster overcommit
+ * ratios change, and reloaded after host.attribute.snapshot.interval
+ * seconds in any case.
+ *
+ * Changes are announced to the other management servers through
+ * PropagateMessageCommand, which they relay to their message bus. Hosts the
+ * snapshot does not know yet, such as hosts just added through another
+ * management server, trigger a rate limited reload.
+ */
+public class HostAttributeCache extends ManagerBase {
+    private static final Logger s_logger = Logger.getLogger(HostAttributeCache.class);
+
+    public static final String HOST_ATTRIBUTES_SUBJECT = "host.attributes.changed";
+
+    private static final long MIN_RELOAD_INTERVAL_MS = 1000;
+
+    @Inject
+    HostDao _hostDao;
+    @Inject
+    HostTagsDao _hostTagsDao;
+    @Inject
+    HostDetailsDao _hostDetailsDao;
+    @Inject
+    ClusterDetailsDao _clusterDetailsDao;
+    @Inject
+    GuestOSDao _guestOSDao;
+    @Inject
+    GuestOSCategoryDao _guestOSCategoryDao;
+    @Inject
+    HighAvailabilityManager _haMgr;
+    @Inject
+    ConfigurationDao _configDao;
+    @Inject
+    ClusterManager _clusterMgr;
+    @Inject
+    MessageBus _messageBus;
+
+    private long _refreshInterval;
+    private volatile HostAttributeSnapshot _snapshot;
+    // bumped on every invalidation so that a load racing with it is not kept
+    private final AtomicLong _generation = new AtomicLong();
+    private final Object _reloadLock = new Object();
+    private volatile long _lastForcedReload;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        _refreshInterval = NumbersUtil.parseLong(_configDao.getValue(Config.HostAttributeSnapshotInterval.key()), 300) * 1000L;
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        _messageBus.subscribe(HOST_ATTRIBUTES_SUBJECT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                invalidate();
+            }
+        });
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return _refreshInterval > 0;
+    }
+
+    /**
+     * @return the current snapshot, null if host.attribute.snapshot.interval disables it
+     */
+    public HostAttributeSnapshot getSnapshot() {
+        if (!isEnabled()) {
+            return null;
+        }
+        HostAttributeSnapshot snapshot = _snapshot;
+        if (snapshot != null && System.currentTimeMillis() - snapshot.getLoadedAt() < _refreshInterval) {
+            return snapshot;
+        }
+        return reload();
+    }
+
+    /**
+     * @return a snapshot knowing every one of the hosts, null if there is none and the caller has to look the
+     *         attributes up in the database
+     */
+    public HostAttributeSnapshot getSnapshot(Collection<? extends Host> hosts) {
+        HostAttributeSnapshot snapshot = getSnapshot();
+        if (snapshot == null || snapshot.containsAll(hosts)) {
+            return snapshot;
+        }
+        long now = System.currentTimeMillis();
+        if (now - _lastForcedReload >= MIN_RELOAD_INTERVAL_MS) {
+            _lastForcedReload = now;
+            invalidate();
+            snapshot = getSnapshot();
+            if (snapshot != null && snapshot.containsAll(hosts)) {
+                return snapshot;
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Host attribute snapshot does not know all of " + hosts + ", looking them up in the database");
+        }
+        return null;
+    }
+
+    /**
+     * Drops the snapshot of this management server only.
+     */
+    public void invalidate() {
+        _generation.incrementAndGet();
+        _snapshot = null;
+    }
+
+    /**
+     * Drops the snapshot here and on the other management servers. Called once the transaction changing the
+     * attributes is over, so that no server reloads the snapshot before the change is visible.
+     */
+    public void attributesChanged() {
+        invalidate();
+        try {
+            Command[] cmds = new Command[] { new PropagateMessageCommand(HOST_ATTRIBUTES_SUBJECT, null) };
+            _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+        } catch (Exception e) {
+            s_logger.warn("Unable to notify other management servers of the host attribute change", e);
+        }
+    }
+
+    private HostAttributeSnapshot reload() {
+        synchronized (_reloadLock) {
+            HostAttributeSnapshot snapshot = _snapshot;
+            if (snapshot != null && System.currentTimeMillis() - snapshot.getLoadedAt() < _refreshInterval) {
+                return snapshot;
+            }
+            long generation = _generation.get();
+            snapshot = load();
+            if (_generation.get() == generation) {
+                _snapshot = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    protected HostAttributeSnapshot load() {
+        long start = System.currentTimeMillis();
+
+        List<HostVO> hosts = _hostDao.listAll();
+        long[] hostIds = new long[hosts.size()];
+        for (int i = 0; i < hostIds.length; i++) {
+            hostIds[i] = hosts.get(i).getId();
+        }
+        HostAttributeSnapshot snapshot = new HostAttributeSnapshot(hostIds, _haMgr.getHaTag(), start);
+
+        for (HostTagVO tag : _hostTagsDao.listAll()) {
+            snapshot.addHostTag(tag.getHostId(), tag.getTag());
+        }
+
+        Map<Long, String> categories = new HashMap<Long, String>();
+        for (GuestOSCategoryVO category : _guestOSCategoryDao.listAll()) {
+            categories.put(category.getId(), category.getName());
+        }
+        for (GuestOSVO guestOS : _guestOSDao.listAll()) {
+            snapshot.setGuestOSCategory(guestOS.getId(), categories.get(guestOS.getCategoryId()));
+        }
+        for (DetailVO detail : _hostDetailsDao.listByName("guest.os.category.id")) {
+            try {
+                snapshot.setHostGuestOSCategory(detail.getHostId(), categories.get(Long.parseLong(detail.getValue())));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring guest OS category " + detail.getValue() + " of host " + detail.getHostId());
+            }
+        }
+
+        for (ClusterDetailsVO detail : _clusterDetailsDao.listByName("cpuOvercommitRatio")) {
+            try {
+                snapshot.setCpuOvercommitRatio(detail.getClusterId(), Float.parseFloat(detail.getValue()));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring cpu overcommit ratio " + detail.getValue() + " of cluster " + detail.getClusterId());
+            }
+        }
+        for (ClusterDetailsVO detail : _clusterDetailsDao.listByName("memoryOvercommitRatio")) {
+            try {
+                snapshot.setMemoryOvercommitRatio(detail.getClusterId(), Float.parseFloat(detail.getValue()));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring memory overcommit ratio " + detail.getValue() + " of cluster " + detail.getClusterId());
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded the attributes of " + hostIds.length + " hosts in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,213 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resource;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.host.Host;
+
+/**
+ * Snapshot of the host attributes the host allocators filter and order on:
+ * host tags, the guest OS category of each host, the overcommit ratios of
+ * each cluster and the guest OS category of each guest OS.
+ *
+ * Every known host gets a position, and each tag is the set of positions of
+ * the hosts carrying it, so matching several tags is an intersection of bit
+ * sets instead of a query per tag. Attributes are filled in by
+ * HostAttributeCache while loading, the snapshot is never changed once
+ * published.
+ */
+public class HostAttributeSnapshot {
+    private final Map<Long, Integer> _positions;
+    private final String[] _hostGuestOSCategories;
+    private final Map<String, BitSet> _tags = new HashMap<String, BitSet>();
+    private final Map<Long, Float> _cpuOvercommitRatios = new HashMap<Long, Float>();
+    private final Map<Long, Float> _memoryOvercommitRatios = new HashMap<Long, Float>();
+    private final Map<Long, String> _guestOSCategories = new HashMap<Long, String>();
+    private final String _haTag;
+    private volatile BitSet _haHosts;
+    private final long _loadedAt;
+
+    public HostAttributeSnapshot(long[] hostIds, String haTag, long loadedAt) {
+        _positions = new HashMap<Long, Integer>(hostIds.length * 2);
+        for (int i = 0; i < hostIds.length; i++) {
+            _positions.put(hostIds[i], i);
+        }
+        _hostGuestOSCategories = new String[hostIds.length];
+        _haTag = haTag != null && !haTag.isEmpty() ? haTag : null;
+        _loadedAt = loadedAt;
+    }
+
+    void addHostTag(long hostId, String tag) {
+        Integer position = _positions.get(hostId);
+        if (position == null || tag == null) {
+            return;
+        }
+        BitSet hosts = _tags.get(tag);
+        if (hosts == null) {
+            hosts = new BitSet(_hostGuestOSCategories.length);
+            _tags.put(tag, hosts);
+        }
+        hosts.set(position);
+    }
+
+    void setHostGuestOSCategory(long hostId, String category) {
+        Integer position = _positions.get(hostId);
+        if (position != null) {
+            _hostGuestOSCategories[position] = category;
+        }
+    }
+
+    void setCpuOvercommitRatio(long clusterId, float ratio) {
+        _cpuOvercommitRatios.put(clusterId, ratio);
+    }
+
+    void setMemoryOvercommitRatio(long clusterId, float ratio) {
+        _memoryOvercommitRatios.put(clusterId, ratio);
+    }
+
+    void setGuestOSCategory(long guestOSId, String category) {
+        _guestOSCategories.put(guestOSId, category);
+    }
+
+    public long getLoadedAt() {
+        return _loadedAt;
+    }
+
+    public int size() {
+        return _hostGuestOSCategories.length;
+    }
+
+    public boolean contains(long hostId) {
+        return _positions.containsKey(hostId);
+    }
+
+    public boolean containsAll(Collection<? extends Host> hosts) {
+        for (Host host : hosts) {
+            if (!_positions.containsKey(host.getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the hosts carrying every one of the given tags, null tags being ignored, in the order they were given
+     */
+    public <T extends Host> List<T> listByHostTags(Collection<T> hosts, String... tags) {
+        BitSet matching = null;
+        for (String tag : tags) {
+            if (tag == null) {
+                continue;
+            }
+            BitSet tagged = _tags.get(tag);
+            if (tagged == null) {
+                return new ArrayList<T>();
+            }
+            if (matching == null) {
+                matching = (BitSet)tagged.clone();
+            } else {
+                matching.and(tagged);
+            }
+        }
+        if (matching == null) {
+            return new ArrayList<T>(hosts);
+        }
+        return select(hosts, matching, true);
+    }
+
+    /**
+     * @return the hosts not reserved for HA, in the order they were given. A host is reserved for HA when the
+     *         HA tag is its only tag.
+     */
+    public <T extends Host> List<T> listNonHAHosts(Collection<T> hosts) {
+        BitSet haHosts = getHAHosts();
+        if (haHosts == null) {
+            return new ArrayList<T>(hosts);
+        }
+        return select(hosts, haHosts, false);
+    }
+
+    public boolean isHAHost(long hostId) {
+        BitSet haHosts = getHAHosts();
+        Integer position = _positions.get(hostId);
+        return haHosts != null && position != null && haHosts.get(position);
+    }
+
+    /**
+     * @return the name of the guest OS category the host is set up for, null if there is none
+     */
+    public String getHostGuestOSCategory(long hostId) {
+        Integer position = _positions.get(hostId);
+        return position != null ? _hostGuestOSCategories[position] : null;
+    }
+
+    /**
+     * @return the name of the category of the guest OS, null if the guest OS is unknown
+     */
+    public String getGuestOSCategory(long guestOSId) {
+        return _guestOSCategories.get(guestOSId);
+    }
+
+    /**
+     * @return the cpu overcommit ratio of the cluster, null if the cluster is unknown
+     */
+    public Float getCpuOvercommitRatio(long clusterId) {
+        return _cpuOvercommitRatios.get(clusterId);
+    }
+
+    /**
+     * @return the memory overcommit ratio of the cluster, null if the cluster is unknown
+     */
+    public Float getMemoryOvercommitRatio(long clusterId) {
+        return _memoryOvercommitRatios.get(clusterId);
+    }
+
+    private BitSet getHAHosts() {
+        if (_haTag == null || !_tags.containsKey(_haTag)) {
+            return null;
+        }
+        BitSet haHosts = _haHosts;
+        if (haHosts == null) {
+            // hosts with another tag besides the HA tag remain available to regular deployments
+            haHosts = (BitSet)_tags.get(_haTag).clone();
+            for (Map.Entry<String, BitSet> entry : _tags.entrySet()) {
+                if (!entry.getKey().equals(_haTag)) {
+                    haHosts.andNot(entry.getValue());
+                }
+            }
+            _haHosts = haHosts;
+        }
+        return haHosts;
+    }
+
+    private <T extends Host> List<T> select(Collection<T> hosts, BitSet positions, boolean included) {
+        List<T> selected = new ArrayList<T>(hosts.size());
+        for (T host : hosts) {
+            Integer position = _positions.get(host.getId());
+            if (position != null && positions.get(position) == included) {
+                selected.add(host);
+            }
+        }
+        return selected;
+    }
+}
@@ -237,6 +237,8 @@ public class ResourceManagerImpl extends ManagerBase implements ResourceManager,
     protected ConfigurationManager _configMgr;
     @Inject
     protected ClusterVSMMapDao _clusterVSMMapDao;
+    @Inject
+    protected HostAttributeCache _hostAttributeCache;
 
     protected long _nodeId = ManagementServerNode.getManagementServerId();
 
@@ -747,6 +749,7 @@ public class ResourceManagerImpl extends ManagerBase implements ResourceManager,
                                         s_logger.trace("Adding Host Tags for KVM host, tags:  :" + hostTags);
                                     }
                                     _hostTagsDao.persist(host.getId(), hostTags);
+                                    _hostAttributeCache.attributesChanged();
                                 }
                                 hosts.add(host);
                                 return hosts;
@@ -1305,6 +1308,10 @@ public class ResourceManagerImpl extends ManagerBase implements ResourceManager,
             _hostTagsDao.persist(hostId, hostTags);
         }
 
+        if (guestOSCategoryId != null || hostTags != null) {
+            _hostAttributeCache.attributesChanged();
+        }
+
         String url = cmd.getUrl();
         if (url != null) {
             _storageMgr.updateSecondaryStorage(cmd.getId(), cmd.getUrl());
@@ -0,0 +1,382 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.configuration.Resource;
+import com.cloud.configuration.Resource.ResourceOwnerType;
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceReservation;
+
+/**
+ * In-memory resource counts of accounts and domains, with reservations.
+ *
+ * A counter holds the count last read from resource_count, the changes made
+ * here that are not written back yet, and the amount currently reserved.
+ * Limits are checked against the three, one counter at a time, so that
+ * allocations in sibling accounts never wait on the row of their common
+ * parent domain. Changes are written back to resource_count periodically as
+ * deltas, and counters are re-read from the database after the refresh
+ * interval, which is how changes made by other management servers are
+ * picked up.
+ *
+ * Limits are enforced per management server: reservations are not shared
+ * across the cluster, so until the next refresh each management server only
+ * sees the allocations of the others that were already written back, and a
+ * limit can be exceeded by up to what the other management servers
+ * allocated in one refresh interval.
+ *
+ * Counters are never evicted: there is one per account, domain and resource
+ * type used since the management server started, a few dozen bytes each.
+ */
+public class ResourceCounters {
+    private static final Logger s_logger = Logger.getLogger(ResourceCounters.class);
+
+    public interface Store {
+        long loadCount(ResourceOwnerType ownerType, long ownerId, ResourceType type);
+
+        /**
+         * @return the limit of the owner, Resource.RESOURCE_UNLIMITED if there is none
+         */
+        long loadLimit(ResourceOwnerType ownerType, long ownerId, ResourceType type);
+
+        /**
+         * Adds delta to the count stored in the database.
+         */
+        boolean flush(ResourceOwnerType ownerType, long ownerId, ResourceType type, long delta);
+    }
+
+    static final class Key {
+        final ResourceOwnerType ownerType;
+        final long ownerId;
+        final ResourceType type;
+
+        Key(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            this.ownerType = ownerType;
+            this.ownerId = ownerId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return ownerType == other.ownerType && ownerId == other.ownerId && type == other.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(ownerId ^ (ownerId >>> 32)) * 31 * 31 + ownerType.hashCode() * 31 + type.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ownerType.getName() + " id=" + ownerId + " " + type;
+        }
+    }
+
+    static final class Counter {
+        final Key key;
+        long persisted;
+        long pending;
+        long flushing;
+        long reserved;
+        long limit = Resource.RESOURCE_UNLIMITED;
+        long loadedAt;
+        long flushes;
+
+        Counter(Key key) {
+            this.key = key;
+        }
+
+        long getCount() {
+            return persisted + flushing + pending;
+        }
+    }
+
+    public static class Reservation implements ResourceReservation {
+        private final long _accountId;
+        private final ResourceType _type;
+        private final long _amount;
+        private final List<Counter> _counters;
+        private Key _denied;
+        private boolean _done;
+
+        Reservation(long accountId, ResourceType type, long amount, List<Counter> counters) {
+            _accountId = accountId;
+            _type = type;
+            _amount = amount;
+            _counters = counters;
+        }
+
+        @Override
+        public long getAccountId() {
+            return _accountId;
+        }
+
+        @Override
+        public ResourceType getResourceType() {
+            return _type;
+        }
+
+        @Override
+        public long getAmount() {
+            return _amount;
+        }
+
+        /**
+         * @return false for reservations taken while resources are counted in the database
+         */
+        public boolean isInMemory() {
+            return _counters != null;
+        }
+
+        public boolean isGranted() {
+            return _denied == null;
+        }
+
+        public ResourceOwnerType getDeniedOwnerType() {
+            return _denied == null ? null : _denied.ownerType;
+        }
+
+        public Long getDeniedOwnerId() {
+            return _denied == null ? null : _denied.ownerId;
+        }
+
+        /**
+         * @return true the first time it is called, false afterwards
+         */
+        synchronized boolean finish() {
+            if (_done) {
+                return false;
+            }
+            _done = true;
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Counter> _counters = new ConcurrentHashMap<Key, Counter>();
+    private final Store _store;
+    private final long _refreshInterval;
+
+    public ResourceCounters(Store store, long refreshInterval) {
+        _store = store;
+        _refreshInterval = refreshInterval;
+    }
+
+    private Counter getCounter(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+        Key key = new Key(ownerType, ownerId, type);
+        Counter counter = _counters.get(key);
+        if (counter == null) {
+            counter = new Counter(key);
+            Counter existing = _counters.putIfAbsent(key, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        refresh(counter);
+        return counter;
+    }
+
+    private void refresh(Counter counter) {
+        long flushes;
+        synchronized (counter) {
+            if (counter.loadedAt != 0 && System.currentTimeMillis() - counter.loadedAt < _refreshInterval) {
+                return;
+            }
+            flushes = counter.flushes;
+        }
+        Key key = counter.key;
+        long count = _store.loadCount(key.ownerType, key.ownerId, key.type);
+        long limit = _store.loadLimit(key.ownerType, key.ownerId, key.type);
+        synchronized (counter) {
+            counter.limit = limit;
+            // a count read while a delta was being written may or may not include it
+            if (counter.flushing == 0 && counter.flushes == flushes) {
+                counter.persisted = count;
+                counter.loadedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private List<Counter> getChain(long accountId, List<Long> domainIds, ResourceType type) {
+        List<Counter> chain = new ArrayList<Counter>(domainIds.size() + 1);
+        if (type.supportsOwner(ResourceOwnerType.Account)) {
+            chain.add(getCounter(ResourceOwnerType.Account, accountId, type));
+        }
+        if (type.supportsOwner(ResourceOwnerType.Domain)) {
+            for (Long domainId : domainIds) {
+                chain.add(getCounter(ResourceOwnerType.Domain, domainId, type));
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Reserves amount on the account and each of its domains. Counters are taken one at a time and given back
+     * if a later one is over its limit, so no lock is ever held on more than one counter.
+     *
+     * @param domainIds the domain of the account and all its parents
+     * @param enforceLimits false to reserve without looking at the limits
+     * @return the reservation, check isGranted() to find out whether a limit denied it
+     */
+    public Reservation reserve(long accountId, List<Long> domainIds, ResourceType type, long amount, boolean enforceLimits) {
+        List<Counter> chain = getChain(accountId, domainIds, type);
+        Reservation reservation = new Reservation(accountId, type, amount, chain);
+        int reserved = 0;
+        for (Counter counter : chain) {
+            synchronized (counter) {
+                if (enforceLimits && counter.limit != Resource.RESOURCE_UNLIMITED && counter.getCount() + counter.reserved + amount > counter.limit) {
+                    reservation._denied = counter.key;
+                    break;
+                }
+                counter.reserved += amount;
+            }
+            reserved++;
+        }
+        if (reservation._denied != null) {
+            for (Counter counter : chain.subList(0, reserved)) {
+                synchronized (counter) {
+                    counter.reserved -= amount;
+                }
+            }
+            reservation.finish();
+        }
+        return reservation;
+    }
+
+    public void commit(Reservation reservation) {
+        if (!reservation.finish()) {
+            return;
+        }
+        for (Counter counter : reservation._counters) {
+            synchronized (counter) {
+                counter.reserved -= reservation._amount;
+                counter.pending += reservation._amount;
+            }
+        }
+    }
+
+    public void release(Reservation reservation) {
+        if (!reservation.finish()) {
+            return;
+        }
+        for (Counter counter : reservation._counters) {
+            synchronized (counter) {
+                counter.reserved -= reservation._amount;
+            }
+        }
+    }
+
+    /**
+     * Changes the count of the account and its domains without a reservation.
+     */
+    public void add(long accountId, List<Long> domainIds, ResourceType type, long delta) {
+        for (Counter counter : getChain(accountId, domainIds, type)) {
+            synchronized (counter) {
+                counter.pending += delta;
+            }
+        }
+    }
+
+    public long getCount(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+        Counter counter = getCounter(ownerType, ownerId, type);
+        synchronized (counter) {
+            return counter.getCount();
+        }
+    }
+
+    public long getReserved(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+        Counter counter = getCounter(ownerType, ownerId, type);
+        synchronized (counter) {
+            return counter.reserved;
+        }
+    }
+
+    /**
+     * Writes the changes of every counter back to the database.
+     * @return the number of counters written
+     */
+    public synchronized int flush() {
+        int flushed = 0;
+        for (Counter counter : new ArrayList<Counter>(_counters.values())) {
+            long delta;
+            synchronized (counter) {
+                delta = counter.pending;
+                if (delta == 0) {
+                    continue;
+                }
+                counter.pending = 0;
+                counter.flushing += delta;
+            }
+            Key key = counter.key;
+            boolean result = false;
+            try {
+                result = _store.flush(key.ownerType, key.ownerId, key.type, delta);
+            } catch (Exception e) {
+                s_logger.warn("Unable to write resource count of " + key, e);
+            }
+            synchronized (counter) {
+                counter.flushing -= delta;
+                if (result) {
+                    counter.persisted += delta;
+                    counter.flushes++;
+                    flushed++;
+                } else {
+                    counter.pending += delta;
+                }
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * Makes the counter read its count again from the database on next use, dropping the changes not written
+     * back yet. Used once a count was recalculated, the recalculated count being the reference.
+     */
+    public void reset(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+        Counter counter = _counters.get(new Key(ownerType, ownerId, type));
+        if (counter != null) {
+            synchronized (counter) {
+                counter.pending = 0;
+                counter.loadedAt = 0;
+            }
+        }
+    }
+
+    /**
+     * Makes every counter read its limit and count again on next use.
+     */
+    public void invalidate() {
+        for (Counter counter : _counters.values()) {
+            synchronized (counter) {
+                counter.loadedAt = 0;
+            }
+        }
+    }
+
+    public int size() {
+        return _counters.size();
+    }
+}
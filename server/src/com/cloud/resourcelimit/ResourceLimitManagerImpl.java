@@ -52,6 +52,7 @@ import com.cloud.configuration.ResourceCount;
 import com.cloud.configuration.ResourceCountVO;
 import com.cloud.configuration.ResourceLimit;
 import com.cloud.configuration.ResourceLimitVO;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.configuration.dao.ResourceCountDao;
 import com.cloud.configuration.dao.ResourceLimitDao;
 import com.cloud.dc.VlanVO;
@@ -100,6 +101,7 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackWithExceptionNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.UserVmVO;
@@ -164,6 +166,9 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
     protected SearchBuilder<ResourceCountVO> ResourceCountSearch;
     ScheduledExecutorService _rcExecutor;
     long _resourceCountCheckInterval = 0;
+    ScheduledExecutorService _rcWriterExecutor;
+    long _resourceCountWriteBehindInterval = 0;
+    ResourceCounters _counters;
     Map<ResourceType, Long> accountResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
     Map<ResourceType, Long> projectResourceLimitMap = new EnumMap<ResourceType, Long>(ResourceType.class);
 
@@ -172,11 +177,18 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         if (_resourceCountCheckInterval > 0) {
             _rcExecutor.scheduleAtFixedRate(new ResourceCountCheckTask(), _resourceCountCheckInterval, _resourceCountCheckInterval, TimeUnit.SECONDS);
         }
+        if (_counters != null) {
+            _rcWriterExecutor.scheduleWithFixedDelay(new ResourceCountWriteTask(), _resourceCountWriteBehindInterval, _resourceCountWriteBehindInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        if (_counters != null) {
+            _rcWriterExecutor.shutdown();
+            _counters.flush();
+        }
         return true;
     }
 
@@ -212,6 +224,12 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             _rcExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountChecker"));
         }
 
+        _resourceCountWriteBehindInterval = NumbersUtil.parseInt(_configDao.getValue(Config.ResourceCountWriteBehindInterval.key()), 0);
+        if (_resourceCountWriteBehindInterval > 0) {
+            _counters = new ResourceCounters(new ResourceCountStore(), _resourceCountWriteBehindInterval * 1000);
+            _rcWriterExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ResourceCountWriter"));
+        }
+
         try {
             projectResourceLimitMap.put(Resource.ResourceType.public_ip, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectPublicIPs.key())));
             projectResourceLimitMap.put(Resource.ResourceType.snapshot, Long.parseLong(_configDao.getValue(Config.DefaultMaxProjectSnapshots.key())));
@@ -254,6 +272,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
         long numToIncrement = (delta.length == 0) ? 1 : delta[0].longValue();
 
+        if (_counters != null) {
+            addOnCommit(accountId, type, numToIncrement);
+            return;
+        }
+
         if (!updateResourceCountForAccount(accountId, type, true, numToIncrement)) {
             // we should fail the operation (resource creation) when failed to update the resource count
             throw new CloudRuntimeException("Failed to increment resource count of type " + type + " for account id=" + accountId);
@@ -269,6 +292,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         }
         long numToDecrement = (delta.length == 0) ? 1 : delta[0].longValue();
 
+        if (_counters != null) {
+            addOnCommit(accountId, type, -numToDecrement);
+            return;
+        }
+
         if (!updateResourceCountForAccount(accountId, type, false, numToDecrement)) {
             _alertMgr.sendAlert(AlertManager.AlertType.ALERT_TYPE_UPDATE_RESOURCE_COUNT, 0L, 0L, "Failed to decrement resource count of type " + type + " for account id=" + accountId,
                     "Failed to decrement resource count of type " + type + " for account id=" + accountId + "; use updateResourceCount API to recalculate/fix the problem");
@@ -398,6 +426,15 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             project = _projectDao.findByProjectAccountId(account.getId());
         }
 
+        if (_counters != null) {
+            ResourceCounters.Reservation reservation = _counters.reserve(account.getId(), getDomainChain(account.getId()), type, numResources, true);
+            if (!reservation.isGranted()) {
+                throwLimitExceeded(account, project, reservation, type);
+            }
+            _counters.release(reservation);
+            return;
+        }
+
         final Project projectFinal = project;
         Transaction.execute(new TransactionCallbackWithExceptionNoReturn<ResourceAllocationException>() {
             @Override
@@ -679,6 +716,10 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             throw new InvalidParameterValueException("AccountId or domainId have to be specified in order to update resource limit");
         }
 
+        if (_counters != null) {
+            _counters.invalidate();
+        }
+
         ResourceLimitVO limit = _resourceLimitDao.findByOwnerIdAndType(ownerId, ownerType, resourceType);
         if (limit != null) {
             // Update the existing limit
@@ -721,6 +762,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             resourceTypes = Arrays.asList(Resource.ResourceType.values());
         }
 
+        if (_counters != null) {
+            // the recalculated counts replace the in-memory ones, write pending changes first
+            _counters.flush();
+        }
+
         for (ResourceType type : resourceTypes) {
             if (accountId != null) {
                 if (type.supportsOwner(ResourceOwnerType.Account)) {
@@ -771,7 +817,7 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
     @DB
     protected long recalculateDomainResourceCount(final long domainId, final ResourceType type) {
-        return Transaction.execute(new TransactionCallback<Long>() {
+        long newCount = Transaction.execute(new TransactionCallback<Long>() {
             @Override
             public Long doInTransaction(TransactionStatus status) {
                 long newCount = 0;
@@ -817,6 +863,11 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                 return newCount;
             }
         });
+
+        if (_counters != null) {
+            _counters.reset(ResourceOwnerType.Domain, domainId, type);
+        }
+        return newCount;
     }
 
     @DB
@@ -878,6 +929,9 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             }
         });
 
+        if (_counters != null) {
+            _counters.reset(ResourceOwnerType.Account, accountId, type);
+        }
         return (newCount == null) ? 0 : newCount.longValue();
     }
 
@@ -968,9 +1022,150 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
 
     @Override
     public long getResourceCount(Account account, ResourceType type) {
+        if (_counters != null) {
+            return _counters.getCount(ResourceOwnerType.Account, account.getId(), type);
+        }
         return _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type);
     }
 
+    @Override
+    public ResourceReservation reserveResource(Account account, ResourceType type, long amount) throws ResourceAllocationException {
+        if (_counters == null) {
+            checkResourceLimit(account, type, amount);
+            return new ResourceCounters.Reservation(account.getId(), type, amount, null);
+        }
+
+        ResourceCounters.Reservation reservation = _counters.reserve(account.getId(), getDomainChain(account.getId()), type, amount,
+                !_accountMgr.isRootAdmin(account.getType()));
+        if (!reservation.isGranted()) {
+            Project project = null;
+            if (account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
+                project = _projectDao.findByProjectAccountId(account.getId());
+            }
+            throwLimitExceeded(account, project, reservation, type);
+        }
+        return reservation;
+    }
+
+    @Override
+    public void commitReservation(ResourceReservation reservation) {
+        final ResourceCounters.Reservation counted = (ResourceCounters.Reservation)reservation;
+        if (!counted.isInMemory()) {
+            incrementResourceCount(counted.getAccountId(), counted.getResourceType(), counted.getAmount());
+        } else if (counted.getAccountId() != Account.ACCOUNT_ID_SYSTEM) {
+            // don't count resources of the system account, releaseReservation gives them back
+            TransactionLegacy.currentTxn().afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    _counters.commit(counted);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void releaseReservation(ResourceReservation reservation) {
+        final ResourceCounters.Reservation counted = (ResourceCounters.Reservation)reservation;
+        if (counted != null && counted.isInMemory()) {
+            // once the transaction is over, a reservation committed in it is counted and cannot be released anymore
+            TransactionLegacy.currentTxn().afterCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    _counters.release(counted);
+                }
+            });
+        }
+    }
+
+    /**
+     * Changes the in-memory counts once the current transaction commits, so that a rolled back allocation
+     * is never counted.
+     */
+    private void addOnCommit(final long accountId, final ResourceType type, final long delta) {
+        final List<Long> domainIds = getDomainChain(accountId);
+        TransactionLegacy.currentTxn().afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _counters.add(accountId, domainIds, type, delta);
+            }
+        });
+    }
+
+    private void throwLimitExceeded(Account account, Project project, ResourceCounters.Reservation reservation, ResourceType type) throws ResourceAllocationException {
+        if (reservation.getDeniedOwnerType() == ResourceOwnerType.Domain) {
+            throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + reservation.getDeniedOwnerId() + " has been exceeded.", type);
+        }
+        if (project != null) {
+            throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for project name=" + project.getName()
+                    + " in domain id=" + account.getDomainId() + " has been exceeded.", type);
+        }
+        throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for account name=" + account.getAccountName()
+                + " in domain id=" + account.getDomainId() + " has been exceeded.", type);
+    }
+
+    /**
+     * @return the domain of the account and all its parent domains
+     */
+    private List<Long> getDomainChain(long accountId) {
+        long domainId = _accountDao.findByIdIncludingRemoved(accountId).getDomainId();
+        List<Long> domainIds = _domainDao.getDomainTree().getAncestorIds(domainId);
+        if (domainIds == null) {
+            domainIds = new ArrayList<Long>(_domainDao.getDomainParentIds(domainId));
+        }
+        return domainIds;
+    }
+
+    protected class ResourceCountStore implements ResourceCounters.Store {
+        @Override
+        public long loadCount(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            return _resourceCountDao.getResourceCount(ownerId, ownerType, type);
+        }
+
+        @Override
+        public long loadLimit(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            if (ownerType == ResourceOwnerType.Account) {
+                Account account = _accountDao.findByIdIncludingRemoved(ownerId);
+                return account == null ? Resource.RESOURCE_UNLIMITED : findCorrectResourceLimitForAccount(account, type);
+            }
+            // no limit check if it is ROOT domain
+            if (ownerId == Domain.ROOT_DOMAIN) {
+                return Resource.RESOURCE_UNLIMITED;
+            }
+            ResourceLimitVO limit = _resourceLimitDao.findByOwnerIdAndType(ownerId, ResourceOwnerType.Domain, type);
+            return (limit == null || limit.getMax() == null) ? Resource.RESOURCE_UNLIMITED : limit.getMax().longValue();
+        }
+
+        @Override
+        public boolean flush(final ResourceOwnerType ownerType, final long ownerId, final ResourceType type, final long delta) {
+            return Transaction.execute(new TransactionCallback<Boolean>() {
+                @Override
+                public Boolean doInTransaction(TransactionStatus status) {
+                    ResourceCountVO row = _resourceCountDao.findByOwnerAndType(ownerId, ownerType, type);
+                    if (row == null) {
+                        // the owner is gone
+                        return true;
+                    }
+                    _resourceCountDao.lockRow(row.getId(), true);
+                    return _resourceCountDao.updateById(row.getId(), delta > 0, Math.abs(delta));
+                }
+            });
+        }
+    }
+
+    protected class ResourceCountWriteTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                int flushed = _counters.flush();
+                if (flushed > 0 && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Wrote " + flushed + " resource counts back to the database");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to write resource counts back to the database", e);
+            }
+        }
+    }
+
     protected class ResourceCountCheckTask extends ManagedContextRunnable {
         public ResourceCountCheckTask() {
 
@@ -979,6 +1174,9 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
         @Override
         protected void runInContext() {
             s_logger.info("Running resource count check periodic task");
+            if (_counters != null) {
+                _counters.flush();
+            }
             List<DomainVO> domains = _domainDao.findImmediateChildrenForParent(DomainVO.ROOT_DOMAIN);
 
             // recalculateDomainResourceCount will take care of re-calculation of resource counts for sub-domains
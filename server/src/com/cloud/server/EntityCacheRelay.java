@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateMessageCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCache;
+
+/**
+ * Passes the rows dropped from the entity caches of GenericDaoBase on to the
+ * other management servers. The rows dropped by the transactions over in the
+ * last moment go out together in one PropagateMessageCommand, which the
+ * other management servers relay to their message bus.
+ *
+ * Rows that could not be sent are sent again with the next message; past
+ * MAX_PENDING of them only the tables are sent, and the peers drop all their
+ * rows. Each message is numbered, and a management server receiving a
+ * message out of sequence drops all the rows of its caches, since the
+ * message in between was lost on its way.
+ */
+public class EntityCacheRelay extends ManagerBase implements EntityCache.ClusterListener {
+    private static final Logger s_logger = Logger.getLogger(EntityCacheRelay.class);
+
+    public static final String ENTITY_CACHE_SUBJECT = "entity.cache.invalidated";
+
+    private static final long PUBLISH_INTERVAL_MS = 50;
+
+    // beyond that many rows waiting to be sent, their tables are sent instead
+    static final int MAX_PENDING = 10000;
+
+    @Inject
+    ClusterManager _clusterMgr;
+    @Inject
+    MessageBus _messageBus;
+
+    private final LinkedBlockingQueue<String> _pending = new LinkedBlockingQueue<String>();
+    private ScheduledExecutorService _executor;
+    // rows not sent yet because the last broadcast failed, only used by the publishing thread
+    private Set<String> _unsent = new LinkedHashSet<String>();
+    private long _sequence;
+    // last message received from each management server
+    private final Map<Long, Long> _received = new ConcurrentHashMap<Long, Long>();
+
+    @Override
+    public boolean start() {
+        _messageBus.subscribe(ENTITY_CACHE_SUBJECT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                receive((String)args);
+            }
+        });
+
+        _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("EntityCacheRelay"));
+        _executor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                publishPending();
+            }
+        }, PUBLISH_INTERVAL_MS, PUBLISH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        EntityCache.setClusterListener(this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        EntityCache.setClusterListener(null);
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        return true;
+    }
+
+    @Override
+    public void invalidated(String table, String id) {
+        _pending.offer(id == null ? table : table + ":" + id);
+    }
+
+    protected void publishPending() {
+        List<String> pending = new ArrayList<String>();
+        _pending.drainTo(pending);
+        if (pending.isEmpty() && _unsent.isEmpty()) {
+            return;
+        }
+
+        Set<String> invalidations = _unsent;
+        invalidations.addAll(pending);
+        _unsent = new LinkedHashSet<String>();
+        if (invalidations.size() > MAX_PENDING) {
+            invalidations = getTables(invalidations);
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append(_clusterMgr.getManagementNodeId()).append(':').append(_sequence + 1);
+        for (String invalidation : invalidations) {
+            message.append('\n').append(invalidation);
+        }
+        try {
+            Command[] cmds = new Command[] { new PropagateMessageCommand(ENTITY_CACHE_SUBJECT, message.toString()) };
+            _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+            _sequence++;
+        } catch (Exception e) {
+            s_logger.warn("Unable to tell the other management servers to drop " + invalidations.size() + " cached rows, trying again", e);
+            _unsent = invalidations;
+        }
+    }
+
+    /**
+     * @return the tables of the rows
+     */
+    static Set<String> getTables(Set<String> invalidations) {
+        Set<String> tables = new LinkedHashSet<String>();
+        for (String invalidation : invalidations) {
+            int separator = invalidation.indexOf(':');
+            tables.add(separator == -1 ? invalidation : invalidation.substring(0, separator));
+        }
+        return tables;
+    }
+
+    /**
+     * Drops the rows of a message from another management server, the sender id and number of the message on the
+     * first line, then one table and id or just a table per line. All the rows are dropped if a message of the
+     * sender was missed.
+     */
+    protected void receive(String message) {
+        if (message == null) {
+            return;
+        }
+        int end = message.indexOf('\n');
+        String header = end == -1 ? message : message.substring(0, end);
+        int separator = header.indexOf(':');
+        long sender = Long.parseLong(header.substring(0, separator));
+        long sequence = Long.parseLong(header.substring(separator + 1));
+
+        Long last = _received.put(sender, sequence);
+        // a sender starting again numbers its messages from 1
+        if (last != null && sequence != last + 1 && sequence != 1) {
+            s_logger.warn("Entity cache message " + sequence + " from management server " + sender + " follows message " + last + ", dropping all cached rows");
+            EntityCache.invalidateAll();
+            return;
+        }
+        if (end != -1) {
+            invalidate(message.substring(end + 1));
+        }
+    }
+
+    /**
+     * Drops the rows of the lines, one table and id or just a table per line.
+     */
+    protected static void invalidate(String message) {
+        for (String invalidation : message.split("\n")) {
+            int separator = invalidation.indexOf(':');
+            if (separator == -1) {
+                EntityCache.invalidate(invalidation, null);
+            } else {
+                EntityCache.invalidate(invalidation.substring(0, separator), invalidation.substring(separator + 1));
+            }
+        }
+    }
+}
@@ -67,6 +67,7 @@ import org.apache.cloudstack.api.command.admin.cluster.UpdateClusterCmd;
 import org.apache.cloudstack.api.command.admin.config.ListCfgsByCmd;
 import org.apache.cloudstack.api.command.admin.config.ListDeploymentPlannersCmd;
 import org.apache.cloudstack.api.command.admin.config.ListHypervisorCapabilitiesCmd;
+import org.apache.cloudstack.api.command.admin.config.ListSqlStatementStatsCmd;
 import org.apache.cloudstack.api.command.admin.config.UpdateCfgCmd;
 import org.apache.cloudstack.api.command.admin.config.UpdateHypervisorCapabilitiesCmd;
 import org.apache.cloudstack.api.command.admin.domain.CreateDomainCmd;
@@ -433,6 +434,8 @@ import org.apache.cloudstack.api.command.user.vpn.RemoveVpnUserCmd;
 import org.apache.cloudstack.api.command.user.vpn.ResetVpnConnectionCmd;
 import org.apache.cloudstack.api.command.user.vpn.UpdateVpnCustomerGatewayCmd;
 import org.apache.cloudstack.api.command.user.zone.ListZonesByCmd;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.SqlStatementStatsResponse;
 import org.apache.cloudstack.config.Configuration;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.VolumeOrchestrationService;
@@ -581,6 +584,8 @@ import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.JoinBuilder.JoinType;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SqlStatistics;
+import com.cloud.utils.db.SqlStatistics.StatementStats;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionStatus;
@@ -2546,6 +2551,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         cmdList.add(UpdateClusterCmd.class);
         cmdList.add(ListCfgsByCmd.class);
         cmdList.add(ListHypervisorCapabilitiesCmd.class);
+        cmdList.add(ListSqlStatementStatsCmd.class);
         cmdList.add(UpdateCfgCmd.class);
         cmdList.add(UpdateHypervisorCapabilitiesCmd.class);
         cmdList.add(CreateDomainCmd.class);
@@ -3795,6 +3801,57 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         return new Pair<List<? extends HypervisorCapabilities>, Integer>(result.first(), result.second());
     }
 
+    @Override
+    public ListResponse<SqlStatementStatsResponse> listSqlStatementStats(ListSqlStatementStatsCmd cmd) {
+        final String sortBy = cmd.getSortBy() != null ? cmd.getSortBy().toLowerCase() : "totaltime";
+        if (!Arrays.asList("totaltime", "count", "maxtime", "rows", "errors").contains(sortBy)) {
+            throw new InvalidParameterValueException("Unable to sort by " + cmd.getSortBy() + ", available values are totaltime, count, maxtime, rows and errors");
+        }
+
+        List<StatementStats> statements = new ArrayList<StatementStats>();
+        for (StatementStats stats : SqlStatistics.getStatements()) {
+            if (cmd.getKeyword() == null || stats.getSql().toLowerCase().contains(cmd.getKeyword().toLowerCase())) {
+                statements.add(stats);
+            }
+        }
+        if (!sortBy.equals("totaltime")) {
+            Collections.sort(statements, new Comparator<StatementStats>() {
+                @Override
+                public int compare(StatementStats s1, StatementStats s2) {
+                    long v1 = sortBy.equals("count") ? s1.getCount() : sortBy.equals("maxtime") ? s1.getMaxMillis() : sortBy.equals("rows") ? s1.getRows() : s1.getErrors();
+                    long v2 = sortBy.equals("count") ? s2.getCount() : sortBy.equals("maxtime") ? s2.getMaxMillis() : sortBy.equals("rows") ? s2.getRows() : s2.getErrors();
+                    return v1 < v2 ? 1 : v1 > v2 ? -1 : 0;
+                }
+            });
+        }
+
+        int count = statements.size();
+        if (cmd.getPageSizeVal() != null) {
+            int start = (int)Math.min(cmd.getStartIndex(), count);
+            int end = (int)Math.min(start + cmd.getPageSizeVal(), count);
+            statements = statements.subList(start, end);
+        }
+
+        List<SqlStatementStatsResponse> statementResponses = new ArrayList<SqlStatementStatsResponse>();
+        for (StatementStats stats : statements) {
+            SqlStatementStatsResponse statementResponse = new SqlStatementStatsResponse();
+            statementResponse.setSql(stats.getSql());
+            statementResponse.setCount(stats.getCount());
+            statementResponse.setErrors(stats.getErrors());
+            statementResponse.setTotalTime(stats.getTotalMillis());
+            statementResponse.setAverageTime(stats.getAverageMillis());
+            statementResponse.setMaxTime(stats.getMaxMillis());
+            statementResponse.setRows(stats.getRows());
+            statementResponse.setHistogram(Arrays.toString(stats.getHistogram()));
+            statementResponse.setCallers(stats.getCallers().toString());
+            statementResponse.setObjectName("sqlstatement");
+            statementResponses.add(statementResponse);
+        }
+        ListResponse<SqlStatementStatsResponse> response = new ListResponse<SqlStatementStatsResponse>();
+        response.setResponses(statementResponses, count);
+        return response;
+    }
+
     @Override
     public HypervisorCapabilities updateHypervisorCapabilities(Long id, Long maxGuestsLimit, Boolean securityGroupEnabled) {
         HypervisorCapabilitiesVO hpvCapabilities = _hypervisorCapabilitiesDao.findById(id, true);
@@ -86,6 +86,7 @@ import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.vm.UserVmManager;
@@ -236,6 +237,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	class HostCollector extends ManagedContextRunnable {
 		@Override
         protected void runInContext() {
+			TransactionLegacy.beginReadOnly();
 			try {
 				s_logger.debug("HostStatsCollector is running...");
 
@@ -272,6 +274,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 			catch (Throwable t)
 			{
 				s_logger.error("Error trying to retrieve host stats", t);
+			} finally {
+				TransactionLegacy.endReadOnly();
 			}
 		}
 	}
@@ -279,6 +283,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	class VmStatsCollector extends ManagedContextRunnable {
 		@Override
         protected void runInContext() {
+			TransactionLegacy.beginReadOnly();
 			try {
 				s_logger.debug("VmStatsCollector is running...");
 
@@ -345,6 +350,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
+			} finally {
+				TransactionLegacy.endReadOnly();
 			}
 		}
 	}
@@ -528,6 +535,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 	class StorageCollector extends ManagedContextRunnable {
 		@Override
         protected void runInContext() {
+			TransactionLegacy.beginReadOnly();
 			try {
 	            if (s_logger.isDebugEnabled()) {
 	            	s_logger.debug("StorageCollector is running...");
@@ -584,6 +592,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 _storagePoolStats = storagePoolStats;
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve storage stats", t);
+			} finally {
+				TransactionLegacy.endReadOnly();
 			}
 		}
 	}
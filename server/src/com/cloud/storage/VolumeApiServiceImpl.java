@@ -87,6 +87,7 @@ import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.consoleproxy.ConsoleProxyManager;
 import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenter;
@@ -489,9 +490,6 @@ public class VolumeApiServiceImpl extends ManagerBase implements VolumeApiServic
         // permission check
         _accountMgr.checkAccess(caller, null, true, _accountMgr.getActiveAccountById(ownerId));
 
-        // Check that the resource limit for volumes won't be exceeded
-        _resourceLimitMgr.checkResourceLimit(_accountMgr.getAccount(ownerId), ResourceType.volume);
-
         Long zoneId = cmd.getZoneId();
         Long diskOfferingId = null;
         DiskOfferingVO diskOffering = null;
@@ -637,9 +635,6 @@ public class VolumeApiServiceImpl extends ManagerBase implements VolumeApiServic
             }
         }
 
-        // Check that the resource limit for primary storage won't be exceeded
-        _resourceLimitMgr.checkResourceLimit(_accountMgr.getAccount(ownerId), ResourceType.primary_storage, new Long(size));
-
         // Verify that zone exists
         DataCenterVO zone = _dcDao.findById(zoneId);
         if (zone == null) {
@@ -662,15 +657,23 @@ public class VolumeApiServiceImpl extends ManagerBase implements VolumeApiServic
             userSpecifiedName = getRandomVolumeName();
         }
 
-        VolumeVO volume = commitVolume(cmd, caller, ownerId, displayVolumeEnabled, zoneId, diskOfferingId, size,
-                minIops, maxIops, parentVolume, userSpecifiedName);
-
-        return volume;
+        // Set the volume and its primary storage aside so that concurrent allocations cannot exceed the limits
+        Account owner = _accountMgr.getAccount(ownerId);
+        ResourceReservation volumeReservation = _resourceLimitMgr.reserveResource(owner, ResourceType.volume, 1);
+        ResourceReservation storageReservation = null;
+        try {
+            storageReservation = _resourceLimitMgr.reserveResource(owner, ResourceType.primary_storage, size);
+            return commitVolume(cmd, caller, ownerId, displayVolumeEnabled, zoneId, diskOfferingId, size,
+                    minIops, maxIops, parentVolume, userSpecifiedName, volumeReservation, storageReservation);
+        } finally {
+            _resourceLimitMgr.releaseReservation(volumeReservation);
+            _resourceLimitMgr.releaseReservation(storageReservation);
+        }
     }
 
     private VolumeVO commitVolume(final CreateVolumeCmd cmd, final Account caller, final long ownerId, final Boolean displayVolumeEnabled,
             final Long zoneId, final Long diskOfferingId, final Long size, final Long minIops, final Long maxIops, final VolumeVO parentVolume,
-            final String userSpecifiedName) {
+            final String userSpecifiedName, final ResourceReservation volumeReservation, final ResourceReservation storageReservation) {
         return Transaction.execute(new TransactionCallback<VolumeVO>() {
             @Override
             public VolumeVO doInTransaction(TransactionStatus status) {
@@ -706,8 +709,8 @@ public class VolumeApiServiceImpl extends ManagerBase implements VolumeApiServic
 
         // Increment resource count during allocation; if actual creation fails,
         // decrement it
-        _resourceLimitMgr.incrementResourceCount(volume.getAccountId(), ResourceType.volume);
-        _resourceLimitMgr.incrementResourceCount(volume.getAccountId(), ResourceType.primary_storage, new Long(volume.getSize()));
+        _resourceLimitMgr.commitReservation(volumeReservation);
+        _resourceLimitMgr.commitReservation(storageReservation);
         return volume;
     }
         });
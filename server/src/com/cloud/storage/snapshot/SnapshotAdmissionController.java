@@ -0,0 +1,206 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.DateUtil.IntervalType;
+
+/**
+ * Decides which of the due snapshot schedules may start now. At most
+ * maxPerPool snapshots run against one primary storage pool and at most
+ * maxPerZone are backed up to the secondary storage of one zone at a time,
+ * counting those already running. Due schedules are admitted by policy type,
+ * hourly first since they have the least slack before the next run, then
+ * oldest first. Whatever is not admitted stays due and is offered again on
+ * the next poll.
+ *
+ * Also keeps, per primary storage pool, how many schedules had to wait at
+ * the last poll and how long the admitted ones had been waiting.
+ */
+public class SnapshotAdmissionController {
+    private final int _maxPerPool;
+    private final int _maxPerZone;
+    private final Map<Long, PoolStats> _poolStats = new HashMap<Long, PoolStats>();
+
+    public static class Candidate {
+        private final long _scheduleId;
+        private final long _poolId;
+        private final long _zoneId;
+        private final IntervalType _intervalType;
+        private final Date _scheduledAt;
+
+        public Candidate(long scheduleId, long poolId, long zoneId, IntervalType intervalType, Date scheduledAt) {
+            _scheduleId = scheduleId;
+            _poolId = poolId;
+            _zoneId = zoneId;
+            _intervalType = intervalType;
+            _scheduledAt = scheduledAt;
+        }
+
+        public long getScheduleId() {
+            return _scheduleId;
+        }
+
+        public long getPoolId() {
+            return _poolId;
+        }
+
+        public long getZoneId() {
+            return _zoneId;
+        }
+
+        public IntervalType getIntervalType() {
+            return _intervalType;
+        }
+
+        public Date getScheduledAt() {
+            return _scheduledAt;
+        }
+
+        @Override
+        public String toString() {
+            return "schedule " + _scheduleId + " (" + _intervalType + ", pool " + _poolId + ")";
+        }
+    }
+
+    public static class PoolStats {
+        private int _queueDepth;
+        private long _admitted;
+        private long _totalWaitMs;
+        private long _maxWaitMs;
+
+        /**
+         * @return the number of due schedules left waiting for the pool at the last poll
+         */
+        public int getQueueDepth() {
+            return _queueDepth;
+        }
+
+        public long getAdmitted() {
+            return _admitted;
+        }
+
+        public long getAverageWaitMs() {
+            return _admitted > 0 ? _totalWaitMs / _admitted : 0;
+        }
+
+        public long getMaxWaitMs() {
+            return _maxWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return "queue depth " + _queueDepth + ", admitted " + _admitted + ", avg wait " + getAverageWaitMs() + "ms, max wait " + _maxWaitMs + "ms";
+        }
+    }
+
+    private static final Comparator<Candidate> PRIORITY = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            int rank1 = c1.getIntervalType() != null ? c1.getIntervalType().ordinal() : Integer.MAX_VALUE;
+            int rank2 = c2.getIntervalType() != null ? c2.getIntervalType().ordinal() : Integer.MAX_VALUE;
+            if (rank1 != rank2) {
+                return rank1 < rank2 ? -1 : 1;
+            }
+            return c1.getScheduledAt().compareTo(c2.getScheduledAt());
+        }
+    };
+
+    /**
+     * @param maxPerPool maximum number of snapshots running against one primary storage pool, 0 for no limit
+     * @param maxPerZone maximum number of snapshots backed up to the secondary storage of one zone, 0 for no limit
+     */
+    public SnapshotAdmissionController(int maxPerPool, int maxPerZone) {
+        _maxPerPool = maxPerPool;
+        _maxPerZone = maxPerZone;
+    }
+
+    /**
+     * @param due the schedules due for execution
+     * @param runningPerPool snapshots already running per primary storage pool
+     * @param runningPerZone snapshots already running per zone
+     * @param now the current time, for the wait time statistics
+     * @return the schedules to start now, in the order they should start
+     */
+    public synchronized List<Candidate> admit(List<Candidate> due, Map<Long, Integer> runningPerPool, Map<Long, Integer> runningPerZone, long now) {
+        List<Candidate> sorted = new ArrayList<Candidate>(due);
+        Collections.sort(sorted, PRIORITY);
+
+        Map<Long, Integer> perPool = new HashMap<Long, Integer>(runningPerPool);
+        Map<Long, Integer> perZone = new HashMap<Long, Integer>(runningPerZone);
+        for (PoolStats stats : _poolStats.values()) {
+            stats._queueDepth = 0;
+        }
+
+        List<Candidate> admitted = new ArrayList<Candidate>();
+        for (Candidate candidate : sorted) {
+            PoolStats stats = getOrCreateStats(candidate.getPoolId());
+            int poolCount = count(perPool, candidate.getPoolId());
+            int zoneCount = count(perZone, candidate.getZoneId());
+            if ((_maxPerPool > 0 && poolCount >= _maxPerPool) || (_maxPerZone > 0 && zoneCount >= _maxPerZone)) {
+                stats._queueDepth++;
+                continue;
+            }
+            perPool.put(candidate.getPoolId(), poolCount + 1);
+            perZone.put(candidate.getZoneId(), zoneCount + 1);
+
+            long waitMs = Math.max(0, now - candidate.getScheduledAt().getTime());
+            stats._admitted++;
+            stats._totalWaitMs += waitMs;
+            stats._maxWaitMs = Math.max(stats._maxWaitMs, waitMs);
+            admitted.add(candidate);
+        }
+        return admitted;
+    }
+
+    /**
+     * @return a copy of the statistics by primary storage pool id
+     */
+    public synchronized Map<Long, PoolStats> getPoolStats() {
+        Map<Long, PoolStats> copy = new HashMap<Long, PoolStats>();
+        for (Map.Entry<Long, PoolStats> entry : _poolStats.entrySet()) {
+            PoolStats stats = new PoolStats();
+            stats._queueDepth = entry.getValue()._queueDepth;
+            stats._admitted = entry.getValue()._admitted;
+            stats._totalWaitMs = entry.getValue()._totalWaitMs;
+            stats._maxWaitMs = entry.getValue()._maxWaitMs;
+            copy.put(entry.getKey(), stats);
+        }
+        return copy;
+    }
+
+    private PoolStats getOrCreateStats(long poolId) {
+        PoolStats stats = _poolStats.get(poolId);
+        if (stats == null) {
+            stats = new PoolStats();
+            _poolStats.put(poolId, stats);
+        }
+        return stats;
+    }
+
+    private static int count(Map<Long, Integer> counts, long id) {
+        Integer count = counts.get(id);
+        return count != null ? count : 0;
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.storage.snapshot;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -23,6 +24,10 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -38,10 +43,12 @@ import org.apache.cloudstack.framework.jobs.AsyncJobDispatcher;
 import org.apache.cloudstack.framework.jobs.AsyncJobManager;
 import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
+import com.cloud.configuration.Config;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventTypes;
 import com.cloud.storage.Snapshot;
@@ -49,6 +56,7 @@ import com.cloud.storage.SnapshotPolicyVO;
 import com.cloud.storage.SnapshotScheduleVO;
 import com.cloud.storage.SnapshotVO;
 import com.cloud.storage.VolumeVO;
+import com.cloud.storage.snapshot.SnapshotAdmissionController.Candidate;
 import com.cloud.storage.dao.SnapshotDao;
 import com.cloud.storage.dao.SnapshotPolicyDao;
 import com.cloud.storage.dao.SnapshotScheduleDao;
@@ -59,6 +67,7 @@ import com.cloud.utils.DateUtil.IntervalType;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.concurrency.TestClock;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GlobalLock;
@@ -86,6 +95,12 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     private Timer      _testClockTimer;
     private Date       _currentTimestamp;
     private TestClock  _testTimerTask;
+
+    private SnapshotAdmissionController _admissionController;
+    private int        _dispatchWindow;
+    private ScheduledExecutorService _dispatchExecutor;
+    // admitted schedules waiting for their turn within the dispatch window, they count as running
+    private final Map<Long, Candidate> _pendingDispatch = new ConcurrentHashMap<Long, Candidate>();
     
     public AsyncJobDispatcher getAsyncJobDispatcher() {
     	return _asyncDispatcher;
@@ -220,61 +235,153 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
         List<SnapshotScheduleVO> snapshotsToBeExecuted = _snapshotScheduleDao.getSchedulesToExecute(_currentTimestamp);
         s_logger.debug("Got " + snapshotsToBeExecuted.size() + " snapshots to be executed at " + displayTime);
 
+        List<Candidate> due = new ArrayList<Candidate>();
         for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
-            SnapshotScheduleVO tmpSnapshotScheduleVO = null;
-            long snapshotScheId = snapshotToBeExecuted.getId();
+            if (_pendingDispatch.containsKey(snapshotToBeExecuted.getId())) {
+                // admitted by an earlier poll, waiting for its turn
+                continue;
+            }
             long policyId = snapshotToBeExecuted.getPolicyId();
             long volumeId = snapshotToBeExecuted.getVolumeId();
             try {
                 VolumeVO volume = _volsDao.findById(volumeId);
-                if ( volume.getPoolId() == null) {
+                if (volume == null || volume.getPoolId() == null) {
                     // this volume is not attached
                     continue;
                 }
-                if ( _snapshotPolicyDao.findById(policyId) == null ) {
+                SnapshotPolicyVO policy = _snapshotPolicyDao.findById(policyId);
+                if (policy == null) {
                     _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
+                    continue;
                 }
-                if (s_logger.isDebugEnabled()) {
-                    Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
-                    displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
-                    s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: "
-                            + snapshotToBeExecuted.getId() + " at " + displayTime);
-                }
+                due.add(new Candidate(snapshotToBeExecuted.getId(), volume.getPoolId(), volume.getDataCenterId(),
+                        DateUtil.getIntervalType(policy.getInterval()), snapshotToBeExecuted.getScheduledTimestamp()));
+            } catch (Exception e) {
+                s_logger.warn("Scheduling snapshot failed due to " + e.toString());
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
 
+        Map<Long, Integer> runningPerPool = new HashMap<Long, Integer>();
+        Map<Long, Integer> runningPerZone = new HashMap<Long, Integer>();
+        countRunningSnapshots(runningPerPool, runningPerZone);
 
+        List<Candidate> admitted = _admissionController.admit(due, runningPerPool, runningPerZone, _currentTimestamp.getTime());
+        if (admitted.size() < due.size()) {
+            s_logger.info("Deferred " + (due.size() - admitted.size()) + " of " + due.size() + " due snapshots to the next poll, per storage pool: "
+                    + _admissionController.getPoolStats());
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Snapshot admission per storage pool: " + _admissionController.getPoolStats());
+        }
+        dispatchSnapshots(admitted);
+    }
 
-                tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
-                Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
-                        EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
+    /**
+     * Counts the snapshots still running, and those admitted but not started yet,
+     * per primary storage pool and per zone.
+     */
+    private void countRunningSnapshots(Map<Long, Integer> perPool, Map<Long, Integer> perZone) {
+        SearchCriteria<SnapshotScheduleVO> sc = _snapshotScheduleDao.createSearchCriteria();
+        sc.addAnd("asyncJobId", SearchCriteria.Op.NNULL);
+        for (SnapshotScheduleVO schedule : _snapshotScheduleDao.search(sc, null)) {
+            VolumeVO volume = _volsDao.findById(schedule.getVolumeId());
+            if (volume != null && volume.getPoolId() != null) {
+                increment(perPool, volume.getPoolId());
+                increment(perZone, volume.getDataCenterId());
+            }
+        }
+        for (Candidate pending : _pendingDispatch.values()) {
+            increment(perPool, pending.getPoolId());
+            increment(perZone, pending.getZoneId());
+        }
+    }
 
-                Map<String, String> params = new HashMap<String, String>();
-                params.put(ApiConstants.VOLUME_ID, "" + volumeId);
-                params.put(ApiConstants.POLICY_ID, "" + policyId);
-                params.put("ctxUserId", "1");
-                params.put("ctxAccountId", "" + volume.getAccountId());
-                params.put("ctxStartEventId", String.valueOf(eventId));
+    private static void increment(Map<Long, Integer> counts, long id) {
+        Integer count = counts.get(id);
+        counts.put(id, count != null ? count + 1 : 1);
+    }
 
-                CreateSnapshotCmd cmd = new CreateSnapshotCmd();
-                ComponentContext.inject(cmd);
-                ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
-                params.put("id", ""+cmd.getEntityId());
-                params.put("ctxStartEventId", "1");
+    /**
+     * Starts the admitted snapshots spread evenly over the dispatch window,
+     * instead of all of them at the top of the hour.
+     */
+    private void dispatchSnapshots(List<Candidate> admitted) {
+        long windowMs = Math.min(_dispatchWindow, _snapshotPollInterval) * 1000L;
+        if (windowMs <= 0 || admitted.size() <= 1 || _dispatchExecutor == null) {
+            for (Candidate candidate : admitted) {
+                dispatchSnapshot(candidate.getScheduleId());
+            }
+            return;
+        }
 
-                AsyncJobVO job = new AsyncJobVO(UUID.randomUUID().toString(), User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
-                        ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
-                        cmd.getInstanceType() != null ? cmd.getInstanceType().toString() : null);
-                job.setDispatcher(_asyncDispatcher.getName());
+        long spacingMs = windowMs / admitted.size();
+        dispatchSnapshot(admitted.get(0).getScheduleId());
+        for (int i = 1; i < admitted.size(); i++) {
+            final Candidate candidate = admitted.get(i);
+            _pendingDispatch.put(candidate.getScheduleId(), candidate);
+            _dispatchExecutor.schedule(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        dispatchSnapshot(candidate.getScheduleId());
+                    } finally {
+                        _pendingDispatch.remove(candidate.getScheduleId());
+                    }
+                }
+            }, i * spacingMs, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                long jobId = _asyncMgr.submitAsyncJob(job);
+    protected void dispatchSnapshot(long snapshotScheId) {
+        SnapshotScheduleVO tmpSnapshotScheduleVO = null;
+        try {
+            tmpSnapshotScheduleVO = _snapshotScheduleDao.acquireInLockTable(snapshotScheId);
+            if (tmpSnapshotScheduleVO == null || tmpSnapshotScheduleVO.getAsyncJobId() != null) {
+                // removed, or started by another management server in the meantime
+                return;
+            }
+            long policyId = tmpSnapshotScheduleVO.getPolicyId();
+            long volumeId = tmpSnapshotScheduleVO.getVolumeId();
+            VolumeVO volume = _volsDao.findById(volumeId);
+            if (s_logger.isDebugEnabled()) {
+                Date scheduledTimestamp = tmpSnapshotScheduleVO.getScheduledTimestamp();
+                String displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
+                s_logger.debug("Scheduling 1 snapshot for volume " + volumeId + " for schedule id: "
+                        + snapshotScheId + " at " + displayTime);
+            }
 
-                tmpSnapshotScheduleVO.setAsyncJobId(jobId);
-                _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
-            } catch (Exception e) {
-                s_logger.warn("Scheduling snapshot failed due to " + e.toString());
-            } finally {
-                if ( tmpSnapshotScheduleVO != null) {
-                    _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
-                }
+            Long eventId = ActionEventUtils.onScheduledActionEvent(User.UID_SYSTEM, volume.getAccountId(),
+                    EventTypes.EVENT_SNAPSHOT_CREATE, "creating snapshot for volume Id:" + volumeId, 0);
+
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(ApiConstants.VOLUME_ID, "" + volumeId);
+            params.put(ApiConstants.POLICY_ID, "" + policyId);
+            params.put("ctxUserId", "1");
+            params.put("ctxAccountId", "" + volume.getAccountId());
+            params.put("ctxStartEventId", String.valueOf(eventId));
+
+            CreateSnapshotCmd cmd = new CreateSnapshotCmd();
+            ComponentContext.inject(cmd);
+            ApiDispatcher.getInstance().dispatchCreateCmd(cmd, params);
+            params.put("id", ""+cmd.getEntityId());
+            params.put("ctxStartEventId", "1");
+
+            AsyncJobVO job = new AsyncJobVO(UUID.randomUUID().toString(), User.UID_SYSTEM, volume.getAccountId(), CreateSnapshotCmd.class.getName(),
+                    ApiGsonHelper.getBuilder().create().toJson(params), cmd.getEntityId(),
+                    cmd.getInstanceType() != null ? cmd.getInstanceType().toString() : null);
+            job.setDispatcher(_asyncDispatcher.getName());
+
+            long jobId = _asyncMgr.submitAsyncJob(job);
+
+            tmpSnapshotScheduleVO.setAsyncJobId(jobId);
+            _snapshotScheduleDao.update(snapshotScheId, tmpSnapshotScheduleVO);
+        } catch (Exception e) {
+            s_logger.warn("Scheduling snapshot failed due to " + e.toString());
+        } finally {
+            if ( tmpSnapshotScheduleVO != null) {
+                _snapshotScheduleDao.releaseFromLockTable(snapshotScheId);
             }
         }
     }
@@ -348,6 +455,13 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     throws ConfigurationException {
 
      _snapshotPollInterval = NumbersUtil.parseInt(_configDao.getValue("snapshot.poll.interval"), 300);
+        int maxPerPool = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerPool.key()), 4);
+        int maxPerZone = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotMaxConcurrentPerZone.key()), 16);
+        _admissionController = new SnapshotAdmissionController(maxPerPool, maxPerZone);
+        _dispatchWindow = NumbersUtil.parseInt(_configDao.getValue(Config.SnapshotDispatchWindow.key()), 60);
+        if (_dispatchWindow > 0) {
+            _dispatchExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SnapshotDispatcher"));
+        }
         boolean snapshotsRecurringTest = Boolean.parseBoolean(_configDao.getValue("snapshot.recurring.test"));
         if (snapshotsRecurringTest) {
             // look for some test values in the configuration table so that snapshots can be taken more frequently (QA test code)
@@ -370,12 +484,17 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
     @Override @DB
     public boolean start() {
         // reschedule all policies after management restart
-        List<SnapshotPolicyVO> policyInstances = _snapshotPolicyDao.listAll();
-        for( SnapshotPolicyVO policyInstance : policyInstances) {
-            if( policyInstance.getId() != Snapshot.MANUAL_POLICY_ID ) {
-                scheduleNextSnapshotJob(policyInstance);
+        ComponentContext.runAfterStartup("snapshot policy rescheduling", new Runnable() {
+            @Override
+            public void run() {
+                List<SnapshotPolicyVO> policyInstances = _snapshotPolicyDao.listAll();
+                for( SnapshotPolicyVO policyInstance : policyInstances) {
+                    if( policyInstance.getId() != Snapshot.MANUAL_POLICY_ID ) {
+                        scheduleNextSnapshotJob(policyInstance);
+                    }
+                }
             }
-        }
+        });
         if (_testTimerTask != null) {
             _testClockTimer = new Timer("TestClock");
             // Run the test clock every 60s. Because every tick is counted as 1 minute.
@@ -403,6 +522,9 @@ public class SnapshotSchedulerImpl extends ManagerBase implements SnapshotSchedu
 
     @Override
     public boolean stop() {
+        if (_dispatchExecutor != null) {
+            _dispatchExecutor.shutdownNow();
+        }
         return true;
     }
 }
@@ -73,6 +73,7 @@ import com.cloud.dc.dao.DedicatedResourceDao;
 import com.cloud.domain.Domain;
 import com.cloud.domain.DomainVO;
 import com.cloud.domain.dao.DomainDao;
+import com.cloud.domain.dao.DomainTree;
 import com.cloud.event.ActionEvent;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.ActionEvents;
@@ -160,6 +161,9 @@ import com.cloud.vm.dao.VMInstanceDao;
 public class AccountManagerImpl extends ManagerBase implements AccountManager, Manager {
     public static final Logger s_logger = Logger.getLogger(AccountManagerImpl.class);
 
+    // recursive list calls filter on the ids of the domain subtree up to this size, on the domain path otherwise
+    private static final int MAX_SUBTREE_DOMAIN_IDS = 1000;
+
     @Inject
     private AccountDao _accountDao;
     @Inject
@@ -2178,9 +2182,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setJoinParameters("domainSearch", "path", domain.getPath() + "%");
+                sc.setJoinParameters("domainSearch", "path", getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
@@ -2285,6 +2288,7 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
             // if accountId isn't specified, we can do a domain match for the
             // admin case if isRecursive is true
             sb.and("domainPath", sb.entity().getDomainPath(), SearchCriteria.Op.LIKE);
+            sb.and("domainIdIN", sb.entity().getDomainId(), SearchCriteria.Op.IN);
         }
 
         if (listProjectResourcesCriteria != null) {
@@ -2308,15 +2312,27 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setParameters("domainPath", domain.getPath() + "%");
+                DomainTree tree = _domainDao.getDomainTree();
+                if (tree.contains(domainId) && tree.getSubtreeSize(domainId) <= MAX_SUBTREE_DOMAIN_IDS) {
+                    sc.setParameters("domainIdIN", tree.getSubtreeIds(domainId).toArray());
+                } else {
+                    sc.setParameters("domainPath", getDomainPath(domainId) + "%");
+                }
             } else {
                 sc.setParameters("domainId", domainId);
             }
         }
     }
 
+    private String getDomainPath(long domainId) {
+        String path = _domainDao.getDomainTree().getPath(domainId);
+        if (path == null) {
+            path = _domainDao.findById(domainId).getPath();
+        }
+        return path;
+    }
+
     @Override
     public UserAccount getUserByApiKey(String apiKey) {
         return _userAccountDao.getUserByApiKey(apiKey);
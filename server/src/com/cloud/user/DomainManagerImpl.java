@@ -31,8 +31,13 @@ import org.apache.cloudstack.api.command.admin.domain.ListDomainsCmd;
 import org.apache.cloudstack.api.command.admin.domain.UpdateDomainCmd;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.region.RegionManager;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateMessageCommand;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Resource.ResourceOwnerType;
 import com.cloud.configuration.ResourceLimit;
 import com.cloud.configuration.dao.ResourceCountDao;
@@ -52,6 +57,7 @@ import com.cloud.network.dao.NetworkDomainDao;
 import com.cloud.projects.ProjectManager;
 import com.cloud.projects.ProjectVO;
 import com.cloud.projects.dao.ProjectDao;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.DiskOfferingVO;
@@ -77,6 +83,8 @@ import com.cloud.vm.ReservationContextImpl;
 public class DomainManagerImpl extends ManagerBase implements DomainManager, DomainService {
     public static final Logger s_logger = Logger.getLogger(DomainManagerImpl.class);
 
+    public static final String DOMAIN_TREE_SUBJECT = "domain.tree.changed";
+
     @Inject
     private DomainDao _domainDao;
     @Inject
@@ -103,6 +111,36 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
     private NetworkOrchestrationService _networkMgr;
     @Inject
     private NetworkDomainDao _networkDomainDao;
+    @Inject
+    private ClusterManager _clusterMgr;
+    @Inject
+    private MessageBus _messageBus;
+
+    @Override
+    public boolean start() {
+        _messageBus.subscribe(DOMAIN_TREE_SUBJECT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                _domainDao.invalidateDomainTree();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops the cached domain hierarchy here and on the other management servers. Called once the
+     * transaction changing the domains is over, so that no server reloads the hierarchy before the change
+     * is visible.
+     */
+    protected void domainTreeChanged() {
+        _domainDao.invalidateDomainTree();
+        try {
+            Command[] cmds = new Command[] { new PropagateMessageCommand(DOMAIN_TREE_SUBJECT, null) };
+            _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+        } catch (Exception e) {
+            s_logger.warn("Unable to notify other management servers of the domain change", e);
+        }
+    }
 
     @Override
     public Domain getDomain(long domainId) {
@@ -202,6 +240,7 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
             }
         });
 
+        domainTreeChanged();
         CallContext.current().putContextParameter(Domain.class, domain.getUuid());
         return domain;
     }
@@ -218,7 +257,9 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
 
     @Override
     public boolean removeDomain(long domainId) {
-        return _domainDao.remove(domainId);
+        boolean result = _domainDao.remove(domainId);
+        domainTreeChanged();
+        return result;
     }
 
     @Override
@@ -311,6 +352,7 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
                 domain.setState(Domain.State.Active);
                 _domainDao.update(domain.getId(), domain);
             }
+            domainTreeChanged();
         }
     }
 
@@ -625,6 +667,9 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
             }
         });
 
+        if (domainName != null) {
+            domainTreeChanged();
+        }
 
         return _domainDao.findById(domainId);
 
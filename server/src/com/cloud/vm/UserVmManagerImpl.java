@@ -104,6 +104,7 @@ import com.cloud.capacity.CapacityManager;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.DataCenter.NetworkType;
 import com.cloud.dc.DataCenterVO;
@@ -484,6 +485,31 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         _resourceLimitMgr.checkResourceLimit(owner, ResourceType.memory, memory);
     }
 
+    protected List<ResourceReservation> resourceReserve(Account owner, Long cpu, Long memory) throws ResourceAllocationException {
+        List<ResourceReservation> reservations = new ArrayList<ResourceReservation>(3);
+        try {
+            reservations.add(_resourceLimitMgr.reserveResource(owner, ResourceType.user_vm, 1));
+            reservations.add(_resourceLimitMgr.reserveResource(owner, ResourceType.cpu, cpu));
+            reservations.add(_resourceLimitMgr.reserveResource(owner, ResourceType.memory, memory));
+        } catch (ResourceAllocationException e) {
+            resourceRelease(reservations);
+            throw e;
+        }
+        return reservations;
+    }
+
+    protected void resourceCommit(List<ResourceReservation> reservations) {
+        for (ResourceReservation reservation : reservations) {
+            _resourceLimitMgr.commitReservation(reservation);
+        }
+    }
+
+    protected void resourceRelease(List<ResourceReservation> reservations) {
+        for (ResourceReservation reservation : reservations) {
+            _resourceLimitMgr.releaseReservation(reservation);
+        }
+    }
+
     protected void resourceCountIncrement (long accountId, Long cpu, Long memory) {
         _resourceLimitMgr.incrementResourceCount(accountId, ResourceType.user_vm);
         _resourceLimitMgr.incrementResourceCount(accountId, ResourceType.cpu, cpu);
@@ -2672,8 +2698,6 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
             }
             size += _diskOfferingDao.findById(diskOfferingId).getDiskSize();
         }
-        resourceLimitCheck(owner, new Long(offering.getCpu()), new Long(offering.getRamSize()));
-
         _resourceLimitMgr.checkResourceLimit(owner, ResourceType.volume, (isIso || diskOfferingId == null ? 1 : 2));
         _resourceLimitMgr.checkResourceLimit(owner, ResourceType.primary_storage, size);
 
@@ -2937,9 +2961,15 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
             hypervisorType = template.getHypervisorType();
         }
 
-        UserVmVO vm =
-            commitUserVm(zone, template, hostName, displayName, owner, diskOfferingId, diskSize, userData, hypervisor, caller, isDisplayVmEnabled, keyboard, accountId,
-                offering, isIso, sshPublicKey, networkNicMap, id, instanceName, uuidName, hypervisorType, customParameters);
+        // the vm, its cpus and memory are counted against the limits from here until the vm is persisted
+        List<ResourceReservation> reservations = resourceReserve(owner, new Long(offering.getCpu()), new Long(offering.getRamSize()));
+        UserVmVO vm;
+        try {
+            vm = commitUserVm(zone, template, hostName, displayName, owner, diskOfferingId, diskSize, userData, hypervisor, caller, isDisplayVmEnabled, keyboard, accountId,
+                    offering, isIso, sshPublicKey, networkNicMap, id, instanceName, uuidName, hypervisorType, customParameters, reservations);
+        } finally {
+            resourceRelease(reservations);
+        }
 
         // Assign instance to the group
         try {
@@ -2972,7 +3002,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         final Long diskOfferingId, final Long diskSize, final String userData, final HypervisorType hypervisor, final Account caller, final Boolean isDisplayVmEnabled,
         final String keyboard, final long accountId, final ServiceOfferingVO offering, final boolean isIso, final String sshPublicKey,
         final LinkedHashMap<String, NicProfile> networkNicMap, final long id, final String instanceName, final String uuidName, final HypervisorType hypervisorType,
-        final Map<String, String> customParameters) throws InsufficientCapacityException {
+        final Map<String, String> customParameters, final List<ResourceReservation> reservations) throws InsufficientCapacityException {
         return Transaction.execute(new TransactionCallbackWithException<UserVmVO, InsufficientCapacityException>() {
             @Override
             public UserVmVO doInTransaction(TransactionStatus status) throws InsufficientCapacityException {
@@ -3078,8 +3108,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
                 }
 
                 //Update Resource Count for the given account
-                resourceCountIncrement(accountId, new Long(offering.getCpu()),
-                        new Long(offering.getRamSize()));
+                resourceCommit(reservations);
                 return vm;
             }
         });
@@ -0,0 +1,108 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cloud.domain.DomainVO;
+
+public class DomainTreeTest {
+
+    private static DomainVO domain(final long id, Long parent, String path) {
+        DomainVO domain = new DomainVO("d" + id, 2, parent, null) {
+            @Override
+            public long getId() {
+                return id;
+            }
+        };
+        domain.setPath(path);
+        return domain;
+    }
+
+    private static List<DomainVO> sampleDomains() {
+        // ROOT(1) -> A(2) -> A1(4), A2(5) -> A21(6); ROOT -> B(3)
+        List<DomainVO> domains = new ArrayList<DomainVO>();
+        domains.add(domain(6, 5L, "/A/A2/A21/"));
+        domains.add(domain(1, null, "/"));
+        domains.add(domain(3, 1L, "/B/"));
+        domains.add(domain(2, 1L, "/A/"));
+        domains.add(domain(4, 2L, "/A/A1/"));
+        domains.add(domain(5, 2L, "/A/A2/"));
+        return domains;
+    }
+
+    @Test
+    public void testAncestorChecks() {
+        DomainTree tree = new DomainTree(sampleDomains());
+        assertEquals(6, tree.size());
+        assertTrue(tree.isChildDomain(1, 6));
+        assertTrue(tree.isChildDomain(2, 6));
+        assertTrue(tree.isChildDomain(5, 5));
+        assertFalse(tree.isChildDomain(6, 2));
+        assertFalse(tree.isChildDomain(3, 4));
+        assertFalse(tree.isChildDomain(4, 5));
+        assertNull(tree.isChildDomain(1, 42));
+    }
+
+    @Test
+    public void testSubtreesAndAncestors() {
+        DomainTree tree = new DomainTree(sampleDomains());
+        assertEquals(new HashSet<Long>(Arrays.asList(2L, 4L, 5L, 6L)), new HashSet<Long>(tree.getSubtreeIds(2)));
+        assertEquals(4, tree.getSubtreeSize(2));
+        assertEquals(Arrays.asList(3L), tree.getSubtreeIds(3));
+        assertEquals(Arrays.asList(6L, 5L, 2L, 1L), tree.getAncestorIds(6));
+        assertEquals("/A/A2/", tree.getPath(5));
+        assertNull(tree.getSubtreeIds(42));
+        assertNull(tree.getAncestorIds(42));
+    }
+
+    @Test
+    public void testMatchesPathPrefixOnLargeHierarchy() {
+        Random random = new Random(7);
+        int count = 20000;
+        List<DomainVO> domains = new ArrayList<DomainVO>(count);
+        String[] paths = new String[count + 1];
+        paths[1] = "/";
+        domains.add(domain(1, null, "/"));
+        for (int id = 2; id <= count; id++) {
+            // mostly deep chains with some fan out
+            int parent = random.nextInt(4) == 0 ? 1 + random.nextInt(id - 1) : id - 1;
+            paths[id] = paths[parent] + "d" + id + "/";
+            domains.add(domain(id, (long)parent, paths[id]));
+        }
+
+        DomainTree tree = new DomainTree(domains);
+        assertEquals(count, tree.size());
+        for (int i = 0; i < 100000; i++) {
+            int parent = 1 + random.nextInt(count);
+            int child = 1 + random.nextInt(count);
+            assertEquals(paths[child].startsWith(paths[parent]), tree.isChildDomain(parent, child));
+        }
+        assertEquals(count, tree.getSubtreeSize(1));
+    }
+}
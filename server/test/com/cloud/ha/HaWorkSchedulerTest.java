@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+public class HaWorkSchedulerTest {
+    @Test
+    public void testPriorities() {
+        int routerRestart = HaWorkScheduler.getPriority(WorkType.HA, VirtualMachine.Type.DomainRouter, Step.Scheduled);
+        int userRestart = HaWorkScheduler.getPriority(WorkType.HA, VirtualMachine.Type.User, Step.Scheduled);
+        int userInvestigation = HaWorkScheduler.getPriority(WorkType.HA, VirtualMachine.Type.User, Step.Investigating);
+        int proxyRestart = HaWorkScheduler.getPriority(WorkType.HA, VirtualMachine.Type.ConsoleProxy, Step.Scheduled);
+        int routerStop = HaWorkScheduler.getPriority(WorkType.ForceStop, VirtualMachine.Type.DomainRouter, Step.Scheduled);
+        int userMigration = HaWorkScheduler.getPriority(WorkType.Migration, VirtualMachine.Type.User, Step.Scheduled);
+
+        assertTrue(routerRestart < proxyRestart);
+        assertTrue(proxyRestart < userRestart);
+        assertTrue(userRestart < userInvestigation);
+        assertTrue(userInvestigation < routerStop);
+        assertTrue(routerStop < userMigration);
+    }
+
+    @Test
+    public void testDueWorkGoesOutByPriority() throws Exception {
+        final List<Long> processed = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(4);
+        HaWorkScheduler scheduler = new HaWorkScheduler("HA-Test", 1, 1, 100, new HaWorkScheduler.WorkProcessor() {
+            @Override
+            public Long process(long workId) {
+                processed.add(workId);
+                done.countDown();
+                return null;
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        scheduler.schedule(1, 14, now);
+        scheduler.schedule(2, 0, now);
+        scheduler.schedule(3, 14, now);
+        scheduler.schedule(4, 2, now);
+        // queued again for later, stays due now
+        scheduler.schedule(2, 0, now + 60000);
+        assertEquals(4, scheduler.getBacklog());
+
+        scheduler.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        scheduler.stop();
+        assertEquals("[2, 4, 1, 3]", processed.toString());
+    }
+
+    @Test
+    public void testRescheduledWork() throws Exception {
+        final AtomicInteger tries = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(3);
+        final long[] triedAt = new long[3];
+        HaWorkScheduler scheduler = new HaWorkScheduler("HA-Test", 2, 2, 100, new HaWorkScheduler.WorkProcessor() {
+            @Override
+            public Long process(long workId) {
+                int tried = tries.getAndIncrement();
+                triedAt[tried] = System.currentTimeMillis();
+                done.countDown();
+                return tried < 2 ? System.currentTimeMillis() + 200 : null;
+            }
+        });
+        scheduler.start();
+        scheduler.schedule(7, 0, System.currentTimeMillis());
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        scheduler.stop();
+        assertEquals(3, tries.get());
+        assertTrue(triedAt[1] - triedAt[0] >= 190);
+        assertTrue(triedAt[2] - triedAt[1] >= 190);
+        assertEquals(0, scheduler.getBacklog());
+    }
+
+    @Test
+    public void testWorkersFollowBacklog() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(100);
+        HaWorkScheduler scheduler = new HaWorkScheduler("HA-Test", 2, 10, 5, new HaWorkScheduler.WorkProcessor() {
+            @Override
+            public Long process(long workId) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                done.countDown();
+                return null;
+            }
+        });
+        scheduler.start();
+        assertEquals(2, scheduler.getWorkerCount());
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            scheduler.schedule(i, 4, now);
+        }
+        assertEquals(10, scheduler.getWorkerCount());
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        scheduler.stop();
+        assertEquals(0, scheduler.getBacklog());
+    }
+
+    @Test
+    public void testTimeToRestart() {
+        HaWorkScheduler scheduler = new HaWorkScheduler("HA-Test", 1, 1, 1, null);
+        scheduler.recordRestart(1, 1000);
+        scheduler.recordRestart(2, 3000);
+        assertEquals(2, scheduler.getRestartCount());
+        assertEquals(2000, scheduler.getAverageTimeToRestart());
+        assertEquals(3000, scheduler.getMaxTimeToRestart());
+        assertEquals(Long.valueOf(3000), scheduler.getTimeToRestart(2));
+        assertEquals(null, scheduler.getTimeToRestart(3));
+    }
+
+    @Test
+    public void testDrainAfterHostFailure() throws Exception {
+        // 300 VMs of a failed host, each restart taking 20ms
+        assertTrue(drain(5, 5, 300, 20) <= 5);
+        // the backlog has the scheduler add workers, and they all restart at once
+        assertTrue(drain(5, 20, 300, 20) > 5);
+    }
+
+    /**
+     * @return the most restarts that were in flight at the same time
+     */
+    private int drain(int minWorkers, int maxWorkers, int count, final long restartMs) throws Exception {
+        final CountDownLatch done = new CountDownLatch(count);
+        final ConcurrentHashMap<Long, Long> scheduledAt = new ConcurrentHashMap<Long, Long>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final HaWorkScheduler[] holder = new HaWorkScheduler[1];
+        HaWorkScheduler scheduler = new HaWorkScheduler("HA-Test", minWorkers, maxWorkers, 5, new HaWorkScheduler.WorkProcessor() {
+            @Override
+            public Long process(long workId) {
+                int running = inFlight.incrementAndGet();
+                int max;
+                do {
+                    max = maxInFlight.get();
+                } while (running > max && !maxInFlight.compareAndSet(max, running));
+                try {
+                    Thread.sleep(restartMs);
+                } catch (InterruptedException e) {
+                }
+                inFlight.decrementAndGet();
+                holder[0].recordRestart(workId, System.currentTimeMillis() - scheduledAt.get(workId));
+                done.countDown();
+                return null;
+            }
+        });
+        holder[0] = scheduler;
+        scheduler.start();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            scheduledAt.put((long)i, System.currentTimeMillis());
+            scheduler.schedule(i, HaWorkScheduler.getPriority(WorkType.HA, VirtualMachine.Type.User, Step.Investigating), start);
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        scheduler.stop();
+        assertEquals(count, scheduler.getRestartCount());
+        assertTrue(scheduler.getMaxTimeToRestart() >= scheduler.getAverageTimeToRestart());
+        return maxInFlight.get();
+    }
+}
@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+import com.cloud.agent.manager.Commands;
+
+public class RouterConfigTrackerTest {
+
+    private static SetPortForwardingRulesCommand pfCommand(boolean revoked, int... ports) {
+        List<PortForwardingRuleTO> rules = new ArrayList<PortForwardingRuleTO>();
+        for (int port : ports) {
+            rules.add(new PortForwardingRuleTO(port, "10.1.1.1", port, port, "192.168.0.10", 22, 22, "tcp", revoked, false));
+        }
+        SetPortForwardingRulesCommand cmd = new SetPortForwardingRulesCommand(rules);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, "169.254.0.10");
+        return cmd;
+    }
+
+    private static void apply(RouterConfigTracker tracker, long routerId, Command cmd) {
+        tracker.commit(routerId, new Command[] {cmd}, new Answer[] {new Answer(cmd)});
+    }
+
+    @Test
+    public void testUnknownRouterSendsEverything() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        assertNull(tracker.diff(1L, new Commands(pfCommand(false, 1000, 1001))));
+    }
+
+    @Test
+    public void testOnlyDeltasAreSent() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        apply(tracker, 1L, pfCommand(false, 1000, 1001));
+        assertEquals(1, tracker.getVersion(1L));
+
+        Command[] diffed = tracker.diff(1L, new Commands(pfCommand(false, 1000, 1001, 1002)));
+        SetPortForwardingRulesCommand cmd = (SetPortForwardingRulesCommand)diffed[0];
+        assertEquals(1, cmd.getRules().length);
+        assertEquals("1002:1002", cmd.getRules()[0].getStringSrcPortRange());
+        assertEquals("169.254.0.10", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+
+        // nothing left to ship for a replay of the applied set
+        diffed = tracker.diff(1L, new Commands(pfCommand(false, 1000, 1001)));
+        assertNull(diffed[0]);
+    }
+
+    @Test
+    public void testRevokeAndReAddAreShipped() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        apply(tracker, 1L, pfCommand(false, 1000));
+        apply(tracker, 1L, pfCommand(true, 1000));
+
+        Command[] diffed = tracker.diff(1L, new Commands(pfCommand(false, 1000)));
+        assertNull(diffed);
+    }
+
+    @Test
+    public void testFailedAnswerIsNotRecorded() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        apply(tracker, 1L, pfCommand(false, 1000));
+        Command failed = pfCommand(false, 1001);
+        tracker.commit(1L, new Command[] {failed}, new Answer[] {new Answer(failed, false, "failed")});
+
+        Command[] diffed = tracker.diff(1L, new Commands(pfCommand(false, 1000, 1001)));
+        assertEquals(1, ((SetPortForwardingRulesCommand)diffed[0]).getRules().length);
+    }
+
+    @Test
+    public void testOnlyChangesAreReported() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        SetPortForwardingRulesCommand cmd = pfCommand(false, 1000, 1001);
+        assertTrue(tracker.commit(1L, new Command[] {cmd}, new Answer[] {new Answer(cmd)}));
+
+        // the router already carries both rules
+        cmd = pfCommand(false, 1000, 1001);
+        assertFalse(tracker.commit(1L, new Command[] {cmd}, new Answer[] {new Answer(cmd)}));
+        assertEquals(1, tracker.getVersion(1L));
+
+        cmd = pfCommand(true, 1001);
+        assertTrue(tracker.commit(1L, new Command[] {cmd}, new Answer[] {new Answer(cmd)}));
+        assertEquals(2, tracker.getVersion(1L));
+
+        Command failed = pfCommand(false, 1002);
+        assertFalse(tracker.commit(1L, new Command[] {failed}, new Answer[] {new Answer(failed, false, "failed")}));
+    }
+
+    @Test
+    public void testResetForgetsConfiguration() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        apply(tracker, 1L, pfCommand(false, 1000));
+        tracker.reset(1L);
+        assertNull(tracker.diff(1L, new Commands(pfCommand(false, 1000))));
+        assertEquals(0, tracker.getVersion(1L));
+    }
+
+    @Test
+    public void testExpiredConfigurationIsNotTrusted() {
+        RouterConfigTracker tracker = new RouterConfigTracker();
+        apply(tracker, 1L, pfCommand(false, 1000));
+        tracker.setTimeToLive(0);
+        assertNull(tracker.diff(1L, new Commands(pfCommand(false, 1000))));
+        assertEquals(0, tracker.getVersion(1L));
+    }
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDaoImpl;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.test.utils.SpringUtils;
 
 import org.mockito.Mockito;
@@ -35,6 +36,7 @@ import org.springframework.core.type.filter.TypeFilter;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.api.query.dao.SecurityGroupJoinDaoImpl;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDaoImpl;
 import com.cloud.dc.dao.ClusterDaoImpl;
 import com.cloud.dc.dao.DataCenterDaoImpl;
@@ -146,6 +148,16 @@ public class SecurityGroupManagerTestConfiguration {
         return Mockito.mock(ProjectManager.class);
     }
 
+    @Bean
+    public ClusterManager clusterManager() {
+        return Mockito.mock(ClusterManager.class);
+    }
+
+    @Bean
+    public MessageBus messageBus() {
+        return Mockito.mock(MessageBus.class);
+    }
+
     public static class Library implements TypeFilter {
 
         @Override
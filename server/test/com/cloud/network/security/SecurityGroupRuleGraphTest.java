@@ -0,0 +1,208 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.VirtualMachine.State;
+
+public class SecurityGroupRuleGraphTest {
+    private static final long VM_ID = 10L;
+    private static final long GROUP_ID = 1L;
+
+    private SecurityGroupVMMapDao _vmMapDao;
+    private SecurityGroupRuleDao _ruleDao;
+    private SecurityGroupRuleGraph _graph;
+    private SecurityGroupManagerImpl _mgr;
+
+    private final List<SecurityGroupVMMapVO> _members = new ArrayList<SecurityGroupVMMapVO>();
+
+    @Before
+    public void setup() {
+        _vmMapDao = mock(SecurityGroupVMMapDao.class);
+        _ruleDao = mock(SecurityGroupRuleDao.class);
+
+        when(_vmMapDao.listByInstanceId(VM_ID)).thenReturn(Arrays.asList(new SecurityGroupVMMapVO(GROUP_ID, VM_ID)));
+        when(_vmMapDao.listBySecurityGroup(eq(GROUP_ID), (State[])anyVararg())).thenReturn(_members);
+        when(_ruleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule)).thenReturn(
+                Arrays.asList(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 22, 22, "tcp", GROUP_ID),
+                        new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 80, 80, "tcp", "0.0.0.0/0")));
+        when(_ruleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.EgressRule)).thenReturn(Collections.<SecurityGroupRuleVO>emptyList());
+        addMember("10.1.1.10");
+        addMember("10.1.1.11");
+
+        _graph = new SecurityGroupRuleGraph(_vmMapDao, _ruleDao, 60000L);
+        _mgr = new SecurityGroupManagerImpl();
+        _mgr._ruleGraph = _graph;
+    }
+
+    private void addMember(String ip) {
+        SecurityGroupVMMapVO member = mock(SecurityGroupVMMapVO.class);
+        when(member.getGuestIpAddress()).thenReturn(ip);
+        _members.add(member);
+    }
+
+    private SecurityGroupRulesCmd ruleset(long seqnum) {
+        Map<PortAndProto, Set<String>> ingress = _graph.generateRulesForVM(VM_ID, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> egress = _graph.generateRulesForVM(VM_ID, SecurityRuleType.EgressRule);
+        return _mgr.generateRulesetCmd("i-2-10-VM", "10.1.1.10", "02:00:00:00:00:01", VM_ID, null, seqnum, ingress, egress, null);
+    }
+
+    @Test
+    public void testLookupsAreCached() {
+        _graph.generateRulesForVM(VM_ID, SecurityRuleType.IngressRule);
+        _graph.generateRulesForVM(VM_ID, SecurityRuleType.IngressRule);
+
+        verify(_vmMapDao, times(1)).listByInstanceId(VM_ID);
+        verify(_ruleDao, times(1)).listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule);
+        verify(_vmMapDao, times(1)).listBySecurityGroup(eq(GROUP_ID), (State[])anyVararg());
+    }
+
+    @Test
+    public void testDisabledGraphAlwaysReads() {
+        _graph = new SecurityGroupRuleGraph(_vmMapDao, _ruleDao, 0);
+        _graph.getRules(GROUP_ID, SecurityRuleType.IngressRule);
+        _graph.getRules(GROUP_ID, SecurityRuleType.IngressRule);
+
+        verify(_ruleDao, times(2)).listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule);
+    }
+
+    @Test
+    public void testRulesChangeReloadsRules() {
+        _graph.getRules(GROUP_ID, SecurityRuleType.IngressRule);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.RULES_CHANGE + GROUP_ID);
+        _graph.getRules(GROUP_ID, SecurityRuleType.IngressRule);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+
+        verify(_ruleDao, times(2)).listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule);
+        verify(_vmMapDao, times(1)).listBySecurityGroup(eq(GROUP_ID), (State[])anyVararg());
+    }
+
+    @Test
+    public void testVmChangeReloadsMembership() {
+        _graph.getGroupsForVm(VM_ID);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+        _graph.getRunningMemberCidrs(2L);
+
+        // the vm left group 2, which the cached membership no longer knows about
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.VM_CHANGE + VM_ID + ":2");
+        _graph.getGroupsForVm(VM_ID);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+        _graph.getRunningMemberCidrs(2L);
+
+        verify(_vmMapDao, times(2)).listByInstanceId(VM_ID);
+        verify(_vmMapDao, times(2)).listBySecurityGroup(eq(GROUP_ID), (State[])anyVararg());
+        verify(_vmMapDao, times(2)).listBySecurityGroup(eq(2L), (State[])anyVararg());
+    }
+
+    @Test
+    public void testVmChangeWithoutGroups() {
+        _graph.getGroupsForVm(VM_ID);
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.VM_CHANGE + VM_ID + ":");
+        _graph.getGroupsForVm(VM_ID);
+
+        verify(_vmMapDao, times(2)).listByInstanceId(VM_ID);
+    }
+
+    @Test
+    public void testGroupChangeReloadsEverythingOfTheGroup() {
+        _graph.getRules(GROUP_ID, SecurityRuleType.EgressRule);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.GROUP_CHANGE + GROUP_ID);
+        _mgr.applyRuleGraphChange("unknown:1");
+        _graph.getRules(GROUP_ID, SecurityRuleType.EgressRule);
+        _graph.getRunningMemberCidrs(GROUP_ID);
+
+        verify(_ruleDao, times(2)).listBySecurityGroupId(GROUP_ID, SecurityRuleType.EgressRule);
+        verify(_vmMapDao, times(2)).listBySecurityGroup(eq(GROUP_ID), (State[])anyVararg());
+    }
+
+    @Test
+    public void testPushedRulesetIsPerHost() {
+        SecurityGroupRulesCmd pushed = ruleset(1);
+        _graph.setPushedRuleset(VM_ID, 5L, pushed);
+
+        assertSame(pushed, _graph.getPushedRuleset(VM_ID, 5L));
+        assertNull(_graph.getPushedRuleset(VM_ID, 6L));
+
+        _mgr.forgetPushedRuleset(VM_ID);
+        assertNull(_graph.getPushedRuleset(VM_ID, 5L));
+    }
+
+    @Test
+    public void testUnchangedRulesetIsPushed() {
+        _graph.setPushedRuleset(VM_ID, 5L, ruleset(1));
+
+        // a later update with the same rules changes nothing on the host
+        assertTrue(_graph.isPushed(VM_ID, 5L, ruleset(2)));
+        assertFalse(_graph.isPushed(VM_ID, 6L, ruleset(2)));
+
+        addMember("10.1.1.12");
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.VM_CHANGE + 11L + ":" + GROUP_ID);
+        assertFalse(_graph.isPushed(VM_ID, 5L, ruleset(3)));
+    }
+
+    @Test
+    public void testDeltaAfterMembershipChange() {
+        SecurityGroupRulesCmd base = ruleset(1);
+        _graph.setPushedRuleset(VM_ID, 5L, base);
+
+        // a vm joining the group on another management server only shows up once the change reaches us
+        addMember("10.1.1.12");
+        assertEquals(base.getSignature(), ruleset(2).getSignature());
+        _mgr.applyRuleGraphChange(SecurityGroupManagerImpl.VM_CHANGE + 11L + ":" + GROUP_ID);
+        SecurityGroupRulesCmd target = ruleset(2);
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(_graph.getPushedRuleset(VM_ID, 5L), target);
+        assertEquals(1, delta.getNumChangedRules());
+        assertEquals(3, delta.getIngressRuleSet()[0].getAllowedCidrs().length);
+        assertNull(delta.getIngressRuleSet()[1].getAllowedCidrs());
+
+        SecurityGroupRulesCmd rebuilt = delta.rebuild(base);
+        assertEquals(target.getSignature(), rebuilt.getSignature());
+        assertEquals(target.stringifyRules(), rebuilt.stringifyRules());
+    }
+}
@@ -0,0 +1,163 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.cloud.host.HostVO;
+
+public class HostAttributeSnapshotTest {
+    private static HostVO host(final long id) {
+        return new HostVO("host-" + id) {
+            @Override
+            public long getId() {
+                return id;
+            }
+        };
+    }
+
+    private static List<Long> ids(List<HostVO> hosts) {
+        List<Long> ids = new ArrayList<Long>();
+        for (HostVO host : hosts) {
+            ids.add(host.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testTagsAndHAHosts() {
+        HostAttributeSnapshot snapshot = new HostAttributeSnapshot(new long[] {1, 2, 3, 4, 5}, "ha", 0);
+        snapshot.addHostTag(1, "ssd");
+        snapshot.addHostTag(1, "gpu");
+        snapshot.addHostTag(2, "ssd");
+        snapshot.addHostTag(3, "ha");
+        snapshot.addHostTag(4, "ha");
+        snapshot.addHostTag(4, "gpu");
+        // unknown hosts are ignored
+        snapshot.addHostTag(42, "ssd");
+
+        List<HostVO> hosts = Arrays.asList(host(5), host(4), host(3), host(2), host(1), host(42));
+        assertEquals(Arrays.asList(2L, 1L), ids(snapshot.listByHostTags(hosts, "ssd")));
+        assertEquals(Arrays.asList(1L), ids(snapshot.listByHostTags(hosts, "ssd", "gpu")));
+        assertEquals(Arrays.asList(2L, 1L), ids(snapshot.listByHostTags(hosts, null, "ssd")));
+        assertTrue(snapshot.listByHostTags(hosts, "ssd", "none").isEmpty());
+
+        // a host whose only tag is the HA tag is kept for HA
+        assertEquals(Arrays.asList(5L, 4L, 2L, 1L), ids(snapshot.listNonHAHosts(hosts)));
+        assertTrue(snapshot.isHAHost(3));
+        assertFalse(snapshot.isHAHost(4));
+        assertEquals(Arrays.asList(4L, 3L), ids(snapshot.listByHostTags(hosts, "ha")));
+
+        assertTrue(snapshot.containsAll(hosts.subList(0, 5)));
+        assertFalse(snapshot.containsAll(hosts));
+    }
+
+    @Test
+    public void testGuestOSCategoriesAndOvercommit() {
+        HostAttributeSnapshot snapshot = new HostAttributeSnapshot(new long[] {1, 2}, null, 0);
+        snapshot.setHostGuestOSCategory(1, "Windows");
+        snapshot.setGuestOSCategory(7, "Windows");
+        snapshot.setCpuOvercommitRatio(10, 2.0f);
+        snapshot.setMemoryOvercommitRatio(10, 1.5f);
+
+        assertEquals("Windows", snapshot.getHostGuestOSCategory(1));
+        assertNull(snapshot.getHostGuestOSCategory(2));
+        assertEquals("Windows", snapshot.getGuestOSCategory(7));
+        assertNull(snapshot.getGuestOSCategory(8));
+        assertEquals(Float.valueOf(2.0f), snapshot.getCpuOvercommitRatio(10));
+        assertEquals(Float.valueOf(1.5f), snapshot.getMemoryOvercommitRatio(10));
+        assertNull(snapshot.getCpuOvercommitRatio(11));
+
+        // without an HA tag no host is kept for HA
+        List<HostVO> hosts = Arrays.asList(host(1), host(2));
+        assertEquals(2, snapshot.listNonHAHosts(hosts).size());
+    }
+
+    /**
+     * Filters 5000 simulated hosts the way the allocator does for every deployment, and checks the result
+     * against matching the tags host by host.
+     */
+    @Test
+    public void testFilteringFiveThousandHosts() {
+        final int count = 5000;
+        final String[] racks = new String[50];
+        for (int i = 0; i < racks.length; i++) {
+            racks[i] = "rack" + i;
+        }
+
+        long[] hostIds = new long[count];
+        List<HostVO> hosts = new ArrayList<HostVO>(count);
+        Map<Long, Set<String>> tags = new HashMap<Long, Set<String>>();
+        for (int i = 0; i < count; i++) {
+            long id = 1000 + i;
+            hostIds[i] = id;
+            hosts.add(host(id));
+            Set<String> hostTags = new HashSet<String>();
+            if (i % 100 == 0) {
+                hostTags.add("ha");
+            } else {
+                hostTags.add(racks[i % racks.length]);
+                if (i % 3 == 0) {
+                    hostTags.add("ssd");
+                }
+            }
+            tags.put(id, hostTags);
+        }
+
+        HostAttributeSnapshot snapshot = new HostAttributeSnapshot(hostIds, "ha", System.currentTimeMillis());
+        for (Map.Entry<Long, Set<String>> entry : tags.entrySet()) {
+            for (String tag : entry.getValue()) {
+                snapshot.addHostTag(entry.getKey(), tag);
+            }
+        }
+
+        final int deployments = 1000;
+        int matched = 0;
+        for (int i = 0; i < deployments; i++) {
+            matched += snapshot.listByHostTags(hosts, "ssd", racks[i % racks.length]).size();
+            matched += snapshot.listNonHAHosts(hosts).size();
+        }
+
+        int expected = 0;
+        for (int i = 0; i < deployments; i++) {
+            for (HostVO host : hosts) {
+                Set<String> hostTags = tags.get(host.getId());
+                if (hostTags.contains("ssd") && hostTags.contains(racks[i % racks.length])) {
+                    expected++;
+                }
+                if (!hostTags.equals(new HashSet<String>(Arrays.asList("ha")))) {
+                    expected++;
+                }
+            }
+        }
+        assertEquals(expected, matched);
+        assertEquals(count - count / 100, snapshot.listNonHAHosts(hosts).size());
+    }
+}
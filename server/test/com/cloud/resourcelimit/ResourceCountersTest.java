@@ -0,0 +1,211 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.resourcelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.cloud.configuration.Resource;
+import com.cloud.configuration.Resource.ResourceOwnerType;
+import com.cloud.configuration.Resource.ResourceType;
+
+public class ResourceCountersTest {
+    private static final Logger s_logger = Logger.getLogger(ResourceCountersTest.class);
+
+    // ROOT(1) -> parent(2) -> child(3)
+    private static final List<Long> DOMAINS = Arrays.asList(3L, 2L, 1L);
+
+    private static class MemoryStore implements ResourceCounters.Store {
+        final Map<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+        final Map<String, Long> limits = new ConcurrentHashMap<String, Long>();
+        final AtomicInteger loads = new AtomicInteger();
+
+        AtomicLong count(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            String key = ownerType + "-" + ownerId + "-" + type;
+            counts.putIfAbsent(key, new AtomicLong());
+            return counts.get(key);
+        }
+
+        void setLimit(ResourceOwnerType ownerType, long ownerId, ResourceType type, long limit) {
+            limits.put(ownerType + "-" + ownerId + "-" + type, limit);
+        }
+
+        @Override
+        public long loadCount(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            loads.incrementAndGet();
+            return count(ownerType, ownerId, type).get();
+        }
+
+        @Override
+        public long loadLimit(ResourceOwnerType ownerType, long ownerId, ResourceType type) {
+            Long limit = limits.get(ownerType + "-" + ownerId + "-" + type);
+            return limit == null ? Resource.RESOURCE_UNLIMITED : limit;
+        }
+
+        @Override
+        public boolean flush(ResourceOwnerType ownerType, long ownerId, ResourceType type, long delta) {
+            count(ownerType, ownerId, type).addAndGet(delta);
+            return true;
+        }
+    }
+
+    @Test
+    public void testReserveCommitRelease() {
+        MemoryStore store = new MemoryStore();
+        store.setLimit(ResourceOwnerType.Account, 10, ResourceType.user_vm, 2);
+        ResourceCounters counters = new ResourceCounters(store, Long.MAX_VALUE);
+
+        ResourceCounters.Reservation first = counters.reserve(10, DOMAINS, ResourceType.user_vm, 1, true);
+        ResourceCounters.Reservation second = counters.reserve(10, DOMAINS, ResourceType.user_vm, 1, true);
+        assertTrue(first.isGranted());
+        assertTrue(second.isGranted());
+        assertEquals(2, counters.getReserved(ResourceOwnerType.Domain, 2, ResourceType.user_vm));
+
+        // reserved resources count against the limit before they are committed
+        ResourceCounters.Reservation third = counters.reserve(10, DOMAINS, ResourceType.user_vm, 1, true);
+        assertFalse(third.isGranted());
+        assertEquals(ResourceOwnerType.Account, third.getDeniedOwnerType());
+        assertEquals(2, counters.getReserved(ResourceOwnerType.Domain, 3, ResourceType.user_vm));
+
+        counters.commit(first);
+        counters.commit(first);
+        counters.release(second);
+        assertEquals(1, counters.getCount(ResourceOwnerType.Account, 10, ResourceType.user_vm));
+        assertEquals(1, counters.getCount(ResourceOwnerType.Domain, 1, ResourceType.user_vm));
+        assertEquals(0, counters.getReserved(ResourceOwnerType.Domain, 1, ResourceType.user_vm));
+
+        // nothing reaches the store until the counters are flushed
+        assertEquals(0, store.count(ResourceOwnerType.Domain, 2, ResourceType.user_vm).get());
+        assertEquals(4, counters.flush());
+        assertEquals(1, store.count(ResourceOwnerType.Domain, 2, ResourceType.user_vm).get());
+        assertEquals(1, counters.getCount(ResourceOwnerType.Domain, 2, ResourceType.user_vm));
+        assertEquals(0, counters.flush());
+    }
+
+    @Test
+    public void testDomainLimitDeniesAndRollsBack() {
+        MemoryStore store = new MemoryStore();
+        store.setLimit(ResourceOwnerType.Domain, 2, ResourceType.volume, 5);
+        store.count(ResourceOwnerType.Domain, 2, ResourceType.volume).set(4);
+        ResourceCounters counters = new ResourceCounters(store, Long.MAX_VALUE);
+
+        ResourceCounters.Reservation reservation = counters.reserve(10, DOMAINS, ResourceType.volume, 2, true);
+        assertFalse(reservation.isGranted());
+        assertEquals(ResourceOwnerType.Domain, reservation.getDeniedOwnerType());
+        assertEquals(Long.valueOf(2), reservation.getDeniedOwnerId());
+        // the counters below the denying domain gave their reservation back
+        assertEquals(0, counters.getReserved(ResourceOwnerType.Account, 10, ResourceType.volume));
+        assertEquals(0, counters.getReserved(ResourceOwnerType.Domain, 3, ResourceType.volume));
+
+        assertTrue(counters.reserve(10, DOMAINS, ResourceType.volume, 2, false).isGranted());
+    }
+
+    @Test
+    public void testResetReadsRecalculatedCount() {
+        MemoryStore store = new MemoryStore();
+        ResourceCounters counters = new ResourceCounters(store, Long.MAX_VALUE);
+        counters.add(10, DOMAINS, ResourceType.snapshot, 3);
+        assertEquals(3, counters.getCount(ResourceOwnerType.Account, 10, ResourceType.snapshot));
+
+        counters.flush();
+        store.count(ResourceOwnerType.Account, 10, ResourceType.snapshot).set(7);
+        assertEquals(3, counters.getCount(ResourceOwnerType.Account, 10, ResourceType.snapshot));
+        counters.reset(ResourceOwnerType.Account, 10, ResourceType.snapshot);
+        assertEquals(7, counters.getCount(ResourceOwnerType.Account, 10, ResourceType.snapshot));
+    }
+
+    /**
+     * Deploys into sibling accounts of one domain from many threads: the parent domain limit must hold exactly,
+     * and the counts written back must match what was committed.
+     */
+    @Test
+    public void testConcurrentDeploysIntoSiblingAccounts() throws Exception {
+        final int threads = 16;
+        final long domainLimit = 5000;
+        final MemoryStore store = new MemoryStore();
+        store.setLimit(ResourceOwnerType.Domain, 2, ResourceType.user_vm, domainLimit);
+        final ResourceCounters counters = new ResourceCounters(store, Long.MAX_VALUE);
+
+        final AtomicLong committed = new AtomicLong();
+        final AtomicLong released = new AtomicLong();
+        final AtomicLong denied = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long accountId = 100 + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 1000; j++) {
+                            ResourceCounters.Reservation reservation = counters.reserve(accountId, DOMAINS, ResourceType.user_vm, 1, true);
+                            if (!reservation.isGranted()) {
+                                denied.incrementAndGet();
+                                continue;
+                            }
+                            // every fifth deployment fails and gives its reservation back
+                            if (j % 5 == 4) {
+                                counters.release(reservation);
+                                released.incrementAndGet();
+                            } else {
+                                counters.commit(reservation);
+                                committed.incrementAndGet();
+                            }
+                            if (j % 100 == 0) {
+                                counters.flush();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        s_logger.warn("Interrupted", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+        counters.flush();
+
+        assertEquals(domainLimit, committed.get());
+        // every attempt was either denied, or granted and then committed or released
+        assertEquals(threads * 1000L, committed.get() + released.get() + denied.get());
+        assertEquals(domainLimit, counters.getCount(ResourceOwnerType.Domain, 2, ResourceType.user_vm));
+        assertEquals(domainLimit, store.count(ResourceOwnerType.Domain, 2, ResourceType.user_vm).get());
+        assertEquals(domainLimit, store.count(ResourceOwnerType.Domain, 1, ResourceType.user_vm).get());
+        assertEquals(0, counters.getReserved(ResourceOwnerType.Domain, 3, ResourceType.user_vm));
+        long accounts = 0;
+        for (int i = 0; i < threads; i++) {
+            accounts += store.count(ResourceOwnerType.Account, 100 + i, ResourceType.user_vm).get();
+        }
+        assertEquals(domainLimit, accounts);
+    }
+}
@@ -0,0 +1,107 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.db.EntityCache;
+
+public class EntityCacheRelayTest {
+    private EntityCacheRelay _relay;
+    private ClusterManager _clusterMgr;
+
+    @Before
+    public void setUp() {
+        _clusterMgr = mock(ClusterManager.class);
+        when(_clusterMgr.getManagementNodeId()).thenReturn(7L);
+        _relay = new EntityCacheRelay();
+        _relay._clusterMgr = _clusterMgr;
+    }
+
+    private List<String> broadcasts(int count) {
+        ArgumentCaptor<String> cmds = ArgumentCaptor.forClass(String.class);
+        verify(_clusterMgr, times(count)).broadcast(anyLong(), cmds.capture());
+        return cmds.getAllValues();
+    }
+
+    @Test
+    public void testFailedBroadcastIsSentAgain() {
+        doThrow(new RuntimeException("database is down")).doNothing().when(_clusterMgr).broadcast(anyLong(), anyString());
+
+        _relay.invalidated("host", "1");
+        _relay.publishPending();
+        _relay.invalidated("host", "2");
+        _relay.publishPending();
+        _relay.publishPending();
+
+        List<String> cmds = broadcasts(2);
+        // the second message carries both rows and is still the first message of the sequence
+        Assert.assertTrue(cmds.get(1).contains("7:1\\nhost:1\\nhost:2"));
+    }
+
+    @Test
+    public void testTooManyRowsSendTheirTables() {
+        doNothing().when(_clusterMgr).broadcast(anyLong(), anyString());
+        for (int i = 0; i <= EntityCacheRelay.MAX_PENDING; i++) {
+            _relay.invalidated(i % 2 == 0 ? "host" : "data_center", Integer.toString(i));
+        }
+        _relay.publishPending();
+
+        Assert.assertTrue(broadcasts(1).get(0).contains("7:1\\nhost\\ndata_center"));
+    }
+
+    @Test
+    public void testMissedMessageDropsAllRows() {
+        EntityCache hosts = EntityCache.create("test.relay.host", Arrays.asList("test_relay_host"), 1024, -1);
+        EntityCache zones = EntityCache.create("test.relay.zone", Arrays.asList("test_relay_zone"), 1024, -1);
+        hosts.put("1", new byte[] {1}, hosts.getGeneration());
+        hosts.put("2", new byte[] {2}, hosts.getGeneration());
+        zones.put("1", new byte[] {1}, zones.getGeneration());
+
+        _relay.receive("3:1\ntest_relay_host:1");
+        Assert.assertNull(hosts.get("1"));
+        Assert.assertNotNull(hosts.get("2"));
+        Assert.assertNotNull(zones.get("1"));
+
+        // message 2 of management server 3 was lost
+        _relay.receive("3:3\ntest_relay_host:3");
+        Assert.assertNull(hosts.get("2"));
+        Assert.assertNull(zones.get("1"));
+
+        zones.put("1", new byte[] {1}, zones.getGeneration());
+        _relay.receive("3:4\ntest_relay_host:4");
+        // a restarted management server numbers its messages from 1 again
+        _relay.receive("3:1\ntest_relay_host:5");
+        Assert.assertNotNull(zones.get("1"));
+    }
+}
@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage.snapshot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cloud.storage.snapshot.SnapshotAdmissionController.Candidate;
+import com.cloud.storage.snapshot.SnapshotAdmissionController.PoolStats;
+import com.cloud.utils.DateUtil.IntervalType;
+
+public class SnapshotAdmissionControllerTest {
+    private static final long NOW = 1000000L;
+
+    private static Candidate candidate(long scheduleId, long poolId, long zoneId, IntervalType type, long scheduledAt) {
+        return new Candidate(scheduleId, poolId, zoneId, type, new Date(scheduledAt));
+    }
+
+    private static List<Long> ids(List<Candidate> candidates) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Candidate candidate : candidates) {
+            ids.add(candidate.getScheduleId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void admitsUpToThePoolLimitCountingRunningSnapshots() {
+        SnapshotAdmissionController controller = new SnapshotAdmissionController(4, 0);
+        List<Candidate> due = new ArrayList<Candidate>();
+        for (long i = 1; i <= 6; i++) {
+            due.add(candidate(i, 1, 1, IntervalType.HOURLY, NOW));
+        }
+        due.add(candidate(7, 2, 1, IntervalType.HOURLY, NOW));
+        Map<Long, Integer> running = new HashMap<Long, Integer>();
+        running.put(1L, 1);
+
+        List<Candidate> admitted = controller.admit(due, running, Collections.<Long, Integer> emptyMap(), NOW);
+
+        assertEquals(4, admitted.size());
+        assertEquals(3, controller.getPoolStats().get(1L).getQueueDepth());
+        assertEquals(0, controller.getPoolStats().get(2L).getQueueDepth());
+    }
+
+    @Test
+    public void admitsUpToTheZoneLimit() {
+        SnapshotAdmissionController controller = new SnapshotAdmissionController(0, 2);
+        List<Candidate> due = new ArrayList<Candidate>();
+        due.add(candidate(1, 1, 1, IntervalType.DAILY, NOW));
+        due.add(candidate(2, 2, 1, IntervalType.DAILY, NOW));
+        due.add(candidate(3, 3, 1, IntervalType.DAILY, NOW));
+        due.add(candidate(4, 4, 2, IntervalType.DAILY, NOW));
+
+        List<Candidate> admitted = controller.admit(due, Collections.<Long, Integer> emptyMap(), Collections.<Long, Integer> emptyMap(), NOW);
+
+        assertEquals(3, admitted.size());
+        assertEquals(1, controller.getPoolStats().get(3L).getQueueDepth());
+    }
+
+    @Test
+    public void hourlyPoliciesGoFirstThenOldestFirst() {
+        SnapshotAdmissionController controller = new SnapshotAdmissionController(2, 0);
+        List<Candidate> due = new ArrayList<Candidate>();
+        due.add(candidate(1, 1, 1, IntervalType.MONTHLY, NOW - 5000));
+        due.add(candidate(2, 1, 1, IntervalType.DAILY, NOW - 1000));
+        due.add(candidate(3, 1, 1, IntervalType.HOURLY, NOW));
+        due.add(candidate(4, 1, 1, IntervalType.DAILY, NOW - 2000));
+
+        List<Candidate> admitted = controller.admit(due, Collections.<Long, Integer> emptyMap(), Collections.<Long, Integer> emptyMap(), NOW);
+
+        assertEquals(2, admitted.size());
+        assertEquals(Long.valueOf(3), ids(admitted).get(0));
+        assertEquals(Long.valueOf(4), ids(admitted).get(1));
+    }
+
+    @Test
+    public void waitTimesAreKeptPerPool() {
+        SnapshotAdmissionController controller = new SnapshotAdmissionController(0, 0);
+        List<Candidate> due = new ArrayList<Candidate>();
+        due.add(candidate(1, 1, 1, IntervalType.HOURLY, NOW - 3000));
+        due.add(candidate(2, 1, 1, IntervalType.HOURLY, NOW - 1000));
+
+        controller.admit(due, Collections.<Long, Integer> emptyMap(), Collections.<Long, Integer> emptyMap(), NOW);
+
+        PoolStats stats = controller.getPoolStats().get(1L);
+        assertEquals(2, stats.getAdmitted());
+        assertEquals(2000, stats.getAverageWaitMs());
+        assertEquals(3000, stats.getMaxWaitMs());
+        assertEquals(0, stats.getQueueDepth());
+    }
+}
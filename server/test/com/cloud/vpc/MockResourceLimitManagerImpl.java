@@ -27,6 +27,7 @@ import org.springframework.stereotype.Component;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.configuration.ResourceCount;
 import com.cloud.configuration.ResourceLimit;
+import com.cloud.configuration.ResourceReservation;
 import com.cloud.domain.Domain;
 import com.cloud.exception.ResourceAllocationException;
 import com.cloud.user.Account;
@@ -116,6 +117,33 @@ public class MockResourceLimitManagerImpl extends ManagerBase implements Resourc
 
     }
 
+    /* (non-Javadoc)
+     * @see com.cloud.user.ResourceLimitService#reserveResource(com.cloud.user.Account, com.cloud.configuration.Resource.ResourceType, long)
+     */
+    @Override
+    public ResourceReservation reserveResource(Account account, ResourceType type, long amount) throws ResourceAllocationException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.cloud.user.ResourceLimitService#commitReservation(com.cloud.configuration.ResourceReservation)
+     */
+    @Override
+    public void commitReservation(ResourceReservation reservation) {
+        // TODO Auto-generated method stub
+
+    }
+
+    /* (non-Javadoc)
+     * @see com.cloud.user.ResourceLimitService#releaseReservation(com.cloud.configuration.ResourceReservation)
+     */
+    @Override
+    public void releaseReservation(ResourceReservation reservation) {
+        // TODO Auto-generated method stub
+
+    }
+
     /* (non-Javadoc)
      * @see com.cloud.user.ResourceLimitService#countCpusForAccount(long)
      */
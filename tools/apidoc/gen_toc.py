@@ -84,6 +84,7 @@ known_categories = {
     'SystemVm': 'System VM',
     'Configuration': 'Configuration',
     'Capabilities': 'Configuration',
+    'SqlStatementStats': 'Configuration',
     'Pod': 'Pod',
     'PublicIpRange': 'Network',
     'Zone': 'Zone',
@@ -415,7 +415,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             Map<String, UsageNetworkVO> networkStats = null;
             List<VmDiskStatisticsVO> vmDiskStats = null;
             Map<String, UsageVmDiskVO> vmDiskUsages = null;
+            // the cloud db is only read here, so these searches may go to its read replica
             TransactionLegacy userTxn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
+            TransactionLegacy.beginReadOnly();
             try {
                 Long limit = Long.valueOf(500);
                 Long offset = Long.valueOf(0);
@@ -546,6 +548,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 } while ((vmDiskStats != null) && !vmDiskStats.isEmpty());
 
             } finally {
+                TransactionLegacy.endReadOnly();
                 userTxn.close();
             }
 
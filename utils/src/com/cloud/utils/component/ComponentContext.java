@@ -17,9 +17,15 @@
 
 package com.cloud.utils.component;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
@@ -27,6 +33,7 @@ import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.naming.ConfigurationException;
 
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.log4j.Logger;
 import org.springframework.aop.framework.Advised;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
@@ -35,6 +42,8 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.annotation.Primary;
 
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.mgmt.ManagementBean;
 
@@ -52,6 +61,22 @@ public class ComponentContext implements ApplicationContextAware {
     private static Map<Class<?>, ApplicationContext> s_appContextDelegates;
     private static boolean s_initializeBeans = true;
 
+    /**
+     * System property with the number of threads configuring and starting the components of a run level, 1 runs
+     * them one at a time as before. Run levels with a component not annotated with StartAfter always run one at
+     * a time.
+     */
+    public static final String STARTUP_THREADS_PROPERTY = "cloud.startup.threads";
+    /**
+     * System property deferring the tasks handed to runAfterStartup until every component has started
+     */
+    public static final String DEFER_STARTUP_TASKS_PROPERTY = "cloud.startup.defer.tasks";
+    private static final int STARTUP_REPORT_SIZE = 20;
+
+    private static final ComponentStartupProfiler s_startupProfiler = new ComponentStartupProfiler();
+    private static final List<Pair<String, Runnable>> s_deferredTasks = new ArrayList<Pair<String, Runnable>>();
+    private static boolean s_started = false;
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) {
         s_logger.info("Setup Spring Application context");
@@ -97,56 +122,144 @@ public class ComponentContext implements ApplicationContextAware {
             }
         }
 
+        ComponentStartupScheduler scheduler = new ComponentStartupScheduler(Integer.getInteger(STARTUP_THREADS_PROPERTY, 1));
+        s_logger.info("Configuring and starting components on " + scheduler.getThreads() + " thread(s) per run level, run levels with components not annotated with StartAfter on one");
+
         // configuration phase
-        Map<String, String> avoidMap = new HashMap<String, String>();
+        long phaseStart = System.currentTimeMillis();
+        Set<String> done = new HashSet<String>();
         for (int i = 0; i < ComponentLifecycle.MAX_RUN_LEVELS; i++) {
-            for (Map.Entry<String, ComponentLifecycle> entry : classifiedComponents[i].entrySet()) {
-                ComponentLifecycle component = entry.getValue();
-                String implClassName = ComponentContext.getTargetClass(component).getName();
-                s_logger.info("Configuring " + implClassName);
-
-                if (avoidMap.containsKey(implClassName)) {
-                    s_logger.info("Skip configuration of " + implClassName + " as it is already configured");
-                    continue;
-                }
-
-                try {
-                    component.configure(component.getName(), component.getConfigParams());
-                } catch (ConfigurationException e) {
-                    s_logger.error("Unhandled exception", e);
-                    throw new RuntimeException("Unable to configure " + implClassName, e);
+            scheduler.run(selectComponents(classifiedComponents[i], done, "configuration", "configured"), new ComponentStartupScheduler.Phase() {
+                @Override
+                public void run(ComponentLifecycle component) {
+                    String implClassName = ComponentContext.getTargetClass(component).getName();
+                    s_logger.info("Configuring " + implClassName);
+
+                    long start = System.currentTimeMillis();
+                    try {
+                        component.configure(component.getName(), component.getConfigParams());
+                    } catch (ConfigurationException e) {
+                        s_logger.error("Unhandled exception", e);
+                        throw new RuntimeException("Unable to configure " + implClassName, e);
+                    }
+                    s_startupProfiler.record("configure", implClassName, System.currentTimeMillis() - start);
                 }
-
-                avoidMap.put(implClassName, implClassName);
-            }
+            });
         }
+        s_startupProfiler.recordPhase("configure", System.currentTimeMillis() - phaseStart);
 
         // starting phase
-        avoidMap.clear();
+        phaseStart = System.currentTimeMillis();
+        done.clear();
         for (int i = 0; i < ComponentLifecycle.MAX_RUN_LEVELS; i++) {
-            for (Map.Entry<String, ComponentLifecycle> entry : classifiedComponents[i].entrySet()) {
-                ComponentLifecycle component = entry.getValue();
-                String implClassName = ComponentContext.getTargetClass(component).getName();
-                s_logger.info("Starting " + implClassName);
-
-                if (avoidMap.containsKey(implClassName)) {
-                    s_logger.info("Skip configuration of " + implClassName + " as it is already configured");
-                    continue;
+            scheduler.run(selectComponents(classifiedComponents[i], done, "start", "started"), new ComponentStartupScheduler.Phase() {
+                @Override
+                public void run(ComponentLifecycle component) {
+                    String implClassName = ComponentContext.getTargetClass(component).getName();
+                    s_logger.info("Starting " + implClassName);
+
+                    long start = System.currentTimeMillis();
+                    try {
+                        component.start();
+
+                        if (getTargetObject(component) instanceof ManagementBean)
+                            registerMBean((ManagementBean)getTargetObject(component));
+                    } catch (Exception e) {
+                        s_logger.error("Unhandled exception", e);
+                        throw new RuntimeException("Unable to start " + implClassName, e);
+                    }
+                    s_startupProfiler.record("start", implClassName, System.currentTimeMillis() - start);
                 }
+            });
+        }
+        s_startupProfiler.recordPhase("start", System.currentTimeMillis() - phaseStart);
 
-                try {
-                    component.start();
+        componentsStarted();
+    }
 
-                    if (getTargetObject(component) instanceof ManagementBean)
-                        registerMBean((ManagementBean)getTargetObject(component));
-                } catch (Exception e) {
-                    s_logger.error("Unhandled exception", e);
-                    throw new RuntimeException("Unable to start " + implClassName, e);
-                }
+    /**
+     * Called once every component has started, logs the startup report and
+     * runs the tasks deferred by runAfterStartup().
+     */
+    public static void componentsStarted() {
+        s_logger.info(s_startupProfiler.report(STARTUP_REPORT_SIZE));
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(s_startupProfiler.report(0));
+        }
+
+        runDeferredTasks();
+    }
+
+    /**
+     * @return the components of the run level whose class was not handled yet
+     */
+    private static List<ComponentLifecycle> selectComponents(Map<String, ComponentLifecycle> components, Set<String> done, String action,
+        String state) {
+        List<ComponentLifecycle> selected = new ArrayList<ComponentLifecycle>();
+        for (Map.Entry<String, ComponentLifecycle> entry : components.entrySet()) {
+            String implClassName = ComponentContext.getTargetClass(entry.getValue()).getName();
+            if (!done.add(implClassName)) {
+                s_logger.info("Skip " + action + " of " + implClassName + " as it is already " + state);
+                continue;
+            }
+            selected.add(entry.getValue());
+        }
+        return selected;
+    }
 
-                avoidMap.put(implClassName, implClassName);
+    /**
+     * Runs work a component does not need done before the management server
+     * serves requests, such as cleanup scans over large tables. While the
+     * components are starting and the cloud.startup.defer.tasks system
+     * property is set, the task is queued and runs on a background thread
+     * once every component has started, otherwise it runs right away on the
+     * calling thread.
+     */
+    public static void runAfterStartup(String name, Runnable task) {
+        synchronized (s_deferredTasks) {
+            if (!s_started && Boolean.getBoolean(DEFER_STARTUP_TASKS_PROPERTY)) {
+                s_logger.info("Deferring " + name + " until every component has started");
+                s_deferredTasks.add(new Pair<String, Runnable>(name, task));
+                return;
             }
         }
+        task.run();
+    }
+
+    private static void runDeferredTasks() {
+        final List<Pair<String, Runnable>> tasks;
+        synchronized (s_deferredTasks) {
+            s_started = true;
+            tasks = new ArrayList<Pair<String, Runnable>>(s_deferredTasks);
+            s_deferredTasks.clear();
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("DeferredStartupTasks"));
+        executor.execute(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                long phaseStart = System.currentTimeMillis();
+                for (Pair<String, Runnable> task : tasks) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        task.second().run();
+                    } catch (Throwable e) {
+                        s_logger.warn("Deferred startup task " + task.first() + " failed", e);
+                    }
+                    s_startupProfiler.record("deferred", task.first(), System.currentTimeMillis() - start);
+                }
+                s_startupProfiler.recordPhase("deferred", System.currentTimeMillis() - phaseStart);
+                s_logger.info("Ran " + tasks.size() + " deferred startup tasks in " + (System.currentTimeMillis() - phaseStart) + "ms");
+            }
+        });
+        executor.shutdown();
+    }
+
+    public static ComponentStartupProfiler getStartupProfiler() {
+        return s_startupProfiler;
     }
 
     static void registerMBean(ManagementBean mbean) {
@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects how long each component took to configure and to start, and how
+ * long each phase took as a whole, for the report ComponentContext logs once
+ * the components are up.
+ */
+public class ComponentStartupProfiler {
+
+    public static class Timing {
+        private final String _phase;
+        private final String _component;
+        private final long _millis;
+
+        public Timing(String phase, String component, long millis) {
+            _phase = phase;
+            _component = component;
+            _millis = millis;
+        }
+
+        public String getPhase() {
+            return _phase;
+        }
+
+        public String getComponent() {
+            return _component;
+        }
+
+        public long getMillis() {
+            return _millis;
+        }
+    }
+
+    private final List<Timing> _timings = new ArrayList<Timing>();
+    private final Map<String, Long> _phases = new LinkedHashMap<String, Long>();
+
+    public synchronized void record(String phase, String component, long millis) {
+        _timings.add(new Timing(phase, component, millis));
+    }
+
+    /**
+     * Adds to the time spent in the phase, which runs once per module context in the management server
+     */
+    public synchronized void recordPhase(String phase, long millis) {
+        Long total = _phases.get(phase);
+        _phases.put(phase, total != null ? total + millis : millis);
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(_phases);
+    }
+
+    /**
+     * @return the timings of the phase, slowest first
+     */
+    public synchronized List<Timing> getTimings(String phase) {
+        List<Timing> timings = new ArrayList<Timing>();
+        for (Timing timing : _timings) {
+            if (timing.getPhase().equals(phase)) {
+                timings.add(timing);
+            }
+        }
+        Collections.sort(timings, new Comparator<Timing>() {
+            @Override
+            public int compare(Timing t1, Timing t2) {
+                return t1.getMillis() < t2.getMillis() ? 1 : t1.getMillis() > t2.getMillis() ? -1 : 0;
+            }
+        });
+        return timings;
+    }
+
+    /**
+     * @param limit the number of components listed per phase, 0 lists all of them
+     */
+    public String report(int limit) {
+        StringBuilder report = new StringBuilder("Component startup report:");
+        for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+            List<Timing> timings = getTimings(phase.getKey());
+            long total = 0;
+            for (Timing timing : timings) {
+                total += timing.getMillis();
+            }
+            report.append("\n  ").append(phase.getKey()).append(": ").append(phase.getValue()).append("ms for ").append(timings.size())
+                .append(" components, ").append(total).append("ms spent in them");
+            int count = limit > 0 ? Math.min(limit, timings.size()) : timings.size();
+            for (int i = 0; i < count; i++) {
+                report.append("\n    ").append(timings.get(i).getMillis()).append("ms ").append(timings.get(i).getComponent());
+            }
+        }
+        return report.toString();
+    }
+}
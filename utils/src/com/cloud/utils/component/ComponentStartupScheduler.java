@@ -0,0 +1,219 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.component;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs one lifecycle phase, configure or start, over the components of one
+ * run level. A component is only handed to the phase once the components of
+ * the run level it declares with StartAfter are done, the others run on up
+ * to the given number of threads. With a single thread, or when a component
+ * of the run level does not declare what it waits for, every component runs
+ * in turn on the calling thread in the order given.
+ */
+public class ComponentStartupScheduler {
+
+    public interface Phase {
+        void run(ComponentLifecycle component);
+    }
+
+    private final int _threads;
+
+    public ComponentStartupScheduler(int threads) {
+        _threads = Math.max(1, threads);
+    }
+
+    public int getThreads() {
+        return _threads;
+    }
+
+    public void run(List<ComponentLifecycle> components, Phase phase) {
+        List<Integer>[] dependents = getDependents(components);
+        List<Integer> order = order(components, dependents);
+        if (_threads == 1 || components.size() < 2 || !isDeclared(components)) {
+            for (int i : order) {
+                phase.run(components.get(i));
+            }
+            return;
+        }
+        runParallel(components, dependents, phase);
+    }
+
+    /**
+     * @return whether every component declares the components of its run level it waits for
+     */
+    static boolean isDeclared(List<ComponentLifecycle> components) {
+        for (ComponentLifecycle component : components) {
+            if (!ComponentContext.getTargetClass(component).isAnnotationPresent(StartAfter.class)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return for each component the positions of the components waiting for it
+     */
+    @SuppressWarnings("unchecked")
+    static List<Integer>[] getDependents(List<ComponentLifecycle> components) {
+        int count = components.size();
+        Class<?>[] classes = new Class<?>[count];
+        List<Integer>[] dependents = new List[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = ComponentContext.getTargetClass(components.get(i));
+            dependents[i] = new ArrayList<Integer>();
+        }
+        for (int i = 0; i < count; i++) {
+            StartAfter startAfter = classes[i].getAnnotation(StartAfter.class);
+            if (startAfter == null) {
+                continue;
+            }
+            for (int j = 0; j < count; j++) {
+                if (i == j) {
+                    continue;
+                }
+                for (Class<?> type : startAfter.value()) {
+                    if (type.isAssignableFrom(classes[j])) {
+                        dependents[j].add(i);
+                        break;
+                    }
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * @return the positions of the components in an order that has every component after the ones it waits for,
+     *         components not waiting on each other keep their relative order
+     */
+    static List<Integer> order(List<ComponentLifecycle> components, List<Integer>[] dependents) {
+        int count = components.size();
+        int[] pending = countPending(dependents);
+        List<Integer> order = new ArrayList<Integer>(count);
+        boolean[] done = new boolean[count];
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < count; i++) {
+                if (!done[i] && pending[i] == 0) {
+                    done[i] = true;
+                    order.add(i);
+                    for (int dependent : dependents[i]) {
+                        pending[dependent]--;
+                    }
+                    progress = true;
+                    break;
+                }
+            }
+        }
+        if (order.size() < count) {
+            StringBuilder cycle = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (!done[i]) {
+                    cycle.append(cycle.length() > 0 ? ", " : "").append(ComponentContext.getTargetClass(components.get(i)).getName());
+                }
+            }
+            throw new RuntimeException("Circular StartAfter declarations between " + cycle);
+        }
+        return order;
+    }
+
+    private static int[] countPending(List<Integer>[] dependents) {
+        int[] pending = new int[dependents.length];
+        for (List<Integer> waiting : dependents) {
+            for (int dependent : waiting) {
+                pending[dependent]++;
+            }
+        }
+        return pending;
+    }
+
+    private void runParallel(final List<ComponentLifecycle> components, List<Integer>[] dependents, final Phase phase) {
+        int[] pending = countPending(dependents);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_threads, components.size()), new NamedThreadFactory("ComponentStartup"));
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+        try {
+            LinkedList<Integer> ready = new LinkedList<Integer>();
+            for (int i = 0; i < components.size(); i++) {
+                if (pending[i] == 0) {
+                    ready.add(i);
+                }
+            }
+
+            int running = 0;
+            RuntimeException failure = null;
+            while (!ready.isEmpty() || running > 0) {
+                while (failure == null && !ready.isEmpty()) {
+                    final int position = ready.removeFirst();
+                    completion.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            new ManagedContextRunnable() {
+                                @Override
+                                protected void runInContext() {
+                                    phase.run(components.get(position));
+                                }
+                            }.run();
+                            return position;
+                        }
+                    });
+                    running++;
+                }
+                if (running == 0) {
+                    break;
+                }
+
+                Future<Integer> done = completion.take();
+                running--;
+                try {
+                    for (int dependent : dependents[done.get()]) {
+                        if (--pending[dependent] == 0) {
+                            ready.add(dependent);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    // let the components already running finish, but do not start any more of them
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for components to finish", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.component;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the components a component has to be configured and started
+ * after. Only components of the same run level are waited for, components
+ * of lower run levels are always done first and components of higher run
+ * levels always later.
+ *
+ * A run level is only configured and started in parallel when every one of
+ * its components carries the annotation, so that none of them depends on
+ * another without saying so. A component depending on no other component
+ * of its run level is annotated without types.
+ */
+@Target(TYPE)
+@Retention(RUNTIME)
+@Inherited
+public @interface StartAfter {
+    /**
+     * @return the types of the components to wait for, every component of the run level implementing one of them
+     *         is waited for
+     */
+    Class<?>[] value() default {};
+}
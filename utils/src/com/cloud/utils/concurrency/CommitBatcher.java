@@ -0,0 +1,247 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.exception.ExecutionException;
+
+/**
+ * Merges the configuration changes queued for a device into one candidate
+ * configuration and one commit.
+ *
+ * Callers submit their changes and block until the commit carrying them is
+ * over. The first caller to find no commit running becomes the committer:
+ * it waits up to the batching window for more changes, applies every queued
+ * change on top of one begin and commits them together, while the changes
+ * arriving meanwhile queue up for the next commit. If a merged commit fails,
+ * the device is rolled back and the changes are committed one at a time, so
+ * that each caller learns the outcome of its own change.
+ */
+public class CommitBatcher {
+    private static final Logger s_logger = Logger.getLogger(CommitBatcher.class);
+
+    /**
+     * One caller's edits to the candidate configuration.
+     */
+    public interface Change {
+        void apply() throws ExecutionException;
+    }
+
+    /**
+     * The device the changes are committed to.
+     */
+    public interface Device {
+        /**
+         * Opens a candidate configuration the changes are applied to.
+         */
+        void begin() throws ExecutionException;
+
+        void commit() throws ExecutionException;
+
+        /**
+         * Drops whatever was applied since begin.
+         */
+        void rollback();
+    }
+
+    private static class Ticket {
+        final Change change;
+        boolean done;
+        ExecutionException failure;
+
+        Ticket(Change change) {
+            this.change = change;
+        }
+    }
+
+    private final String _name;
+    private final Device _device;
+    private final long _windowMs;
+    private final int _maxBatchSize;
+
+    private final Object _lock = new Object();
+    private final LinkedList<Ticket> _queue = new LinkedList<Ticket>();
+    private boolean _committing;
+
+    private long _commitCount;
+    private long _changeCount;
+    private long _failedBatchCount;
+    private int _maxBatch;
+
+    public CommitBatcher(String name, Device device, long windowMs, int maxBatchSize) {
+        _name = name;
+        _device = device;
+        _windowMs = windowMs;
+        _maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Applies and commits the change, possibly together with the changes of other callers.
+     *
+     * @throws ExecutionException the reason the change could not be applied or committed
+     */
+    public void submit(Change change) throws ExecutionException {
+        Ticket ticket = new Ticket(change);
+        boolean interrupted = false;
+        try {
+            synchronized (_lock) {
+                _queue.add(ticket);
+                _lock.notifyAll();
+            }
+
+            while (true) {
+                List<Ticket> batch;
+                synchronized (_lock) {
+                    while (!ticket.done && _committing) {
+                        try {
+                            _lock.wait();
+                        } catch (InterruptedException e) {
+                            // the change is queued already, it has to be waited for
+                            interrupted = true;
+                        }
+                    }
+                    if (ticket.done) {
+                        break;
+                    }
+
+                    _committing = true;
+                    long deadline = System.currentTimeMillis() + _windowMs;
+                    long remaining;
+                    while (_queue.size() < _maxBatchSize && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            _lock.wait(remaining);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                            break;
+                        }
+                    }
+                    batch = new ArrayList<Ticket>();
+                    while (!_queue.isEmpty() && batch.size() < _maxBatchSize) {
+                        batch.add(_queue.removeFirst());
+                    }
+                }
+
+                try {
+                    commit(batch);
+                } finally {
+                    synchronized (_lock) {
+                        for (Ticket committed : batch) {
+                            committed.done = true;
+                        }
+                        _committing = false;
+                        _lock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (ticket.failure != null) {
+            throw ticket.failure;
+        }
+    }
+
+    private void commit(List<Ticket> batch) {
+        long start = System.currentTimeMillis();
+        try {
+            apply(batch);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Committed " + batch.size() + " changes to " + _name + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (ExecutionException e) {
+            if (batch.size() == 1) {
+                batch.get(0).failure = e;
+                return;
+            }
+
+            s_logger.warn("Failed to commit " + batch.size() + " changes to " + _name + " together due to " + e.getMessage() + ", committing them one by one");
+            synchronized (_lock) {
+                _failedBatchCount++;
+            }
+            for (Ticket ticket : batch) {
+                try {
+                    apply(ticket);
+                } catch (ExecutionException ex) {
+                    ticket.failure = ex;
+                }
+            }
+        }
+    }
+
+    private void apply(List<Ticket> batch) throws ExecutionException {
+        synchronized (_lock) {
+            _commitCount++;
+            _changeCount += batch.size();
+            _maxBatch = Math.max(_maxBatch, batch.size());
+        }
+        try {
+            _device.begin();
+        } catch (RuntimeException e) {
+            throw new ExecutionException("Failed to open a candidate configuration on " + _name + " due to " + e, e);
+        }
+        try {
+            for (Ticket ticket : batch) {
+                ticket.change.apply();
+            }
+            _device.commit();
+        } catch (ExecutionException e) {
+            _device.rollback();
+            throw e;
+        } catch (RuntimeException e) {
+            _device.rollback();
+            throw new ExecutionException("Failed to apply changes to " + _name + " due to " + e, e);
+        }
+    }
+
+    private void apply(Ticket ticket) throws ExecutionException {
+        List<Ticket> single = new ArrayList<Ticket>(1);
+        single.add(ticket);
+        apply(single);
+    }
+
+    public long getCommitCount() {
+        synchronized (_lock) {
+            return _commitCount;
+        }
+    }
+
+    public long getChangeCount() {
+        synchronized (_lock) {
+            return _changeCount;
+        }
+    }
+
+    public long getFailedBatchCount() {
+        synchronized (_lock) {
+            return _failedBatchCount;
+        }
+    }
+
+    public int getMaxBatchSize() {
+        synchronized (_lock) {
+            return _maxBatch;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs commands through a few long lived bash workers instead of forking
+ * the JVM for every one of them. Scripts opt in with
+ * Script.setUseCommandRunner(), which suits the short commands agents run
+ * over and over: iptables, ovs-vsctl, qemu-img info, mount checks.
+ *
+ * Each command is written to an idle worker as one line and runs in a
+ * subshell, so cd, exit or variables it sets do not leak into the next
+ * one. The subshell prints a start marker and the worker prints an end
+ * marker with the exit value. Both markers are unique to the request, so
+ * the output in between is the command output. Workers are started with
+ * setsid, which makes each of them the leader of its own process group. A
+ * worker whose command times out is killed together with that whole group,
+ * including anything the command left running in the background, and
+ * replaced.
+ *
+ * The number of workers comes from the script.runner.workers system
+ * property, 4 by default. When all of them are busy, or when the property
+ * is 0, execute() returns null and the caller forks as usual.
+ */
+public class CommandRunner {
+    private static final Logger s_logger = Logger.getLogger(CommandRunner.class);
+
+    private static final String BASH = "/bin/bash";
+    private static final long ACQUIRE_WAIT_MS = 50;
+
+    private static volatile CommandRunner s_instance;
+
+    public static class Result {
+        private final int _exitValue;
+        private final String _output;
+        private final boolean _timedOut;
+
+        Result(int exitValue, String output, boolean timedOut) {
+            _exitValue = exitValue;
+            _output = output;
+            _timedOut = timedOut;
+        }
+
+        public int getExitValue() {
+            return _exitValue;
+        }
+
+        /**
+         * @return stdout and stderr of the command, interleaved as they were written
+         */
+        public String getOutput() {
+            return _output;
+        }
+
+        public boolean isTimedOut() {
+            return _timedOut;
+        }
+    }
+
+    private final int _maxWorkers;
+    private final AtomicInteger _workers = new AtomicInteger();
+    private final BlockingQueue<Worker> _idleWorkers = new LinkedBlockingQueue<Worker>();
+    private final ScheduledExecutorService _timeoutExecutor;
+
+    public static CommandRunner getInstance() {
+        if (s_instance == null) {
+            synchronized (CommandRunner.class) {
+                if (s_instance == null) {
+                    s_instance = new CommandRunner(NumbersUtil.parseInt(System.getProperty("script.runner.workers"), 4));
+                }
+            }
+        }
+        return s_instance;
+    }
+
+    public CommandRunner(int maxWorkers) {
+        _maxWorkers = maxWorkers;
+        _timeoutExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("CommandRunnerTimeout"));
+    }
+
+    /**
+     * @return the result of the command, null if no worker was available and the command did not run
+     */
+    public Result execute(String[] command, String workDir, long timeoutMs) {
+        Worker worker = acquire();
+        if (worker == null) {
+            return null;
+        }
+
+        boolean healthy = false;
+        try {
+            Result result = worker.run(buildCommandLine(command, workDir), timeoutMs);
+            healthy = !result.isTimedOut() && worker.isAlive();
+            return result;
+        } catch (IOException e) {
+            s_logger.warn("Command runner worker failed before running " + command[0] + ", retiring it", e);
+            return null;
+        } finally {
+            release(worker, healthy);
+        }
+    }
+
+    public int getWorkerCount() {
+        return _workers.get();
+    }
+
+    /**
+     * Stops the idle workers, busy ones are stopped as they finish.
+     */
+    public void shutdown() {
+        Worker worker;
+        while ((worker = _idleWorkers.poll()) != null) {
+            worker.destroy();
+            _workers.decrementAndGet();
+        }
+    }
+
+    private Worker acquire() {
+        Worker worker = _idleWorkers.poll();
+        if (worker != null) {
+            return worker;
+        }
+        if (_workers.incrementAndGet() <= _maxWorkers) {
+            try {
+                return new Worker();
+            } catch (IOException e) {
+                _workers.decrementAndGet();
+                s_logger.warn("Unable to start a command runner worker", e);
+                return null;
+            }
+        }
+        _workers.decrementAndGet();
+        try {
+            return _idleWorkers.poll(ACQUIRE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void release(Worker worker, boolean healthy) {
+        if (healthy) {
+            _idleWorkers.offer(worker);
+        } else {
+            worker.destroy();
+            _workers.decrementAndGet();
+        }
+    }
+
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    static String buildCommandLine(String[] command, String workDir) {
+        StringBuilder builder = new StringBuilder();
+        if (workDir != null) {
+            builder.append("cd ").append(quote(workDir)).append(" && ");
+        }
+        if (command.length == 3 && command[0].equals(BASH) && command[1].equals("-c")) {
+            // the subshell is a bash already, no need to start another one
+            builder.append("eval ").append(quote(command[2]));
+        } else {
+            builder.append("exec");
+            for (String arg : command) {
+                builder.append(' ').append(quote(arg));
+            }
+        }
+        return builder.toString();
+    }
+
+    private class Worker {
+        private final Process _process;
+        private final Writer _input;
+        private final BufferedReader _output;
+
+        private final String _pgid;
+
+        // state of the command being run, guarded by the worker
+        private boolean _done;
+        private boolean _timedOut;
+
+        Worker() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder("setsid", BASH, "--noprofile", "--norc");
+            pb.redirectErrorStream(true);
+            _process = pb.start();
+            ScriptMetrics.forked();
+            _input = new BufferedWriter(new OutputStreamWriter(_process.getOutputStream()));
+            _output = new BufferedReader(new InputStreamReader(_process.getInputStream()));
+            // only the commands get to write to stdout, not bash reporting about them
+            _input.write("exec 2>/dev/null; echo $$\n");
+            _input.flush();
+            // setsid execs bash in place, so its pid is the id of the new process group
+            String pgid = _output.readLine();
+            if (pgid == null || !pgid.trim().matches("[0-9]+")) {
+                destroy();
+                throw new IOException("Command runner worker did not start: " + pgid);
+            }
+            _pgid = pgid.trim();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Started command runner worker " + _workers.get() + " of " + _maxWorkers);
+            }
+        }
+
+        Result run(String commandLine, long timeoutMs) throws IOException {
+            String marker = UUID.randomUUID().toString();
+            String startMarker = "@start-" + marker + " ";
+            String endMarker = "@end-" + marker + " ";
+
+            synchronized (this) {
+                _done = false;
+                _timedOut = false;
+            }
+            _input.write("(echo '" + startMarker + "'; " + commandLine + ") </dev/null 2>&1; echo '" + endMarker + "'$?\n");
+            _input.flush();
+
+            ScheduledFuture<?> future = null;
+            if (timeoutMs > 0) {
+                future = _timeoutExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout();
+                    }
+                }, timeoutMs, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                StringBuilder output = new StringBuilder();
+                boolean started = false;
+                String line;
+                while ((line = _output.readLine()) != null) {
+                    if (!started) {
+                        int index = line.indexOf(startMarker);
+                        if (index >= 0) {
+                            started = true;
+                            continue;
+                        }
+                    }
+                    int index = line.indexOf(endMarker);
+                    if (index >= 0) {
+                        // output not ended by a newline shares the line with the marker
+                        output.append(line, 0, index);
+                        synchronized (this) {
+                            _done = true;
+                            return new Result(Integer.parseInt(line.substring(index + endMarker.length()).trim()), output.toString(), _timedOut);
+                        }
+                    }
+                    output.append(line).append('\n');
+                }
+
+                synchronized (this) {
+                    _done = true;
+                    if (!started && !_timedOut) {
+                        throw new IOException("Command runner worker exited before running the command");
+                    }
+                    return new Result(-1, output.toString(), _timedOut);
+                }
+            } finally {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        private synchronized void timeout() {
+            if (_done) {
+                return;
+            }
+            _timedOut = true;
+            // whether or not the subshell got to print its start marker, kill
+            // the worker, the subshell and whatever they started in one go,
+            // which also ends the read in run()
+            try {
+                Process kill = new ProcessBuilder("kill", "-9", "--", "-" + _pgid).start();
+                ScriptMetrics.forked();
+                kill.waitFor();
+            } catch (Exception e) {
+                s_logger.warn("Unable to kill process group " + _pgid + " of timed out command", e);
+            }
+            _process.destroy();
+        }
+
+        boolean isAlive() {
+            try {
+                _process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        void destroy() {
+            try {
+                _input.close();
+            } catch (IOException e) {
+            }
+            try {
+                _output.close();
+            } catch (IOException e) {
+            }
+            try {
+                _process.getErrorStream().close();
+            } catch (IOException e) {
+            }
+            _process.destroy();
+        }
+    }
+}
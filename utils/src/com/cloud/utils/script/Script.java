@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -52,6 +53,7 @@ public class Script implements Callable<String> {
     private volatile boolean _isTimeOut = false;
 
     private boolean _passwordCommand = false;
+    private boolean _useCommandRunner = false;
 
     private static final ScheduledExecutorService s_executors = Executors.newScheduledThreadPool(10, new NamedThreadFactory("Script"));
 
@@ -112,6 +114,14 @@ public class Script implements Callable<String> {
     	_workDir = workDir;
     }
 
+    /**
+     * Runs the script through a CommandRunner worker instead of forking a new process, falling back to forking
+     * when all workers are busy. Meant for short commands run often, the output is kept in memory.
+     */
+    public void setUseCommandRunner(boolean useCommandRunner) {
+        _useCommandRunner = useCommandRunner;
+    }
+
     protected String buildCommandLine(String[] command) {
         StringBuilder builder = new StringBuilder();
         boolean obscureParam = false;
@@ -168,6 +178,57 @@ public class Script implements Callable<String> {
             _logger.debug("Executing: " + buildCommandLine(command));
         }
 
+        long start = System.currentTimeMillis();
+        boolean runner = false;
+        String result = null;
+        try {
+            if (_useCommandRunner) {
+                CommandRunner.Result runnerResult = CommandRunner.getInstance().execute(command, _workDir, _timeout);
+                if (runnerResult != null) {
+                    runner = true;
+                    result = interpret(command, runnerResult, interpreter);
+                    return result;
+                }
+            }
+            result = executeProcess(command, interpreter);
+            return result;
+        } finally {
+            ScriptMetrics.record(ScriptMetrics.getName(command), System.currentTimeMillis() - start, runner, ERR_TIMEOUT.equals(result));
+        }
+    }
+
+    private String interpret(String[] command, CommandRunner.Result result, OutputInterpreter interpreter) {
+        BufferedReader reader = new BufferedReader(new StringReader(result.getOutput()));
+        try {
+            if (result.isTimedOut()) {
+                if (!_passwordCommand) {
+                    _logger.warn("Timed out: " + buildCommandLine(command) + ".  Output is: " + result.getOutput());
+                } else {
+                    _logger.warn("Timed out: " + buildCommandLine(command));
+                }
+                return ERR_TIMEOUT;
+            }
+
+            if (result.getExitValue() == 0) {
+                _logger.debug("Execution is successful.");
+                return interpreter != null ? interpreter.interpret(reader) : "0";
+            }
+
+            _logger.debug("Exit value is " + result.getExitValue());
+            String error = interpreter != null ? interpreter.processError(reader) : String.valueOf(result.getExitValue());
+            if (_logger.isDebugEnabled()) {
+                _logger.debug(error);
+            }
+            return error;
+        } catch (Exception ex) {
+            _logger.warn("Exception: " + buildCommandLine(command), ex);
+            StringWriter writer = new StringWriter();
+            ex.printStackTrace(new PrintWriter(writer));
+            return writer.toString();
+        }
+    }
+
+    private String executeProcess(String[] command, OutputInterpreter interpreter) {
         try {
             ProcessBuilder pb = new ProcessBuilder(command);
             pb.redirectErrorStream(true);
@@ -175,6 +236,7 @@ public class Script implements Callable<String> {
             	pb.directory(new File(_workDir));
             
             _process = pb.start();
+            ScriptMetrics.forked();
             if (_process == null) {
                 _logger.warn("Unable to execute: " + buildCommandLine(command));
                 return "Unable to execute the command: " + command[0];
@@ -466,10 +528,15 @@ public class Script implements Callable<String> {
     }
     
     public static String runSimpleBashScript(String command, int timeout) {
+        return runSimpleBashScript(command, timeout, false);
+    }
+
+    public static String runSimpleBashScript(String command, int timeout, boolean useCommandRunner) {
 
         Script s = new Script("/bin/bash", timeout);
         s.add("-c");
         s.add(command);
+        s.setUseCommandRunner(useCommandRunner);
 
         OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
         if (s.execute(parser) != null)
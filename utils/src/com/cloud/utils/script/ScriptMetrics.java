@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Latency of the scripts run through Script, per script name, and the
+ * number of processes the JVM forked to run them. Commands run by the
+ * CommandRunner do not fork the JVM, only starting its workers does. They
+ * are published through JMX as Script/ScriptMetrics.
+ */
+public class ScriptMetrics {
+    private static final Logger s_logger = Logger.getLogger(ScriptMetrics.class);
+
+    private static final AtomicLong s_forks = new AtomicLong();
+    private static final ConcurrentMap<String, Entry> s_entries = new ConcurrentHashMap<String, Entry>();
+
+    static {
+        try {
+            JmxUtil.registerMBean("Script", "ScriptMetrics", new ScriptMetricsMBeanImpl());
+        } catch (Exception e) {
+            s_logger.error("Unable to register mbean for script metrics", e);
+        }
+    }
+
+    public static class Entry {
+        private long _count;
+        private long _runnerCount;
+        private long _timeouts;
+        private long _totalMs;
+        private long _maxMs;
+
+        synchronized void record(long elapsedMs, boolean runner, boolean timedOut) {
+            _count++;
+            if (runner) {
+                _runnerCount++;
+            }
+            if (timedOut) {
+                _timeouts++;
+            }
+            _totalMs += elapsedMs;
+            _maxMs = Math.max(_maxMs, elapsedMs);
+        }
+
+        public synchronized long getCount() {
+            return _count;
+        }
+
+        /**
+         * @return how many of the runs went through the CommandRunner
+         */
+        public synchronized long getRunnerCount() {
+            return _runnerCount;
+        }
+
+        public synchronized long getTimeouts() {
+            return _timeouts;
+        }
+
+        public synchronized long getAverageMs() {
+            return _count == 0 ? 0 : _totalMs / _count;
+        }
+
+        public synchronized long getMaxMs() {
+            return _maxMs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + _count + ", runner=" + _runnerCount + ", timeouts=" + _timeouts + ", avg=" + getAverageMs() + "ms, max=" + _maxMs + "ms";
+        }
+    }
+
+    static void forked() {
+        s_forks.incrementAndGet();
+    }
+
+    static void record(String name, long elapsedMs, boolean runner, boolean timedOut) {
+        Entry entry = s_entries.get(name);
+        if (entry == null) {
+            s_entries.putIfAbsent(name, new Entry());
+            entry = s_entries.get(name);
+        }
+        entry.record(elapsedMs, runner, timedOut);
+    }
+
+    public static long getForkCount() {
+        return s_forks.get();
+    }
+
+    public static Entry getEntry(String name) {
+        return s_entries.get(name);
+    }
+
+    /**
+     * @return the entries sorted by script name
+     */
+    public static Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(new TreeMap<String, Entry>(s_entries));
+    }
+
+    /**
+     * @return the name a command is accounted under: the basename of the program, leaving out sudo, or of the
+     *         first word of the command line given to bash -c
+     */
+    static String getName(String[] command) {
+        int i = 0;
+        if (command.length > 1 && command[0].equals("sudo")) {
+            i++;
+        }
+        String name = command[i];
+        if (name.endsWith("bash") && command.length > i + 2 && command[i + 1].equals("-c")) {
+            String[] words = command[i + 2].trim().split("\\s+", 2);
+            name = words[0];
+        }
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+}
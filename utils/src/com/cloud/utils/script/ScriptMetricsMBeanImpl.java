@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class ScriptMetricsMBeanImpl extends StandardMBean implements ScriptMetricsMBean {
+
+    public ScriptMetricsMBeanImpl() {
+        super(ScriptMetricsMBean.class, false);
+    }
+
+    @Override
+    public long getForkCount() {
+        return ScriptMetrics.getForkCount();
+    }
+
+    @Override
+    public int getScriptCount() {
+        return ScriptMetrics.getEntries().size();
+    }
+
+    @Override
+    public List<Map<String, String>> getScripts() {
+        List<Map<String, String>> scripts = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, ScriptMetrics.Entry> entry : ScriptMetrics.getEntries().entrySet()) {
+            ScriptMetrics.Entry metrics = entry.getValue();
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", entry.getKey());
+            map.put("count", Long.toString(metrics.getCount()));
+            map.put("runner", Long.toString(metrics.getRunnerCount()));
+            map.put("timeouts", Long.toString(metrics.getTimeouts()));
+            map.put("avgMs", Long.toString(metrics.getAverageMs()));
+            map.put("maxMs", Long.toString(metrics.getMaxMs()));
+            scripts.add(map);
+        }
+        return scripts;
+    }
+
+    @Override
+    public int getRunnerWorkerCount() {
+        return CommandRunner.getInstance().getWorkerCount();
+    }
+}
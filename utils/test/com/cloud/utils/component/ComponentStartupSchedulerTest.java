@@ -0,0 +1,165 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ComponentStartupSchedulerTest {
+
+    @StartAfter
+    static class Database extends ComponentLifecycleBase {
+    }
+
+    @StartAfter
+    static class Cache extends ComponentLifecycleBase {
+    }
+
+    static class Undeclared extends ComponentLifecycleBase {
+    }
+
+    @StartAfter(Database.class)
+    static class Scheduler extends ComponentLifecycleBase {
+    }
+
+    @StartAfter({Scheduler.class, Cache.class})
+    static class Api extends ComponentLifecycleBase {
+    }
+
+    @StartAfter(Looping.class)
+    static class Looping extends ComponentLifecycleBase {
+    }
+
+    @StartAfter(CycleB.class)
+    static class CycleA extends ComponentLifecycleBase {
+    }
+
+    @StartAfter(CycleA.class)
+    static class CycleB extends ComponentLifecycleBase {
+    }
+
+    private static List<String> run(ComponentStartupScheduler scheduler, List<ComponentLifecycle> components) {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.run(components, new ComponentStartupScheduler.Phase() {
+            @Override
+            public void run(ComponentLifecycle component) {
+                started.add(component.getClass().getSimpleName());
+            }
+        });
+        return started;
+    }
+
+    @Test
+    public void testSequentialRunHonoursStartAfter() {
+        List<ComponentLifecycle> components = Arrays.<ComponentLifecycle> asList(new Api(), new Scheduler(), new Cache(), new Database());
+        List<String> started = run(new ComponentStartupScheduler(1), components);
+        assertEquals(Arrays.asList("Cache", "Database", "Scheduler", "Api"), started);
+    }
+
+    @Test
+    public void testDependencyOnItselfIsIgnored() {
+        List<ComponentLifecycle> components = Arrays.<ComponentLifecycle> asList(new Looping(), new Database());
+        assertEquals(Arrays.asList("Looping", "Database"), run(new ComponentStartupScheduler(1), components));
+    }
+
+    @Test
+    public void testCircularDependencyFails() {
+        try {
+            run(new ComponentStartupScheduler(4), Arrays.<ComponentLifecycle> asList(new CycleA(), new Database(), new CycleB()));
+            fail("The circular dependency was not detected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains(CycleA.class.getName()));
+            assertTrue(!e.getMessage().contains(Database.class.getName()));
+        }
+    }
+
+    @Test
+    public void testParallelRunHonoursStartAfter() {
+        List<ComponentLifecycle> components = Arrays.<ComponentLifecycle> asList(new Api(), new Scheduler(), new Cache(), new Database());
+        List<String> started = run(new ComponentStartupScheduler(4), components);
+        assertEquals(4, started.size());
+        assertTrue(started.indexOf("Database") < started.indexOf("Scheduler"));
+        assertTrue(started.indexOf("Scheduler") < started.indexOf("Api"));
+        assertTrue(started.indexOf("Cache") < started.indexOf("Api"));
+    }
+
+    @Test
+    public void testIndependentComponentsRunConcurrently() {
+        // each component waits for the other one to be running, which only completes if both run at once
+        final CountDownLatch latch = new CountDownLatch(2);
+        new ComponentStartupScheduler(2).run(Arrays.<ComponentLifecycle> asList(new Database(), new Cache()), new ComponentStartupScheduler.Phase() {
+            @Override
+            public void run(ComponentLifecycle component) {
+                latch.countDown();
+                try {
+                    if (!latch.await(10, TimeUnit.SECONDS)) {
+                        throw new RuntimeException("Components did not run concurrently");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testUndeclaredComponentKeepsRunLevelSequential() {
+        final Thread caller = Thread.currentThread();
+        final List<String> started = new ArrayList<String>();
+        List<ComponentLifecycle> components = Arrays.<ComponentLifecycle> asList(new Cache(), new Undeclared(), new Database());
+        new ComponentStartupScheduler(4).run(components, new ComponentStartupScheduler.Phase() {
+            @Override
+            public void run(ComponentLifecycle component) {
+                assertEquals(caller, Thread.currentThread());
+                started.add(component.getClass().getSimpleName());
+            }
+        });
+        assertEquals(Arrays.asList("Cache", "Undeclared", "Database"), started);
+    }
+
+    @Test
+    public void testFailureStopsDependents() {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        List<ComponentLifecycle> components = Arrays.<ComponentLifecycle> asList(new Database(), new Scheduler(), new Api(), new Cache());
+        try {
+            new ComponentStartupScheduler(4).run(components, new ComponentStartupScheduler.Phase() {
+                @Override
+                public void run(ComponentLifecycle component) {
+                    if (component instanceof Database) {
+                        throw new RuntimeException("Unable to start Database");
+                    }
+                    started.add(component.getClass().getSimpleName());
+                }
+            });
+            fail("The failure of Database was not reported");
+        } catch (RuntimeException e) {
+            assertEquals("Unable to start Database", e.getMessage());
+        }
+        assertTrue(!started.contains("Scheduler"));
+        assertTrue(!started.contains("Api"));
+    }
+}
@@ -0,0 +1,196 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.cloud.utils.exception.ExecutionException;
+
+public class CommitBatcherTest {
+
+    /**
+     * Keeps a running and a candidate configuration, committing takes a while.
+     */
+    private static class StandInDevice implements CommitBatcher.Device {
+        final List<String> running = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> candidate = new ArrayList<String>();
+        final long commitMs;
+        int commits;
+        boolean open;
+
+        StandInDevice(long commitMs) {
+            this.commitMs = commitMs;
+        }
+
+        @Override
+        public synchronized void begin() throws ExecutionException {
+            if (open) {
+                throw new ExecutionException("Candidate configuration is already open");
+            }
+            open = true;
+            candidate.clear();
+        }
+
+        synchronized void set(String line) throws ExecutionException {
+            if (!open) {
+                throw new ExecutionException("No candidate configuration");
+            }
+            if (line.startsWith("invalid")) {
+                throw new ExecutionException("Syntax error in " + line);
+            }
+            candidate.add(line);
+        }
+
+        @Override
+        public void commit() throws ExecutionException {
+            try {
+                Thread.sleep(commitMs);
+            } catch (InterruptedException e) {
+                throw new ExecutionException("Interrupted");
+            }
+            synchronized (this) {
+                running.addAll(candidate);
+                commits++;
+                open = false;
+            }
+        }
+
+        @Override
+        public synchronized void rollback() {
+            candidate.clear();
+            open = false;
+        }
+    }
+
+    private static CommitBatcher.Change change(final StandInDevice device, final String line) {
+        return new CommitBatcher.Change() {
+            @Override
+            public void apply() throws ExecutionException {
+                device.set(line);
+            }
+        };
+    }
+
+    private static List<Future<String>> submitAll(final CommitBatcher batcher, final StandInDevice device, List<String> lines) {
+        ExecutorService executor = Executors.newFixedThreadPool(lines.size());
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (final String line : lines) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        batcher.submit(change(device, line));
+                        return "ok";
+                    } catch (ExecutionException e) {
+                        return e.getMessage();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    @Test
+    public void testSingleChange() throws Exception {
+        StandInDevice device = new StandInDevice(0);
+        CommitBatcher batcher = new CommitBatcher("device", device, 0, 10);
+        batcher.submit(change(device, "rule 1"));
+        assertEquals(1, device.commits);
+        assertEquals(1, batcher.getCommitCount());
+        assertTrue(device.running.contains("rule 1"));
+    }
+
+    @Test
+    public void testQueuedChangesShareCommits() throws Exception {
+        StandInDevice device = new StandInDevice(50);
+        CommitBatcher batcher = new CommitBatcher("device", device, 20, 100);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            lines.add("rule " + i);
+        }
+        for (Future<String> result : submitAll(batcher, device, lines)) {
+            assertEquals("ok", result.get());
+        }
+        assertEquals(40, device.running.size());
+        assertTrue(device.running.containsAll(lines));
+        assertTrue("commits: " + device.commits, device.commits < 10);
+        assertEquals(40, batcher.getChangeCount());
+    }
+
+    @Test
+    public void testBatchSizeIsBounded() throws Exception {
+        StandInDevice device = new StandInDevice(20);
+        CommitBatcher batcher = new CommitBatcher("device", device, 100, 5);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            lines.add("rule " + i);
+        }
+        for (Future<String> result : submitAll(batcher, device, lines)) {
+            assertEquals("ok", result.get());
+        }
+        assertEquals(20, device.running.size());
+        assertTrue(batcher.getMaxBatchSize() <= 5);
+        assertTrue(device.commits >= 4);
+    }
+
+    @Test
+    public void testFailedChangeOnlyFailsItsCaller() throws Exception {
+        StandInDevice device = new StandInDevice(10);
+        CommitBatcher batcher = new CommitBatcher("device", device, 100, 100);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            lines.add(i == 5 ? "invalid rule" : "rule " + i);
+        }
+        List<Future<String>> results = submitAll(batcher, device, lines);
+        for (int i = 0; i < lines.size(); i++) {
+            if (i == 5) {
+                assertEquals("Syntax error in invalid rule", results.get(i).get());
+            } else {
+                assertEquals("ok", results.get(i).get());
+            }
+        }
+        assertEquals(9, device.running.size());
+        assertTrue(!device.running.contains("invalid rule"));
+    }
+
+    @Test
+    public void testSingleFailure() {
+        StandInDevice device = new StandInDevice(0);
+        CommitBatcher batcher = new CommitBatcher("device", device, 0, 10);
+        try {
+            batcher.submit(change(device, "invalid rule"));
+            fail("The change should have been rejected");
+        } catch (ExecutionException e) {
+            assertEquals("Syntax error in invalid rule", e.getMessage());
+        }
+        assertEquals(0, device.commits);
+        assertTrue(!device.open);
+    }
+}
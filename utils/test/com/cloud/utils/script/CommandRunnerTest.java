@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandRunnerTest {
+    private CommandRunner _runner;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        _runner = new CommandRunner(2);
+    }
+
+    @After
+    public void tearDown() {
+        if (_runner != null) {
+            _runner.shutdown();
+        }
+    }
+
+    private CommandRunner.Result bash(String command, long timeoutMs) {
+        return _runner.execute(new String[] {"/bin/bash", "-c", command}, null, timeoutMs);
+    }
+
+    @Test
+    public void testOutputAndExitValue() {
+        CommandRunner.Result result = _runner.execute(new String[] {"/bin/echo", "it's", "two words"}, null, 10000);
+        assertEquals(0, result.getExitValue());
+        assertEquals("it's two words\n", result.getOutput());
+
+        result = bash("echo error >&2; printf 'no newline'; exit 3", 10000);
+        assertEquals(3, result.getExitValue());
+        assertEquals("error\nno newline", result.getOutput());
+        assertFalse(result.isTimedOut());
+    }
+
+    @Test
+    public void testCommandsAreIsolated() {
+        assertEquals(0, bash("cd /; export RUNNER_TEST=1; exit 0", 10000).getExitValue());
+        CommandRunner.Result result = bash("echo \"$RUNNER_TEST\"; pwd", 10000);
+        assertEquals("\n" + System.getProperty("user.dir") + "\n", result.getOutput());
+
+        result = _runner.execute(new String[] {"pwd"}, "/tmp", 10000);
+        assertEquals("/tmp\n", result.getOutput());
+
+        // reading stdin must not eat the following requests
+        assertEquals(0, bash("cat", 10000).getExitValue());
+        assertEquals("still there\n", bash("echo still there", 10000).getOutput());
+        assertEquals(1, _runner.getWorkerCount());
+    }
+
+    @Test
+    public void testTimedOutWorkerIsReplaced() {
+        long start = System.currentTimeMillis();
+        CommandRunner.Result result = bash("echo started; sleep 30", 500);
+        assertTrue(result.isTimedOut());
+        assertEquals("started\n", result.getOutput());
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(0, _runner.getWorkerCount());
+
+        assertEquals("again\n", bash("echo again", 10000).getOutput());
+        assertEquals(1, _runner.getWorkerCount());
+    }
+
+    @Test
+    public void testTimeoutKillsBackgroundChildren() throws Exception {
+        CommandRunner.Result result = bash("sleep 30 & echo $!; sleep 30", 500);
+        assertTrue(result.isTimedOut());
+        String pid = result.getOutput().trim();
+        assertTrue(pid.matches("[0-9]+"));
+        File proc = new File("/proc/" + pid);
+        for (int i = 0; i < 50 && proc.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(proc.exists());
+    }
+
+    @Test
+    public void testNoWorkersFallsBack() {
+        CommandRunner runner = new CommandRunner(0);
+        assertNull(runner.execute(new String[] {"/bin/true"}, null, 10000));
+    }
+
+    @Test
+    public void testScriptDoesNotForkThroughRunner() {
+        assertEquals("warm", Script.runSimpleBashScript("echo warm", 10000, true));
+        long forks = ScriptMetrics.getForkCount();
+        long runs = ScriptMetrics.getEntry("echo").getRunnerCount();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("hello " + i, Script.runSimpleBashScript("echo hello " + i, 10000, true));
+        }
+        assertEquals(forks, ScriptMetrics.getForkCount());
+        assertEquals(runs + 100, ScriptMetrics.getEntry("echo").getRunnerCount());
+
+        Script script = new Script("/bin/false", 10000);
+        script.setUseCommandRunner(true);
+        assertEquals("1", script.execute(null));
+        assertEquals(Script.ERR_TIMEOUT, timedOut());
+    }
+
+    private String timedOut() {
+        Script script = new Script("/bin/sleep", 500);
+        script.add("30");
+        script.setUseCommandRunner(true);
+        return script.execute();
+    }
+
+    @Test
+    public void testMetricsName() {
+        assertEquals("iptables", ScriptMetrics.getName(new String[] {"sudo", "/sbin/iptables", "-L"}));
+        assertEquals("ovs-vsctl", ScriptMetrics.getName(new String[] {"/bin/bash", "-c", " ovs-vsctl list-br | wc -l"}));
+        assertEquals("qemu-img", ScriptMetrics.getName(new String[] {"qemu-img"}));
+    }
+}
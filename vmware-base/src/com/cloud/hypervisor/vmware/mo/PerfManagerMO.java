@@ -18,7 +18,11 @@ package com.cloud.hypervisor.vmware.mo;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -37,6 +41,10 @@ import com.vmware.vim25.PerfQuerySpec;
 import java.util.Arrays;
 
 public class PerfManagerMO extends BaseMO {
+    // counter ids only change when a vCenter is upgraded or replaced, they are looked up
+    // once per vCenter address and looked up again after logging in to it anew
+    private static final Map<String, Map<String, Integer>> s_counterIds = new ConcurrentHashMap<String, Map<String, Integer>>();
+
     public PerfManagerMO(VmwareContext context, ManagedObjectReference mor) {
         super(context, mor);
     }
@@ -106,6 +114,41 @@ public class PerfManagerMO extends BaseMO {
         return _context.getService().queryPerf(_mor, Arrays.asList(specs));
     }
 
+    public List<PerfEntityMetricBase> queryPerf(List<PerfQuerySpec> specs) throws Exception {
+        return _context.getService().queryPerf(_mor, specs);
+    }
+
+    /**
+     * @return the id of the counter, null if the vCenter has no such counter
+     */
+    public Integer getCounterId(String group, String name, String rollupType) throws Exception {
+        return getCounterIds().get(group + "." + name + "." + rollupType);
+    }
+
+    /**
+     * @return the counter ids of the vCenter keyed by group.name.rollup, net.received.average for instance
+     */
+    public Map<String, Integer> getCounterIds() throws Exception {
+        String serverAddress = _context.getServerAddress();
+        Map<String, Integer> counterIds = s_counterIds.get(serverAddress);
+        if (counterIds == null) {
+            counterIds = new HashMap<String, Integer>();
+            for (PerfCounterInfo info : getCounterInfo()) {
+                counterIds.put(info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey() + "." + info.getRollupType().value(), info.getKey());
+            }
+            counterIds = Collections.unmodifiableMap(counterIds);
+            s_counterIds.put(serverAddress, counterIds);
+        }
+        return counterIds;
+    }
+
+    /**
+     * Forgets the counter ids of the vCenter, the next lookup reads them from it again
+     */
+    public static void invalidateCounterIds(String serverAddress) {
+        s_counterIds.remove(serverAddress);
+    }
+
     public void removePerfInterval(int samplePeriod) throws Exception {
         _context.getService().removePerfInterval(_mor, samplePeriod);
     }
@@ -0,0 +1,212 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+
+/**
+ * Keeps the properties of the VMs on a host or cluster up to date with
+ * WaitForUpdatesEx instead of retrieving all of them on every call. The
+ * first call to getVmProperties() gets the full set, later calls only pull
+ * the changes since the previous one, which is usually nothing.
+ *
+ * The tracker works on a property collector of its own, the shared one of
+ * the session is used by waitForTask and would otherwise see our filter.
+ * Call destroy() when done, the collector lives as long as the session.
+ */
+public class VmStateTracker {
+    private static final Logger s_logger = Logger.getLogger(VmStateTracker.class);
+
+    private final VimPortType _service;
+    private final ManagedObjectReference _propertyCollector;
+    private final String[] _propertyPaths;
+    private String _version = "";
+    private int _updateCount;
+    private final Map<String, ManagedObjectReference> _vms = new LinkedHashMap<String, ManagedObjectReference>();
+    private final Map<String, Map<String, Object>> _vmProperties = new HashMap<String, Map<String, Object>>();
+
+    VmStateTracker(VimPortType service, ManagedObjectReference propertyCollectorFactory, ManagedObjectReference morHyperHost, String[] propertyPaths)
+            throws Exception {
+        _service = service;
+        _propertyPaths = propertyPaths.clone();
+        _propertyCollector = service.createPropertyCollector(propertyCollectorFactory);
+        try {
+            service.createFilter(_propertyCollector, createFilterSpec(morHyperHost, propertyPaths), false);
+        } catch (Exception e) {
+            service.destroyPropertyCollector(_propertyCollector);
+            throw e;
+        }
+    }
+
+    private static PropertyFilterSpec createFilterSpec(ManagedObjectReference morHyperHost, String[] propertyPaths) {
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.setType("VirtualMachine");
+        pSpec.getPathSet().addAll(Arrays.asList(propertyPaths));
+
+        TraversalSpec host2VmTraversal = new TraversalSpec();
+        host2VmTraversal.setType("HostSystem");
+        host2VmTraversal.setPath("vm");
+        host2VmTraversal.setName("host2VmTraversal");
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(morHyperHost);
+        oSpec.setSkip(Boolean.TRUE);
+        if (morHyperHost.getType().equals("ClusterComputeResource")) {
+            TraversalSpec cluster2HostTraversal = new TraversalSpec();
+            cluster2HostTraversal.setType("ClusterComputeResource");
+            cluster2HostTraversal.setPath("host");
+            cluster2HostTraversal.setName("cluster2HostTraversal");
+            cluster2HostTraversal.getSelectSet().add(host2VmTraversal);
+            oSpec.getSelectSet().add(cluster2HostTraversal);
+        } else {
+            oSpec.getSelectSet().add(host2VmTraversal);
+        }
+
+        PropertyFilterSpec pfSpec = new PropertyFilterSpec();
+        pfSpec.getPropSet().add(pSpec);
+        pfSpec.getObjectSet().add(oSpec);
+        return pfSpec;
+    }
+
+    public boolean isTracking(String[] propertyPaths) {
+        return Arrays.equals(_propertyPaths, propertyPaths);
+    }
+
+    /**
+     * Brings the tracked properties up to date and returns them the way retrieveProperties() would.
+     */
+    public synchronized ObjectContent[] getVmProperties() throws Exception {
+        update();
+
+        List<ObjectContent> ocs = new ArrayList<ObjectContent>(_vms.size());
+        for (Map.Entry<String, ManagedObjectReference> entry : _vms.entrySet()) {
+            ObjectContent oc = new ObjectContent();
+            oc.setObj(entry.getValue());
+            for (Map.Entry<String, Object> property : _vmProperties.get(entry.getKey()).entrySet()) {
+                DynamicProperty dp = new DynamicProperty();
+                dp.setName(property.getKey());
+                dp.setVal(property.getValue());
+                oc.getPropSet().add(dp);
+            }
+            ocs.add(oc);
+        }
+        return ocs.toArray(new ObjectContent[ocs.size()]);
+    }
+
+    /**
+     * @return the number of update sets received so far, the first one carrying the full set of VMs
+     */
+    public synchronized int getUpdateCount() {
+        return _updateCount;
+    }
+
+    private void update() throws Exception {
+        WaitOptions options = new WaitOptions();
+        // return right away, with whatever changed since the last version
+        options.setMaxWaitSeconds(0);
+
+        while (true) {
+            UpdateSet updateSet;
+            try {
+                updateSet = _service.waitForUpdatesEx(_propertyCollector, _version, options);
+            } catch (InvalidCollectorVersionFaultMsg e) {
+                s_logger.info("Property collector version " + _version + " is no longer valid, resyncing all VM properties");
+                _version = "";
+                _vms.clear();
+                _vmProperties.clear();
+                continue;
+            }
+            if (updateSet == null) {
+                return;
+            }
+            _version = updateSet.getVersion();
+            _updateCount++;
+            apply(updateSet);
+            if (updateSet.isTruncated() == null || !updateSet.isTruncated()) {
+                return;
+            }
+        }
+    }
+
+    private void apply(UpdateSet updateSet) {
+        for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+            for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+                String key = objectUpdate.getObj().getValue();
+                switch (objectUpdate.getKind()) {
+                case ENTER:
+                    _vms.put(key, objectUpdate.getObj());
+                    _vmProperties.put(key, new HashMap<String, Object>());
+                    applyChanges(_vmProperties.get(key), objectUpdate.getChangeSet());
+                    break;
+
+                case MODIFY:
+                    Map<String, Object> properties = _vmProperties.get(key);
+                    if (properties != null) {
+                        applyChanges(properties, objectUpdate.getChangeSet());
+                    }
+                    break;
+
+                case LEAVE:
+                    _vms.remove(key);
+                    _vmProperties.remove(key);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void applyChanges(Map<String, Object> properties, List<PropertyChange> changes) {
+        for (PropertyChange change : changes) {
+            if (change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE) {
+                properties.remove(change.getName());
+            } else {
+                properties.put(change.getName(), change.getVal());
+            }
+        }
+    }
+
+    public synchronized void destroy() {
+        try {
+            _service.destroyPropertyCollector(_propertyCollector);
+        } catch (Exception e) {
+            s_logger.warn("Unable to destroy the property collector of the VM state tracker", e);
+        }
+    }
+}
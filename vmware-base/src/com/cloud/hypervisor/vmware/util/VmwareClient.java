@@ -209,6 +209,19 @@ public class VmwareClient {
         return getServiceContent().getRootFolder();
     }
 
+    /**
+     * Starts tracking the given properties of the VMs on a host or cluster.
+     *
+     * @param morHyperHost
+     *            HostSystem or ClusterComputeResource the VMs run on
+     * @param propertyPaths
+     *            VirtualMachine properties to track
+     * @return the tracker, to be destroyed by the caller
+     */
+    public VmStateTracker createVmStateTracker(ManagedObjectReference morHyperHost, String[] propertyPaths) throws Exception {
+        return new VmStateTracker(vimPort, getPropCol(), morHyperHost, propertyPaths);
+    }
+
 	public boolean validate() {
 		//
 		// There is no official API to validate an open vCenter API session. This is hacking way to tell if
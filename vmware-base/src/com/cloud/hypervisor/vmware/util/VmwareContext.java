@@ -43,6 +43,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.hypervisor.vmware.mo.DatacenterMO;
 import com.cloud.hypervisor.vmware.mo.DatastoreFile;
+import com.cloud.hypervisor.vmware.mo.PerfManagerMO;
 import com.cloud.utils.ActionDelegate;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ObjectContent;
@@ -98,7 +99,10 @@ public class VmwareContext {
 
 		_vimClient = client;
 		_serverAddress = address;
-		
+
+		// a new context comes with a new login, the vCenter behind the address may have changed since the last one
+		PerfManagerMO.invalidateCounterIds(address);
+
 		registerOutstandingContext();
 		if(s_logger.isInfoEnabled())
 			s_logger.info("New VmwareContext object, current outstanding count: " + getOutstandingContextCount());
@@ -0,0 +1,134 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.hypervisor.vmware.mo.HostMO;
+import com.cloud.hypervisor.vmware.mo.PerfManagerMO;
+import com.cloud.hypervisor.vmware.mo.TestVmwareContextFactory;
+import com.cloud.hypervisor.vmware.mo.VirtualMachineMO;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+/**
+ * Runs against a vCenter simulator such as vcsim, given with
+ * -Dvmware.simulator.address=127.0.0.1:8989 and optionally
+ * vmware.simulator.username, vmware.simulator.password and
+ * vmware.simulator.host, the name of the host whose VMs are tracked.
+ * Skipped when no simulator is given.
+ */
+public class VmStateTrackerTest {
+    private static final String[] PROPERTIES = new String[] {"name", "runtime.powerState"};
+
+    private VmwareContext _context;
+    private HostMO _hostMo;
+    private VmStateTracker _tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        String address = System.getProperty("vmware.simulator.address");
+        Assume.assumeTrue(address != null);
+
+        _context = TestVmwareContextFactory.create(address, System.getProperty("vmware.simulator.username", "user"),
+                System.getProperty("vmware.simulator.password", "pass"));
+        ManagedObjectReference morHost = _context.getVimClient().getDecendentMoRef(_context.getRootFolder(), "HostSystem",
+                System.getProperty("vmware.simulator.host", "DC0_H0"));
+        assertNotNull(morHost);
+        _hostMo = new HostMO(_context, morHost);
+        _tracker = _context.getVimClient().createVmStateTracker(morHost, PROPERTIES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (_tracker != null) {
+            _tracker.destroy();
+        }
+        if (_context != null) {
+            _context.close();
+        }
+    }
+
+    private static Map<String, Map<String, Object>> toMap(ObjectContent[] ocs) {
+        Map<String, Map<String, Object>> vms = new HashMap<String, Map<String, Object>>();
+        for (ObjectContent oc : ocs) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            for (DynamicProperty property : oc.getPropSet()) {
+                properties.put(property.getName(), property.getVal());
+            }
+            vms.put(oc.getObj().getValue(), properties);
+        }
+        return vms;
+    }
+
+    @Test
+    public void testTrackerMatchesRetrieveProperties() throws Exception {
+        assertEquals(toMap(_hostMo.getVmPropertiesOnHyperHost(PROPERTIES)), toMap(_tracker.getVmProperties()));
+        assertEquals(1, _tracker.getUpdateCount());
+
+        // nothing changed, nothing is transferred
+        assertEquals(toMap(_hostMo.getVmPropertiesOnHyperHost(PROPERTIES)), toMap(_tracker.getVmProperties()));
+        assertEquals(1, _tracker.getUpdateCount());
+    }
+
+    @Test
+    public void testPowerStateChangeIsTracked() throws Exception {
+        ObjectContent[] ocs = _tracker.getVmProperties();
+        Assume.assumeTrue(ocs.length > 0);
+        ManagedObjectReference morVm = ocs[0].getObj();
+        VirtualMachineMO vmMo = new VirtualMachineMO(_context, morVm);
+
+        boolean wasOn = toMap(ocs).get(morVm.getValue()).get("runtime.powerState") == VirtualMachinePowerState.POWERED_ON;
+        try {
+            if (wasOn) {
+                vmMo.powerOff();
+            } else {
+                vmMo.powerOn();
+            }
+            Object powerState = toMap(_tracker.getVmProperties()).get(morVm.getValue()).get("runtime.powerState");
+            assertEquals(wasOn ? VirtualMachinePowerState.POWERED_OFF : VirtualMachinePowerState.POWERED_ON, powerState);
+            assertEquals(toMap(_hostMo.getVmPropertiesOnHyperHost(PROPERTIES)), toMap(_tracker.getVmProperties()));
+        } finally {
+            if (wasOn) {
+                vmMo.powerOn();
+            } else {
+                vmMo.powerOff();
+            }
+        }
+    }
+
+    @Test
+    public void testCounterIdsAreCachedPerVCenter() throws Exception {
+        PerfManagerMO perfMgr = new PerfManagerMO(_context, _context.getServiceContent().getPerfManager());
+        Map<String, Integer> counterIds = perfMgr.getCounterIds();
+        assertNotNull(perfMgr.getCounterId("net", "received", "average"));
+        assertNotNull(perfMgr.getCounterId("net", "transmitted", "average"));
+        assertSame(counterIds, new PerfManagerMO(_context, _context.getServiceContent().getPerfManager()).getCounterIds());
+    }
+}